@@ -0,0 +1,452 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.ais;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The AIS targets currently in view, keyed by MMSI, with the time each was last seen.
+ * <p>
+ * Positions are indexed on a grid of cells of a fixed size in degrees, so range queries only look at
+ * the cells around the search area. Targets not seen for the timeout are evicted, and when the store
+ * is full the least recently seen target is dropped.
+ *
+ * @author robert
+ *
+ */
+public class AisTargetStore {
+
+	private static Logger logger = LogManager.getLogger(AisTargetStore.class);
+
+	private static final double METERS_PER_NM = 1852.0;
+	/** Default grid cell, 0.1 degrees, about 6nm of latitude */
+	public static final double DEFAULT_CELL_SIZE = 0.1;
+	private static final long DEFAULT_TIMEOUT = 600000;
+	private static final int DEFAULT_MAX_TARGETS = 2000;
+
+	private final long timeout;
+	private final int maxTargets;
+	private final double cellSize;
+	private final int lonCells;
+	private final int latCells;
+
+	// by mmsi, in order of last seen so eviction stops at the first fresh target
+	private final LinkedHashMap<Integer, Target> targets = new LinkedHashMap<Integer, Target>(64);
+	// the mmsis in each grid cell
+	private final Map<Long, Set<Integer>> grid = new HashMap<Long, Set<Integer>>();
+	// dropped because the store was full, kept until evict removes them from the model
+	private final Map<Integer, Target> dropped = new LinkedHashMap<Integer, Target>();
+	// the sources.* keys written for each target, removed from the model with it
+	private final Map<Integer, Set<String>> sources = new HashMap<Integer, Set<String>>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Told about each change to the store, while the store is locked so calls arrive in order
+	 */
+	public interface Listener {
+		void targetUpdated(Target target);
+
+		void targetRemoved(Target target);
+	}
+
+	/**
+	 * A store using the config timeout and max targets
+	 */
+	public AisTargetStore() {
+		this(getTimeoutConfig(), getMaxTargetsConfig(), DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param timeout ms without a report before a target is evicted
+	 * @param maxTargets
+	 * @param cellSize the grid cell size in degrees
+	 */
+	public AisTargetStore(long timeout, int maxTargets, double cellSize) {
+		if (timeout <= 0 || maxTargets <= 0 || !(cellSize > 0 && cellSize <= 90)) {
+			throw new IllegalArgumentException("Invalid AIS store settings: timeout " + timeout + ", maxTargets " + maxTargets + ", cellSize " + cellSize);
+		}
+		this.timeout = timeout;
+		this.maxTargets = maxTargets;
+		this.cellSize = cellSize;
+		this.lonCells = (int) Math.ceil(360 / cellSize);
+		this.latCells = (int) Math.ceil(180 / cellSize);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireRemoved(Target target) {
+		for (Listener listener : listeners) {
+			listener.targetRemoved(target);
+		}
+	}
+
+	private static long getTimeoutConfig() {
+		Integer secs = Util.getConfigPropertyInt(ConfigConstants.AIS_TARGET_TIMEOUT);
+		return secs == null || secs <= 0 ? DEFAULT_TIMEOUT : secs * 1000L;
+	}
+
+	private static int getMaxTargetsConfig() {
+		Integer max = Util.getConfigPropertyInt(ConfigConstants.AIS_MAX_TARGETS);
+		return max == null || max <= 0 ? DEFAULT_MAX_TARGETS : max;
+	}
+
+	/**
+	 * Records a report for a target. NaN values were not in the report and keep their previous value.
+	 *
+	 * @param mmsi
+	 * @param lat degrees
+	 * @param lon degrees
+	 * @param cog radians
+	 * @param sog m/s
+	 * @param heading radians
+	 * @param time ms, when the report was received
+	 * @return the target as updated
+	 */
+	public synchronized Target update(int mmsi, double lat, double lon, double cog, double sog, double heading, long time) {
+		Target old = targets.get(mmsi);
+		Target target = old == null ? new Target(mmsi, lat, lon, cog, sog, heading, time) : old.merge(lat, lon, cog, sog, heading, time);
+		long oldCell = old == null || !old.hasPosition() ? -1 : cell(old.lat, old.lon);
+		long newCell = target.hasPosition() ? cell(target.lat, target.lon) : -1;
+		if (oldCell != newCell) {
+			removeFromGrid(mmsi, oldCell);
+			if (newCell >= 0) {
+				Set<Integer> cell = grid.get(newCell);
+				if (cell == null) {
+					cell = new HashSet<Integer>(4);
+					grid.put(newCell, cell);
+				}
+				cell.add(mmsi);
+			}
+		}
+		// move to the end, as the most recently seen
+		targets.remove(mmsi);
+		targets.put(mmsi, target);
+		// back in view, so its model entries stay
+		dropped.remove(mmsi);
+		for (Listener listener : listeners) {
+			listener.targetUpdated(target);
+		}
+		if (targets.size() > maxTargets) {
+			// the eldest is the least recently seen
+			Iterator<Target> i = targets.values().iterator();
+			Target eldest = i.next();
+			i.remove();
+			removeFromGrid(eldest.mmsi, eldest.hasPosition() ? cell(eldest.lat, eldest.lon) : -1);
+			dropped.put(eldest.mmsi, eldest);
+			fireRemoved(eldest);
+			if (logger.isDebugEnabled()) logger.debug("AIS store full, dropped " + eldest.mmsi);
+		}
+		return target;
+	}
+
+	/**
+	 * Records the sources.* keys written for a target, so evict can remove them with its vessel entry
+	 *
+	 * @param mmsi
+	 * @param srcRefs
+	 */
+	public synchronized void addSources(int mmsi, Collection<String> srcRefs) {
+		Set<String> refs = sources.get(mmsi);
+		if (refs == null) {
+			refs = new HashSet<String>(4);
+			sources.put(mmsi, refs);
+		}
+		refs.addAll(srcRefs);
+	}
+
+	private void removeFromGrid(int mmsi, long cellKey) {
+		if (cellKey < 0) return;
+		Set<Integer> cell = grid.get(cellKey);
+		if (cell != null && cell.remove(mmsi) && cell.isEmpty()) {
+			grid.remove(cellKey);
+		}
+	}
+
+	private long cell(double lat, double lon) {
+		return (long) latCell(lat) * lonCells + lonCell(lon);
+	}
+
+	private int latCell(double lat) {
+		return Math.max(0, Math.min(latCells - 1, (int) Math.floor((lat + 90) / cellSize)));
+	}
+
+	private int lonCell(double lon) {
+		int x = (int) Math.floor((lon + 180) / cellSize) % lonCells;
+		return x < 0 ? x + lonCells : x;
+	}
+
+	/**
+	 * Removes the targets not seen since now - timeout. The targets dropped because the store was full
+	 * since the last call are returned too, so their model entries can be removed with the stale ones.
+	 *
+	 * @param now ms
+	 * @return the evicted and dropped targets
+	 */
+	public List<Target> evict(long now) {
+		return evict(now, null);
+	}
+
+	/**
+	 * As evict(now), adding the sources.* keys of the removed targets to srcRefs, if not null
+	 */
+	private synchronized List<Target> evict(long now, List<String> srcRefs) {
+		List<Target> evicted = new ArrayList<Target>(dropped.values());
+		dropped.clear();
+		Iterator<Target> i = targets.values().iterator();
+		while (i.hasNext()) {
+			Target target = i.next();
+			if (now - target.lastSeen < timeout) {
+				// the rest were seen later
+				break;
+			}
+			i.remove();
+			removeFromGrid(target.mmsi, target.hasPosition() ? cell(target.lat, target.lon) : -1);
+			fireRemoved(target);
+			evicted.add(target);
+		}
+		for (Target target : evicted) {
+			Set<String> refs = sources.remove(target.mmsi);
+			if (refs != null && srcRefs != null) srcRefs.addAll(refs);
+		}
+		if (logger.isDebugEnabled() && evicted.size() > 0) logger.debug("Evicted " + evicted.size() + " AIS targets");
+		return evicted;
+	}
+
+	/**
+	 * Removes the stale targets, and the vessels.[mmsi] subtrees and sources.* keys of the stale and dropped
+	 * targets from the model
+	 *
+	 * @param model
+	 * @param now ms
+	 * @return the evicted and dropped targets
+	 */
+	public List<Target> evict(SignalKModel model, long now) {
+		List<String> srcRefs = new ArrayList<String>();
+		List<Target> evicted = evict(now, srcRefs);
+		if (evicted.isEmpty()) return evicted;
+		model.beginBatch();
+		try {
+			for (Target target : evicted) {
+				model.put(vessels + dot + target.mmsi, null, null);
+			}
+			for (String srcRef : srcRefs) {
+				model.put(srcRef, null, null);
+			}
+		} finally {
+			model.endBatch();
+		}
+		return evicted;
+	}
+
+	/**
+	 * Finds the targets within a distance, using only the grid cells that cover the area.
+	 *
+	 * @param lat degrees
+	 * @param lon degrees
+	 * @param nm the range in nautical miles
+	 * @return the targets in range, in no particular order
+	 */
+	public synchronized List<Target> within(double lat, double lon, double nm) {
+		List<Target> found = new ArrayList<Target>();
+		if (Double.isNaN(lat) || Double.isNaN(lon) || !(nm >= 0)) return found;
+		double meters = nm * METERS_PER_NM;
+		double dLat = Math.toDegrees(meters / Util.R);
+		int minLat = latCell(lat - dLat);
+		int maxLat = latCell(lat + dLat);
+		// longitude degrees shrink towards the poles, search all longitudes near them
+		double maxAbsLat = Math.min(90, Math.abs(lat) + dLat);
+		double cosLat = Math.cos(Math.toRadians(maxAbsLat));
+		int minLon = 0;
+		int cellsLon = lonCells;
+		if (cosLat > 1e-6 && dLat / cosLat < 180) {
+			double dLon = dLat / cosLat;
+			minLon = lonCell(lon - dLon);
+			// may wrap across the antimeridian
+			int span = lonCell(lon + dLon) - minLon;
+			cellsLon = (span < 0 ? span + lonCells : span) + 1;
+		}
+		if ((long) (maxLat - minLat + 1) * cellsLon > grid.size()) {
+			// a large area, cheaper to check the occupied cells
+			for (Set<Integer> cell : grid.values()) {
+				addInRange(found, cell, lat, lon, meters);
+			}
+			return found;
+		}
+		for (int y = minLat; y <= maxLat; y++) {
+			for (int x = 0; x < cellsLon; x++) {
+				Set<Integer> cell = grid.get((long) y * lonCells + (minLon + x) % lonCells);
+				if (cell != null) addInRange(found, cell, lat, lon, meters);
+			}
+		}
+		return found;
+	}
+
+	private void addInRange(List<Target> found, Set<Integer> cell, double lat, double lon, double meters) {
+		for (Integer mmsi : cell) {
+			Target target = targets.get(mmsi);
+			if (target != null && Util.haversineMeters(lat, lon, target.lat, target.lon) <= meters) {
+				found.add(target);
+			}
+		}
+	}
+
+	/**
+	 * @param mmsi
+	 * @return the target, or null if it is not in view
+	 */
+	public synchronized Target get(int mmsi) {
+		return targets.get(mmsi);
+	}
+
+	/**
+	 * @return a copy of all the targets, least recently seen first
+	 */
+	public synchronized List<Target> getTargets() {
+		return new ArrayList<Target>(targets.values());
+	}
+
+	public synchronized int size() {
+		return targets.size();
+	}
+
+	public synchronized void clear() {
+		for (Target target : targets.values()) {
+			fireRemoved(target);
+		}
+		targets.clear();
+		grid.clear();
+		dropped.clear();
+		sources.clear();
+	}
+
+	/**
+	 * The last known state of a target, immutable. Missing values are NaN.
+	 */
+	public static class Target {
+		private final int mmsi;
+		private final double lat;
+		private final double lon;
+		private final double cog;
+		private final double sog;
+		private final double heading;
+		private final long lastSeen;
+		private final long positionTime;
+
+		Target(int mmsi, double lat, double lon, double cog, double sog, double heading, long lastSeen) {
+			this(mmsi, lat, lon, cog, sog, heading, lastSeen, !Double.isNaN(lat) && !Double.isNaN(lon) ? lastSeen : 0);
+		}
+
+		private Target(int mmsi, double lat, double lon, double cog, double sog, double heading, long lastSeen, long positionTime) {
+			this.mmsi = mmsi;
+			this.lat = lat;
+			this.lon = lon;
+			this.cog = cog;
+			this.sog = sog;
+			this.heading = heading;
+			this.lastSeen = lastSeen;
+			this.positionTime = positionTime;
+		}
+
+		Target merge(double lat, double lon, double cog, double sog, double heading, long time) {
+			boolean position = !Double.isNaN(lat) && !Double.isNaN(lon);
+			return new Target(mmsi, position ? lat : this.lat, position ? lon : this.lon, Double.isNaN(cog) ? this.cog : cog,
+					Double.isNaN(sog) ? this.sog : sog, Double.isNaN(heading) ? this.heading : heading, Math.max(time, lastSeen),
+					position ? time : positionTime);
+		}
+
+		public boolean hasPosition() {
+			return !Double.isNaN(lat) && !Double.isNaN(lon);
+		}
+
+		public int getMmsi() {
+			return mmsi;
+		}
+
+		/** @return degrees */
+		public double getLatitude() {
+			return lat;
+		}
+
+		/** @return degrees */
+		public double getLongitude() {
+			return lon;
+		}
+
+		/** @return radians */
+		public double getCog() {
+			return cog;
+		}
+
+		/** @return m/s */
+		public double getSog() {
+			return sog;
+		}
+
+		/** @return radians */
+		public double getHeading() {
+			return heading;
+		}
+
+		/** @return ms, when any report was last received */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		/** @return ms, when the position was last reported, 0 if it never was */
+		public long getPositionTime() {
+			return positionTime;
+		}
+
+		@Override
+		public String toString() {
+			return "Target [mmsi=" + mmsi + ", lat=" + lat + ", lon=" + lon + ", cog=" + cog + ", sog=" + sog + ", heading=" + heading
+					+ ", lastSeen=" + lastSeen + ", positionTime=" + positionTime + "]";
+		}
+	}
+}
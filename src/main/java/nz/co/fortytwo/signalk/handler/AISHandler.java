@@ -25,8 +25,6 @@ package nz.co.fortytwo.signalk.handler;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.UNKNOWN;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.communication_callsignVhf;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.mmsi;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.name;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_headingTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
@@ -41,11 +39,22 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisMessage18;
 import dk.dma.ais.message.AisPositionMessage;
@@ -54,14 +63,22 @@ import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketParser;
 import dk.dma.ais.sentence.Abk;
 import dk.dma.ais.sentence.SentenceException;
+import dk.dma.enav.model.geometry.Position;
+import nz.co.fortytwo.signalk.ais.AisTargetStore;
 import nz.co.fortytwo.signalk.ais.AisVesselInfo;
+import nz.co.fortytwo.signalk.model.PathHandle;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
 /**
  * Accepts AIVDM messages and translates the VDMs into AisMessages and sends the AisPositionMessages on to the browser.
  * Mostly we need 1,2,3,5, 18,19
+ * <p>
+ * The targets written are tracked in an {@link AisTargetStore}. Whoever merges the handler output into the
+ * shared model must call {@link #start(SignalKModel, long)} with that model, or
+ * stale and dropped targets are never removed from it.
  * 
  * @author robert
  * 
@@ -69,6 +86,7 @@ import nz.co.fortytwo.signalk.util.Util;
 public class AISHandler {
 
 	private static Logger logger = LogManager.getLogger(AISHandler.class);
+	private static final int MAX_TARGETS = 2000;
 
 	/**
 	 * Reader to parse lines and deliver complete AIS packets.
@@ -78,7 +96,37 @@ public class AISHandler {
 
 	private Map<Integer, String> navStatusMap = new HashMap<>();
 
+	// the updates being merged, also the lock for the parser
+	private final AisBatch batch = new AisBatch();
+
+	// keys per target, most recently seen targets are kept
+	private Cache<Integer, TargetHandles> targets = CacheBuilder.newBuilder().maximumSize(MAX_TARGETS).build();
+
+	// the targets in view, for eviction and range queries
+	private final AisTargetStore store;
+
+	private ScheduledExecutorService scheduler;
+
 	public AISHandler() {
+		this(new AisTargetStore());
+	}
+
+	/**
+	 * @param store records the targets written, may be shared between handlers
+	 */
+	public AISHandler(AisTargetStore store) {
+		this.store = store;
+		// evicted or dropped targets get new keys if they come back
+		store.addListener(new AisTargetStore.Listener() {
+			@Override
+			public void targetUpdated(AisTargetStore.Target target) {
+			}
+
+			@Override
+			public void targetRemoved(AisTargetStore.Target target) {
+				targets.invalidate(target.getMmsi());
+			}
+		});
 		navStatusMap.put(0, "Under way using engine");
 		navStatusMap.put(1, "At anchor");
 		navStatusMap.put(2, "Not under command");
@@ -135,52 +183,17 @@ public class AISHandler {
 		}
 
 		try {
-			List<AisPacket> packets = handleLine(bodyStr);
-			AisVesselInfo vInfo = null;
 			SignalKModel model = SignalKModelFactory.getCleanInstance();
-			for (AisPacket packet : packets) {
-				if (packet != null && packet.isValidMessage()) {
-					// process message here
-					AisMessage message = packet.getAisMessage();
-					if (logger.isDebugEnabled())
-						logger.debug("AisMessage:" + message.getClass() + ":" + message.toString());
-					
-					// 1,2,3
-					if (message instanceof AisPositionMessage) {
-						vInfo = new AisVesselInfo((AisPositionMessage) message);
-					}
-					// 5,19,24
-					if (message instanceof AisStaticCommon) {
-						vInfo = new AisVesselInfo((AisStaticCommon) message);
-					}
-					if (message instanceof AisMessage18) {
-						vInfo = new AisVesselInfo((AisMessage18) message);
-					}
-					if (vInfo != null) {
-						if(StringUtils.isBlank(device))device=UNKNOWN;
-						String ts = Util.getIsoTimeString(packet.getBestTimestamp());
-						String aisVessel = vessels + dot + String.valueOf(vInfo.getUserId())+dot;
-						//A general rule of sources.protocol.bus.device.data
-						String srcRef = sources+".ais."+device+dot+String.valueOf(vInfo.getUserId())+dot+vInfo.getMsgType();
-						//create ais source entry
-						model.put(srcRef, packet.getStringMessage(),device,ts);
-						
-						if(vInfo.getName()!=null){
-							model.getFullData().put(aisVessel+name, vInfo.getName());
-						}
-						model.put(aisVessel+mmsi, String.valueOf(vInfo.getUserId()), sourceRef, ts);
-						model.put(aisVessel+ nav_state, navStatusMap.get(vInfo.getNavStatus()), sourceRef, ts);
-						if (vInfo.getPosition() != null) {
-							model.putPosition(aisVessel+ nav_position, vInfo.getPosition().getLatitude(), vInfo.getPosition().getLongitude(), 0.0, srcRef, ts);
-						}
-						model.put(aisVessel+ nav_courseOverGroundTrue, Math.toRadians(((double) vInfo.getCog()) / 10), srcRef, ts);
-						model.put(aisVessel+ nav_speedOverGround, Util.kntToMs(((double) vInfo.getSog()) / 10), srcRef, ts);
-						model.put(aisVessel+ nav_headingTrue, Math.toRadians(((double) vInfo.getTrueHeading()) / 10), srcRef);
-						if (vInfo.getCallsign() != null) {
-							model.put(aisVessel+ communication_callsignVhf, vInfo.getCallsign(), srcRef, ts);
-						}
+			synchronized (batch) {
+				// the parser holds multipart state shared with handleBatch
+				List<AisPacket> packets = handleLine(bodyStr);
+				batch.clear();
+				if (packets != null) {
+					for (AisPacket packet : packets) {
+						add(packet, device);
 					}
 				}
+				write(model, device);
 			}
 			return model;
 
@@ -192,6 +205,262 @@ public class AISHandler {
 
 	}
 
+	/**
+	 * Decodes a batch of AIVDM lines into one model. Multipart messages may span batches, and the
+	 * updates for each MMSI are merged before they are written, so a busy feed creates one model per
+	 * batch rather than per line. Bad lines are logged and skipped.
+	 * 
+	 * @param lines
+	 * @param device - the serial or other device the data was recieved over.
+	 * @return the model, or null if no target was updated
+	 */
+	public SignalKModel handleBatch(Iterable<String> lines, String device) {
+		synchronized (batch) {
+			batch.clear();
+			for (String line : lines) {
+				if (StringUtils.isBlank(line) || Abk.isAbk(line)) {
+					continue;
+				}
+				try {
+					add(packetParser.readLine(line), device);
+				} catch (Exception e) {
+					if (logger.isDebugEnabled())
+						logger.debug("AIS Sentence error: " + e.getMessage() + " line: " + line);
+				}
+			}
+			if (batch.isEmpty()) {
+				return null;
+			}
+			SignalKModel model = SignalKModelFactory.getCleanInstance();
+			try {
+				write(model, device);
+			} catch (ExecutionException e) {
+				logger.error(e.getMessage(), e);
+				batch.clear();
+			}
+			return model;
+		}
+	}
+
+	/**
+	 * Merges a complete packet into the batch
+	 */
+	private void add(AisPacket packet, String device) throws Exception {
+		if (packet == null || !packet.isValidMessage()) {
+			return;
+		}
+		AisMessage message = packet.getAisMessage();
+		if (logger.isDebugEnabled())
+			logger.debug("AisMessage:" + message.getClass() + ":" + message.toString());
+		String msgType;
+		// 1,2,3
+		if (message instanceof AisPositionMessage) {
+			msgType = AisVesselInfo.MsgType.Position.name();
+		// 5,19,24
+		} else if (message instanceof AisStaticCommon) {
+			msgType = AisVesselInfo.MsgType.StaticCommon.name();
+		} else if (message instanceof AisMessage18) {
+			msgType = AisVesselInfo.MsgType.Message18.name();
+		} else {
+			return;
+		}
+		if(StringUtils.isBlank(device))device=UNKNOWN;
+		int userId = message.getUserId();
+		//A general rule of sources.protocol.bus.device.data
+		String srcRef = getTargetHandles(userId).getSrcRef(device, msgType);
+		AisBatch.Update update = batch.get(userId);
+		update.sentence(srcRef, packet.getStringMessage(), Util.getIsoTimeString(packet.getBestTimestamp()));
+		Position position = message.getValidPosition();
+		if (position != null) {
+			update.position(srcRef, position.getLatitude(), position.getLongitude());
+		}
+		if (message instanceof AisPositionMessage) {
+			AisPositionMessage pos = (AisPositionMessage) message;
+			update.motion(srcRef, pos.getNavStatus(), pos.getCog(), pos.getSog(), pos.getTrueHeading());
+		} else if (message instanceof AisMessage18) {
+			AisMessage18 pos = (AisMessage18) message;
+			update.motion(srcRef, -1, pos.getCog(), pos.getSog(), pos.getTrueHeading());
+		} else {
+			AisStaticCommon stat = (AisStaticCommon) message;
+			update.statics(srcRef, stat.getName(), stat.getCallsign());
+		}
+	}
+
+	/**
+	 * Writes the merged batch into the model, one target at a time
+	 */
+	void write(SignalKModel model, String device) throws ExecutionException {
+		if(StringUtils.isBlank(device))device=UNKNOWN;
+		long now = System.currentTimeMillis();
+		for (AisBatch.Update update : batch.getUpdates()) {
+			TargetHandles target = getTargetHandles(update.mmsi);
+			String ts = update.ts;
+			//create ais source entries
+			for (Map.Entry<String, String> sentence : update.sentences.entrySet()) {
+				model.put(sentence.getKey(), sentence.getValue(), device, ts);
+			}
+			if (update.name != null) {
+				model.getFullData().put(target.name, update.name);
+			}
+			model.put(target.mmsi, target.userId, sourceRef, ts);
+			if (update.navStatus >= 0) {
+				model.put(target.state, navStatusMap.get(update.navStatus), sourceRef, ts);
+			}
+			if (update.positionSrc != null) {
+				model.putPosition(target.position, update.lat, update.lon, 0.0, update.positionSrc, ts);
+			}
+			double cog = update.cog >= 0 ? Math.toRadians(((double) update.cog) / 10) : Double.NaN;
+			double sog = update.sog >= 0 ? Util.kntToMs(((double) update.sog) / 10) : Double.NaN;
+			// whole degrees
+			double heading = update.heading >= 0 ? Math.toRadians(update.heading) : Double.NaN;
+			if (update.cog >= 0) {
+				model.putDouble(target.cog, cog, update.motionSrc, ts);
+			}
+			if (update.sog >= 0) {
+				model.putDouble(target.sog, sog, update.motionSrc, ts);
+			}
+			if (update.heading >= 0) {
+				model.putDouble(target.heading, heading, update.motionSrc, ts);
+			}
+			if (update.callsign != null) {
+				model.put(target.callsign, update.callsign, update.staticSrc, ts);
+			}
+			store.update(update.mmsi, update.lat, update.lon, cog, sog, heading, now);
+			store.addSources(update.mmsi, update.sentences.keySet());
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Drops the targets not seen within the store timeout, and removes their vessels.[mmsi] subtrees,
+	 * and those of the targets dropped because the store was full.
+	 * Runs periodically with the shared model once start is called, so long passages do not fill it
+	 * with stale vessels.
+	 * 
+	 * @param model
+	 * @return the evicted and dropped targets
+	 */
+	public List<AisTargetStore.Target> evict(SignalKModel model) {
+		return store.evict(model, System.currentTimeMillis());
+	}
+
+	/**
+	 * Starts the background thread that evicts targets from the shared model.
+	 * 
+	 * @param model the shared model the handler output is written to
+	 * @param interval ms between evictions
+	 */
+	public synchronized void start(final SignalKModel model, long interval) {
+		if (interval < 1) throw new IllegalArgumentException("Interval must be at least 1ms: " + interval);
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AISHandler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evict(model);
+				} catch (Exception e) {
+					logger.error("AIS eviction failed: " + e.getMessage(), e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the eviction thread.
+	 */
+	public void stop() {
+		ScheduledExecutorService s;
+		synchronized (this) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s != null) {
+			s.shutdown();
+			try {
+				s.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the targets in view
+	 */
+	public AisTargetStore getTargetStore() {
+		return store;
+	}
+
+	/**
+	 * For tests, the batch being merged
+	 */
+	AisBatch getBatch() {
+		return batch;
+	}
+
+	private TargetHandles getTargetHandles(final int userId) throws ExecutionException {
+		return targets.get(userId, new Callable<TargetHandles>() {
+			@Override
+			public TargetHandles call() throws Exception {
+				return new TargetHandles(userId);
+			}
+		});
+	}
+
+	/**
+	 * The keys written for one AIS target, built once per MMSI
+	 */
+	private static class TargetHandles {
+		final String userId;
+		final String name;
+		final PathHandle mmsi;
+		final PathHandle state;
+		final PathHandle position;
+		final PathHandle cog;
+		final PathHandle sog;
+		final PathHandle heading;
+		final PathHandle callsign;
+		// sources.ais.[device].[mmsi].[msgType], by device then msgType
+		private final ConcurrentMap<String, ConcurrentMap<String, String>> srcRefs = new ConcurrentHashMap<String, ConcurrentMap<String, String>>(2);
+
+		TargetHandles(int id) {
+			userId = String.valueOf(id);
+			String aisVessel = vessels + dot + userId + dot;
+			name = aisVessel + SignalKConstants.name;
+			mmsi = new PathHandle(aisVessel + SignalKConstants.mmsi);
+			state = new PathHandle(aisVessel + nav_state);
+			position = new PathHandle(aisVessel + nav_position);
+			cog = new PathHandle(aisVessel + nav_courseOverGroundTrue);
+			sog = new PathHandle(aisVessel + nav_speedOverGround);
+			heading = new PathHandle(aisVessel + nav_headingTrue);
+			callsign = new PathHandle(aisVessel + communication_callsignVhf);
+		}
+
+		String getSrcRef(String device, String msgType) {
+			msgType = String.valueOf(msgType);
+			ConcurrentMap<String, String> refs = srcRefs.get(device);
+			if (refs == null) {
+				refs = new ConcurrentHashMap<String, String>(4);
+				ConcurrentMap<String, String> old = srcRefs.putIfAbsent(device, refs);
+				if (old != null) refs = old;
+			}
+			String ref = refs.get(msgType);
+			if (ref == null) {
+				ref = sources + ".ais." + device + dot + userId + dot + msgType;
+				refs.put(msgType, ref);
+			}
+			return ref;
+		}
+	}
+
 	/**
 	 * Handle a String message, returning a list of AisPackets
 	 * 
@@ -199,6 +468,12 @@ public class AISHandler {
 	 * @return
 	 */
 	public List<AisPacket> handleLine(String messageString) throws IOException {
+		synchronized (batch) {
+			return readLines(messageString);
+		}
+	}
+
+	private List<AisPacket> readLines(String messageString) throws IOException {
 		if (logger.isDebugEnabled())
 			logger.debug("AIS Received : " + messageString);
 		// Check for ABK
@@ -0,0 +1,135 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The AIS updates of one batch, merged per MMSI so each target is written to the model once.
+ * Later messages win, and each message only sets the values it actually carries.
+ *
+ * @author robert
+ *
+ */
+class AisBatch {
+
+	// AIS 'not available' values
+	static final int COG_NA = 3600;
+	static final int SOG_NA = 1023;
+	static final int HEADING_NA = 511;
+
+	private final Map<Integer, Update> updates = new LinkedHashMap<Integer, Update>();
+
+	/**
+	 * @param mmsi
+	 * @return the update for the target, created if needed
+	 */
+	Update get(int mmsi) {
+		Update u = updates.get(mmsi);
+		if (u == null) {
+			u = new Update(mmsi);
+			updates.put(mmsi, u);
+		}
+		return u;
+	}
+
+	Collection<Update> getUpdates() {
+		return updates.values();
+	}
+
+	boolean isEmpty() {
+		return updates.isEmpty();
+	}
+
+	void clear() {
+		updates.clear();
+	}
+
+	/**
+	 * The merged values for one target, missing values are NaN, -1 or null
+	 */
+	static class Update {
+		final int mmsi;
+		String ts;
+		double lat = Double.NaN;
+		double lon = Double.NaN;
+		String positionSrc;
+		int navStatus = -1;
+		// 1/10 degree, 1/10 knot, degrees
+		int cog = -1;
+		int sog = -1;
+		int heading = -1;
+		String motionSrc;
+		String name;
+		String callsign;
+		String staticSrc;
+		// the last sentence per source ref
+		final Map<String, String> sentences = new LinkedHashMap<String, String>(4);
+
+		Update(int mmsi) {
+			this.mmsi = mmsi;
+		}
+
+		void sentence(String srcRef, String sentence, String ts) {
+			sentences.put(srcRef, sentence);
+			this.ts = ts;
+		}
+
+		void position(String srcRef, double lat, double lon) {
+			if (Double.isNaN(lat) || Double.isNaN(lon)) return;
+			this.lat = lat;
+			this.lon = lon;
+			this.positionSrc = srcRef;
+		}
+
+		void motion(String srcRef, int navStatus, int cog, int sog, int heading) {
+			if (navStatus >= 0) this.navStatus = navStatus;
+			if (cog >= 0 && cog < COG_NA) this.cog = cog;
+			if (sog >= 0 && sog < SOG_NA) this.sog = sog;
+			if (heading >= 0 && heading < HEADING_NA) this.heading = heading;
+			this.motionSrc = srcRef;
+		}
+
+		void statics(String srcRef, String name, String callsign) {
+			name = clean(name);
+			callsign = clean(callsign);
+			if (name != null) this.name = name;
+			if (callsign != null) {
+				this.callsign = callsign;
+				this.staticSrc = srcRef;
+			}
+		}
+
+		private static String clean(String str) {
+			if (str == null) return null;
+			if (str.indexOf('@') >= 0) {
+				str = str.replace('@', ' ');
+			}
+			str = str.trim();
+			return str.length() == 0 ? null : str;
+		}
+	}
+}
@@ -23,25 +23,40 @@
  */
 package nz.co.fortytwo.signalk.handler;
 
-import static nz.co.fortytwo.signalk.util.SignalKConstants.alarm;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.alarmMessage;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.meta;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.warnMessage;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.zones;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.util.AlarmManager;
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+import nz.co.fortytwo.signalk.util.Util;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Scans the signal k model for alarm conditions and sets/unsets alarms
+ * Checks the signal k model for alarm conditions and sets/unsets alarms.
+ * <p>
+ * The first call scans vessels.self, after that only the paths changed since the last call are
+ * checked, read from the model's change log. Zones are compiled once per path into an
+ * {@link AlarmManager}, and compiled again only when the zones Json is replaced. A path's
+ * meta.hysteresis and meta.dwell (ms, default config.server.alarm.dwell) stop noisy values
+ * flapping the notification.
  *
  * @author robert
  *
@@ -50,77 +65,74 @@ public class AlarmHandler {
 
     private static Logger logger = LogManager.getLogger(AlarmHandler.class);
 
+    private static final String dotValue = dot + value;
+    private static final String dotMeta = dot + meta + dot;
+    private static final String dotMetaZones = dotMeta + zones;
+
+    // the last model revision checked, -1 to scan the model
+    private long revision = -1;
+    private SignalKModel lastModel;
+    // compiled zones by path
+    private final Map<String, AlarmManager> managers = new HashMap<String, AlarmManager>();
+    // paths with a state change waiting out its dwell time
+    private final Set<String> pending = new HashSet<String>();
+
     /**
-     * Scans the signal k model for alarm conditions and sets/unsets alarms Only
-     * looks at vessels.self
+     * Checks the paths under vessels.self changed since the last call, or all of them on the first
+     * call, and sets/unsets their alarms
      *
      * @param signalkModel
      */
     public void handle(SignalKModel signalkModel) {
+        handle(signalkModel, System.currentTimeMillis());
+    }
+
+    /**
+     * @param signalkModel
+     * @param now ms, for the dwell times
+     */
+    synchronized void handle(SignalKModel signalkModel, long now) {
         try {
-            for (String key : signalkModel.getKeys()) {
-                //we check if there is a key.meta key
-                //only check SignalKConstants.self
-                if (!key.startsWith(vessels_dot_self_dot)) {
-                    continue;
-                }
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Checking :" + key);
+            Set<String> paths = new LinkedHashSet<String>();
+            ChangeSet changes = null;
+            if (signalkModel != lastModel) {
+                lastModel = signalkModel;
+                managers.clear();
+                pending.clear();
+                revision = -1;
+            }
+            if (revision >= 0) {
+                changes = signalkModel.getChangesSince(revision);
+            }
+            if (changes == null) {
+                // first time, or too much has changed
+                revision = signalkModel.getRevision();
+                for (String key : signalkModel.getKeys().subSet(vessels_dot_self_dot, vessels_dot_self_dot + "\uFFFF")) {
+                    addPath(paths, key);
                 }
-                //remove .value
-                key = key.replace(dot + value, "");
-                Object metaZones = signalkModel.get(key + dot + meta + dot + zones);
-
-                if (metaZones != null && metaZones instanceof Json && ((Json) metaZones).isArray()) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Checking zones:" + metaZones);
-                    }
-                    //if zones is empty clear the alarms
-                    //String alarmKey = vessels_dot_self_dot+alarms+dot+key.substring(vessels_dot_self_dot.length());
-                    //zones object
-                    AlarmManager alarmManager = new AlarmManager((Json) metaZones);
-
-                    if (((Json) metaZones).asJsonList().size() == 0) {
-                        //clear all alarms.
-                        alarmManager.setAlarm(signalkModel, key, normal, null);
-                    }
-                    Number val = (Number) signalkModel.getValue(key);
-                    Json zone = null;
-                    String msg = "";
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Checking alarm value:" + val + "=" + alarmManager.isAlarm(val));
-                        logger.debug("Checking warn  value:" + val + "=" + alarmManager.isWarn(val));
-                        logger.debug("Checking nomal value:" + val + "=" + alarmManager.isNormal(val));
-                    }
-                    //get key.value
-                    if (alarmManager.isAlarm(val)) {
-                        //set the alarm in vessels.self.alarms.key
-                        zone =  ((Json)metaZones).at(0);
-                        if(zone.has("message")){
-                        	msg = zone.at("message").asString();
-                        }else{
-                        	msg=alarm;
-                        }
-                        alarmManager.setAlarm(signalkModel, key, alarm, msg);
-
-                    }
-                    if (alarmManager.isWarn(val)) {
-                        //set the alarm
-                        zone =  ((Json)metaZones).at(0);
-                        if(zone.has("message")){
-                        	msg = zone.at("message").asString();
-                        }else{
-                        	msg=warn;
-                        }
-                        alarmManager.setAlarm(signalkModel, key, warn, msg);
-                    }
-                    if (alarmManager.isNormal(val)) {
-                        //clear the alarms
-                        alarmManager.setAlarm(signalkModel, key, normal, null);
-
+            } else {
+                revision = changes.getRevision();
+                for (int i = 0; i < changes.size(); i++) {
+                    PathEvent event = changes.getEvent(i);
+                    if (event.getPath().startsWith(vessels_dot_self_dot)) {
+                        addPath(paths, event.getPath());
                     }
                 }
             }
+            paths.addAll(pending);
+            // zones can be replaced without going through the change log
+            for (Iterator<Map.Entry<String, AlarmManager>> i = managers.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, AlarmManager> entry = i.next();
+                if (signalkModel.get(entry.getKey() + dotMetaZones) != entry.getValue().getZones()) {
+                    paths.add(entry.getKey());
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Checking " + paths.size() + " paths");
+            }
+            for (String key : paths) {
+                check(signalkModel, key, now);
+            }
 
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -128,4 +140,78 @@ public class AlarmHandler {
 
     }
 
+    /**
+     * Adds the path a changed key belongs to, if it can carry an alarm
+     */
+    private void addPath(Set<String> paths, String key) {
+        if (key.endsWith(dotValue)) {
+            paths.add(key.substring(0, key.length() - dotValue.length()));
+            return;
+        }
+        int pos = key.indexOf(dotMeta);
+        if (pos > 0) {
+            paths.add(key.substring(0, pos));
+        }
+    }
+
+    private void check(SignalKModel signalkModel, String key, long now) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Checking :" + key);
+        }
+        pending.remove(key);
+        Object metaZones = signalkModel.get(key + dotMetaZones);
+        if (!(metaZones instanceof Json) || !((Json) metaZones).isArray()) {
+            managers.remove(key);
+            return;
+        }
+        double hysteresis = getNumber(signalkModel.get(key + dotMeta + SignalKConstants.hysteresis), 0);
+        long dwell = (long) getNumber(signalkModel.get(key + dotMeta + SignalKConstants.dwell), getDefaultDwell());
+        AlarmManager alarmManager = managers.get(key);
+        if (alarmManager == null || alarmManager.getZones() != metaZones
+                || alarmManager.getHysteresis() != hysteresis || alarmManager.getDwell() != dwell) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Compiling zones:" + metaZones);
+            }
+            alarmManager = new AlarmManager((Json) metaZones, hysteresis, dwell);
+            managers.put(key, alarmManager);
+        }
+        if (alarmManager.isEmpty()) {
+            //clear all alarms.
+            alarmManager.setAlarm(signalkModel, key, normal, null);
+            return;
+        }
+        Object val = signalkModel.getValue(key);
+        if (!(val instanceof Number)) {
+            return;
+        }
+        String state = alarmManager.update(((Number) val).doubleValue(), now);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Checking value:" + val + "=" + alarmManager.getCurrentState() + (state != null ? " changed" : ""));
+        }
+        if (alarmManager.isPending()) {
+            pending.add(key);
+        }
+        if (alarmManager.getCurrentState() != null) {
+            //only writes if the notification differs
+            alarmManager.setAlarm(signalkModel, key, alarmManager.getCurrentState(), alarmManager.getCurrentMessage());
+        }
+    }
+
+    private static double getNumber(Object val, double def) {
+        if (val instanceof Number) return ((Number) val).doubleValue();
+        if (val instanceof String) {
+            try {
+                return Double.parseDouble((String) val);
+            } catch (NumberFormatException e) {
+                logger.warn("Not a number: " + val);
+            }
+        }
+        return def;
+    }
+
+    private static long getDefaultDwell() {
+        Integer dwell = Util.getConfigPropertyInt(ConfigConstants.ALARM_DWELL);
+        return dwell == null ? 0 : dwell;
+    }
+
 }
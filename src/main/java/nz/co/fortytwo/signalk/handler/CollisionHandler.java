@@ -0,0 +1,400 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.alarm;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.alarmState;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.message;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.mmsi;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.notifications_collision;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nz.co.fortytwo.signalk.ais.AisTargetStore;
+import nz.co.fortytwo.signalk.model.PathHandleCache;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Calculates the closest point of approach (CPA) and time to it (TCPA) between this vessel and every
+ * target in an {@link AisTargetStore}, and raises vessels.self.notifications.collision.[mmsi] for the
+ * targets that will pass too close. The notification of a target that is gone is set back to normal,
+ * then its subtree is deleted.
+ * <p>
+ * Target kinematics are kept in primitive arrays, updated as the store changes. Each call to
+ * {@link #handle(SignalKModel)} dead reckons every target to now and recalculates against our current
+ * position and velocity, splitting large fleets across cores.
+ *
+ * @author robert
+ *
+ */
+public class CollisionHandler implements AisTargetStore.Listener {
+
+	private static Logger logger = LogManager.getLogger(CollisionHandler.class);
+
+	private static final double METERS_PER_NM = 1852.0;
+	private static final double METERS_PER_DEGREE = Util.R * Math.PI / 180;
+	/** Targets per fork/join task */
+	static final int THRESHOLD = 512;
+
+	private static final byte NORMAL = 0;
+	private static final byte WARN = 1;
+	private static final byte ALARM = 2;
+
+	private final double cpaAlarm;
+	private final double cpaWarn;
+	private final double tcpaLimit;
+	private final PathHandleCache selfHandles = new PathHandleCache();
+
+	// slot per target, the arrays are packed so 0..size-1 are in use
+	private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+	private int size;
+	private int[] mmsis = new int[64];
+	// degrees
+	private double[] lat = new double[64];
+	private double[] lon = new double[64];
+	// m/s north and east
+	private double[] vn = new double[64];
+	private double[] ve = new double[64];
+	// ms, when the position was reported, not the static or voyage data
+	private long[] time = new long[64];
+	// results, meters and seconds
+	private double[] cpa = new double[64];
+	private double[] tcpa = new double[64];
+	private byte[] level = new byte[64];
+	// true once the target has notification keys in the model
+	private boolean[] notified = new boolean[64];
+	// removed targets whose notification keys are still in the model, and their last level
+	private final Map<Integer, Byte> cleared = new LinkedHashMap<Integer, Byte>();
+
+	/**
+	 * Uses the cpa and tcpa limits in the config
+	 *
+	 * @param store
+	 */
+	public CollisionHandler(AisTargetStore store) {
+		this(store, getConfig(ConfigConstants.CPA_ALARM, 0.5), getConfig(ConfigConstants.CPA_WARN, 1.0),
+				getConfig(ConfigConstants.TCPA_LIMIT, 20.0));
+	}
+
+	/**
+	 * @param store the targets to check, changes are tracked from now on
+	 * @param cpaAlarm nm
+	 * @param cpaWarn nm
+	 * @param tcpaLimit minutes, closer approaches further ahead are ignored
+	 */
+	public CollisionHandler(AisTargetStore store, double cpaAlarm, double cpaWarn, double tcpaLimit) {
+		this.cpaAlarm = cpaAlarm * METERS_PER_NM;
+		this.cpaWarn = Math.max(cpaWarn, cpaAlarm) * METERS_PER_NM;
+		this.tcpaLimit = tcpaLimit * 60;
+		synchronized (store) {
+			for (AisTargetStore.Target target : store.getTargets()) {
+				targetUpdated(target);
+			}
+			store.addListener(this);
+		}
+	}
+
+	private static double getConfig(String key, double def) {
+		Double val = Util.getConfigPropertyDouble(key);
+		return val == null ? def : val;
+	}
+
+	@Override
+	public synchronized void targetUpdated(AisTargetStore.Target target) {
+		Integer slot = slots.get(target.getMmsi());
+		if (slot == null) {
+			if (size == mmsis.length) grow();
+			slot = size++;
+			slots.put(target.getMmsi(), slot);
+			// back before its keys were deleted, carry on from its last level
+			Byte previous = cleared.remove(target.getMmsi());
+			level[slot] = previous == null ? NORMAL : previous;
+			notified[slot] = previous != null;
+		}
+		int i = slot;
+		mmsis[i] = target.getMmsi();
+		lat[i] = target.getLatitude();
+		lon[i] = target.getLongitude();
+		double sog = target.getSog();
+		double cog = target.getCog();
+		// unknown motion is treated as stationary
+		if (Double.isNaN(sog) || Double.isNaN(cog)) {
+			vn[i] = 0;
+			ve[i] = 0;
+		} else {
+			vn[i] = sog * Math.cos(cog);
+			ve[i] = sog * Math.sin(cog);
+		}
+		time[i] = target.getPositionTime();
+	}
+
+	@Override
+	public synchronized void targetRemoved(AisTargetStore.Target target) {
+		Integer slot = slots.remove(target.getMmsi());
+		if (slot == null) return;
+		if (notified[slot]) {
+			cleared.put(target.getMmsi(), level[slot]);
+		}
+		// move the last target into the hole
+		int last = --size;
+		if (slot != last) {
+			mmsis[slot] = mmsis[last];
+			lat[slot] = lat[last];
+			lon[slot] = lon[last];
+			vn[slot] = vn[last];
+			ve[slot] = ve[last];
+			time[slot] = time[last];
+			cpa[slot] = cpa[last];
+			tcpa[slot] = tcpa[last];
+			level[slot] = level[last];
+			notified[slot] = notified[last];
+			slots.put(mmsis[slot], slot);
+		}
+	}
+
+	private void grow() {
+		int len = mmsis.length * 2;
+		mmsis = Arrays.copyOf(mmsis, len);
+		lat = Arrays.copyOf(lat, len);
+		lon = Arrays.copyOf(lon, len);
+		vn = Arrays.copyOf(vn, len);
+		ve = Arrays.copyOf(ve, len);
+		time = Arrays.copyOf(time, len);
+		cpa = Arrays.copyOf(cpa, len);
+		tcpa = Arrays.copyOf(tcpa, len);
+		level = Arrays.copyOf(level, len);
+		notified = Arrays.copyOf(notified, len);
+	}
+
+	/**
+	 * Recalculates CPA and TCPA for all targets against vessels.self, and updates the collision
+	 * notifications. Targets are not recalculated until we have a position, but the notifications of
+	 * removed targets are still cleared.
+	 *
+	 * @param signalkModel
+	 */
+	public void handle(SignalKModel signalkModel) {
+		handle(signalkModel, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param signalkModel
+	 * @param now ms, the time to dead reckon the targets to
+	 */
+	public synchronized void handle(SignalKModel signalkModel, long now) {
+		try {
+			NavigableMap<String, Object> notifications = new TreeMap<String, Object>();
+			// the targets removed since the last call no longer raise a notification
+			for (Map.Entry<Integer, Byte> removed : cleared.entrySet()) {
+				if (removed.getValue() != NORMAL) {
+					putNotification(notifications, removed.getKey(), normal, "");
+				}
+			}
+			calculate(signalkModel, notifications, now);
+			write(signalkModel, notifications);
+			deleteCleared(signalkModel);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void calculate(SignalKModel signalkModel, NavigableMap<String, Object> notifications, long now) {
+		double ownLat = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_latitude));
+		double ownLon = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_longitude));
+		if (Double.isNaN(ownLat) || Double.isNaN(ownLon)) return;
+		double sog = signalkModel.getValueDouble(selfHandles.get(vessels_dot_self_dot, nav_speedOverGround));
+		double cog = signalkModel.getValueDouble(selfHandles.get(vessels_dot_self_dot, nav_courseOverGroundTrue));
+		double ownVn = 0;
+		double ownVe = 0;
+		if (!Double.isNaN(sog) && !Double.isNaN(cog)) {
+			ownVn = sog * Math.cos(cog);
+			ownVe = sog * Math.sin(cog);
+		}
+		CpaTask task = new CpaTask(0, size, ownLat, ownLon, ownVn, ownVe, now);
+		if (size > THRESHOLD) {
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		updateNotifications(notifications, getSelfMmsi(signalkModel));
+	}
+
+	private int getSelfMmsi(SignalKModel signalkModel) {
+		Object self = signalkModel.get(selfHandles.get(vessels_dot_self_dot, mmsi).getPath());
+		if (self == null) return -1;
+		try {
+			return Integer.parseInt(self.toString().trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Collects the notifications whose level changed, so quiet targets cost nothing
+	 */
+	private void updateNotifications(NavigableMap<String, Object> notifications, int selfMmsi) {
+		for (int i = 0; i < size; i++) {
+			byte newLevel = NORMAL;
+			// our own transponder is not a risk
+			if (!Double.isNaN(cpa[i]) && tcpa[i] <= tcpaLimit && mmsis[i] != selfMmsi) {
+				if (cpa[i] <= cpaAlarm) {
+					newLevel = ALARM;
+				} else if (cpa[i] <= cpaWarn) {
+					newLevel = WARN;
+				}
+			}
+			if (newLevel == NORMAL && level[i] == NORMAL) continue;
+			String state = newLevel == ALARM ? alarm : newLevel == WARN ? warn : normal;
+			String msg = newLevel == NORMAL ? "" : String.format("Vessel %d, CPA %.2fnm in %.1f min", mmsis[i], cpa[i] / METERS_PER_NM, tcpa[i] / 60);
+			putNotification(notifications, mmsis[i], state, msg);
+			notified[i] = true;
+			if (logger.isDebugEnabled() && newLevel != level[i]) logger.debug("Collision " + state + ": " + msg);
+			level[i] = newLevel;
+		}
+	}
+
+	private void putNotification(NavigableMap<String, Object> notifications, int target, String state, String msg) {
+		String key = vessels_dot_self_dot + notifications_collision + dot + target + dot;
+		notifications.put(key + alarmState, state);
+		notifications.put(key + message, msg);
+	}
+
+	/**
+	 * Writes the changed notifications as one delta, through the change log like any other write
+	 */
+	private void write(SignalKModel signalkModel, NavigableMap<String, Object> notifications) {
+		if (!notifications.isEmpty()) {
+			signalkModel.putAll(notifications);
+		}
+	}
+
+	/**
+	 * Deletes the notification subtrees of the removed targets, after their normal state was written
+	 */
+	private void deleteCleared(SignalKModel signalkModel) {
+		if (cleared.isEmpty()) return;
+		signalkModel.beginBatch();
+		try {
+			for (int removed : cleared.keySet()) {
+				signalkModel.put(vessels_dot_self_dot + notifications_collision + dot + removed, null, null);
+			}
+		} finally {
+			signalkModel.endBatch();
+		}
+		cleared.clear();
+	}
+
+	/**
+	 * @param target mmsi
+	 * @return the closest approach in meters, NaN if not known
+	 */
+	public synchronized double getCpa(int target) {
+		Integer slot = slots.get(target);
+		return slot == null ? Double.NaN : cpa[slot];
+	}
+
+	/**
+	 * @param target mmsi
+	 * @return seconds until the closest approach, 0 if it is now or past, NaN if not known
+	 */
+	public synchronized double getTcpa(int target) {
+		Integer slot = slots.get(target);
+		return slot == null ? Double.NaN : tcpa[slot];
+	}
+
+	/**
+	 * Calculates a range of slots, splitting it in two while it is larger than {@link #THRESHOLD}.
+	 * Positions are projected onto a plane around our vessel, accurate enough at AIS ranges.
+	 */
+	private class CpaTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		private final double ownLat;
+		private final double ownLon;
+		private final double ownVn;
+		private final double ownVe;
+		private final long now;
+
+		CpaTask(int from, int to, double ownLat, double ownLon, double ownVn, double ownVe, long now) {
+			this.from = from;
+			this.to = to;
+			this.ownLat = ownLat;
+			this.ownLon = ownLon;
+			this.ownVn = ownVn;
+			this.ownVe = ownVe;
+			this.now = now;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new CpaTask(from, mid, ownLat, ownLon, ownVn, ownVe, now),
+						new CpaTask(mid, to, ownLat, ownLon, ownVn, ownVe, now));
+				return;
+			}
+			double lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(ownLat));
+			for (int i = from; i < to; i++) {
+				double dLon = lon[i] - ownLon;
+				if (dLon > 180) dLon -= 360;
+				else if (dLon < -180) dLon += 360;
+				double dt = (now - time[i]) / 1000.0;
+				// relative position now, and relative velocity
+				double px = dLon * lonScale + ve[i] * dt;
+				double py = (lat[i] - ownLat) * METERS_PER_DEGREE + vn[i] * dt;
+				double vx = ve[i] - ownVe;
+				double vy = vn[i] - ownVn;
+				double v2 = vx * vx + vy * vy;
+				double t = v2 < 1e-9 ? 0 : -(px * vx + py * vy) / v2;
+				if (t < 0) t = 0;
+				double cx = px + vx * t;
+				double cy = py + vy * t;
+				// NaN if the target has no position
+				cpa[i] = Math.sqrt(cx * cx + cy * cy);
+				tcpa[i] = t;
+			}
+		}
+	}
+}
@@ -27,34 +27,63 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_magneticVariation
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.PathHandleCache;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.DeclinationGrid;
 import nz.co.fortytwo.signalk.util.TSAGeoMag;
 import nz.co.fortytwo.signalk.util.Util;
 
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
-import org.joda.time.DateTime;
 
 /**
  * When provided with a LAT and LON, it calculates declination.
+ * The own vessel's declination comes from a {@link DeclinationGrid}, so the full WMM calculation
+ * only runs when the vessel moves into a new grid cell.
  * 
  * @author robert
  * 
  */
-public class DeclinationHandler {
+public class DeclinationHandler implements DerivedCalculator {
 
 	private static Logger logger = LogManager.getLogger(DeclinationHandler.class);
+	private static final List<String> inputs = Arrays.asList(nav_position_latitude, nav_position_longitude);
+	private static final List<String> outputs = Arrays.asList(nav_magneticVariation);
 	
-	private TSAGeoMag geoMag = new TSAGeoMag();
+	// thread safe, so shared by all handlers
+	private static final TSAGeoMag geoMag = new TSAGeoMag();
+	private DeclinationGrid grid = new DeclinationGrid(geoMag);
+	private PathHandleCache selfHandles = new PathHandleCache();
+
+	@Override
+	public Collection<String> getInputs() {
+		return inputs;
+	}
+
+	@Override
+	public Collection<String> getOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public void calculate(SignalKModel signalkModel) {
+		handle(signalkModel);
+	}
 
 	public void handle(SignalKModel signalkModel ) {
 		logger.debug("Declination  calculation fired " );
-		Double lat = (Double) signalkModel.get(vessels_dot_self_dot+nav_position_latitude);
-		Double lon = (Double) signalkModel.get(vessels_dot_self_dot+nav_position_longitude);
+		double lat = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_latitude));
+		double lon = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_longitude));
 		
-		if (lat!=null && lon!=null) {
+		if (!Double.isNaN(lat) && !Double.isNaN(lon)) {
 			if(logger.isDebugEnabled())logger.debug("Declination  for "+lat+", "+lon );
 			
-			double declination = Math.toRadians(geoMag.getDeclination(lat, lon, DateTime.now().getYear(), 0.0d));
+			double declination = Math.toRadians(grid.getDeclination(lat, lon, geoMag.decimalYear(new GregorianCalendar())));
 			
 			declination = Util.round(declination, 6);
 			if(logger.isDebugEnabled()){
@@ -66,8 +95,12 @@ public class DeclinationHandler {
 		
 	}
 	
+	DeclinationGrid getGrid() {
+		return grid;
+	}
+
 	/**
-	 * Calculates the declination for a given lat, lon and year.
+	 * Calculates the declination for a given lat, lon and year, without the grid.
 	 * @param lat
 	 * @param lon
 	 * @param year
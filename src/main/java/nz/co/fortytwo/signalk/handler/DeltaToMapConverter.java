@@ -34,6 +34,14 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
@@ -42,6 +50,10 @@ import nz.co.fortytwo.signalk.util.Util;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
 
 /**
  * Converts SignalK delta format to map format
@@ -52,6 +64,10 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 public class DeltaToMapConverter {
 
 	private static Logger logger = LogManager.getLogger(DeltaToMapConverter.class);
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final String DOT_VALUE = dot + value;
+	private static final String DOT_SOURCE = dot + source;
+	private static final String DOT_TIMESTAMP = dot + timestamp;
 	
 	/**
 	 * Convert Delta JSON to full tree map.
@@ -142,6 +158,260 @@ public class DeltaToMapConverter {
 		
 	}
 
+	/**
+	 * Convert Delta JSON read from the stream to full tree map, without building a Json tree.
+	 * Returns null if the json is not an update, otherwise return a SignalKModel.
+	 * {@link #preProcess(SignalKModel, String, Json)} is not called in this mode.
+	 * @param in
+	 * @return
+	 * @throws Exception
+	 */
+	public SignalKModel handle(InputStream in) throws Exception {
+		return handle(JSON_FACTORY.createParser(in));
+	}
+
+	/**
+	 * As {@link #handle(InputStream)}, reading chars.
+	 */
+	public SignalKModel handle(Reader in) throws Exception {
+		return handle(JSON_FACTORY.createParser(in));
+	}
+
+	/**
+	 * As {@link #handle(InputStream)}, reading a UTF-8 message from the buffer.
+	 */
+	public SignalKModel handle(byte[] data, int offset, int len) throws Exception {
+		return handle(JSON_FACTORY.createParser(data, offset, len));
+	}
+
+	private SignalKModel handle(JsonParser parser) throws Exception {
+		try {
+			SignalKModel temp = SignalKModelFactory.getCleanInstance();
+			return handle(parser, temp) ? temp : null;
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads one delta message from the parser and puts its values, sources and timestamps straight into the
+	 * data of the target, as the tree mode does for its temporary model.
+	 * Returns false if the json is not an update, in which case the target may hold part of the message.
+	 * @param parser positioned before, or at, the start of the message object
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean handle(JsonParser parser, SignalKModel target) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == null) token = parser.nextToken();
+		if (token != JsonToken.START_OBJECT) return false;
+		DeltaReader reader = new DeltaReader(target.getFullData());
+		boolean updates = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			if (vessels.equals(name)) {
+				//avoid full signalk syntax
+				return false;
+			} else if (CONTEXT.equals(name) && token == JsonToken.VALUE_STRING) {
+				reader.setContext(Util.fixSelfKey(parser.getText()));
+			} else if ((UPDATES.equals(name) || PUT.equals(name)) && token == JsonToken.START_ARRAY) {
+				updates = true;
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					reader.readUpdate(parser);
+				}
+			} else {
+				if (UPDATES.equals(name) || PUT.equals(name)) updates = true;
+				parser.skipChildren();
+			}
+		}
+		if (reader.ctx == null || !updates) return false;
+		if (logger.isDebugEnabled()) logger.debug("DeltaToMapConverter streamed diff  " + target);
+		return true;
+	}
+
+	/**
+	 * Streams the updates of one delta message into the data map. Values are held per element, and sources and
+	 * timestamps per update, until their path is known, since json does not fix the order of the keys.
+	 */
+	private static class DeltaReader {
+		private final SortedMap<String, Object> data;
+		private String ctx;
+		private final StringBuilder key = new StringBuilder();
+		// the entries of the current element, as key suffix after the path and value
+		private final List<String> suffixes = new ArrayList<String>();
+		private final List<Object> vals = new ArrayList<Object>();
+		// the source entries and paths of the current update
+		private final List<String> sourceSuffixes = new ArrayList<String>();
+		private final List<Object> sourceVals = new ArrayList<Object>();
+		private final List<String> paths = new ArrayList<String>();
+		// keys relative to the context, when the context comes after the updates
+		private List<String> pendingKeys;
+		private List<Object> pendingVals;
+
+		DeltaReader(SortedMap<String, Object> data) {
+			this.data = data;
+		}
+
+		void setContext(String ctx) {
+			this.ctx = ctx;
+			if (pendingKeys == null) return;
+			for (int i = 0; i < pendingKeys.size(); i++) {
+				data.put(ctx + dot + pendingKeys.get(i), pendingVals.get(i));
+			}
+			pendingKeys = null;
+			pendingVals = null;
+		}
+
+		void readUpdate(JsonParser parser) throws IOException {
+			sourceSuffixes.clear();
+			sourceVals.clear();
+			paths.clear();
+			String ts = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (values.equals(name) && token == JsonToken.START_ARRAY) {
+					while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+						if (token == JsonToken.START_OBJECT) {
+							readElement(parser);
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else if (source.equals(name)) {
+					readNode(parser, "", source, sourceSuffixes, sourceVals);
+				} else if (timestamp.equals(name) && token.isScalarValue()) {
+					ts = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			for (String path : paths) {
+				for (int i = 0; i < sourceSuffixes.size(); i++) {
+					put(path, sourceSuffixes.get(i), sourceVals.get(i));
+				}
+				if (ts != null) {
+					//TODO: should validate the timestamp
+					put(path, DOT_TIMESTAMP, ts);
+				}
+			}
+		}
+
+		private void readElement(JsonParser parser) throws IOException {
+			suffixes.clear();
+			vals.clear();
+			String path = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (PATH.equals(name) && token == JsonToken.VALUE_STRING) {
+					path = parser.getText();
+				} else if (value.equals(name)) {
+					readNode(parser, "", value, suffixes, vals);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (path == null) return;
+			for (int i = 0; i < suffixes.size(); i++) {
+				put(path, suffixes.get(i), vals.get(i));
+			}
+			paths.add(path);
+		}
+
+		/**
+		 * Reads the current value as addRecursively does: primitives and arrays go below their parent key,
+		 * the children of a value object go directly below the path, and nulls replace their container.
+		 */
+		private void readNode(JsonParser parser, String ctxSuffix, String parentKey, List<String> suffixes, List<Object> vals)
+				throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if (token == JsonToken.VALUE_NULL) {
+				suffixes.add(ctxSuffix);
+				vals.add(ObjectUtils.NULL);
+			} else if (token == JsonToken.START_OBJECT) {
+				String childSuffix = value.equals(parentKey) ? ctxSuffix : suffix(ctxSuffix, parentKey);
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					readNode(parser, childSuffix, name, suffixes, vals);
+				}
+			} else {
+				suffixes.add(suffix(ctxSuffix, parentKey));
+				vals.add(token == JsonToken.START_ARRAY ? readJson(parser) : readScalar(parser));
+			}
+		}
+
+		private String suffix(String ctxSuffix, String name) {
+			if (ctxSuffix.length() == 0) {
+				if (value.equals(name)) return DOT_VALUE;
+				if (source.equals(name)) return DOT_SOURCE;
+			}
+			return ctxSuffix + dot + name;
+		}
+
+		private void put(String path, String suffix, Object val) {
+			if (ctx == null) {
+				if (pendingKeys == null) {
+					pendingKeys = new ArrayList<String>();
+					pendingVals = new ArrayList<Object>();
+				}
+				pendingKeys.add(path + suffix);
+				pendingVals.add(val);
+				return;
+			}
+			key.setLength(0);
+			key.append(ctx).append(dot).append(path).append(suffix);
+			data.put(key.toString(), val);
+		}
+	}
+
+	/**
+	 * Returns the current scalar token as the same type mjson would use.
+	 */
+	private static Object readScalar(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_NUMBER_INT:
+			if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) return parser.getBigIntegerValue();
+			return parser.getLongValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDoubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		default:
+			return parser.getText();
+		}
+	}
+
+	/**
+	 * Reads the current value into a Json, only used for arrays.
+	 */
+	private static Json readJson(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_ARRAY) {
+			Json array = Json.array();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				array.add(readJson(parser));
+			}
+			return array;
+		}
+		if (token == JsonToken.START_OBJECT) {
+			Json object = Json.object();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				object.set(name, readJson(parser));
+			}
+			return object;
+		}
+		if (token == JsonToken.VALUE_NULL) return Json.nil();
+		return Json.make(readScalar(parser));
+	}
+
 	/**
 	 * Allows us to do pre-processing in sub-classes
 	 * @param temp
@@ -23,7 +23,6 @@
  */
 package nz.co.fortytwo.signalk.handler;
 
-import nz.co.fortytwo.signalk.util.SignalKConstants;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowKeel;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_surfaceToTransducer;
@@ -32,8 +31,13 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowSurfac
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_meta_userUnit;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.PathHandleCache;
 import nz.co.fortytwo.signalk.model.SignalKModel;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.util.Util;
 
 import org.apache.logging.log4j.LogManager;
@@ -46,14 +50,32 @@ import org.apache.logging.log4j.Logger;
  * @author Ron
  *
  */
-public class DepthHandler {
+public class DepthHandler implements DerivedCalculator {
 
     private static Logger logger = LogManager.getLogger(DepthHandler.class);
+    private static final List<String> inputs = Arrays.asList(env_depth_belowTransducer, env_depth_surfaceToTransducer, env_depth_transducerToKeel);
+    private static final List<String> outputs = Arrays.asList(env_depth_belowSurface, env_depth_belowKeel);
+    private PathHandleCache selfHandles = new PathHandleCache();
+
+    @Override
+    public Collection<String> getInputs() {
+        return inputs;
+    }
+
+    @Override
+    public Collection<String> getOutputs() {
+        return outputs;
+    }
+
+    @Override
+    public void calculate(SignalKModel signalkModel) {
+        handle(signalkModel);
+    }
 
     /**
      * Updates the depthBelowSurface and depthBelowKeel if the
-     * surfaceToTranducer and transducerToKeel parameters are present provided
-     * signalKModel.
+     * surfaceToTranducer and transducerToKeel parameters are present in the provided
+     * signalKModel, which should be the full model holding the offsets.
      *
      * @param signalkModel
      */
@@ -64,26 +86,31 @@ public class DepthHandler {
         double transducerToKeel = 0;
         double depthBelowKeel = 0;
         StringBuffer sb = new StringBuffer("");
-        try {//need to get the offsets from the global signalk model, not the one in this message.
-            depthBelowTransducer = (double) SignalKModelFactory.getInstance().getValue(vessels_dot_self_dot + env_depth_belowTransducer);
-            if (logger.isDebugEnabled()) {
-                sb.append("\n\tdepthBelowTransducer: " + depthBelowTransducer);
-            } else {
-                logger.info("depthBelowTransducer: " + depthBelowTransducer);
-            }
-        } catch (NullPointerException e) {
+        SignalKModel model = signalkModel;
+        depthBelowTransducer = model.getValueDouble(selfHandles.get(vessels_dot_self_dot, env_depth_belowTransducer));
+        if (Double.isNaN(depthBelowTransducer)) {
             // No depth data available
             logger.debug("No depth data available");
             return;
         }
+        if (logger.isDebugEnabled()) {
+            sb.append("\n\tdepthBelowTransducer: " + depthBelowTransducer);
+        } else {
+            logger.info("depthBelowTransducer: " + depthBelowTransducer);
+        }
         try {
-            surfaceToTransducer = ((Double)SignalKModelFactory.getInstance().getValue(vessels_dot_self_dot + env_depth_surfaceToTransducer)).doubleValue();
+            surfaceToTransducer = model.getValueDouble(selfHandles.get(vessels_dot_self_dot, env_depth_surfaceToTransducer));
+            if (Double.isNaN(surfaceToTransducer)) {
+                //no surface to transducer data available
+                logger.debug(sb.toString());
+                return;
+            }
             depthBelowSurface = surfaceToTransducer + depthBelowTransducer;
             if (logger.isDebugEnabled()) {
                 sb.append("\n\tsurfaceToTransducer: " + surfaceToTransducer);
                 sb.append("\n\tdepthBelowSurface: " + depthBelowSurface);
             }
-            signalkModel.put(vessels_dot_self_dot + env_depth_belowSurface, depthBelowSurface, "self", Util.getIsoTimeString());
+            signalkModel.putDouble(selfHandles.get(vessels_dot_self_dot, env_depth_belowSurface), depthBelowSurface, "self", Util.getIsoTimeString());
         } catch (Exception e) {
             //no surface to transducer data available
         	logger.error(e.getMessage(),e);
@@ -91,13 +118,18 @@ public class DepthHandler {
             return;
         }
         try {
-            transducerToKeel = ((Double)SignalKModelFactory.getInstance().getValue(vessels_dot_self_dot + env_depth_transducerToKeel)).doubleValue();
+            transducerToKeel = model.getValueDouble(selfHandles.get(vessels_dot_self_dot, env_depth_transducerToKeel));
+            if (Double.isNaN(transducerToKeel)) {
+                // No transducerToKeel info available.
+                logger.debug(sb.toString());
+                return;
+            }
             depthBelowKeel = depthBelowTransducer - transducerToKeel;
             if (logger.isDebugEnabled()) {
                 sb.append("\n\ttransducerToKeel: " + transducerToKeel);
                 sb.append("\n\tdepthBelowKeel: " + depthBelowKeel);
             }
-            signalkModel.put(vessels_dot_self_dot + env_depth_belowKeel, depthBelowKeel, "self", Util.getIsoTimeString());
+            signalkModel.putDouble(selfHandles.get(vessels_dot_self_dot, env_depth_belowKeel), depthBelowKeel, "self", Util.getIsoTimeString());
         } catch (Exception e) {
             // No transducerToKeel info available.
         	logger.error(e.getMessage(),e);
@@ -0,0 +1,57 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import java.util.Collection;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+/**
+ * Calculates derived values for vessels.self from other values, for a {@link DerivedDataEngine}.
+ * Paths are relative to vessels.self, eg navigation.speedOverGround. An input also matches any path
+ * below it, so navigation.position covers its latitude and longitude.
+ *
+ * @author robert
+ *
+ */
+public interface DerivedCalculator {
+
+	/**
+	 * @return the paths read, a change to any of them triggers {@link #calculate(SignalKModel)}
+	 */
+	public Collection<String> getInputs();
+
+	/**
+	 * @return the paths written
+	 */
+	public Collection<String> getOutputs();
+
+	/**
+	 * Reads the inputs from the model and writes the outputs to it. May be called concurrently with
+	 * calculators that do not depend on this one.
+	 *
+	 * @param signalkModel
+	 */
+	public void calculate(SignalKModel signalkModel);
+}
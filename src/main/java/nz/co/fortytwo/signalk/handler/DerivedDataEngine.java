@@ -0,0 +1,324 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs {@link DerivedCalculator}s only when their inputs change.
+ * <p>
+ * The calculators are ordered into levels by their inputs and outputs: a calculator that reads another
+ * one's output is in a later level. Each call to {@link #handle(SignalKModel)} reads the paths changed
+ * since the last call from the model's change log, then runs the triggered calculators level by level.
+ * Calculators in the same level do not depend on each other and run in parallel. Their outputs can
+ * trigger calculators in later levels in the same call.
+ *
+ * <pre>
+ * DerivedDataEngine engine = new DerivedDataEngine();
+ * engine.add(new DepthHandler());
+ * engine.add(new TrueWindHandler());
+ * ...
+ * engine.handle(model);
+ * </pre>
+ *
+ * @author robert
+ *
+ */
+public class DerivedDataEngine {
+
+	private static Logger logger = LogManager.getLogger(DerivedDataEngine.class);
+
+	private static final String dotValue = dot + value;
+
+	private final List<DerivedCalculator> calculators = new ArrayList<DerivedCalculator>();
+	// the calculators by level, null until built
+	private List<List<DerivedCalculator>> levels;
+	// calculators by each of their inputs
+	private Map<String, List<DerivedCalculator>> byInput;
+
+	private SignalKModel lastModel;
+	// the last model revision seen, -1 to run everything
+	private long revision = -1;
+	// changes made by others while we were calculating, for the next call
+	private final Set<String> carried = new HashSet<String>();
+
+	/**
+	 * Adds a calculator, the graph is rebuilt on the next call
+	 *
+	 * @param calculator
+	 * @throws IllegalArgumentException if it writes a path another calculator writes, or makes a cycle
+	 */
+	public synchronized void add(DerivedCalculator calculator) {
+		calculators.add(calculator);
+		try {
+			build();
+		} catch (IllegalArgumentException e) {
+			calculators.remove(calculator);
+			build();
+			throw e;
+		}
+		// run everything once more, so the new calculator starts from the current values
+		revision = -1;
+	}
+
+	/**
+	 * Orders the calculators into levels, a topological sort of the graph from outputs to inputs
+	 */
+	private void build() {
+		Map<String, DerivedCalculator> writers = new HashMap<String, DerivedCalculator>();
+		for (DerivedCalculator calc : calculators) {
+			for (String output : calc.getOutputs()) {
+				DerivedCalculator other = writers.put(output, calc);
+				if (other != null && other != calc) {
+					throw new IllegalArgumentException(output + " is written by " + other.getClass().getName() + " and " + calc.getClass().getName());
+				}
+			}
+		}
+		Map<String, List<DerivedCalculator>> inputs = new HashMap<String, List<DerivedCalculator>>();
+		// the calculators each one waits for
+		Map<DerivedCalculator, Set<DerivedCalculator>> waitsFor = new HashMap<DerivedCalculator, Set<DerivedCalculator>>();
+		for (DerivedCalculator calc : calculators) {
+			Set<DerivedCalculator> deps = new HashSet<DerivedCalculator>();
+			for (String input : calc.getInputs()) {
+				List<DerivedCalculator> list = inputs.get(input);
+				if (list == null) {
+					list = new ArrayList<DerivedCalculator>(2);
+					inputs.put(input, list);
+				}
+				list.add(calc);
+				for (Map.Entry<String, DerivedCalculator> writer : writers.entrySet()) {
+					if (writer.getValue() != calc && affects(writer.getKey(), input)) {
+						deps.add(writer.getValue());
+					}
+				}
+			}
+			waitsFor.put(calc, deps);
+		}
+		List<List<DerivedCalculator>> sorted = new ArrayList<List<DerivedCalculator>>();
+		Set<DerivedCalculator> done = new HashSet<DerivedCalculator>();
+		while (done.size() < calculators.size()) {
+			List<DerivedCalculator> level = new ArrayList<DerivedCalculator>();
+			for (DerivedCalculator calc : calculators) {
+				if (!done.contains(calc) && done.containsAll(waitsFor.get(calc))) {
+					level.add(calc);
+				}
+			}
+			if (level.isEmpty()) {
+				throw new IllegalArgumentException("Derived values depend on each other in a cycle");
+			}
+			done.addAll(level);
+			sorted.add(level);
+		}
+		levels = sorted;
+		byInput = inputs;
+	}
+
+	/**
+	 * @return true if a change to path affects input, the same path or one below it
+	 */
+	private static boolean matches(String path, String input) {
+		return path.equals(input) || (path.startsWith(input) && path.charAt(input.length()) == '.');
+	}
+
+	/**
+	 * @return true if writing output can change input, the same path, one below it or one above it
+	 */
+	private static boolean affects(String output, String input) {
+		return matches(output, input) || matches(input, output);
+	}
+
+	/**
+	 * Runs the calculators whose inputs changed since the last call, or all of them on the first call
+	 *
+	 * @param signalkModel
+	 */
+	public void handle(SignalKModel signalkModel) {
+		List<List<DerivedCalculator>> levels;
+		Map<String, List<DerivedCalculator>> byInput;
+		Set<DerivedCalculator> triggered = new HashSet<DerivedCalculator>();
+		long start;
+		synchronized (this) {
+			if (signalkModel != lastModel) {
+				lastModel = signalkModel;
+				revision = -1;
+				carried.clear();
+			}
+			levels = this.levels;
+			byInput = this.byInput;
+			if (levels == null) return;
+			ChangeSet changes = revision < 0 ? null : signalkModel.getChangesSince(revision);
+			if (changes == null) {
+				// first time, or too much has changed
+				start = signalkModel.getRevision();
+				triggered.addAll(calculators);
+			} else {
+				start = changes.getRevision();
+				for (int i = 0; i < changes.size(); i++) {
+					trigger(triggered, byInput, changes.getEvent(i).getPath());
+				}
+			}
+			for (String path : carried) {
+				trigger(triggered, byInput, path);
+			}
+			carried.clear();
+			revision = start;
+		}
+		if (triggered.isEmpty()) return;
+
+		Set<String> written = new HashSet<String>();
+		for (List<DerivedCalculator> level : levels) {
+			List<DerivedCalculator> run = new ArrayList<DerivedCalculator>();
+			for (DerivedCalculator calc : level) {
+				if (triggered.contains(calc)) run.add(calc);
+			}
+			if (run.isEmpty()) continue;
+			run(signalkModel, run);
+			// outputs trigger later levels now
+			for (DerivedCalculator calc : run) {
+				for (String output : calc.getOutputs()) {
+					written.add(output);
+					for (Map.Entry<String, List<DerivedCalculator>> input : byInput.entrySet()) {
+						if (affects(output, input.getKey())) {
+							triggered.addAll(input.getValue());
+						}
+					}
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (signalkModel != lastModel || revision != start) return;
+			// skip our own writes, keep the rest for next time
+			ChangeSet changes = signalkModel.getChangesSince(start);
+			if (changes == null) {
+				revision = -1;
+				return;
+			}
+			for (int i = 0; i < changes.size(); i++) {
+				String path = relative(changes.getEvent(i).getPath());
+				if (path != null && !isWritten(written, path)) {
+					carried.add(path);
+				}
+			}
+			revision = changes.getRevision();
+		}
+	}
+
+	private static boolean isWritten(Set<String> written, String path) {
+		for (String output : written) {
+			if (matches(path, output)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs one level, in parallel if there is more than one calculator
+	 */
+	private void run(final SignalKModel signalkModel, List<DerivedCalculator> run) {
+		if (run.size() == 1) {
+			calculate(signalkModel, run.get(0));
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(run.size());
+		for (final DerivedCalculator calc : run) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					calculate(signalkModel, calc);
+					return null;
+				}
+			});
+		}
+		for (Future<Void> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private void calculate(SignalKModel signalkModel, DerivedCalculator calc) {
+		if (logger.isDebugEnabled()) logger.debug("Calculating " + calc.getClass().getSimpleName());
+		try {
+			calc.calculate(signalkModel);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Adds the calculators with an input at or above the changed key
+	 */
+	private static void trigger(Set<DerivedCalculator> triggered, Map<String, List<DerivedCalculator>> byInput, String key) {
+		String path = key.startsWith(vessels_dot_self_dot) ? relative(key) : key;
+		if (path == null) return;
+		while (true) {
+			List<DerivedCalculator> calcs = byInput.get(path);
+			if (calcs != null) triggered.addAll(calcs);
+			int pos = path.lastIndexOf('.');
+			if (pos < 0) return;
+			path = path.substring(0, pos);
+		}
+	}
+
+	/**
+	 * @return the path below vessels.self without .value, or null for other vessels
+	 */
+	private static String relative(String key) {
+		if (!key.startsWith(vessels_dot_self_dot)) return null;
+		String path = key.substring(vessels_dot_self_dot.length());
+		if (path.endsWith(dotValue)) path = path.substring(0, path.length() - dotValue.length());
+		return path;
+	}
+
+	/**
+	 * @return the calculators by level, for tests
+	 */
+	synchronized List<List<DerivedCalculator>> getLevels() {
+		return levels;
+	}
+}
@@ -28,13 +28,14 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.GET;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.PathPattern;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -64,6 +65,28 @@ public class JsonGetHandler {
 	 * @throws Exception
 	 */
 	public SignalKModel handle(SignalKModel signalkModel, Json getNode) throws Exception {
+		SignalKModel tree = SignalKModelFactory.getCleanInstance();
+		Util.populateTree(signalkModel, tree, getRoots(signalkModel, getNode));
+		return tree;
+	}
+
+	/**
+	 * As {@link #handle(SignalKModel, Json)}, but returns a read-only view over the matching paths of the live signalkModel
+	 * instead of a copy. The view follows later changes to signalkModel.
+	 * 
+	 * @param signalkModel
+	 * @param getNode
+	 * @return
+	 * @throws Exception
+	 */
+	public SignalKModel handleView(SignalKModel signalkModel, Json getNode) throws Exception {
+		return SignalKModelFactory.getReadOnlyView(signalkModel, getRoots(signalkModel, getNode));
+	}
+
+	/**
+	 * Returns the merged roots of the paths matched by the getNode, no root is below another.
+	 */
+	private NavigableSet<String> getRoots(SignalKModel signalkModel, Json getNode) {
 
 		if (logger.isDebugEnabled())
 			logger.debug("Checking for get  " + getNode);
@@ -73,20 +96,18 @@ public class JsonGetHandler {
 		String context = getNode.at(CONTEXT).asString();
 
 		Json paths = getNode.at(GET);
-		SignalKModel tree = SignalKModelFactory.getCleanInstance();
+		NavigableSet<String> roots = new TreeSet<String>();
 		if (paths != null) {
 			if (paths.isArray()) {
 
 				for (Json path : paths.asJsonList()) {
-					parseGet(signalkModel, context, path, tree);
+					parseGet(signalkModel, context, path, roots);
 				}
 			}
 			if (logger.isDebugEnabled())
 				logger.debug("Processed get  " + getNode);
 		}
-
-		return tree;
-
+		return roots;
 	}
 
 	/**
@@ -126,6 +147,20 @@ public class JsonGetHandler {
 	 * @throws Exception
 	 */
 	public void parseGet(SignalKModel signalkModel, String context, Json path, SignalKModel tree) throws Exception {
+		NavigableSet<String> roots = new TreeSet<String>();
+		parseGet(signalkModel, context, path, roots);
+		Util.populateTree(signalkModel, tree, roots);
+	}
+
+	/**
+	 * Adds the paths matching a context and path to roots, merging paths that are already covered by a root.
+	 * 
+	 * @param signalkModel
+	 * @param context
+	 * @param path
+	 * @param roots
+	 */
+	public void parseGet(SignalKModel signalkModel, String context, Json path, NavigableSet<String> roots) {
 		// get values
 		String regexKey = context + SignalKConstants.dot + path.at(PATH).asString();
 		//convert SignalKConstants.self to SignalKConstants.self
@@ -134,12 +169,10 @@ public class JsonGetHandler {
 			logger.debug("Parsing get  " + regexKey);
 
 		List<String> rslt = getMatchingPaths(signalkModel, regexKey);
-		// add to tree
+		// each path is copied once, with its subtree
 		for (String p : rslt) {
-			//TODO: this may be calling recursive paths, need to do each path only once
-			if (logger.isTraceEnabled())
+			if (Util.addRoot(roots, p) && logger.isTraceEnabled())
 				logger.trace("Parsing key  " + p);
-			Util.populateTree(signalkModel, tree, p);
 		}
 
 	}
@@ -157,16 +190,7 @@ public class JsonGetHandler {
 			return ImmutableList.copyOf(signalkModel.getKeys());
 		}
 		regex = Util.sanitizePath(regex);
-		Pattern pattern = Util.regexPath(regex);
-		List<String> paths = new ArrayList<String>();
-		for (String p : signalkModel.getKeys()) {
-			if (pattern.matcher(p).matches()) {
-				if (logger.isTraceEnabled())
-					logger.trace("Adding path:" + p);
-				paths.add(p);
-			}
-		}
-		return paths;
+		return PathPattern.compile(regex).match(signalkModel.getKeys());
 	}
 
 }
@@ -32,9 +32,9 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import mjson.Json;
+import nz.co.fortytwo.signalk.util.PathPattern;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -165,15 +165,7 @@ public class JsonListHandler {
 		regex=Util.sanitizePath(regex);
 		
 		if(logger.isDebugEnabled())logger.debug("Regexing " + regex);
-		Pattern pattern = Util.regexPath(regex);
-		List<String> paths = new ArrayList<String>();
-		for (String p : keys) {
-			if (pattern.matcher(p).matches()) {
-				if(logger.isDebugEnabled())logger.debug("Adding path:" + p);
-				paths.add(p);
-			}
-		}
-		return paths;
+		return PathPattern.compile(regex).match(keys);
 	}
 
 	
@@ -0,0 +1,292 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/**
+ * Decodes the binary payload of the pgns used in conf/n2kMappings.json into fields named like the
+ * CANboat analyzer output, so the same mappings apply. Angles are in degrees, speeds in m/s and
+ * distances in m, as CANboat prints them. Values that are 'not available' on the bus are left out.
+ *
+ * @author robert
+ *
+ */
+class N2KBinaryFields {
+
+	private static final String[] DIRECTION_REFERENCE = { "True", "Magnetic", "Error" };
+	private static final String[] WIND_REFERENCE = { "True (ground referenced to North)", "Magnetic (ground referenced to Magnetic North)",
+			"Apparent", "True (boat referenced)", "True (water referenced)" };
+	private static final String[] DATA_MODE = { "Autonomous", "Differential enhanced", "Estimated", "Simulator", "Manual" };
+	private static final String[] NAV_STATUS = { "Under way using engine", "At anchor", "Not under command", "Restricted manoeuverability",
+			"Constrained by her draught", "Moored", "Aground", "Engaged in Fishing", "Under way sailing", "Hazardous material - High Speed",
+			"Hazardous material - Wing in Ground", null, null, null, "AIS-SART" };
+
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+
+	private static final double ANGLE = 0.0001;
+	private static final double SPEED = 0.01;
+	private static final double HIRES_ROTATION = 1e-6 / 32;
+	private static final double ROTATION = 1e-3 / 32;
+
+	private N2KBinaryFields() {
+	}
+
+	/**
+	 * @param pgn
+	 * @return true if the pgn is sent as a fast packet, and needs reassembly from CAN frames
+	 */
+	static boolean isFastPacket(int pgn) {
+		switch (pgn) {
+		case 126464:
+		case 126996:
+		case 128275:
+		case 129029:
+		case 129038:
+		case 129039:
+		case 129040:
+		case 129284:
+		case 129540:
+		case 129793:
+		case 129794:
+		case 129798:
+		case 129809:
+		case 129810:
+		case 130577:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param pgn
+	 * @param d the payload
+	 * @param len
+	 * @param fields receives the decoded fields
+	 * @return false if the pgn is not known or the payload is too short
+	 */
+	static boolean decode(int pgn, byte[] d, int len, Map<String, Object> fields) {
+		switch (pgn) {
+		case 126992: // System Time
+			if (len < 8) return false;
+			putDate(fields, "Date", d, 2);
+			putTime(fields, "Time", d, 4);
+			return true;
+		case 127245: // Rudder
+			if (len < 6) return false;
+			putU8(fields, "Instance", d, 0);
+			putAngle(fields, "Angle Order", s16(d, 2));
+			putAngle(fields, "Position", s16(d, 4));
+			return true;
+		case 127250: // Vessel Heading
+			if (len < 8) return false;
+			putAngle(fields, "Heading", u16(d, 1));
+			putAngle(fields, "Deviation", s16(d, 3));
+			putAngle(fields, "Variation", s16(d, 5));
+			putLookup(fields, "Reference", DIRECTION_REFERENCE, d[7] & 0x03);
+			return true;
+		case 127251: // Rate of Turn
+			if (len < 5) return false;
+			put(fields, "Rate", s32(d, 1), Math.toDegrees(HIRES_ROTATION));
+			return true;
+		case 127257: // Attitude
+			if (len < 7) return false;
+			putAngle(fields, "Yaw", s16(d, 1));
+			putAngle(fields, "Pitch", s16(d, 3));
+			putAngle(fields, "Roll", s16(d, 5));
+			return true;
+		case 127258: // Magnetic Variation
+			if (len < 6) return false;
+			putAngle(fields, "Variation", s16(d, 4));
+			return true;
+		case 128259: // Speed
+			if (len < 6) return false;
+			put(fields, "Speed Water Referenced", u16(d, 1), SPEED);
+			put(fields, "Speed Ground Referenced", u16(d, 3), SPEED);
+			putU8(fields, "Speed Water Referenced Type", d, 5);
+			return true;
+		case 128267: // Water Depth
+			if (len < 7) return false;
+			put(fields, "Depth", u32(d, 1), 0.01);
+			put(fields, "Offset", s16(d, 5), 0.001);
+			return true;
+		case 128275: // Distance Log
+			if (len < 14) return false;
+			putDate(fields, "Date", d, 0);
+			putTime(fields, "Time", d, 2);
+			put(fields, "Log", u32(d, 6), 1);
+			put(fields, "Trip Log", u32(d, 10), 1);
+			return true;
+		case 129025: // Position, Rapid Update
+			if (len < 8) return false;
+			put(fields, "Latitude", s32(d, 0), 1e-7);
+			put(fields, "Longitude", s32(d, 4), 1e-7);
+			return true;
+		case 129026: // COG & SOG, Rapid Update
+			if (len < 6) return false;
+			putLookup(fields, "COG Reference", DIRECTION_REFERENCE, d[1] & 0x03);
+			putAngle(fields, "COG", u16(d, 2));
+			put(fields, "SOG", u16(d, 4), SPEED);
+			return true;
+		case 129291: // Set & Drift, Rapid Update
+			if (len < 6) return false;
+			putLookup(fields, "Set Reference", DIRECTION_REFERENCE, d[1] & 0x03);
+			putAngle(fields, "Set", u16(d, 2));
+			put(fields, "Drift", u16(d, 4), SPEED);
+			return true;
+		case 130306: // Wind Data
+			if (len < 6) return false;
+			put(fields, "Wind Speed", u16(d, 1), SPEED);
+			putAngle(fields, "Wind Angle", u16(d, 3));
+			putLookup(fields, "Reference", WIND_REFERENCE, d[5] & 0x07);
+			return true;
+		case 130577: // Direction Data
+			if (len < 14) return false;
+			putLookup(fields, "Data Mode", DATA_MODE, d[0] & 0x0f);
+			putLookup(fields, "COG Reference", DIRECTION_REFERENCE, (d[0] >> 4) & 0x03);
+			putAngle(fields, "COG", u16(d, 2));
+			put(fields, "SOG", u16(d, 4), SPEED);
+			putAngle(fields, "Heading", u16(d, 6));
+			put(fields, "Speed through Water", u16(d, 8), SPEED);
+			putAngle(fields, "Set", u16(d, 10));
+			put(fields, "Drift", u16(d, 12), SPEED);
+			return true;
+		case 129038: // AIS Class A Position Report
+		case 129039: // AIS Class B Position Report
+			if (len < 23) return false;
+			putAisPosition(fields, d);
+			if (pgn == 129038 && len >= 26) {
+				put(fields, "Rate of Turn", s16(d, 23), Math.toDegrees(ROTATION));
+				putLookup(fields, "Nav Status", NAV_STATUS, d[25] & 0x0f);
+			}
+			return true;
+		case 129794: // AIS Class A Static and Voyage Related Data
+			if (len < 73) return false;
+			putUserId(fields, d);
+			putText(fields, "Callsign", d, 9, 7);
+			putText(fields, "Name", d, 16, 20);
+			put(fields, "Length", u16(d, 37), 0.1);
+			put(fields, "Beam", u16(d, 39), 0.1);
+			put(fields, "Draft", u16(d, 51), 0.01);
+			putText(fields, "Destination", d, 53, 20);
+			return true;
+		case 129809: // AIS Class B static data (msg 24 Part A)
+			if (len < 25) return false;
+			putUserId(fields, d);
+			putText(fields, "Name", d, 5, 20);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static void putAisPosition(Map<String, Object> fields, byte[] d) {
+		fields.put("Message ID", d[0] & 0x3f);
+		putUserId(fields, d);
+		put(fields, "Longitude", s32(d, 5), 1e-7);
+		put(fields, "Latitude", s32(d, 9), 1e-7);
+		putAngle(fields, "COG", u16(d, 14));
+		put(fields, "SOG", u16(d, 16), SPEED);
+		putAngle(fields, "Heading", u16(d, 21));
+	}
+
+	private static void putUserId(Map<String, Object> fields, byte[] d) {
+		long mmsi = u32(d, 1);
+		// the mmsi is part of the vessel key, so always a string
+		if (mmsi != NA) fields.put("User ID", Long.toString(mmsi));
+	}
+
+	// the raw readers return NA for 'not available'
+	private static final long NA = Long.MIN_VALUE;
+
+	private static long u16(byte[] d, int i) {
+		int v = (d[i] & 0xff) | (d[i + 1] & 0xff) << 8;
+		return v == 0xffff ? NA : v;
+	}
+
+	private static long s16(byte[] d, int i) {
+		int v = (short) ((d[i] & 0xff) | (d[i + 1] & 0xff) << 8);
+		return v == 0x7fff ? NA : v;
+	}
+
+	private static long u32(byte[] d, int i) {
+		long v = (d[i] & 0xffL) | (d[i + 1] & 0xffL) << 8 | (d[i + 2] & 0xffL) << 16 | (d[i + 3] & 0xffL) << 24;
+		return v == 0xffffffffL ? NA : v;
+	}
+
+	private static long s32(byte[] d, int i) {
+		int v = (d[i] & 0xff) | (d[i + 1] & 0xff) << 8 | (d[i + 2] & 0xff) << 16 | (d[i + 3] & 0xff) << 24;
+		return v == 0x7fffffff ? NA : v;
+	}
+
+	private static void put(Map<String, Object> fields, String name, long raw, double resolution) {
+		if (raw != NA) fields.put(name, raw * resolution);
+	}
+
+	private static void putAngle(Map<String, Object> fields, String name, long raw) {
+		if (raw != NA) fields.put(name, Math.toDegrees(raw * ANGLE));
+	}
+
+	private static void putU8(Map<String, Object> fields, String name, byte[] d, int i) {
+		int v = d[i] & 0xff;
+		if (v != 0xff) fields.put(name, v);
+	}
+
+	private static void putLookup(Map<String, Object> fields, String name, String[] values, int raw) {
+		if (raw < values.length && values[raw] != null) fields.put(name, values[raw]);
+	}
+
+	private static void putDate(Map<String, Object> fields, String name, byte[] d, int i) {
+		long days = u16(d, i);
+		// days since 1970-01-01
+		if (days != NA) fields.put(name, DATE_FORMAT.format(LocalDate.ofEpochDay(days)));
+	}
+
+	private static void putTime(Map<String, Object> fields, String name, byte[] d, int i) {
+		long t = u32(d, i);
+		if (t == NA) return;
+		// 0.0001s since midnight
+		long secs = t / 10000;
+		long fraction = t % 10000;
+		String time = String.format("%02d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+		fields.put(name, fraction == 0 ? time : time + String.format(".%04d", fraction));
+	}
+
+	private static void putText(Map<String, Object> fields, String name, byte[] d, int i, int len) {
+		// AIS text is padded with '@' or spaces
+		int end = i + len;
+		while (end > i && (d[end - 1] == '@' || d[end - 1] == ' ' || d[end - 1] == 0 || d[end - 1] == (byte) 0xff)) {
+			end--;
+		}
+		if (end == i) return;
+		char[] chars = new char[end - i];
+		for (int x = 0; x < chars.length; x++) {
+			chars[x] = (char) (d[i + x] & 0xff);
+		}
+		fields.put(name, new String(chars));
+	}
+}
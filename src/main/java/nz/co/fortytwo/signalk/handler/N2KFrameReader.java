@@ -0,0 +1,280 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads NMEA 2000 straight from the bus, either as raw CAN frames or as Actisense NGT-1 frames,
+ * and converts the pgns in conf/n2kMappings.json with {@link N2KHandler}.
+ * <p>
+ * Fast packet pgns are reassembled from their CAN frames, per source. One reader should be used per
+ * bus connection, it is not thread safe.
+ *
+ * @author robert
+ *
+ */
+public class N2KFrameReader {
+
+	private static Logger logger = LogManager.getLogger(N2KFrameReader.class);
+
+	/** Size of a SocketCAN struct can_frame */
+	public static final int CAN_FRAME_SIZE = 16;
+	private static final int CAN_EFF_MASK = 0x1FFFFFFF;
+
+	private static final int DLE = 0x10;
+	private static final int STX = 0x02;
+	private static final int ETX = 0x03;
+	private static final int N2K_MSG_RECEIVED = 0x93;
+	private static final int MAX_PAYLOAD = 223;
+
+	private final N2KHandler handler;
+	private final String device;
+	// fast packets being assembled, by pgn and source
+	private final Map<Integer, FastPacket> packets = new HashMap<Integer, FastPacket>();
+	// the unescaped actisense message
+	private final byte[] message = new byte[MAX_PAYLOAD + 32];
+
+	/**
+	 * @param handler converts the decoded messages
+	 * @param device the device name used in the sources, or null
+	 */
+	public N2KFrameReader(N2KHandler handler, String device) {
+		this.handler = handler;
+		this.device = device;
+	}
+
+	/**
+	 * Reads one SocketCAN frame (struct can_frame, 16 bytes in the buffer's byte order) from the buffer.
+	 *
+	 * @param buf
+	 * @return the model if the frame completed a mapped message, else null
+	 */
+	public SignalKModel readCanFrame(ByteBuffer buf) {
+		if (buf.remaining() < CAN_FRAME_SIZE) {
+			throw new IllegalArgumentException("A CAN frame needs " + CAN_FRAME_SIZE + " bytes, found " + buf.remaining());
+		}
+		int start = buf.position();
+		int id = buf.getInt(start);
+		int dlc = Math.min(buf.get(start + 4) & 0xff, 8);
+		byte[] data = new byte[8];
+		for (int i = 0; i < dlc; i++) {
+			data[i] = buf.get(start + 8 + i);
+		}
+		buf.position(start + CAN_FRAME_SIZE);
+		return readCanFrame(id, data, dlc);
+	}
+
+	/**
+	 * @param canId the 29 bit extended CAN id
+	 * @param data
+	 * @param len the data length, up to 8
+	 * @return the model if the frame completed a mapped message, else null
+	 */
+	public SignalKModel readCanFrame(int canId, byte[] data, int len) {
+		canId &= CAN_EFF_MASK;
+		int pgn = getPgn(canId);
+		int src = canId & 0xff;
+		if (!handler.isMapped(pgn)) {
+			return null;
+		}
+		if (!N2KBinaryFields.isFastPacket(pgn)) {
+			return handler.handle(pgn, src, data, len, device);
+		}
+		if (len < 2) {
+			return null;
+		}
+		Integer key = (pgn << 8) | src;
+		FastPacket packet = packets.get(key);
+		if (packet == null) {
+			packet = new FastPacket();
+			packets.put(key, packet);
+		}
+		if (!packet.add(data, len)) {
+			return null;
+		}
+		return handler.handle(pgn, src, packet.data, packet.length, device);
+	}
+
+	/**
+	 * Decodes the pgn from a 29 bit CAN id, ISO 11783 PDU1 pgns are addressed and drop the destination.
+	 *
+	 * @param canId
+	 * @return
+	 */
+	public static int getPgn(int canId) {
+		int dp = (canId >> 24) & 0x01;
+		int pf = (canId >> 16) & 0xff;
+		int ps = (canId >> 8) & 0xff;
+		if (pf < 240) {
+			return (dp << 16) | (pf << 8);
+		}
+		return (dp << 16) | (pf << 8) | ps;
+	}
+
+	/**
+	 * Reads the complete Actisense NGT-1 frames in the buffer. The position is left at the start of an
+	 * incomplete frame, so the caller can compact the buffer and read more.
+	 *
+	 * @param buf
+	 * @return the models for the mapped messages, may be empty
+	 */
+	public List<SignalKModel> readActisense(ByteBuffer buf) {
+		List<SignalKModel> models = new ArrayList<SignalKModel>();
+		while (buf.remaining() >= 2) {
+			int start = buf.position();
+			// find DLE STX
+			if ((buf.get(start) & 0xff) != DLE || (buf.get(start + 1) & 0xff) != STX) {
+				buf.position(start + 1);
+				continue;
+			}
+			int len = unescape(buf, start + 2);
+			if (len == -1) {
+				// wait for the rest
+				buf.position(start);
+				break;
+			}
+			if (len < 0) {
+				// not a frame, resync after the DLE STX
+				buf.position(start + 2);
+				continue;
+			}
+			SignalKModel model = readActisenseMessage(len);
+			if (model != null) models.add(model);
+		}
+		return models;
+	}
+
+	/**
+	 * Unescapes DLE DLE up to DLE ETX into message, and moves the buffer past the frame.
+	 *
+	 * @return the message length, -1 if the frame is incomplete, -2 if it is not a valid frame
+	 */
+	private int unescape(ByteBuffer buf, int from) {
+		int len = 0;
+		int limit = buf.limit();
+		for (int i = from; i < limit; i++) {
+			int b = buf.get(i) & 0xff;
+			if (b == DLE) {
+				if (i + 1 >= limit) return -1;
+				int next = buf.get(++i) & 0xff;
+				if (next == ETX) {
+					buf.position(i + 1);
+					return len;
+				}
+				if (next != DLE) return -2;
+			}
+			if (len == message.length) return -2;
+			message[len++] = (byte) b;
+		}
+		return -1;
+	}
+
+	private SignalKModel readActisenseMessage(int len) {
+		// command, length, ... , checksum
+		int sum = 0;
+		for (int i = 0; i < len; i++) {
+			sum += message[i];
+		}
+		if (len < 3 || (sum & 0xff) != 0) {
+			if (logger.isDebugEnabled()) logger.debug("Bad actisense frame, length " + len);
+			return null;
+		}
+		if ((message[0] & 0xff) != N2K_MSG_RECEIVED || len < 15) {
+			return null;
+		}
+		// priority, pgn (3 bytes), destination, source, timestamp (4 bytes), data length, data
+		int pgn = (message[3] & 0xff) | (message[4] & 0xff) << 8 | (message[5] & 0xff) << 16;
+		int src = message[7] & 0xff;
+		int dataLen = message[12] & 0xff;
+		if (13 + dataLen > len - 1) {
+			return null;
+		}
+		if (!handler.isMapped(pgn)) {
+			return null;
+		}
+		// the NGT-1 has already reassembled any fast packet
+		byte[] data = new byte[dataLen];
+		System.arraycopy(message, 13, data, 0, dataLen);
+		return handler.handle(pgn, src, data, dataLen, device);
+	}
+
+	/**
+	 * A fast packet in assembly: frame 0 holds the sequence, the total length and 6 bytes, the
+	 * following frames the sequence, their index and 7 bytes.
+	 */
+	private static class FastPacket {
+		final byte[] data = new byte[MAX_PAYLOAD];
+		int sequence = -1;
+		int length;
+		int received;
+		int nextFrame = -1;
+
+		/**
+		 * @return true if the packet is complete
+		 */
+		boolean add(byte[] frame, int len) {
+			int sequence = (frame[0] >> 5) & 0x07;
+			int index = frame[0] & 0x1f;
+			if (index == 0) {
+				this.sequence = sequence;
+				this.length = Math.min(frame[1] & 0xff, MAX_PAYLOAD);
+				this.received = 0;
+				this.nextFrame = 1;
+				copy(frame, 2, len);
+			} else {
+				if (sequence != this.sequence || index != nextFrame) {
+					// lost a frame, wait for the next frame 0
+					if (nextFrame > 0 && logger.isDebugEnabled()) logger.debug("Dropped fast packet, expected frame " + nextFrame + " got " + index);
+					nextFrame = -1;
+					return false;
+				}
+				nextFrame++;
+				copy(frame, 1, len);
+			}
+			if (received >= length) {
+				nextFrame = -1;
+				return true;
+			}
+			return false;
+		}
+
+		private void copy(byte[] frame, int from, int len) {
+			int n = Math.min(len - from, length - received);
+			if (n > 0) {
+				System.arraycopy(frame, from, data, received, n);
+				received += n;
+			}
+		}
+	}
+}
@@ -33,31 +33,42 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.text.ParseException;
-import java.util.Collection;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import mjson.Json;
 import net.minidev.json.JSONArray;
+import nz.co.fortytwo.signalk.model.PathHandle;
+import nz.co.fortytwo.signalk.model.PathHandleCache;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
-import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.PathNotFoundException;
 
 /**
  * Updates the convert n2k json to signalk tree
+ * <p>
+ * The mappings in conf/n2kMappings.json are compiled once into a {@link PgnDecoder} per pgn, which
+ * reads the fields it needs in one pass over the message. A pgn with a filter that is not a simple
+ * field comparison is still evaluated with JsonPath.
+ * <p>
+ * Binary frames from the bus are decoded to the same fields by {@link N2KFrameReader}.
  * 
  * @author robert
  * 
@@ -74,16 +85,28 @@ public class N2KHandler {
 	private static final String TYPE = "type";
 	private static final CharSequence STRING = "string";
 	private static final String VALUE = "value";
+	private static final String USER_ID = "User ID";
+	private static final String FIELDS_PREFIX = "$.fields[?(";
+	private static final String FIELDS_SUFFIX = ")]";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
 	private static Logger logger = LogManager.getLogger(N2KHandler.class);
 
-	private NumberFormat numberFormat = DecimalFormat.getInstance();
 	private Json mappings = null;
 	private JsonPath pgnPath = JsonPath.compile("$.pgn");
 	private JsonPath srcPath = JsonPath.compile("$.src");
 	private JsonPath userId = JsonPath.compile("$.fields.User_ID");
-	private Multimap<String, N2KHolder> nodeMap = HashMultimap.create();
-	private Pattern pattern = Pattern.compile("^[-+]?\\d+(\\.\\d+)?$");
+	private Map<String, PgnDecoder> decoders = new HashMap<String, PgnDecoder>();
+	private Map<Integer, PgnDecoder> pgnDecoders = new HashMap<Integer, PgnDecoder>();
+	private PathHandleCache selfHandles = new PathHandleCache();
+	// reused for each message
+	private final ThreadLocal<N2KMessage> messages = new ThreadLocal<N2KMessage>() {
+		@Override
+		protected N2KMessage initialValue() {
+			return new N2KMessage();
+		}
+	};
 
 	public N2KHandler() {
 		File mappingFile = new File("./conf/n2kMappings.json");
@@ -92,16 +115,25 @@ public class N2KHandler {
 			for (String pgn : mappings.asJsonMap().keySet()) {
 				Json mappingArray = mappings.at(pgn);
 				if(logger.isDebugEnabled())logger.debug("Array="+mappingArray);
+				PgnDecoder decoder = new PgnDecoder(pgn);
 				for (Json j : mappingArray.asJsonList()) {
 					if(logger.isDebugEnabled())logger.debug("Json="+j);
 					String filter = "$.fields";
+					Condition[] conditions = null;
 					if(j.at(FILTER)!=null && !j.at(FILTER).isNull()){
 						filter=j.at(FILTER).asString();
+						try{
+							conditions = compileFilter(filter);
+						}catch(IllegalArgumentException e){
+							logger.warn("Using JsonPath for pgn "+pgn+", "+e.getMessage());
+							decoder.compiled = false;
+						}
 						//replace spaces in words only
 						filter=filter.replaceAll("([A-Za-z)]) ([(A-Za-z])", "$1_$2");
 						if(logger.isDebugEnabled())logger.debug("Converted filter:"+filter);
 					}
-					JsonPath compiledPath = JsonPath.compile(filter + "." + j.at(source).getValue().toString().replaceAll(" ", "_"));
+					String field = j.at(source).getValue().toString();
+					JsonPath compiledPath = JsonPath.compile(filter + "." + field.replaceAll(" ", "_"));
 					String node = j.at(NODE).asString();
 					String type = null;
 					if(j.has(TYPE)){
@@ -111,8 +143,10 @@ public class N2KHandler {
 					if(j.has(VALUE)){
 						val = j.at(VALUE).asBoolean();
 					}
-					nodeMap.put(pgn, new N2KHolder(node, compiledPath, type, val));
+					decoder.add(new N2KHolder(node, compiledPath, type, val, fieldName(field), conditions));
 				}
+				decoders.put(pgn, decoder);
+				if (StringUtils.isNumeric(pgn)) pgnDecoders.put(Integer.valueOf(pgn), decoder);
 			}
 
 		} catch (IOException e) {
@@ -121,7 +155,50 @@ public class N2KHandler {
 		}
 	}
 
-	
+	/**
+	 * Compiles the filters used in n2kMappings.json, eg $.fields[?(@.Reference=='Magnetic' && @.Heading)].
+	 * Only field comparisons and field tests joined by && are supported.
+	 */
+	static Condition[] compileFilter(String filter) {
+		filter = filter.trim();
+		if (!filter.startsWith(FIELDS_PREFIX) || !filter.endsWith(FIELDS_SUFFIX)) {
+			throw new IllegalArgumentException("Unsupported filter: " + filter);
+		}
+		String[] terms = filter.substring(FIELDS_PREFIX.length(), filter.length() - FIELDS_SUFFIX.length()).split("&&");
+		Condition[] conditions = new Condition[terms.length];
+		for (int x = 0; x < terms.length; x++) {
+			String term = terms[x].trim();
+			if (!term.startsWith("@.")) {
+				throw new IllegalArgumentException("Unsupported filter: " + filter);
+			}
+			int eq = term.indexOf("==");
+			String name = (eq < 0 ? term.substring(2) : term.substring(2, eq)).trim();
+			if (StringUtils.containsAny(name, "<>!=|'\"")) {
+				throw new IllegalArgumentException("Unsupported filter: " + filter);
+			}
+			if (eq < 0) {
+				conditions[x] = new Condition(fieldName(name), null);
+				continue;
+			}
+			String expected = term.substring(eq + 2).trim();
+			if (expected.length() < 2 || expected.charAt(0) != '\'' || expected.charAt(expected.length() - 1) != '\'') {
+				throw new IllegalArgumentException("Unsupported filter: " + filter);
+			}
+			conditions[x] = new Condition(fieldName(name), normalize(expected.substring(1, expected.length() - 1)));
+		}
+		return conditions;
+	}
+
+	/**
+	 * CANboat names fields with spaces, older versions used underscores
+	 */
+	private static String fieldName(String name) {
+		return name.indexOf('_') < 0 ? name : name.replace('_', ' ');
+	}
+
+	private static String normalize(String value) {
+		return value.indexOf('_') < 0 ? value : value.replace('_', ' ');
+	}
 
 	/*
 	 * {
@@ -153,92 +230,280 @@ public class N2KHandler {
 	 * 
 	 * Converts a Json n2k message (from CANboat analyser) to a signalK json message
 	 * @param n2kmsg
-	 * @return
+	 * @return the model, or null if the pgn is not mapped
 	 */
 	public SignalKModel handle(String n2kmsg, String device) {
-		// get the pgn value
-		DocumentContext n2k = JsonPath.parse(n2kmsg.replaceAll(" ", "_"));
-		String pgn = n2k.read(pgnPath);
+		N2KMessage msg = messages.get();
+		try (JsonParser parser = JSON_FACTORY.createParser(n2kmsg)) {
+			msg.read(parser);
+		} catch (IOException e) {
+			logger.error(e.getMessage() + ":" + n2kmsg);
+			return null;
+		}
 		if (logger.isDebugEnabled())
-			if(logger.isDebugEnabled())logger.debug("processing n2k pgn " + pgn);
-		if (nodeMap.containsKey(pgn)) {
-			// process it, mappings is n2kMapping.json as a json object
-			Collection<N2KHolder> entries = nodeMap.get(pgn);
-			//check AIS pgns
-			String target = null;
-			if(AIS_PGN_129038.equals(pgn)||AIS_PGN_129039.equals(pgn)||AIS_PGN_129794.equals(pgn)||AIS_PGN_129809.equals(pgn)){
-				target = vessels+dot+n2k.read(userId)+dot;
-			}else{
-				target = vessels_dot_self_dot;
+			logger.debug("processing n2k pgn " + msg.pgn);
+		PgnDecoder decoder = msg.pgn == null ? null : decoders.get(msg.pgn);
+		if (decoder == null) {
+			return null;
+		}
+		if (!decoder.compiled) {
+			return handleJsonPath(n2kmsg, device, decoder);
+		}
+		return write(decoder, msg.fields, msg.src, n2kmsg, device);
+	}
+
+	/**
+	 * Converts a decoded binary n2k message, see {@link N2KFrameReader}.
+	 * 
+	 * @param pgn
+	 * @param src the source address on the bus
+	 * @param data the message, reassembled if it is a fast packet
+	 * @param len
+	 * @param device
+	 * @return the model, or null if the pgn is not mapped
+	 */
+	public SignalKModel handle(int pgn, int src, byte[] data, int len, String device) {
+		PgnDecoder decoder = getDecoder(pgn);
+		if (decoder == null) {
+			return null;
+		}
+		if (!decoder.compiled) {
+			if (logger.isDebugEnabled()) logger.debug("No binary decoding for pgn " + pgn + ", its mappings need JsonPath");
+			return null;
+		}
+		N2KMessage msg = messages.get();
+		msg.fields.clear();
+		if (!N2KBinaryFields.decode(pgn, data, len, msg.fields)) {
+			return null;
+		}
+		return write(decoder, msg.fields, String.valueOf(src), Hex.encodeHexString(Arrays.copyOf(data, len)), device);
+	}
+
+	/**
+	 * @param pgn
+	 * @return true if n2kMappings.json has mappings for the pgn
+	 */
+	public boolean isMapped(int pgn) {
+		return getDecoder(pgn) != null;
+	}
+
+	private PgnDecoder getDecoder(int pgn) {
+		return pgnDecoders.get(pgn);
+	}
+
+	private SignalKModel write(PgnDecoder decoder, Map<String, Object> fields, String src, String raw, String device) {
+		// make a dummy signalk object, first as it may load the config that sets self
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		// process it, mappings is n2kMapping.json as a json object
+		//check AIS pgns
+		String target = decoder.ais ? vessels + dot + fields.get(USER_ID) + dot : vessels_dot_self_dot;
+		String sourceRef = target + "sources.n2k." + src + dot + decoder.pgn;
+		String ts = Util.getIsoTimeString();
+		if(StringUtils.isBlank(device))device = UNKNOWN;
+		//add the actual source
+		temp.put(sourceRef, raw, device, ts);
+		for (N2KHolder entry : decoder.entries) {
+			if (!entry.matches(fields)) {
+				continue;
 			}
-			// make a dummy signalk object
-			SignalKModel temp = SignalKModelFactory.getCleanInstance();
-			String sourceRef = target+"sources.n2k."+n2k.read(srcPath)+dot+pgn;
-			
-			String ts = Util.getIsoTimeString();
-			if(StringUtils.isBlank(device))device = UNKNOWN;
-			//add the actual source
-			temp.put(sourceRef, n2kmsg,device, ts);
-			
-			
-			// mapping contains an array
-			for (N2KHolder entry : entries) {
-				try{
-					Object var = n2k.read(entry.path);
-					Object val = resolve(var,entry.type);
-					if(logger.isDebugEnabled())logger.debug(" evaluating " + entry + " = "+val.getClass()+ " : "+val);
-					
-					if(val instanceof JSONArray){
-						if(!((JSONArray)val).isEmpty()){
-							if(entry.value){
-								temp.getFullData().put(target + entry.node, resolve(((JSONArray)val).get(0),entry.type));
-								if(entry.parent!=null){
-									temp.getFullData().put(target + entry.parent+dot+sourceRef, sourceRef);
-									temp.getFullData().put(target + entry.parent+dot+timestamp, ts);
-								}
-							}else{
-								temp.put(target + entry.node, resolve(((JSONArray)val).get(0),entry.type),sourceRef,ts);
-							}
-						}
+			Object var = fields.get(entry.field);
+			if (var == null) {
+				if (logger.isDebugEnabled()) logger.debug("Missing " + entry.field + " in pgn " + decoder.pgn);
+				continue;
+			}
+			put(temp, target, entry, resolve(var, entry.type), sourceRef, ts);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("N2KHandler output  " + temp);
+		return temp;
+	}
+
+	/**
+	 * The original JsonPath evaluation, for pgns whose filters cannot be compiled
+	 */
+	private SignalKModel handleJsonPath(String n2kmsg, String device, PgnDecoder decoder) {
+		DocumentContext n2k = JsonPath.parse(n2kmsg.replaceAll(" ", "_"));
+		String pgn = n2k.read(pgnPath);
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		String target = decoder.ais ? vessels + dot + n2k.read(userId) + dot : vessels_dot_self_dot;
+		String sourceRef = target+"sources.n2k."+n2k.read(srcPath)+dot+pgn;
+		String ts = Util.getIsoTimeString();
+		if(StringUtils.isBlank(device))device = UNKNOWN;
+		temp.put(sourceRef, n2kmsg,device, ts);
+		// mapping contains an array
+		for (N2KHolder entry : decoder.entries) {
+			try{
+				Object var = n2k.read(entry.path);
+				Object val = resolve(var,entry.type);
+				if(logger.isDebugEnabled())logger.debug(" evaluating " + entry + " = "+val.getClass()+ " : "+val);
+				
+				if(val instanceof JSONArray){
+					if(((JSONArray)val).isEmpty()){
 						continue;
 					}
-					if(entry.value){
-						temp.getFullData().put(target + entry.node, val);
-						if(entry.parent!=null){
-							temp.getFullData().put(target + entry.parent+dot+sourceRef, sourceRef);
-							temp.getFullData().put(target + entry.parent+dot+timestamp, ts);
-						}
-					}else{
-						temp.put(target + entry.node, val,sourceRef,ts);
-					}
-					
-				}catch(PathNotFoundException p){
-					logger.error(p);
+					val = resolve(((JSONArray)val).get(0),entry.type);
 				}
-					
+				put(temp, target, entry, val, sourceRef, ts);
+			}catch(PathNotFoundException p){
+				logger.error(p);
 			}
-			if (logger.isDebugEnabled())
-				if(logger.isDebugEnabled())logger.debug("N2KHandler output  " + temp);
-			return temp;
 		}
-		return null;
+		return temp;
+	}
 
+	private void put(SignalKModel temp, String target, N2KHolder entry, Object val, String srcRef, String ts) {
+		//self keys are built once, ais targets change every message
+		PathHandle handle = vessels_dot_self_dot.equals(target) ? selfHandles.get(target, entry.node) : null;
+		if(entry.value){
+			temp.getFullData().put(handle!=null ? handle.getPath() : target + entry.node, val);
+			if(entry.parent!=null){
+				PathHandle parent = (handle!=null) ? selfHandles.get(target, entry.parent) : null;
+				temp.getFullData().put(parent!=null ? parent.getSourceRefKey() : target + entry.parent+dot+sourceRef, srcRef);
+				temp.getFullData().put(parent!=null ? parent.getTimestampKey() : target + entry.parent+dot+timestamp, ts);
+			}
+		}else if(handle!=null){
+			temp.put(handle, val,srcRef,ts);
+		}else{
+			temp.put(target + entry.node, val,srcRef,ts);
+		}
 	}
 
 	private Object resolve(Object var, String type) {
 		if (var == null || !(var instanceof String))
 			return var;
-		try {
-			if(StringUtils.equals(STRING, type))return ((String)var).replace('_', ' ');
-			//check if numeric (-+0..9(.)0...9)
-			if(!pattern.matcher((String)var).find()){
-				return ((String)var).replace('_', ' ');
+		String str = normalize((String) var);
+		if(StringUtils.equals(STRING, type))return str;
+		//check if numeric (-+0..9(.)0...9)
+		if(!isNumber(str)){
+			return str;
+		}
+		return Double.parseDouble(str);
+	}
+
+	private static boolean isNumber(String str) {
+		int i = 0;
+		int len = str.length();
+		if (len > 0 && (str.charAt(0) == '-' || str.charAt(0) == '+')) i++;
+		int digits = 0;
+		while (i < len && Character.isDigit(str.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (digits == 0) return false;
+		if (i == len) return true;
+		if (str.charAt(i++) != '.' || i == len) return false;
+		while (i < len && Character.isDigit(str.charAt(i))) {
+			i++;
+		}
+		return i == len;
+	}
+
+	/**
+	 * The top level values and the fields of one CANboat message
+	 */
+	private class N2KMessage {
+		String pgn;
+		String src;
+		Map<String, Object> fields = new HashMap<String, Object>();
+
+		void read(JsonParser parser) throws IOException {
+			pgn = null;
+			src = null;
+			fields.clear();
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Not a json object");
 			}
-			return numberFormat.parse((String)var).doubleValue();
-		} catch (ParseException e) {
-			return var;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("pgn".equals(name) && token.isScalarValue()) {
+					pgn = parser.getText();
+				} else if ("src".equals(name) && token.isScalarValue()) {
+					src = parser.getText();
+				} else if ("fields".equals(name) && token == JsonToken.START_OBJECT) {
+					readFields(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		private void readFields(JsonParser parser) throws IOException {
+			// if the pgn came first only keep the fields that are mapped
+			PgnDecoder decoder = pgn == null ? null : decoders.get(pgn);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = fieldName(parser.getCurrentName());
+				JsonToken token = parser.nextToken();
+				if (!token.isScalarValue() || (decoder != null && !decoder.fieldNames.contains(name))) {
+					parser.skipChildren();
+					continue;
+				}
+				switch (token) {
+				case VALUE_STRING:
+					fields.put(name, parser.getText());
+					break;
+				case VALUE_NUMBER_INT:
+				case VALUE_NUMBER_FLOAT:
+					fields.put(name, parser.getNumberValue());
+					break;
+				case VALUE_TRUE:
+				case VALUE_FALSE:
+					fields.put(name, parser.getBooleanValue());
+					break;
+				default:
+					// null values count as present for filters
+					fields.put(name, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The compiled mappings for one pgn
+	 */
+	class PgnDecoder {
+		final String pgn;
+		final boolean ais;
+		final List<N2KHolder> entries = new ArrayList<N2KHolder>();
+		// every field read by the mappings or their filters
+		final Set<String> fieldNames = new HashSet<String>();
+		boolean compiled = true;
+
+		PgnDecoder(String pgn) {
+			this.pgn = pgn;
+			this.ais = AIS_PGN_129038.equals(pgn) || AIS_PGN_129039.equals(pgn) || AIS_PGN_129794.equals(pgn) || AIS_PGN_129809.equals(pgn);
+			if (ais) fieldNames.add(USER_ID);
+		}
+
+		void add(N2KHolder entry) {
+			entries.add(entry);
+			fieldNames.add(entry.field);
+			if (entry.conditions != null) {
+				for (Condition c : entry.conditions) {
+					fieldNames.add(c.field);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One term of a filter, the field must exist and equal the value if there is one
+	 */
+	static class Condition {
+		final String field;
+		final String value;
+
+		Condition(String field, String value) {
+			this.field = field;
+			this.value = value;
 		}
 
+		boolean matches(Map<String, Object> fields) {
+			if (!fields.containsKey(field)) return false;
+			if (value == null) return true;
+			Object actual = fields.get(field);
+			return actual instanceof String && value.equals(normalize((String) actual));
+		}
 	}
 
 	class N2KHolder {
@@ -247,15 +512,27 @@ public class N2KHandler {
 		JsonPath path = null;
 		String type = null;
 		boolean value = false;
+		String field = null;
+		Condition[] conditions = null;
 
-		public N2KHolder(String node, JsonPath path, String type, boolean value) {
+		public N2KHolder(String node, JsonPath path, String type, boolean value, String field, Condition[] conditions) {
 			this.node = node;
 			this.path = path;
 			this.type = type;
 			this.value=value;
+			this.field = field;
+			this.conditions = conditions;
 			int p = node.lastIndexOf(dot);
 			if(p>0)parent=node.substring(0,p);
 		}
+
+		boolean matches(Map<String, Object> fields) {
+			if (conditions == null) return true;
+			for (Condition c : conditions) {
+				if (!c.matches(fields)) return false;
+			}
+			return true;
+		}
 	}
 
 }
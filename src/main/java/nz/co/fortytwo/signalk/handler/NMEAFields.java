@@ -0,0 +1,294 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the fields of one NMEA 0183 sentence in place, without splitting it into strings.
+ * <p>
+ * {@link #reset(CharSequence)} checks the framing and checksum and records where each field starts.
+ * Field 0 is the first field after the address, the same numbering marineapi uses.
+ * One instance is reused for every line, so it is not thread safe.
+ *
+ * @author robert
+ *
+ */
+public class NMEAFields {
+
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+			1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	// mantissas up to 2^53 convert to double exactly, so mantissa / 10^n rounds like Double.parseDouble
+	private static final long MAX_EXACT = 1L << 53;
+
+	private CharSequence line;
+	// end of the sentence without the checksum or line ending
+	private int end;
+	// end of the sentence including the checksum, without the line ending
+	private int length;
+	// start of each field, with a last entry one past the end of the last field
+	private int[] starts = new int[24];
+	private int count;
+
+	/**
+	 * Frames a sentence, eg $GPRMC,...*78.
+	 *
+	 * @param line the sentence, trailing CR/LF are ignored
+	 * @return false if this is not a well formed $ sentence with a matching (or no) checksum
+	 */
+	public boolean reset(CharSequence line) {
+		this.line = line;
+		this.count = 0;
+		int len = line.length();
+		while (len > 0 && (line.charAt(len - 1) == '\r' || line.charAt(len - 1) == '\n')) {
+			len--;
+		}
+		this.length = len;
+		// $ + 5 char address + ,
+		if (len < 7 || line.charAt(0) != '$' || line.charAt(6) != ',') return false;
+		int sum = 0;
+		for (int i = 1; i < 6; i++) {
+			char c = line.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) return false;
+			sum ^= c;
+		}
+		sum ^= ',';
+		int i = 7;
+		addStart(i);
+		for (; i < len; i++) {
+			char c = line.charAt(i);
+			if (c == '*') break;
+			if (c < 0x20 || c > 0x7e || c == '$' || c == '!') return false;
+			if (c == ',') addStart(i + 1);
+			sum ^= c;
+		}
+		this.end = i;
+		addStart(i + 1);
+		count--;
+		if (i == len) return true;
+		// *hh and nothing else
+		if (len != i + 3) return false;
+		int hi = hex(line.charAt(i + 1));
+		int lo = hex(line.charAt(i + 2));
+		return hi >= 0 && lo >= 0 && ((hi << 4) | lo) == sum;
+	}
+
+	private void addStart(int start) {
+		if (count == starts.length) {
+			int[] grown = new int[count * 2];
+			System.arraycopy(starts, 0, grown, 0, count);
+			starts = grown;
+		}
+		starts[count++] = start;
+	}
+
+	private static int hex(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		return -1;
+	}
+
+	/**
+	 * @return the sentence without the line ending
+	 */
+	public CharSequence getSentence() {
+		return length == line.length() ? line : line.subSequence(0, length);
+	}
+
+	/**
+	 * @return the number of data fields after the address
+	 */
+	public int size() {
+		return count;
+	}
+
+	public String getTalkerId() {
+		return line.subSequence(1, 3).toString();
+	}
+
+	public String getSentenceId() {
+		return line.subSequence(3, 6).toString();
+	}
+
+	/**
+	 * @param id a three letter sentence id, eg RMC
+	 * @return true if this sentence has that id, whatever the talker
+	 */
+	public boolean isSentence(String id) {
+		return line.charAt(3) == id.charAt(0) && line.charAt(4) == id.charAt(1) && line.charAt(5) == id.charAt(2);
+	}
+
+	private int start(int field) {
+		return starts[field];
+	}
+
+	private int end(int field) {
+		return starts[field + 1] - 1;
+	}
+
+	/**
+	 * @param field
+	 * @return true if the field is missing or has no characters
+	 */
+	public boolean isEmpty(int field) {
+		return field >= count || start(field) == end(field);
+	}
+
+	/**
+	 * @param field
+	 * @return the first character of the field, or 0 if it is empty
+	 */
+	public char getChar(int field) {
+		return isEmpty(field) ? 0 : line.charAt(start(field));
+	}
+
+	/**
+	 * @param field
+	 * @return the field as a decimal number, NaN if it is empty or not a number
+	 */
+	public double getDouble(int field) {
+		if (isEmpty(field)) return Double.NaN;
+		return parseDouble(start(field), end(field));
+	}
+
+	/**
+	 * Parses ddmm.mmm and the N/S hemisphere in the next field.
+	 *
+	 * @param field
+	 * @return signed decimal degrees, NaN if the fields are not usable
+	 */
+	public double getLatitude(int field) {
+		return getDegrees(field, 2, 'N', 'S');
+	}
+
+	/**
+	 * Parses dddmm.mmm and the E/W hemisphere in the next field.
+	 *
+	 * @param field
+	 * @return signed decimal degrees, NaN if the fields are not usable
+	 */
+	public double getLongitude(int field) {
+		return getDegrees(field, 3, 'E', 'W');
+	}
+
+	private double getDegrees(int field, int digits, char positive, char negative) {
+		if (isEmpty(field) || isEmpty(field + 1)) return Double.NaN;
+		int s = start(field);
+		int e = end(field);
+		if (e - s <= digits) return Double.NaN;
+		int deg = 0;
+		for (int i = s; i < s + digits; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') return Double.NaN;
+			deg = deg * 10 + (c - '0');
+		}
+		double value = deg + parseDouble(s + digits, e) / 60;
+		char hemi = getChar(field + 1);
+		if (hemi == negative) return -value;
+		return hemi == positive ? value : Double.NaN;
+	}
+
+	private double parseDouble(int s, int e) {
+		boolean negative = false;
+		int i = s;
+		char first = line.charAt(i);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int fraction = -1;
+		boolean digits = false;
+		for (; i < e; i++) {
+			char c = line.charAt(i);
+			if (c == '.' && fraction < 0) {
+				fraction = 0;
+				continue;
+			}
+			if (c < '0' || c > '9' || mantissa >= MAX_EXACT / 10) return slowParse(s, e);
+			mantissa = mantissa * 10 + (c - '0');
+			digits = true;
+			if (fraction >= 0) fraction++;
+		}
+		if (!digits) return Double.NaN;
+		if (fraction >= POW10.length) return slowParse(s, e);
+		double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+		return negative ? -value : value;
+	}
+
+	private double slowParse(int s, int e) {
+		try {
+			return Double.parseDouble(line.subSequence(s, e).toString());
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Wraps the remaining bytes of an ASCII buffer as a CharSequence, without copying them.
+	 * The buffer position is not changed.
+	 *
+	 * @param buf
+	 * @return
+	 */
+	public static CharSequence ascii(ByteBuffer buf) {
+		return new AsciiSequence(buf, buf.position(), buf.limit());
+	}
+
+	private static class AsciiSequence implements CharSequence {
+		private final ByteBuffer buf;
+		private final int from;
+		private final int to;
+
+		AsciiSequence(ByteBuffer buf, int from, int to) {
+			this.buf = buf;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public int length() {
+			return to - from;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buf.get(from + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new AsciiSequence(buf, from + start, from + end);
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = charAt(i);
+			}
+			return new String(chars);
+		}
+	}
+}
@@ -40,6 +40,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -63,6 +64,7 @@ import net.sf.marineapi.nmea.sentence.Sentence;
 import net.sf.marineapi.nmea.sentence.SentenceId;
 import net.sf.marineapi.nmea.sentence.VHWSentence;
 import net.sf.marineapi.nmea.sentence.VLWSentence;
+import nz.co.fortytwo.signalk.model.PathHandleCache;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
@@ -89,6 +91,25 @@ public class NMEAHandler {
     // map of sentence listeners
     private ConcurrentMap<String, List<SentenceListener>> listeners = new ConcurrentHashMap<String, List<SentenceListener>>();
     private boolean rmcClock = false;
+    // keys for the self paths we write, built once
+    private PathHandleCache selfHandles = new PathHandleCache();
+    // smoothing state, shared by the fast path and the built in listener
+    private static final double ALPHA = 1 - 1.0 / 6;
+    private boolean startLat = true;
+    private boolean startLon = true;
+    private double previousLat = 0;
+    private double previousLon = 0;
+    private double previousSOG = 0;
+    private double previousSOW = 0;
+    // decode the common sentences without marineapi while only the built in listener is registered
+    private boolean fastPath = true;
+    private final ThreadLocal<NMEAFields> fields = new ThreadLocal<NMEAFields>() {
+        @Override
+        protected NMEAFields initialValue() {
+            return new NMEAFields();
+        }
+    };
+    private SentenceListener builtInListener;
 
     public NMEAHandler() {
         super();
@@ -128,6 +149,10 @@ public class NMEAHandler {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Processing NMEA:[" + bodyStr + "]");
                 }
+                model = handleFast(bodyStr, src);
+                if (model != null) {
+                    return model;
+                }
                 Sentence sentence = SentenceFactory.getInstance().createParser(bodyStr);
                 model = SignalKModelFactory.getCleanInstance();
                 fireSentenceEvent(model, sentence, src);
@@ -143,6 +168,226 @@ public class NMEAHandler {
         return null;
     }
 
+    /**
+     * Convert an ASCII NMEA sentence in the remaining bytes of the buffer to a signalk model.
+     * The common navigation sentences are read straight from the buffer, the buffer position is not changed.
+     *
+     * @param buf
+     * @param src the device, or null
+     * @return
+     */
+    public SignalKModel handle(ByteBuffer buf, String src) {
+        if (buf == null || !buf.hasRemaining() || buf.get(buf.position()) != '$') {
+            return null;
+        }
+        try {
+            SignalKModel model = handleFast(NMEAFields.ascii(buf), src);
+            if (model != null) {
+                return model;
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        return handle(NMEAFields.ascii(buf).toString(), src);
+    }
+
+    /**
+     * Turns the fast path off, so every sentence goes through marineapi and the listeners.
+     * The fast path is also skipped while any other listener is registered.
+     *
+     * @param fastPath
+     */
+    public void setFastPath(boolean fastPath) {
+        this.fastPath = fastPath;
+    }
+
+    /**
+     * Decodes RMC, GLL, GGA, VTG, HDG, HDT, HDM, MWV, DBT and VHW in place and writes the values
+     * the built in listener would write.
+     *
+     * @return the model, or null if the sentence must go through marineapi
+     */
+    private SignalKModel handleFast(CharSequence line, String device) {
+        if (!fastPath || !isBuiltInOnly()) {
+            return null;
+        }
+        NMEAFields f = fields.get();
+        if (!f.reset(line)) {
+            return null;
+        }
+        SignalKModel model = SignalKModelFactory.getCleanInstance();
+        if (StringUtils.isBlank(device)) {
+            device = UNKNOWN;
+        }
+        String srcRef = device + ".NMEA0183." + f.getSentenceId();
+        String now = Util.getIsoTimeString();
+        boolean done;
+        if (f.isSentence("RMC")) {
+            done = putRMC(f, model, srcRef, now);
+        } else if (f.isSentence("GLL")) {
+            done = putPosition(f, 0, model, srcRef, now);
+        } else if (f.isSentence("GGA")) {
+            done = putPosition(f, 1, model, srcRef, now);
+        } else if (f.isSentence("VTG")) {
+            done = putVTG(f, model, srcRef, now);
+        } else if (f.isSentence("HDG") || f.isSentence("HDM")) {
+            done = putHeading(f, SignalKConstants.nav_headingMagnetic, model, srcRef, now);
+        } else if (f.isSentence("HDT")) {
+            done = putHeading(f, SignalKConstants.nav_headingTrue, model, srcRef, now);
+        } else if (f.isSentence("MWV")) {
+            done = putMWV(f, model, srcRef, now);
+        } else if (f.isSentence("DBT")) {
+            done = putDBT(f, model, srcRef, now);
+        } else if (f.isSentence("VHW")) {
+            done = putVHW(f, model, srcRef, now);
+        } else {
+            return null;
+        }
+        if (!done) {
+            return null;
+        }
+        model.putSource("0183." + device + dot + f.getTalkerId() + dot + f.getSentenceId(), f.getSentence().toString(), now);
+        return model;
+    }
+
+    private boolean isBuiltInOnly() {
+        List<SentenceListener> all = listeners.get(DISPATCH_ALL);
+        if (listeners.size() != 1 || all == null || all.size() != 1) {
+            return false;
+        }
+        return all.contains(builtInListener);
+    }
+
+    // each putXXX checks its fields before writing anything, and returns false to leave the sentence to marineapi
+
+    private boolean putPosition(NMEAFields f, int field, SignalKModel model, String srcRef, String now) {
+        double lat = f.getLatitude(field);
+        double lon = f.getLongitude(field + 2);
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return false;
+        }
+        smoothPosition(lat, lon);
+        model.putPosition(selfHandles.get(vessels_dot_self_dot, nav_position), previousLat, previousLon, 0.0, srcRef, now);
+        return true;
+    }
+
+    private boolean putRMC(NMEAFields f, SignalKModel model, String srcRef, String now) {
+        // the clock is set from the parsed sentence
+        if (rmcClock) {
+            return false;
+        }
+        double speed = f.getDouble(6);
+        double course = f.getDouble(7);
+        if (Double.isNaN(speed) || (speed > 0.5 && Double.isNaN(course))) {
+            return false;
+        }
+        if (!putPosition(f, 2, model, srcRef, now)) {
+            return false;
+        }
+        putCourseAndSpeed(model, course, speed, srcRef, now);
+        if (logger.isInfoEnabled()) {
+            logger.info("rmcCOG: " + course);
+            logger.info("rmcSOG: " + speed);
+        }
+        return true;
+    }
+
+    private boolean putVTG(NMEAFields f, SignalKModel model, String srcRef, String now) {
+        // only the current layout, with T, M, N and K after the values
+        if (f.getChar(1) != 'T' || f.getChar(5) != 'N') {
+            return false;
+        }
+        double course = f.getDouble(0);
+        double speed = f.getDouble(4);
+        if (Double.isNaN(speed) || (speed > 0.5 && Double.isNaN(course))) {
+            return false;
+        }
+        putCourseAndSpeed(model, course, speed, srcRef, now);
+        return true;
+    }
+
+    private void putCourseAndSpeed(SignalKModel model, double course, double speed, String srcRef, String now) {
+        previousSOG = Util.movingAverage(ALPHA, previousSOG, Util.kntToMs(speed));
+        model.putDouble(selfHandles.get(vessels_dot_self_dot, nav_speedOverGround), previousSOG, srcRef, now);
+        if (speed > 0.5) {
+            model.putDouble(selfHandles.get(vessels_dot_self_dot, nav_courseOverGroundTrue), Math.toRadians(course), srcRef, now);
+        }
+    }
+
+    private boolean putHeading(NMEAFields f, String path, SignalKModel model, String srcRef, String now) {
+        double heading = f.getDouble(0);
+        if (Double.isNaN(heading)) {
+            return false;
+        }
+        model.putDouble(selfHandles.get(vessels_dot_self_dot, path), Math.toRadians(heading), srcRef, now);
+        return true;
+    }
+
+    private boolean putMWV(NMEAFields f, SignalKModel model, String srcRef, String now) {
+        double angle = f.getDouble(0);
+        double speed = f.getDouble(2);
+        if (Double.isNaN(angle) || Double.isNaN(speed)) {
+            return false;
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("mhvAppWind: %4.1f %4.0f", angle, speed));
+        }
+        // signalk is -PI to PI, negative to port, 0 is bow.
+        double aws = Math.toRadians(angle);
+        if (aws > Math.PI) {
+            aws = aws - 2. * Math.PI;
+        }
+        model.putDouble(selfHandles.get(vessels_dot_self_dot, env_wind_angleApparent), aws, srcRef, now);
+        model.putDouble(selfHandles.get(vessels_dot_self_dot, env_wind_speedApparent), Util.kntToMs(speed), srcRef, now);
+        return true;
+    }
+
+    private boolean putDBT(NMEAFields f, SignalKModel model, String srcRef, String now) {
+        // in meters
+        double depth = f.getDouble(2);
+        if (Double.isNaN(depth)) {
+            return false;
+        }
+        model.putDouble(selfHandles.get(vessels_dot_self_dot, env_depth_belowTransducer), depth, srcRef, now);
+        if (logger.isInfoEnabled()) {
+            logger.info("dbtDepth: " + depth);
+        }
+        return true;
+    }
+
+    private boolean putVHW(NMEAFields f, SignalKModel model, String srcRef, String now) {
+        // either value may be missing
+        double heading = f.getDouble(0);
+        double knots = f.getDouble(4);
+        if ((!f.isEmpty(0) && Double.isNaN(heading)) || (!f.isEmpty(4) && Double.isNaN(knots))) {
+            return false;
+        }
+        if (!Double.isNaN(heading)) {
+            model.putDouble(selfHandles.get(vessels_dot_self_dot, SignalKConstants.nav_headingTrue), Math.toRadians(heading), srcRef, now);
+        }
+        if (!Double.isNaN(knots)) {
+            previousSOW = Util.movingAverage(ALPHA, previousSOW, Util.kntToMs(knots));
+            model.putDouble(selfHandles.get(vessels_dot_self_dot, SignalKConstants.nav_speedThroughWater), previousSOW, srcRef, now);
+            if (logger.isInfoEnabled()) {
+                logger.info("vhwSOW: " + knots);
+            }
+        }
+        return true;
+    }
+
+    private void smoothPosition(double lat, double lon) {
+        if (startLat) {
+            previousLat = lat;
+            startLat = false;
+        }
+        previousLat = Util.movingAverage(ALPHA, previousLat, lat);
+        if (startLon) {
+            previousLon = lon;
+            startLon = false;
+        }
+        previousLon = Util.movingAverage(ALPHA, previousLon, lon);
+    }
+
     /**
      * Adds a {@link SentenceListener} that wants to receive all sentences read
      * by the reader.
@@ -248,15 +493,7 @@ public class NMEAHandler {
      */
     private void setNmeaListeners() {
 
-        addSentenceListener(new SentenceListener() {
-
-            private boolean startLat = true;
-            private boolean startLon = true;
-            double previousLat = 0;
-            double previousLon = 0;
-            double previousSOG = 0;
-            double previousSOW = 0;
-            static final double ALPHA = 1 - 1.0 / 6;
+        builtInListener = new SentenceListener() {
 
             public void sentenceRead(SentenceEvent evt) {
                 SentenceEventSource src = (SentenceEventSource) evt.getSource();
@@ -265,21 +502,11 @@ public class NMEAHandler {
                     if (evt.getSentence() instanceof PositionSentence) {
                         PositionSentence sen = (PositionSentence) evt.getSentence();
 
-                        if (startLat) {
-                            previousLat = sen.getPosition().getLatitude();
-                            startLat = false;
-                        }
-                        previousLat = Util.movingAverage(ALPHA, previousLat, sen.getPosition().getLatitude());
                         if (logger.isDebugEnabled()) {
                             logger.debug("lat position:" + sen.getPosition().getLatitude() + ", hemi=" + sen.getPosition().getLatitudeHemisphere());
                         }
-
-                        if (startLon) {
-                            previousLon = sen.getPosition().getLongitude();
-                            startLon = false;
-                        }
-                        previousLon = Util.movingAverage(ALPHA, previousLon, sen.getPosition().getLongitude());
-                        src.getModel().putPosition(vessels_dot_self_dot + nav_position, previousLat, previousLon, 0.0, src.getSourceRef(), src.getNow());
+                        smoothPosition(sen.getPosition().getLatitude(), sen.getPosition().getLongitude());
+                        src.getModel().putPosition(selfHandles.get(vessels_dot_self_dot, nav_position), previousLat, previousLon, 0.0, src.getSourceRef(), src.getNow());
 
                     }
 
@@ -290,13 +517,13 @@ public class NMEAHandler {
 
                         if (sen.isTrue()) {
                             try {
-                                src.getModel().put(vessels_dot_self_dot + SignalKConstants.nav_headingTrue, Math.toRadians(sen.getHeading()), src.getSourceRef(), src.getNow());
+                                src.getModel().put(selfHandles.get(vessels_dot_self_dot, SignalKConstants.nav_headingTrue), Math.toRadians(sen.getHeading()), src.getSourceRef(), src.getNow());
                             } catch (Exception e) {
 //                                    logger.error(e.getMessage());
                             }
                         } else {
                             try {
-                                src.getModel().put(vessels_dot_self_dot + SignalKConstants.nav_headingMagnetic, Math.toRadians(sen.getHeading()), src.getSourceRef(), src.getNow());
+                                src.getModel().put(selfHandles.get(vessels_dot_self_dot, SignalKConstants.nav_headingMagnetic), Math.toRadians(sen.getHeading()), src.getSourceRef(), src.getNow());
                             } catch (Exception e) {
 //                                    logger.error(e.getMessage());
                             }
@@ -310,9 +537,9 @@ public class NMEAHandler {
                             Util.checkTime(sen);
                         }
                         previousSOG = Util.movingAverage(ALPHA, previousSOG, Util.kntToMs(sen.getSpeed()));
-                        src.getModel().put(vessels_dot_self_dot + nav_speedOverGround, previousSOG, src.getSourceRef(), src.getNow());
+                        src.getModel().put(selfHandles.get(vessels_dot_self_dot, nav_speedOverGround), previousSOG, src.getSourceRef(), src.getNow());
                         if (sen.getSpeed() > 0.5) {
-                            src.getModel().put(vessels_dot_self_dot + nav_courseOverGroundTrue, Math.toRadians(sen.getCourse()), src.getSourceRef(), src.getNow());
+                            src.getModel().put(selfHandles.get(vessels_dot_self_dot, nav_courseOverGroundTrue), Math.toRadians(sen.getCourse()), src.getSourceRef(), src.getNow());
                         }
                         logger.info("rmcCOG: " + sen.getCourse());
                         logger.info("rmcSOG: " + sen.getSpeed());
@@ -322,7 +549,7 @@ public class NMEAHandler {
                         VHWSentence sen = (VHWSentence) evt.getSentence();
                         try {
                             previousSOW = Util.movingAverage(ALPHA, previousSOW, Util.kntToMs(sen.getSpeedKnots()));
-                            src.getModel().put(vessels_dot_self_dot + SignalKConstants.nav_speedThroughWater, previousSOW, src.getSourceRef(), src.getNow());
+                            src.getModel().put(selfHandles.get(vessels_dot_self_dot, SignalKConstants.nav_speedThroughWater), previousSOW, src.getSourceRef(), src.getNow());
                             logger.info("vhwSOW: " + sen.getSpeedKnots());
                         } catch (DataNotAvailableException e) {
                             // These are really not errors
@@ -356,8 +583,8 @@ public class NMEAHandler {
                         if (aws > Math.PI) {
                             aws = aws - 2.*Math.PI;
                         }
-                        src.getModel().put(vessels_dot_self_dot + env_wind_angleApparent, aws, src.getSourceRef(), src.getNow());
-                        src.getModel().put(vessels_dot_self_dot + env_wind_speedApparent, Util.kntToMs(sen.getSpeed()), src.getSourceRef(), src.getNow());
+                        src.getModel().put(selfHandles.get(vessels_dot_self_dot, env_wind_angleApparent), aws, src.getSourceRef(), src.getNow());
+                        src.getModel().put(selfHandles.get(vessels_dot_self_dot, env_wind_speedApparent), Util.kntToMs(sen.getSpeed()), src.getSourceRef(), src.getNow());
                         //src.getModel().put(vessels_dot_self_dot + env_wind+dot+source,vessels_dot_self_dot+"sources.nmea.0183"+dot+sen.getSentenceId());
                         //src.getModel().put(vessels_dot_self_dot + env_wind + dot+timestamp , src.getNow());
                     }
@@ -400,7 +627,7 @@ public class NMEAHandler {
                     if (evt.getSentence() instanceof DepthSentence) {
                         DepthSentence sen = (DepthSentence) evt.getSentence();
                         // in meters
-                        src.getModel().put(vessels_dot_self_dot + env_depth_belowTransducer, sen.getDepth(), src.getSourceRef(), src.getNow());
+                        src.getModel().put(selfHandles.get(vessels_dot_self_dot, env_depth_belowTransducer), sen.getDepth(), src.getSourceRef(), src.getNow());
 //                        Object obj = src.getModel().get(vessels_dot_self_dot + env_depth_belowTransducer+".meta.zones");
 //                        String [] strArr = (String [])obj;
                         logger.info("dbtDepth: " + sen.getDepth());
@@ -420,7 +647,8 @@ public class NMEAHandler {
 
             public void readingPaused() {
             }
-        });
+        };
+        addSentenceListener(builtInListener);
     }
 
 }
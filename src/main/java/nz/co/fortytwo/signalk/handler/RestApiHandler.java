@@ -31,6 +31,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -100,25 +101,11 @@ public class RestApiHandler {
 	 */
 	public Object processGet(HttpServletRequest request, HttpServletResponse response, SignalKModel signalkModel)
 			throws Exception {
-		// use Restlet API to create the response
-		String path = request.getPathInfo();
-		// String path = exchange.getIn().getHeader(Exchange.HTTP_URI,
-		// String.class);
-		if (logger.isDebugEnabled())
-			logger.debug("We are processing the path = " + path);
-
-		// check valid request.
-		if (path.length() < SignalKConstants.SIGNALK_API.length() || !path.startsWith(SignalKConstants.SIGNALK_API)) {
+		String path = getApiPath(request);
+		if (path == null) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 			return null;
 		}
-		path = path.substring(SignalKConstants.SIGNALK_API.length());
-		if (path.startsWith(SLASH))
-			path = path.substring(1);
-		if (path.endsWith(SLASH))
-			path = path.substring(path.length() - 1);
-		if (logger.isDebugEnabled())
-			logger.debug("We are processing the extension:" + path);
 		// list
 		if (path.startsWith(LIST)) {
 
@@ -153,23 +140,7 @@ public class RestApiHandler {
 		}
 		// vessel params
 		if (path.startsWith(vessels)) {
-			// convert .self to .motu
-			path = path.replace(SLASH, SignalKConstants.dot);
-			path = path.replace(".self", dot + SignalKConstants.self);
-			String context = Util.getContext(path);
-			path = path.substring(context.length());
-			if (path.startsWith(dot))
-				path = path.substring(1);
-			if (!path.endsWith("*"))
-				path = path + "*";
-			Json getJson = Json.object();
-			getJson.set(SignalKConstants.CONTEXT, context);
-			Json getPath = Json.object();
-			getPath.set(SignalKConstants.PATH, path);
-			getPath.set(SignalKConstants.FORMAT, SignalKConstants.FORMAT_FULL);
-			Json getArray = Json.array();
-			getArray.add(getPath);
-			getJson.set(SignalKConstants.GET, getArray);
+			Json getJson = getVesselRequest(path);
 
 			SignalKModel keys = getHandler.handle(signalkModel, getJson);
 			// NavigableMap<String, Object> keys =
@@ -215,6 +186,91 @@ public class RestApiHandler {
 		return null;
 	}
 
+	/**
+	 * Process a signalk GET message as {@link #processGet(HttpServletRequest, HttpServletResponse, SignalKModel)}, but
+	 * write the json straight to the response output stream. Vessel data is read through a read-only view of the
+	 * signalkModel and streamed, so large responses are not built in memory.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param signalkModel
+	 * @return true if a response body was written
+	 * @throws Exception
+	 */
+	public boolean processGetStream(HttpServletRequest request, HttpServletResponse response, SignalKModel signalkModel)
+			throws Exception {
+		String path = getApiPath(request);
+		if (path != null && path.startsWith(vessels)) {
+			SignalKModel keys = getHandler.handleView(signalkModel, getVesselRequest(path));
+			if (keys.getFullData().isEmpty()) {
+				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				return false;
+			}
+			response.setContentType("application/json");
+
+			// SEND RESPONSE
+			response.setStatus(HttpServletResponse.SC_OK);
+			ser.write(keys, SignalKConstants.FORMAT_FULL, response.getOutputStream());
+			return true;
+		}
+		Object reply = processGet(request, response, signalkModel);
+		if (reply == null) {
+			return false;
+		}
+		response.getOutputStream().write(reply.toString().getBytes(StandardCharsets.UTF_8));
+		response.getOutputStream().flush();
+		return true;
+	}
+
+	/**
+	 * Returns the path after the signalk api prefix, or null if the request is not for the api.
+	 */
+	private String getApiPath(HttpServletRequest request) {
+		// use Restlet API to create the response
+		String path = request.getPathInfo();
+		// String path = exchange.getIn().getHeader(Exchange.HTTP_URI,
+		// String.class);
+		if (logger.isDebugEnabled())
+			logger.debug("We are processing the path = " + path);
+
+		// check valid request.
+		if (path.length() < SignalKConstants.SIGNALK_API.length() || !path.startsWith(SignalKConstants.SIGNALK_API)) {
+			return null;
+		}
+		path = path.substring(SignalKConstants.SIGNALK_API.length());
+		if (path.startsWith(SLASH))
+			path = path.substring(1);
+		if (path.endsWith(SLASH))
+			path = path.substring(path.length() - 1);
+		if (logger.isDebugEnabled())
+			logger.debug("We are processing the extension:" + path);
+		return path;
+	}
+
+	/**
+	 * Builds the get message for a vessels/.. url path
+	 */
+	private Json getVesselRequest(String path) {
+		// convert .self to .motu
+		path = path.replace(SLASH, SignalKConstants.dot);
+		path = path.replace(".self", dot + SignalKConstants.self);
+		String context = Util.getContext(path);
+		path = path.substring(context.length());
+		if (path.startsWith(dot))
+			path = path.substring(1);
+		if (!path.endsWith("*"))
+			path = path + "*";
+		Json getJson = Json.object();
+		getJson.set(SignalKConstants.CONTEXT, context);
+		Json getPath = Json.object();
+		getPath.set(SignalKConstants.PATH, path);
+		getPath.set(SignalKConstants.FORMAT, SignalKConstants.FORMAT_FULL);
+		Json getArray = Json.array();
+		getArray.add(getPath);
+		getJson.set(SignalKConstants.GET, getArray);
+		return getJson;
+	}
+
 	// public Object processPost(HttpServletRequest request, HttpServletResponse
 	// response, SignalKModel signalkmodel, String body) {
 	// String path = request.getPathInfo();
@@ -0,0 +1,121 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.track;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.PathHandleCache;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.TrackRecorder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Records the own vessel's track from its position with a {@link TrackRecorder}, and publishes it as
+ * GeoJSON LineString coordinates at vessels.self.track.value. The track is only published when it gains
+ * a vertex, so the cost of publishing does not grow with the fix rate.
+ * 
+ * @author robert
+ * 
+ */
+public class TrackHandler implements DerivedCalculator {
+
+	private static Logger logger = LogManager.getLogger(TrackHandler.class);
+	private static final List<String> inputs = Arrays.asList(nav_position_latitude, nav_position_longitude);
+	private static final List<String> outputs = Arrays.asList(track);
+	private static final DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser();
+
+	// about 55m, and 10000 points
+	public static final double DEFAULT_TOLERANCE = 0.0005;
+	public static final int DEFAULT_MAX_POINTS = 10000;
+
+	private final TrackRecorder recorder;
+	private PathHandleCache selfHandles = new PathHandleCache();
+
+	public TrackHandler() {
+		this(DEFAULT_TOLERANCE, DEFAULT_MAX_POINTS);
+	}
+
+	/**
+	 * @param tolerance in degrees, as for TrackSimplifier
+	 * @param maxPoints the points held before the track is reduced
+	 */
+	public TrackHandler(double tolerance, int maxPoints) {
+		this.recorder = new TrackRecorder(tolerance, maxPoints);
+	}
+
+	@Override
+	public Collection<String> getInputs() {
+		return inputs;
+	}
+
+	@Override
+	public Collection<String> getOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public void calculate(SignalKModel signalkModel) {
+		handle(signalkModel);
+	}
+
+	public void handle(SignalKModel signalkModel) {
+		double lat = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_latitude));
+		double lon = signalkModel.getDouble(selfHandles.get(vessels_dot_self_dot, nav_position_longitude));
+		if (recorder.add(lat, lon, getFixTime(signalkModel))) {
+			if (logger.isDebugEnabled()) logger.debug("Track now " + recorder.size() + " points");
+			signalkModel.putValue(vessels_dot_self_dot + track, recorder.toCoordinates());
+		}
+	}
+
+	/**
+	 * @return the position timestamp in ms, or now if it is missing or cannot be read
+	 */
+	private long getFixTime(SignalKModel signalkModel) {
+		Object ts = signalkModel.get(selfHandles.get(vessels_dot_self_dot, nav_position).getTimestampKey());
+		if (ts instanceof String) {
+			try {
+				return fmt.parseMillis((String) ts);
+			} catch (IllegalArgumentException e) {
+				if (logger.isDebugEnabled()) logger.debug("Bad position timestamp: " + ts);
+			}
+		}
+		return System.currentTimeMillis();
+	}
+
+	public TrackRecorder getRecorder() {
+		return recorder;
+	}
+}
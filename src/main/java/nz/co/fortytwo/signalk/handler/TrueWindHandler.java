@@ -30,6 +30,12 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.PathHandleCache;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -42,9 +48,27 @@ import org.apache.logging.log4j.Logger;
  * @author robert
  *
  */
-public class TrueWindHandler {
+public class TrueWindHandler implements DerivedCalculator {
 
     private static Logger logger = LogManager.getLogger(TrueWindHandler.class);
+    private static final List<String> inputs = Arrays.asList(nav_speedOverGround, env_wind_angleApparent, env_wind_speedApparent);
+    private static final List<String> outputs = Arrays.asList(env_wind_directionTrue, env_wind_speedTrue);
+    private PathHandleCache selfHandles = new PathHandleCache();
+
+    @Override
+    public Collection<String> getInputs() {
+        return inputs;
+    }
+
+    @Override
+    public Collection<String> getOutputs() {
+        return outputs;
+    }
+
+    @Override
+    public void calculate(SignalKModel signalkModel) {
+        handle(signalkModel);
+    }
 
     /**
      * Updates the true wind direction from the apparent wind direction in the
@@ -55,10 +79,10 @@ public class TrueWindHandler {
     public void handle(SignalKModel signalkModel) {
         try {
 
-            Double vesselSpeed = (Double) signalkModel.getValue(vessels_dot_self_dot + nav_speedOverGround);
-            Double apparentDirection = (Double) signalkModel.getValue(vessels_dot_self_dot + env_wind_angleApparent);
-            Double apparentWindSpeed = (Double) signalkModel.getValue(vessels_dot_self_dot + env_wind_speedApparent);
-            if (apparentWindSpeed != null && apparentDirection != null && vesselSpeed != null) {
+            double vesselSpeed = signalkModel.getValueDouble(selfHandles.get(vessels_dot_self_dot, nav_speedOverGround));
+            double apparentDirection = signalkModel.getValueDouble(selfHandles.get(vessels_dot_self_dot, env_wind_angleApparent));
+            double apparentWindSpeed = signalkModel.getValueDouble(selfHandles.get(vessels_dot_self_dot, env_wind_speedApparent));
+            if (!Double.isNaN(apparentWindSpeed) && !Double.isNaN(apparentDirection) && !Double.isNaN(vesselSpeed)) {
                 // now calc and add to body
                 // 0-360 from bow clockwise
 
@@ -69,11 +93,11 @@ public class TrueWindHandler {
 
                     if (!Double.isNaN(windCalc[1])) {
                         //map.put(Constants.WIND_DIR_TRUE, round(trueDirection, 2));
-                        signalkModel.put(vessels_dot_self_dot + env_wind_directionTrue, windCalc[1], self, Util.getIsoTimeString());
+                        signalkModel.putDouble(selfHandles.get(vessels_dot_self_dot, env_wind_directionTrue), windCalc[1], self, Util.getIsoTimeString());
                     }
                     if (!Double.isNaN(windCalc[0])) {
                         //map.put(Constants.WIND_SPEED_TRUE, round(trueWindSpeed, 2));
-                        signalkModel.put(vessels_dot_self_dot + env_wind_speedTrue, windCalc[0], self, Util.getIsoTimeString());
+                        signalkModel.putDouble(selfHandles.get(vessels_dot_self_dot, env_wind_speedTrue), windCalc[0], self, Util.getIsoTimeString());
                     }
                 }
 
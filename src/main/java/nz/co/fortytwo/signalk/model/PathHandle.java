@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * A path resolved once, holding the full keys a put writes to (value, timestamp, $source and the per source values),
+ * so repeated puts through {@link SignalKModel#put(PathHandle, Object, String, String)} build no Strings and do not
+ * fix the self key again.
+ * </p><p>
+ * A handle only holds keys, so it can be used with any model, eg the clean models the handlers build for each message.
+ * The self key is resolved when the handle is created, see {@link PathHandleCache} for paths below vessels.self.
+ * </p>
+ */
+public final class PathHandle {
+
+	private final String path;
+	private final String valueKey;
+	private final String timestampKey;
+	private final String sourceRefKey;
+	// handles for path.values.[source], sources are few so this is not bounded
+	private final ConcurrentMap<String, PathHandle> sourceValues = new ConcurrentHashMap<String, PathHandle>(4);
+	private final ConcurrentMap<String, String> childKeys = new ConcurrentHashMap<String, String>(4);
+
+	/**
+	 * @param path the full path, with self already resolved. Use {@link SignalKModel#getHandle(String)} to resolve it.
+	 */
+	public PathHandle(String path) {
+		this.path = path;
+		this.valueKey = path + dot + value;
+		this.timestampKey = path + dot + timestamp;
+		this.sourceRefKey = path + dot + sourceRef;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return path.value
+	 */
+	public String getValueKey() {
+		return valueKey;
+	}
+
+	/**
+	 * @return path.timestamp
+	 */
+	public String getTimestampKey() {
+		return timestampKey;
+	}
+
+	/**
+	 * @return path.$source
+	 */
+	public String getSourceRefKey() {
+		return sourceRefKey;
+	}
+
+	/**
+	 * The handle for the multiple values entry of a source, path.values.[src]
+	 * @param src
+	 * @return
+	 */
+	public PathHandle getValues(String src) {
+		PathHandle handle = sourceValues.get(src);
+		if (handle == null) {
+			handle = new PathHandle(path + dot + values + dot + src);
+			PathHandle old = sourceValues.putIfAbsent(src, handle);
+			if (old != null) handle = old;
+		}
+		return handle;
+	}
+
+	/**
+	 * The full key of a child, path.[name]
+	 * @param name
+	 * @return
+	 */
+	public String getChildKey(String name) {
+		String key = childKeys.get(name);
+		if (key == null) {
+			key = path + dot + name;
+			String old = childKeys.putIfAbsent(name, key);
+			if (old != null) key = old;
+		}
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
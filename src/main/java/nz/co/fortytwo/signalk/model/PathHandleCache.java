@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * Caches {@link PathHandle}s for paths below a prefix that can change at runtime, usually
+ * SignalKConstants.vessels_dot_self_dot. If a different prefix is passed in the cache starts again.
+ * <pre>
+ * model.put(selfHandles.get(vessels_dot_self_dot, nav_speedOverGround), sog, srcRef, ts);
+ * </pre>
+ */
+public class PathHandleCache {
+
+	private static class Handles {
+		final String prefix;
+		final ConcurrentMap<String, PathHandle> map = new ConcurrentHashMap<String, PathHandle>();
+
+		Handles(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+
+	private volatile Handles handles = new Handles("");
+
+	/**
+	 * Get the handle for prefix+path
+	 * @param prefix eg vessels_dot_self_dot
+	 * @param path the path below the prefix, eg nav_speedOverGround
+	 * @return
+	 */
+	public PathHandle get(String prefix, String path) {
+		Handles current = handles;
+		if (!current.prefix.equals(prefix)) {
+			current = new Handles(prefix);
+			handles = current;
+		}
+		PathHandle handle = current.map.get(path);
+		if (handle == null) {
+			handle = new PathHandle(Util.fixSelfKey(prefix + path));
+			PathHandle old = current.map.putIfAbsent(path, handle);
+			if (old != null) handle = old;
+		}
+		return handle;
+	}
+
+	public void clear() {
+		handles = new Handles("");
+	}
+}
@@ -27,6 +27,9 @@ import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.SortedMap;
 
+import nz.co.fortytwo.signalk.model.event.ChangeBus;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
+
 import com.google.common.eventbus.EventBus;
 
 public interface SignalKModel{
@@ -38,22 +41,59 @@ public interface SignalKModel{
 
 	/**
 	 * Return a subtree from the Model - the tree is read-only, but is live
-	 * and will be updated as the Model changes.
+	 * and will be updated as the Model changes, so it may show a putAll half applied unless read under {@link #readLock()}.
 	 * @param key the key to retrieve - for example, "vessels.self" will return
 	 * a subtree that may contain keys beginning "navigation", "environment" and so on.
 	 */
 	public abstract NavigableSet<String> getTree(String key);
 
 	/**
-	 * Get the common event bus instance.
+	 * Get the common event bus instance. PathEvents are only posted to it after setPostPathEvents(true).
 	 */
 	public abstract EventBus getEventBus();
 
+	/**
+	 * The model revision, incremented for every change made through the model API
+	 */
+	public long getRevision();
+
+	/**
+	 * Get the paths changed after a revision, one event per path with its last change,
+	 * without scanning the model. The returned ChangeSet revision is the revision to ask from next time.
+	 * @param revision the last revision the caller has seen, 0 for everything logged
+	 * @return the changes, or null if they are no longer all in the change log and the caller must fetch the full tree
+	 */
+	public ChangeSet getChangesSince(long revision);
+
+	/**
+	 * Get the bus delivering a ChangeSet for each write batch to subscribers on their own threads
+	 */
+	public abstract ChangeBus getChangeBus();
+
+	/**
+	 * Turn the per path PathEvents on the EventBus on or off, they are off by default.
+	 * When on, they are reposted from a ChangeBus subscriber, after each write batch and on its thread.
+	 * @param postPathEvents
+	 */
+	public void setPostPathEvents(boolean postPathEvents);
+
+	/**
+	 * Start a write batch on this thread. Changes until the matching endBatch() are
+	 * published as one ChangeSet. Batches can be nested, use try/finally.
+	 */
+	public void beginBatch();
+
+	/**
+	 * End a write batch on this thread, publishing its changes if it is the outermost batch.
+	 */
+	public void endBatch();
+
 	/**
 	 * Return the full set of keys from this Model. The returned set
 	 * is read-only and guaranteed to be the full set at the time this method is called,
 	 * but as the model may be updated in another thread immediately after it's accuracy
-	 * is no longer guaranteed after that. It can be iterated over without synchronization.
+	 * is no longer guaranteed after that. It can be iterated over without synchronization,
+	 * and may show a putAll half applied unless read under {@link #readLock()}.
 	 */
 	public abstract NavigableSet<String> getKeys();
 
@@ -65,8 +105,25 @@ public interface SignalKModel{
 	public abstract SortedMap<String, Object> getData();
 
 	/**
-	 * Add all values into the signalk model
-	 * This method converts source to sourceRef, saving the actual source in sources.*
+	 * Take the read side of the lock putAll holds while it applies a delta, so iterating the live views
+	 * sees each delta whole. Hold it only while iterating, putAll waits until {@link #unlockRead(long)}.
+	 * Not reentrant, get and getValue may be called while holding it, copySubMap may not.
+	 * @return the stamp to unlock with
+	 */
+	public long readLock();
+
+	/**
+	 * Release a {@link #readLock()}
+	 * @param stamp
+	 */
+	public void unlockRead(long stamp);
+
+	/**
+	 * Add all values into the signalk model as one delta, all or nothing.
+	 * get, getValue, getDouble and copySubMap see all or none of the delta, and so do the serializers,
+	 * which iterate under {@link #readLock()}. The live views from getKeys, getTree, getSubMap, getData
+	 * and getFullData are not locked and may show it half applied, iterate them under readLock() or
+	 * use copySubMap where that matters.
 	 * 
 	 * @param map
 	 * @return
@@ -86,15 +143,91 @@ public interface SignalKModel{
 	public boolean put(String key, Object val, String source) throws IllegalArgumentException;
 	public boolean put(String key, Object val, String source, String timestamp) throws IllegalArgumentException;
 
+	/**
+	 * Get a handle for repeated puts to key, with the self key resolved now.
+	 * @param key
+	 * @return
+	 */
+	public PathHandle getHandle(String key);
+
+	/**
+	 * Same as put(key, val, source, timestamp), using the keys already built in the handle
+	 * @param handle
+	 * @param val
+	 * @param source
+	 * @param timestamp
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean put(PathHandle handle, Object val, String source, String timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Same as put(key, val, source, timestamp) for a numeric value. Stores that support it keep the value
+	 * as a primitive double rather than boxing it.
+	 * @param key
+	 * @param val
+	 * @param source
+	 * @param timestamp
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean putDouble(String key, double val, String source, String timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Same as putDouble(key, val, source, timestamp), using the keys already built in the handle
+	 * @param handle
+	 * @param val
+	 * @param source
+	 * @param timestamp
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean putDouble(PathHandle handle, double val, String source, String timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Get a numeric val from the Model as a primitive double
+	 * @param key
+	 * @return the value, or NaN if it is missing or not a number
+	 */
+	public double getDouble(String key);
+
+	/**
+	 * Get the numeric val at the handle path as a primitive double
+	 * @param handle
+	 * @return the value, or NaN if it is missing or not a number
+	 */
+	public double getDouble(PathHandle handle);
+
+	/**
+	 * Adds the '.value' suffix and returns the value as a primitive double
+	 * @param key
+	 * @return the value, or NaN if it is missing or not a number
+	 */
+	public double getValueDouble(String key);
+
+	/**
+	 * Returns the '.value' of the handle path as a primitive double
+	 * @param handle
+	 * @return the value, or NaN if it is missing or not a number
+	 */
+	public double getValueDouble(PathHandle handle);
+
 	/**
 	 * Return a submap from the Model - the tree is read-only, but is live
-	 * and will be updated as the Model changes.
+	 * and will be updated as the Model changes, so it may show a putAll half applied unless read under {@link #readLock()}.
 	 * @param key the key to retrieve - for example, "vessels.self" will return
 	 * a submap that may contain keys beginning "navigation", "environment" and so on.
 	 */
 	 
 	public NavigableMap<String, Object> getSubMap(String key);
 
+	/**
+	 * Return a copy of a submap from the Model, taken while no putAll is being applied,
+	 * so it holds all or none of each delta.
+	 * @param key the key to retrieve, as for getSubMap
+	 */
+	public NavigableMap<String, Object> copySubMap(String key);
+
 	/**
 	 * Adds the '.value' suffic and returns the value. It will be boolean, number, string, jsonArray or null
 	 * @param key
@@ -134,6 +267,18 @@ public interface SignalKModel{
 	public abstract void putPosition(String string, double latitude,
 			double longitude, double d, String srcRef, String ts);
 
+	/**
+	 * Convenience method to set a position object, using the keys already built in the handle
+	 * @param handle
+	 * @param latitude
+	 * @param longitude
+	 * @param altitude
+	 * @param srcRef
+	 * @param ts
+	 */
+	public abstract void putPosition(PathHandle handle, double latitude,
+			double longitude, double altitude, String srcRef, String ts);
+
 	/**
 	 * Puts an entry in the sources structure.
 	 * @param key
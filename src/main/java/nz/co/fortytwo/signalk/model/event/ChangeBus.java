@@ -0,0 +1,222 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Delivers {@link ChangeSet}s to subscribers asynchronously. Each subscriber has its own bounded
+ * queue and thread, so a slow subscriber only affects itself. What happens when a queue is full is
+ * set per subscriber by its {@link OverflowPolicy}.
+ * </p><pre>
+ * Subscription sub = model.getChangeBus().subscribe(listener, 1024, OverflowPolicy.DROP_OLDEST);
+ * ...
+ * sub.close();
+ * </pre>
+ */
+public class ChangeBus {
+
+	private static Logger logger = LogManager.getLogger(ChangeBus.class);
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	public enum OverflowPolicy {
+		/** Wait for space, slowing the writer. Only for subscribers that must see every change. */
+		BLOCK,
+		/** Discard the oldest queued change set to make room */
+		DROP_OLDEST,
+		/** Discard the new change set */
+		DROP_NEWEST
+	};
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * Subscribe a listener
+	 * @param listener
+	 * @param capacity the number of change sets that can be queued for this listener
+	 * @param policy what to do when the queue is full
+	 * @return the subscription, close it to unsubscribe
+	 */
+	public Subscription subscribe(ChangeListener listener, int capacity, OverflowPolicy policy) {
+		if (listener == null || policy == null) throw new IllegalArgumentException("listener and policy are required");
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		Subscription sub = new Subscription(listener, capacity, policy);
+		subscriptions.add(sub);
+		sub.thread.start();
+		return sub;
+	}
+
+	/**
+	 * True if anyone is subscribed, so writers can skip building change sets.
+	 * @return
+	 */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Queue the change set for every subscriber. Only blocks for {@link OverflowPolicy#BLOCK} subscribers.
+	 * @param changes
+	 */
+	public void publish(ChangeSet changes) {
+		for (Subscription sub : subscriptions) {
+			sub.offer(changes);
+		}
+	}
+
+	/**
+	 * A subscriber's queue and delivery thread
+	 */
+	public class Subscription {
+		private final ChangeListener listener;
+		private final ArrayBlockingQueue<ChangeSet> queue;
+		private final OverflowPolicy policy;
+		private final Thread thread;
+		private final AtomicLong dropped = new AtomicLong();
+		// change sets queued, and change sets delivered or dropped from the queue, guarded by this
+		private long queued;
+		private long done;
+		private volatile boolean closed;
+
+		private Subscription(ChangeListener listener, int capacity, OverflowPolicy policy) {
+			this.listener = listener;
+			this.queue = new ArrayBlockingQueue<ChangeSet>(capacity);
+			this.policy = policy;
+			this.thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					deliver();
+				}
+			}, "ChangeBus-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+		}
+
+		private void offer(ChangeSet changes) {
+			if (closed) return;
+			switch (policy) {
+			case BLOCK:
+				try {
+					queue.put(changes);
+					queued();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(changes)) {
+					if (queue.poll() != null) {
+						dropped.incrementAndGet();
+						done();
+					}
+				}
+				queued();
+				break;
+			default:
+				if (queue.offer(changes)) {
+					queued();
+				} else {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+
+		private synchronized void queued() {
+			queued++;
+		}
+
+		private synchronized void done() {
+			done++;
+			notifyAll();
+		}
+
+		private void deliver() {
+			while (!closed) {
+				try {
+					ChangeSet changes = queue.take();
+					try {
+						listener.onChange(changes);
+					} finally {
+						done();
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+
+		/**
+		 * Wait until the change sets queued so far have been delivered to the listener
+		 * @param timeout ms
+		 * @return true if they were delivered in time
+		 * @throws InterruptedException
+		 */
+		public synchronized boolean flush(long timeout) throws InterruptedException {
+			long target = queued;
+			long end = System.currentTimeMillis() + timeout;
+			while (done < target && !closed) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0) return false;
+				wait(wait);
+			}
+			return done >= target;
+		}
+
+		/**
+		 * The number of change sets discarded because the queue was full
+		 * @return
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * The number of change sets waiting for delivery
+		 * @return
+		 */
+		public int getQueued() {
+			return queue.size();
+		}
+
+		/**
+		 * Unsubscribe and stop the delivery thread. Queued change sets are discarded.
+		 */
+		public void close() {
+			closed = true;
+			subscriptions.remove(this);
+			thread.interrupt();
+			queue.clear();
+		}
+	}
+}
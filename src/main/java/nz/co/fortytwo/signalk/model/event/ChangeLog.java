@@ -0,0 +1,156 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The model revision counter, and a bounded log of the path changed at each revision, oldest entries are overwritten.
+ * Lets clients ask for the changes since a revision they have seen without scanning the model.
+ * Writers take the next revision from an atomic sequence and store their entry in its slot, so add never blocks.
+ * Slots are allocated in chunks as they are first used, so short lived models stay cheap.
+ */
+public class ChangeLog {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	private static final int CHUNK_SIZE = 256;
+
+	private static final class Entry {
+		final long revision;
+		final String path;
+		final PathEvent.EventType type;
+
+		Entry(long revision, String path, PathEvent.EventType type) {
+			this.revision = revision;
+			this.path = path;
+			this.type = type;
+		}
+	}
+
+	private final int capacity;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicReferenceArray<AtomicReferenceArray<Entry>> chunks;
+
+	public ChangeLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ChangeLog(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		this.capacity = capacity;
+		this.chunks = new AtomicReferenceArray<AtomicReferenceArray<Entry>>((capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * Record a change at the next revision
+	 * @param path
+	 * @param type
+	 * @return the new revision
+	 */
+	public long add(String path, PathEvent.EventType type) {
+		long revision = sequence.incrementAndGet();
+		int slot = slot(revision);
+		AtomicReferenceArray<Entry> chunk = chunk(slot / CHUNK_SIZE);
+		Entry entry = new Entry(revision, path, type);
+		// a writer that lapped us may already hold the slot
+		for (;;) {
+			Entry old = chunk.get(slot % CHUNK_SIZE);
+			if (old != null && old.revision > revision) break;
+			if (chunk.compareAndSet(slot % CHUNK_SIZE, old, entry)) break;
+		}
+		return revision;
+	}
+
+	/**
+	 * The latest revision, 0 before any change
+	 * @return
+	 */
+	public long getRevision() {
+		return sequence.get();
+	}
+
+	private int slot(long revision) {
+		return (int) ((revision - 1) % capacity);
+	}
+
+	private AtomicReferenceArray<Entry> chunk(int index) {
+		AtomicReferenceArray<Entry> chunk = chunks.get(index);
+		if (chunk == null) {
+			chunks.compareAndSet(index, null, new AtomicReferenceArray<Entry>(CHUNK_SIZE));
+			chunk = chunks.get(index);
+		}
+		return chunk;
+	}
+
+	/**
+	 * The oldest revision still held, or -1 if the log is empty
+	 * @return
+	 */
+	public long getOldestRevision() {
+		long latest = sequence.get();
+		if (latest == 0) return -1;
+		return Math.max(1, latest - capacity + 1);
+	}
+
+	/**
+	 * Get the changes after the given revision, one event per path with its last change.
+	 * @param since the last revision the caller has seen
+	 * @return the changes, or null if the log no longer holds all the changes since that revision
+	 */
+	public ChangeSet getChangesSince(long since) {
+		long latest = sequence.get();
+		if (latest > capacity && since < latest - capacity) {
+			return null;
+		}
+		Map<String, PathEvent> changes = new LinkedHashMap<String, PathEvent>();
+		for (long r = Math.max(since, 0) + 1; r <= latest; r++) {
+			int slot = slot(r);
+			AtomicReferenceArray<Entry> chunk = chunk(slot / CHUNK_SIZE);
+			Entry entry = chunk.get(slot % CHUNK_SIZE);
+			// the revision is taken before its entry is stored, wait for the writer
+			while (entry == null || entry.revision < r) {
+				Thread.yield();
+				entry = chunk.get(slot % CHUNK_SIZE);
+			}
+			if (entry.revision > r) {
+				// overwritten while we read
+				return null;
+			}
+			// keep the position of the first change, with the last event
+			changes.put(entry.path, new PathEvent(entry.path, entry.revision, entry.type));
+		}
+		return new ChangeSet(changes.values().toArray(new PathEvent[changes.size()]), latest);
+	}
+
+	public int size() {
+		return (int) Math.min(sequence.get(), capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The changes made to the model by one write batch, eg one put with its value, timestamp and source.
+ * Each path appears once, with the last event for it in the batch. Immutable.
+ */
+public class ChangeSet {
+
+	private final PathEvent[] events;
+	private final long revision;
+	private final long timestamp;
+
+	public ChangeSet(PathEvent[] events, long revision) {
+		this.events = events;
+		this.revision = revision;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * The events, in the order the paths were first changed
+	 * @return
+	 */
+	public List<PathEvent> getEvents() {
+		return new AbstractList<PathEvent>() {
+			@Override
+			public PathEvent get(int index) {
+				return events[index];
+			}
+
+			@Override
+			public int size() {
+				return events.length;
+			}
+		};
+	}
+
+	public PathEvent getEvent(int index) {
+		return events[index];
+	}
+
+	public int size() {
+		return events.length;
+	}
+
+	public boolean isEmpty() {
+		return events.length == 0;
+	}
+
+	/**
+	 * The model revision after this change
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ChangeSet[").append(revision).append("]{");
+		for (int i = 0; i < events.length; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(events[i].getType()).append(' ').append(events[i].getPath());
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -28,16 +28,24 @@ public class PathEvent {
 	public enum EventType  { ADD, DEL};
 	private String path;
 	private EventType type;
-	private int revision;
+	private long revision;
 	private long timestamp;
 
-	public PathEvent(String path, int revision, EventType type) {
+	public PathEvent(String path, long revision, EventType type) {
 		this.path=path;
 		this.revision=revision;
 		this.type=type;
 		this.setTimestamp(System.currentTimeMillis());
 	}
 
+	/**
+	 * @deprecated use {@link #PathEvent(String, long, EventType)}
+	 */
+	@Deprecated
+	public PathEvent(String path, int revision, EventType type) {
+		this(path, (long) revision, type);
+	}
+
 	
 
 	public EventType getType() {
@@ -52,7 +60,20 @@ public class PathEvent {
 
 
 
+	/**
+	 * @deprecated the revision is truncated once it passes Integer.MAX_VALUE, use {@link #getModelRevision()}
+	 */
+	@Deprecated
 	public int getRevision() {
+		return (int) revision;
+	}
+
+
+
+	/**
+	 * The model revision of this change
+	 */
+	public long getModelRevision() {
 		return revision;
 	}
 
@@ -0,0 +1,572 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nz.co.fortytwo.signalk.model.PathHandle;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Records numeric model paths over time into memory-mapped segment files, and answers range and
+ * downsampled queries straight from the mapped files, so the history is never held in the heap.
+ * </p><p>
+ * A segment has a fixed number of rows, a time column of longs and a fixed-width column of doubles
+ * per path, so recording a row is a few absolute puts into the mapped file and allocates nothing.
+ * Times ascend within a segment and a range is found by binary search of the time column.
+ * A new segment is started when the current one is full, when the clock goes back or when the
+ * paths change, and the oldest segment is deleted when there are more than maxSegments.
+ * </p><p>
+ * The OS writes the mapped pages back on its own, the background thread also forces them every
+ * flush interval, so a crash loses at most the rows since. Missing values are recorded as NaN,
+ * a sample where every path is missing is not recorded.
+ * One thread records, any thread can query.
+ * </p><pre>
+ * HistoryStore history = new HistoryStore(new File("./storage/history"), paths, 86400, 14);
+ * history.open();
+ * history.start(model, 1000, 60000);
+ * ...
+ * double[] sog = new double[200];
+ * history.downsample(vessels_dot_self_dot + nav_speedOverGround, from, to, sog, null, null);
+ * ...
+ * history.close();
+ * </pre>
+ *
+ * @author robert
+ *
+ */
+public class HistoryStore {
+
+	private static Logger logger = LogManager.getLogger(HistoryStore.class);
+
+	static final String SEGMENT_SUFFIX = ".hist";
+	private static final int MAGIC = 0x534B4831; // SKH1
+	private static final int PAGE = 4096;
+
+	// header: magic, capacity, column count, row count, then the column paths, padded to a page
+	private static final int CAPACITY = 4;
+	private static final int COLUMNS = 8;
+	private static final int ROWS = 12;
+	private static final int PATHS = 16;
+
+	private final File dir;
+	private final String[] paths;
+	private final int segmentRows;
+	private final int maxSegments;
+
+	// oldest first, replaced rather than changed so queries need no lock
+	private volatile Segment[] segments = new Segment[0];
+	private Segment current;
+	private long nextSequence;
+	private boolean open;
+
+	// sampling, resolved once per model
+	private final double[] sample;
+	private SignalKModel sampled;
+	private PathHandle[] handles;
+	private PathTrie trie;
+	private PathTrie.Node[] nodes;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param dir the directory for the segment files, created if needed
+	 * @param paths the model paths to record, eg "vessels.self.navigation.speedOverGround"
+	 * @param segmentRows the rows per segment file
+	 * @param maxSegments the segment files to keep
+	 */
+	public HistoryStore(File dir, String[] paths, int segmentRows, int maxSegments) {
+		if (paths.length == 0) throw new IllegalArgumentException("No paths to record");
+		if (segmentRows < 1) throw new IllegalArgumentException("Segments need at least one row: " + segmentRows);
+		if (maxSegments < 1) throw new IllegalArgumentException("Keep at least one segment: " + maxSegments);
+		if (PAGE + (long) segmentRows * 8 * (paths.length + 1) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segment of " + segmentRows + " rows and " + paths.length + " paths is over 2GB");
+		}
+		this.dir = dir;
+		this.paths = paths.clone();
+		this.segmentRows = segmentRows;
+		this.maxSegments = maxSegments;
+		this.sample = new double[paths.length];
+	}
+
+	/**
+	 * Maps the existing segments, and continues the last one if it has the same paths and room.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (open) return;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create history directory " + dir.getAbsolutePath());
+		}
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		// the names are zero padded sequence numbers
+		Arrays.sort(files);
+		List<Segment> list = new ArrayList<Segment>();
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			try {
+				long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				list.add(Segment.map(files[i], i == files.length - 1));
+				nextSequence = sequence + 1;
+			} catch (IOException | NumberFormatException e) {
+				logger.warn("Ignoring history segment " + files[i].getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+		// maxSegments may have been lowered since they were written
+		int drop = Math.max(0, list.size() - maxSegments);
+		for (int i = 0; i < drop; i++) {
+			if (!list.get(i).file.delete()) logger.warn("Cannot delete history segment " + list.get(i).file.getAbsolutePath());
+		}
+		list = list.subList(drop, list.size());
+		if (!list.isEmpty()) {
+			Segment last = list.get(list.size() - 1);
+			if (last.writable && last.rows < last.capacity && Arrays.equals(last.paths, paths)) {
+				current = last;
+			}
+		}
+		segments = list.toArray(new Segment[list.size()]);
+		open = true;
+		logger.info("History opened in " + dir.getAbsolutePath() + ", " + list.size() + " segments");
+	}
+
+	/**
+	 * Records a row. The values are in the order of the paths, NaN if missing.
+	 *
+	 * @param time ms since the epoch
+	 * @param values
+	 * @throws IOException
+	 */
+	public synchronized void record(long time, double[] values) throws IOException {
+		if (!open) throw new IllegalStateException("History is not open, call open() first");
+		if (values.length != paths.length) {
+			throw new IllegalArgumentException("Expected " + paths.length + " values, got " + values.length);
+		}
+		Segment seg = current;
+		if (seg == null || seg.rows == seg.capacity || (seg.rows > 0 && time < seg.time(seg.rows - 1))) {
+			seg = roll();
+		}
+		int row = seg.rows;
+		seg.buf.putLong(seg.timeOffset(row), time);
+		for (int col = 0; col < values.length; col++) {
+			seg.buf.putDouble(seg.valueOffset(col, row), values[col]);
+		}
+		seg.buf.putInt(ROWS, row + 1);
+		// publishes the row to queries
+		seg.rows = row + 1;
+	}
+
+	/**
+	 * Records the current values of the paths in the model. Numbers are read unboxed, through
+	 * trie nodes when the model is a {@link SignalKTrieModelImpl}, so sampling allocates nothing
+	 * once the paths exist.
+	 *
+	 * @param model
+	 * @param time ms since the epoch
+	 * @return true if a row was recorded
+	 * @throws IOException
+	 */
+	public synchronized boolean sample(SignalKModel model, long time) throws IOException {
+		if (model != sampled) {
+			handles = new PathHandle[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				handles[i] = model.getHandle(paths[i]);
+			}
+			trie = (model instanceof SignalKTrieModelImpl) ? ((SignalKTrieModelImpl) model).getTrie() : null;
+			nodes = new PathTrie.Node[paths.length];
+			sampled = model;
+		}
+		boolean found = false;
+		for (int i = 0; i < paths.length; i++) {
+			double val = (trie != null) ? readNode(i) : model.getValueDouble(handles[i]);
+			// a leaf such as position.latitude rather than a value object
+			if (trie == null && Double.isNaN(val)) val = model.getDouble(handles[i]);
+			sample[i] = val;
+			found = found || !Double.isNaN(val);
+		}
+		if (!found) return false;
+		record(time, sample);
+		return true;
+	}
+
+	private double readNode(int i) {
+		PathTrie.Node node = nodes[i];
+		double val = (node == null || node.isDetached()) ? Double.NaN : trie.getDouble(node);
+		if (Double.isNaN(val)) {
+			// not there yet, or moved, resolve again
+			node = trie.getNode(handles[i].getValueKey(), false);
+			if (node == null) node = trie.getNode(handles[i].getPath(), false);
+			nodes[i] = node;
+			val = (node == null) ? Double.NaN : trie.getDouble(node);
+		}
+		return val;
+	}
+
+	/**
+	 * Reads the recorded values of a path between two times, in recording order.
+	 *
+	 * @param path
+	 * @param from ms since the epoch, inclusive
+	 * @param to ms since the epoch, inclusive
+	 * @param times receives the times, or null
+	 * @param values receives the values, as many as fit
+	 * @return the number of values read
+	 */
+	public int read(String path, long from, long to, long[] times, double[] values) {
+		int count = 0;
+		for (Segment seg : segments) {
+			int rows = seg.rows;
+			int col = seg.column(path);
+			if (col < 0 || rows == 0 || seg.time(0) > to || seg.time(rows - 1) < from) continue;
+			for (int row = seg.search(from, rows); row < rows && count < values.length; row++) {
+				long time = seg.time(row);
+				if (time > to) break;
+				if (times != null) times[count] = time;
+				values[count++] = seg.value(col, row);
+			}
+			if (count == values.length) break;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a path between two times in equal time buckets, one per element of mean. Empty buckets are NaN.
+	 * The mean is arithmetic, so it does not suit angles that wrap.
+	 *
+	 * @param path
+	 * @param from ms since the epoch, inclusive
+	 * @param to ms since the epoch, inclusive
+	 * @param mean receives the mean of each bucket
+	 * @param min receives the minimum of each bucket, or null
+	 * @param max receives the maximum of each bucket, or null
+	 * @return the number of values in the buckets
+	 */
+	public int downsample(String path, long from, long to, double[] mean, double[] min, double[] max) {
+		int buckets = mean.length;
+		if (to < from) throw new IllegalArgumentException("Range ends before it starts: " + from + " to " + to);
+		if (buckets == 0) return 0;
+		int[] counts = new int[buckets];
+		Arrays.fill(mean, 0);
+		if (min != null) Arrays.fill(min, Double.POSITIVE_INFINITY);
+		if (max != null) Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		double width = (to - from + 1) / (double) buckets;
+		int count = 0;
+		for (Segment seg : segments) {
+			int rows = seg.rows;
+			int col = seg.column(path);
+			if (col < 0 || rows == 0 || seg.time(0) > to || seg.time(rows - 1) < from) continue;
+			for (int row = seg.search(from, rows); row < rows; row++) {
+				long time = seg.time(row);
+				if (time > to) break;
+				double val = seg.value(col, row);
+				if (Double.isNaN(val)) continue;
+				int b = Math.min((int) ((time - from) / width), buckets - 1);
+				mean[b] += val;
+				counts[b]++;
+				if (min != null && val < min[b]) min[b] = val;
+				if (max != null && val > max[b]) max[b] = val;
+				count++;
+			}
+		}
+		for (int b = 0; b < buckets; b++) {
+			if (counts[b] == 0) {
+				mean[b] = Double.NaN;
+				if (min != null) min[b] = Double.NaN;
+				if (max != null) max[b] = Double.NaN;
+			} else {
+				mean[b] /= counts[b];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Forces the rows of the current segment to disk.
+	 */
+	public synchronized void flush() {
+		if (current != null) current.buf.force();
+	}
+
+	/**
+	 * Starts the background thread that samples the model and flushes.
+	 *
+	 * @param model
+	 * @param interval ms between samples
+	 * @param flushInterval ms between flushes
+	 */
+	public synchronized void start(final SignalKModel model, long interval, long flushInterval) {
+		if (interval < 1) throw new IllegalArgumentException("Interval must be at least 1ms: " + interval);
+		if (flushInterval < 1) throw new IllegalArgumentException("Flush interval must be at least 1ms: " + flushInterval);
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "HistoryStore");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample(model, System.currentTimeMillis());
+				} catch (Exception e) {
+					logger.error("History sample failed: " + e.getMessage(), e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread and flushes. Queries still read the mapped segments.
+	 */
+	public void close() {
+		ScheduledExecutorService s;
+		synchronized (this) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s != null) {
+			s.shutdown();
+			try {
+				s.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			flush();
+			current = null;
+			open = false;
+		}
+	}
+
+	public String[] getPaths() {
+		return paths.clone();
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * @return the time of the first row, or -1 if there is none
+	 */
+	public long getFirstTime() {
+		for (Segment seg : segments) {
+			if (seg.rows > 0) return seg.time(0);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the time of the last row, or -1 if there is none
+	 */
+	public long getLastTime() {
+		Segment[] segs = segments;
+		for (int i = segs.length - 1; i >= 0; i--) {
+			int rows = segs[i].rows;
+			if (rows > 0) return segs[i].time(rows - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Starts a new segment, deleting the oldest past maxSegments
+	 */
+	private Segment roll() throws IOException {
+		File file = new File(dir, String.format("%019d", nextSequence) + SEGMENT_SUFFIX);
+		Segment seg = Segment.create(file, paths, segmentRows);
+		nextSequence++;
+		Segment[] old = segments;
+		int drop = Math.max(0, old.length + 1 - maxSegments);
+		Segment[] next = new Segment[old.length + 1 - drop];
+		System.arraycopy(old, drop, next, 0, old.length - drop);
+		next[next.length - 1] = seg;
+		segments = next;
+		for (int i = 0; i < drop; i++) {
+			if (!old[i].file.delete()) logger.warn("Cannot delete history segment " + old[i].file.getAbsolutePath());
+		}
+		current = seg;
+		if (logger.isDebugEnabled()) logger.debug("New history segment " + file.getAbsolutePath());
+		return seg;
+	}
+
+	/**
+	 * One mapped segment file
+	 */
+	private static final class Segment {
+		final File file;
+		final String[] paths;
+		final int capacity;
+		final boolean writable;
+		final MappedByteBuffer buf;
+		// start of the time column
+		final int timeStart;
+		volatile int rows;
+
+		private Segment(File file, String[] paths, int capacity, boolean writable, MappedByteBuffer buf, int timeStart, int rows) {
+			this.file = file;
+			this.paths = paths;
+			this.capacity = capacity;
+			this.writable = writable;
+			this.buf = buf;
+			this.timeStart = timeStart;
+			this.rows = rows;
+		}
+
+		static Segment create(File file, String[] paths, int capacity) throws IOException {
+			byte[][] names = new byte[paths.length][];
+			int header = PATHS;
+			for (int i = 0; i < paths.length; i++) {
+				names[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+				header += 2 + names[i].length;
+			}
+			int timeStart = (header + PAGE - 1) / PAGE * PAGE;
+			long size = timeStart + (long) capacity * 8 * (paths.length + 1);
+			if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Segment is over 2GB: " + file.getAbsolutePath());
+			MappedByteBuffer buf;
+			try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			buf.putInt(CAPACITY, capacity);
+			buf.putInt(COLUMNS, paths.length);
+			buf.putInt(ROWS, 0);
+			buf.position(PATHS);
+			for (byte[] name : names) {
+				buf.putShort((short) name.length);
+				buf.put(name);
+			}
+			buf.putInt(0, MAGIC);
+			return new Segment(file, paths.clone(), capacity, true, buf, timeStart, 0);
+		}
+
+		static Segment map(File file, boolean writable) throws IOException {
+			MappedByteBuffer buf;
+			try (FileChannel ch = writable ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+					: FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if (ch.size() < PAGE) throw new IOException("Too short for a segment");
+				buf = ch.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			if (buf.getInt(0) != MAGIC) throw new IOException("Not a history segment");
+			int capacity = buf.getInt(CAPACITY);
+			int columns = buf.getInt(COLUMNS);
+			int rows = buf.getInt(ROWS);
+			String[] paths = new String[columns];
+			buf.position(PATHS);
+			for (int i = 0; i < columns; i++) {
+				byte[] name = new byte[buf.getShort() & 0xffff];
+				buf.get(name);
+				paths[i] = new String(name, StandardCharsets.UTF_8);
+			}
+			int timeStart = (buf.position() + PAGE - 1) / PAGE * PAGE;
+			if (capacity < 1 || rows < 0 || rows > capacity || timeStart + (long) capacity * 8 * (columns + 1) > buf.capacity()) {
+				throw new IOException("Bad segment header, " + rows + " of " + capacity + " rows, " + columns + " columns");
+			}
+			// the header page can reach the disk before the rows it counts, keep the rows that were written
+			int valid = 0;
+			long last = Long.MIN_VALUE;
+			while (valid < rows) {
+				long time = buf.getLong(timeStart + valid * 8);
+				if (time == 0 || time < last) break;
+				last = time;
+				valid++;
+			}
+			if (valid < rows) {
+				logger.warn("History segment " + file.getAbsolutePath() + " was not fully written, keeping " + valid + " of " + rows + " rows");
+				if (writable) buf.putInt(ROWS, valid);
+			}
+			return new Segment(file, paths, capacity, writable, buf, timeStart, valid);
+		}
+
+		int column(String path) {
+			for (int i = 0; i < paths.length; i++) {
+				if (paths[i].equals(path)) return i;
+			}
+			return -1;
+		}
+
+		int timeOffset(int row) {
+			return timeStart + row * 8;
+		}
+
+		int valueOffset(int col, int row) {
+			return timeStart + (col + 1) * capacity * 8 + row * 8;
+		}
+
+		long time(int row) {
+			return buf.getLong(timeOffset(row));
+		}
+
+		double value(int col, int row) {
+			return buf.getDouble(valueOffset(col, row));
+		}
+
+		/**
+		 * @return the first row at or after time
+		 */
+		int search(long time, int rows) {
+			int low = 0;
+			int high = rows;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (time(mid) < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,544 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.OverflowPolicy;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.Subscription;
+import nz.co.fortytwo.signalk.model.event.ChangeListener;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Persists a model as a snapshot plus a write-ahead journal of the changes since, so saving costs
+ * O(changes) instead of O(model). The journal subscribes to the model's ChangeBus and collects the changed
+ * paths, each {@link #sync()} appends one record per path changed since the last sync with its current value,
+ * and forces the journal to disk. The subscription blocks rather than drops, so no change is missed however
+ * long the sync interval. A background thread syncs every syncInterval ms, so a crash loses at most that
+ * much, and checkpoints to a new snapshot when the journal grows past compactSize.
+ * </p><p>
+ * The snapshot is a {@link ModelSnapshot}. Each snapshot has a generation and only the journal of the same generation is replayed over it,
+ * so a crash during a checkpoint leaves either the old or the new pair. Records carry a CRC, a torn
+ * record at the end of the journal is ignored.
+ * </p><p>
+ * Only changes made through the model API are on the ChangeBus, changes made directly on
+ * getFullData() are only saved by the next {@link #checkpoint()}. The config subtree is saved
+ * separately, by SignalKModelFactory.saveConfig, and is not journaled.
+ * </p><pre>
+ * ModelJournal journal = new ModelJournal(new File("./conf/journal"), model);
+ * journal.load();
+ * journal.start(1000, 4 * 1024 * 1024);
+ * ...
+ * journal.close();
+ * </pre>
+ *
+ * @author robert
+ *
+ */
+public class ModelJournal {
+
+	private static Logger logger = LogManager.getLogger(ModelJournal.class);
+
+	static final String SNAPSHOT_FILE = "snapshot";
+	static final String JOURNAL_FILE = "journal.";
+	private static final int MAGIC = 0x534B4A31; // SKJ1
+
+	// record types
+	private static final byte PUT = 'P';
+	private static final byte DEL = 'D';
+
+	// value types
+	private static final byte NULL = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte LONG = 2;
+	private static final byte INT = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte STRING = 5;
+	private static final byte JSON = 6;
+	private static final byte DECIMAL = 7;
+	private static final byte BIG_INTEGER = 8;
+
+	private static final String CONFIG_PREFIX = SignalKConstants.CONFIG + SignalKConstants.dot;
+	private static final int QUEUE_SIZE = 1024;
+	// how long a sync waits for queued change sets to be collected
+	private static final long FLUSH_TIMEOUT = 5000;
+
+	private final File dir;
+	private final SignalKModel model;
+
+	private long generation;
+	private FileChannel journal;
+	private long journalSize;
+
+	// paths changed since the last sync, guarded by itself, filled on the ChangeBus thread
+	private Set<String> pending = new LinkedHashSet<String>();
+	private Subscription subscription;
+
+	// record buffer, reused
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	private final CRC32 crc = new CRC32();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param dir the directory for the snapshot and journal, created if needed
+	 * @param model
+	 */
+	public ModelJournal(File dir, SignalKModel model) {
+		this.dir = dir;
+		this.model = model;
+	}
+
+	/**
+	 * Rebuilds the model from the last snapshot and its journal, and opens the journal for appending.
+	 *
+	 * @return true if a snapshot or journal was found
+	 * @throws IOException
+	 */
+	public synchronized boolean load() throws IOException {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir.getAbsolutePath());
+		}
+		File snapshot = new File(dir, SNAPSHOT_FILE);
+		generation = snapshot.exists() ? replaySnapshot(snapshot) : 0;
+		File file = journalFile(generation);
+		boolean found = snapshot.exists() || file.exists();
+		if (file.exists()) {
+			long valid = replayJournal(file);
+			// drop a torn tail so new records follow the valid ones
+			if (valid < file.length()) {
+				logger.warn("Dropping " + (file.length() - valid) + " bytes torn from the end of " + file.getAbsolutePath());
+				try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					ch.truncate(valid);
+				}
+			}
+		}
+		if (found) {
+			logger.info("Model loaded from journal in " + dir.getAbsolutePath() + ", generation " + generation);
+		}
+		openJournal(generation);
+		if (subscription == null) {
+			subscription = model.getChangeBus().subscribe(new ChangeListener() {
+				@Override
+				public void onChange(ChangeSet changes) {
+					synchronized (pending) {
+						for (PathEvent event : changes.getEvents()) {
+							if (!event.getPath().startsWith(CONFIG_PREFIX)) pending.add(event.getPath());
+						}
+					}
+				}
+			}, QUEUE_SIZE, OverflowPolicy.BLOCK);
+		}
+		return found;
+	}
+
+	/**
+	 * Appends the changes since the last sync to the journal and forces it to disk.
+	 *
+	 * @return the number of records written
+	 * @throws IOException
+	 */
+	public synchronized int sync() throws IOException {
+		if (journal == null) throw new IllegalStateException("Journal is not open, call load() first");
+		flush();
+		Set<String> paths;
+		synchronized (pending) {
+			if (pending.isEmpty()) return 0;
+			paths = pending;
+			pending = new LinkedHashSet<String>();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(4096, paths.size() * 64));
+		int count = 0;
+		// the values of each delta together
+		long stamp = model.readLock();
+		try {
+			for (String path : paths) {
+				// the current value, so the journal converges on the model whatever happened in between
+				Object val = model.getFullData().get(path);
+				byte[] record = record(val == null ? DEL : PUT, path, val);
+				if (buf.remaining() < record.length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + record.length));
+					buf.flip();
+					bigger.put(buf);
+					buf = bigger;
+				}
+				buf.put(record);
+				count++;
+			}
+		} finally {
+			model.unlockRead(stamp);
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			journalSize += journal.write(buf);
+		}
+		journal.force(false);
+		if (logger.isDebugEnabled()) logger.debug("Journaled " + count + " changes");
+		return count;
+	}
+
+	/**
+	 * Waits for the change sets already published to reach the pending paths
+	 */
+	private void flush() throws IOException {
+		try {
+			if (!subscription.flush(FLUSH_TIMEOUT)) {
+				logger.warn("Journal is " + subscription.getQueued() + " change sets behind the model");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for model changes", e);
+		}
+	}
+
+	/**
+	 * Writes the whole model to a new snapshot and starts an empty journal for it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (journal == null) throw new IllegalStateException("Journal is not open, call load() first");
+		// changes made while the snapshot is written are journaled again after it
+		flush();
+		synchronized (pending) {
+			pending.clear();
+		}
+		long next = generation + 1;
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream snap = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			snap.writeInt(MAGIC);
+			snap.writeLong(next);
+			long stamp = model.readLock();
+			try {
+				ModelSnapshot.write(model.getFullData(), CONFIG_PREFIX, snap);
+			} finally {
+				model.unlockRead(stamp);
+			}
+			snap.flush();
+			fos.getFD().sync();
+		}
+		FileChannel newJournal = FileChannel.open(journalFile(next).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		journal.close();
+		journalFile(generation).delete();
+		journal = newJournal;
+		journalSize = 0;
+		generation = next;
+		logger.info("Model checkpointed to " + dir.getAbsolutePath() + ", generation " + generation);
+	}
+
+	/**
+	 * Starts the background thread that syncs and compacts the journal.
+	 *
+	 * @param syncInterval ms between syncs
+	 * @param compactSize journal size in bytes that triggers a checkpoint
+	 */
+	public synchronized void start(long syncInterval, final long compactSize) {
+		if (syncInterval < 1) throw new IllegalArgumentException("Sync interval must be at least 1ms: " + syncInterval);
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ModelJournal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+					if (getJournalSize() > compactSize) {
+						checkpoint();
+					}
+				} catch (Exception e) {
+					logger.error("Journal sync failed: " + e.getMessage(), e);
+				}
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread, syncs and closes the journal.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		ScheduledExecutorService s;
+		synchronized (this) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s != null) {
+			s.shutdown();
+			try {
+				s.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (journal != null) {
+				sync();
+				subscription.close();
+				subscription = null;
+				journal.close();
+				journal = null;
+			}
+		}
+	}
+
+	public synchronized long getJournalSize() {
+		return journalSize;
+	}
+
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public SignalKModel getModel() {
+		return model;
+	}
+
+	private File journalFile(long gen) {
+		return new File(dir, JOURNAL_FILE + gen);
+	}
+
+	private void openJournal(long gen) throws IOException {
+		File file = journalFile(gen);
+		journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		journalSize = journal.size();
+	}
+
+	/**
+	 * @return the snapshot generation
+	 */
+	private long replaySnapshot(File snapshot) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 65536))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a model snapshot: " + snapshot.getAbsolutePath());
+			}
+			long gen = in.readLong();
+			ModelSnapshot.read(in, model);
+			return gen;
+		}
+	}
+
+	/**
+	 * @return the length of the valid records
+	 */
+	private long replayJournal(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			long valid = apply(in, file.length());
+			return valid < 0 ? -valid - 1 : valid;
+		}
+	}
+
+	/**
+	 * Applies the records in the stream to the model, without events.
+	 *
+	 * @return the bytes of valid records read, or -(valid + 1) if a bad record was found
+	 */
+	private long apply(DataInputStream in, long length) throws IOException {
+		long pos = 0;
+		byte[] payload = new byte[256];
+		int count = 0;
+		while (true) {
+			int len;
+			try {
+				len = in.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			if (len < 0 || pos + 8 + len > length) {
+				return -(pos + 1);
+			}
+			long sum;
+			try {
+				sum = in.readInt() & 0xffffffffL;
+				if (payload.length < len) payload = new byte[len];
+				in.readFully(payload, 0, len);
+			} catch (EOFException e) {
+				return -(pos + 1);
+			}
+			crc.reset();
+			crc.update(payload, 0, len);
+			if (crc.getValue() != sum) {
+				return -(pos + 1);
+			}
+			DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload, 0, len));
+			byte type = rec.readByte();
+			String path = rec.readUTF();
+			if (type == DEL) {
+				model.getFullData().remove(path);
+			} else {
+				Object val = readValue(rec);
+				if (val != null) model.getFullData().put(path, val);
+			}
+			pos += 8 + len;
+			count++;
+		}
+		if (logger.isDebugEnabled()) logger.debug("Replayed " + count + " records");
+		return pos;
+	}
+
+	/**
+	 * @return the framed record: length, crc, type, path, value
+	 */
+	private byte[] record(byte type, String path, Object val) throws IOException {
+		bytes.reset();
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeUTF(path);
+		if (type == PUT) writeValue(out, val);
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		int len = record.length - 8;
+		crc.reset();
+		crc.update(record, 8, len);
+		ByteBuffer.wrap(record).putInt(len).putInt((int) crc.getValue());
+		return record;
+	}
+
+	private static void writeValue(DataOutputStream out, Object val) throws IOException {
+		if (val == null) {
+			out.writeByte(NULL);
+		} else if (val instanceof Double || val instanceof Float) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number) val).doubleValue());
+		} else if (val instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) val);
+		} else if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+			out.writeByte(INT);
+			out.writeInt(((Number) val).intValue());
+		} else if (val instanceof BigDecimal) {
+			// the unscaled digits and scale, so the value reads back exactly
+			out.writeByte(DECIMAL);
+			out.writeInt(((BigDecimal) val).scale());
+			writeBytes(out, ((BigDecimal) val).unscaledValue().toByteArray());
+		} else if (val instanceof BigInteger) {
+			out.writeByte(BIG_INTEGER);
+			writeBytes(out, ((BigInteger) val).toByteArray());
+		} else if (val instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) val);
+		} else if (val instanceof Json) {
+			out.writeByte(JSON);
+			writeString(out, val.toString());
+		} else {
+			out.writeByte(STRING);
+			writeString(out, val.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case DOUBLE:
+			return in.readDouble();
+		case LONG:
+			return in.readLong();
+		case INT:
+			return in.readInt();
+		case BOOLEAN:
+			return in.readBoolean();
+		case JSON:
+			return Json.read(readString(in));
+		case DECIMAL:
+			int scale = in.readInt();
+			return new BigDecimal(new BigInteger(readBytes(in)), scale);
+		case BIG_INTEGER:
+			return new BigInteger(readBytes(in));
+		case STRING:
+			return readString(in);
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}
+
+	// writeUTF is limited to 64k, resources can be larger
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] b = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return b;
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * A compact binary snapshot of the model, for a fast cold start. Keys are written as the number of
+ * path segments shared with the previous key plus the new segments, and segments (and short string
+ * values) go through a dictionary, so each is written once. Values are typed, numbers are not
+ * formatted or parsed.
+ * </p><p>
+ * Loading writes straight into the model's store, without the leaf/branch checks, change log or
+ * events of the model API, so it is only for a model being started. A trie store is filled node by
+ * node, without splitting keys.
+ * </p>
+ *
+ * @author robert
+ *
+ */
+public class ModelSnapshot {
+
+	private static Logger logger = LogManager.getLogger(ModelSnapshot.class);
+
+	private static final int MAGIC = 0x534B5331; // SKS1
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 65536;
+	// longer strings are not worth a dictionary entry
+	private static final int MAX_DICTIONARY_STRING = 64;
+
+	// value types
+	private static final int NULL = 0;
+	private static final int DOUBLE = 1;
+	private static final int LONG = 2;
+	private static final int INT = 3;
+	private static final int TRUE = 4;
+	private static final int FALSE = 5;
+	private static final int STRING = 6;
+	private static final int STRING_REF = 7;
+	private static final int JSON = 8;
+	private static final int DECIMAL = 9;
+	private static final int BIG_INTEGER = 10;
+
+	private ModelSnapshot() {
+	}
+
+	/**
+	 * Writes the model to file, via a temporary file so the old snapshot stays valid until the new one is complete.
+	 *
+	 * @param model
+	 * @param file
+	 * @param exclude a key prefix to leave out, or null
+	 * @return the number of keys written
+	 * @throws IOException
+	 */
+	public static long save(SignalKModel model, File file, String exclude) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		long count;
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+			// so a putAll is saved whole or not at all
+			long stamp = model.readLock();
+			try {
+				count = write(model.getFullData(), exclude, out);
+			} finally {
+				model.unlockRead(stamp);
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		if (logger.isDebugEnabled()) logger.debug("Saved " + count + " keys to " + file.getAbsolutePath());
+		return count;
+	}
+
+	/**
+	 * Loads a snapshot into the model, see {@link #read(DataInputStream, SignalKModel)}.
+	 *
+	 * @param file
+	 * @param model
+	 * @return the number of keys read
+	 * @throws IOException
+	 */
+	public static long load(File file, SignalKModel model) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+			return read(in, model);
+		}
+	}
+
+	/**
+	 * Writes the entries of data, in its iteration order.
+	 *
+	 * @param data
+	 * @param exclude a key prefix to leave out, or null
+	 * @param out
+	 * @return the number of keys written
+	 * @throws IOException
+	 */
+	public static long write(Map<String, Object> data, String exclude, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		List<String> previous = new ArrayList<String>();
+		List<String> segments = new ArrayList<String>();
+		long count = 0;
+		for (Entry<String, Object> entry : data.entrySet()) {
+			String key = entry.getKey();
+			if (exclude != null && key.startsWith(exclude)) continue;
+			split(key, segments);
+			int common = 0;
+			int max = Math.min(segments.size(), previous.size());
+			while (common < max && segments.get(common).equals(previous.get(common))) {
+				common++;
+			}
+			writeVarInt(out, common + 1);
+			writeVarInt(out, segments.size() - common);
+			for (int i = common; i < segments.size(); i++) {
+				writeRef(out, segments.get(i), dictionary);
+			}
+			writeValue(out, entry.getValue(), dictionary);
+			List<String> tmp = previous;
+			previous = segments;
+			segments = tmp;
+			count++;
+		}
+		writeVarInt(out, 0);
+		return count;
+	}
+
+	/**
+	 * Reads a snapshot into the model's store, see the class comment.
+	 *
+	 * @param in
+	 * @param model
+	 * @return the number of keys read
+	 * @throws IOException
+	 */
+	public static long read(DataInputStream in, SignalKModel model) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a model snapshot");
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown model snapshot version " + version);
+		}
+		PathTrie trie = (model instanceof SignalKTrieModelImpl) ? ((SignalKTrieModelImpl) model).getTrie() : null;
+		Map<String, Object> store = model.getFullData();
+		List<String> dictionary = new ArrayList<String>();
+		String[] segments = new String[16];
+		// the key up to each segment
+		String[] keys = new String[16];
+		PathTrie.Node[] nodes = trie == null ? null : new PathTrie.Node[16];
+		int depth = 0;
+		long count = 0;
+		while (true) {
+			int common = readVarInt(in) - 1;
+			if (common < 0) break;
+			if (common > depth) throw new IOException("Corrupt model snapshot at key " + count);
+			int added = readVarInt(in);
+			depth = common + added;
+			if (depth > segments.length) {
+				int size = Math.max(depth, segments.length * 2);
+				segments = Arrays.copyOf(segments, size);
+				keys = Arrays.copyOf(keys, size);
+				if (nodes != null) nodes = Arrays.copyOf(nodes, size);
+			}
+			for (int i = common; i < depth; i++) {
+				segments[i] = readRef(in, dictionary);
+				if (trie != null) {
+					PathTrie.Node parent = (i == 0) ? trie.getNode("", false) : nodes[i - 1];
+					nodes[i] = trie.getChild(parent, segments[i], true);
+					if (nodes[i] == null) {
+						// pruned under us, resolve the path again
+						nodes[i] = trie.getNode(i == 0 ? segments[0] : parent.path() + '.' + segments[i], true);
+					}
+				} else {
+					keys[i] = (i == 0) ? segments[i] : keys[i - 1] + '.' + segments[i];
+				}
+			}
+			Object val = readValue(in, dictionary);
+			if (val == null) continue;
+			if (trie != null) {
+				if (val instanceof Double) {
+					trie.putDouble(nodes[depth - 1], (Double) val);
+				} else {
+					trie.put(nodes[depth - 1], val);
+				}
+			} else {
+				store.put(keys[depth - 1], val);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private static void split(String key, List<String> segments) {
+		segments.clear();
+		int start = 0;
+		while (true) {
+			int end = key.indexOf('.', start);
+			if (end < 0) {
+				segments.add(key.substring(start));
+				return;
+			}
+			segments.add(key.substring(start, end));
+			start = end + 1;
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object val, Map<String, Integer> dictionary) throws IOException {
+		if (val == null) {
+			out.writeByte(NULL);
+		} else if (val instanceof Double || val instanceof Float) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number) val).doubleValue());
+		} else if (val instanceof Long) {
+			out.writeByte(LONG);
+			writeVarLong(out, zigzag((Long) val));
+		} else if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+			out.writeByte(INT);
+			writeVarLong(out, zigzag(((Number) val).intValue()));
+		} else if (val instanceof BigDecimal) {
+			// the unscaled digits and scale, so the value reads back exactly
+			out.writeByte(DECIMAL);
+			writeVarLong(out, zigzag(((BigDecimal) val).scale()));
+			writeBytes(out, ((BigDecimal) val).unscaledValue().toByteArray());
+		} else if (val instanceof BigInteger) {
+			out.writeByte(BIG_INTEGER);
+			writeBytes(out, ((BigInteger) val).toByteArray());
+		} else if (val instanceof Boolean) {
+			out.writeByte((Boolean) val ? TRUE : FALSE);
+		} else if (val instanceof Json) {
+			out.writeByte(JSON);
+			writeString(out, val.toString());
+		} else {
+			String str = val.toString();
+			if (str.length() <= MAX_DICTIONARY_STRING) {
+				out.writeByte(STRING_REF);
+				writeRef(out, str, dictionary);
+			} else {
+				out.writeByte(STRING);
+				writeString(out, str);
+			}
+		}
+	}
+
+	private static Object readValue(DataInputStream in, List<String> dictionary) throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case DOUBLE:
+			return in.readDouble();
+		case LONG:
+			return unzigzag(readVarLong(in));
+		case INT:
+			return (int) unzigzag(readVarLong(in));
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case STRING_REF:
+			return readRef(in, dictionary);
+		case STRING:
+			return readString(in);
+		case JSON:
+			return Json.read(readString(in));
+		case DECIMAL:
+			int scale = (int) unzigzag(readVarLong(in));
+			return new BigDecimal(new BigInteger(readBytes(in)), scale);
+		case BIG_INTEGER:
+			return new BigInteger(readBytes(in));
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}
+
+	/**
+	 * A dictionary reference, 0 followed by the string the first time, then its index + 1
+	 */
+	private static void writeRef(DataOutputStream out, String str, Map<String, Integer> dictionary) throws IOException {
+		Integer ref = dictionary.get(str);
+		if (ref != null) {
+			writeVarInt(out, ref + 1);
+			return;
+		}
+		writeVarInt(out, 0);
+		writeString(out, str);
+		dictionary.put(str, dictionary.size());
+	}
+
+	private static String readRef(DataInputStream in, List<String> dictionary) throws IOException {
+		int ref = readVarInt(in);
+		if (ref == 0) {
+			String str = readString(in);
+			dictionary.add(str);
+			return str;
+		}
+		if (ref > dictionary.size()) throw new IOException("Bad dictionary reference " + ref);
+		return dictionary.get(ref - 1);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] b = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[readVarInt(in)];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		writeVarInt(out, b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] b = new byte[readVarInt(in)];
+		in.readFully(b);
+		return b;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+		writeVarLong(out, v & 0xffffffffL);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		long v = readVarLong(in);
+		if (v > Integer.MAX_VALUE) throw new IOException("Bad length " + v);
+		return (int) v;
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			out.writeByte((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IOException("Bad varint");
+	}
+}
@@ -0,0 +1,1294 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * <p>
+ * A thread-safe map of dotted SignalK paths, stored as a trie of interned path segments.
+ * Each key like "vessels.self.navigation.position.latitude" is held as a chain of nodes, so
+ * common prefixes are stored once and every segment string is shared across the whole model.
+ * </p><p>
+ * Keys are ordered segment by segment (see {@link #PATH_ORDER}), which matches plain String order
+ * except where a segment contains characters that sort below '.'.
+ * A subtree view (<code>subMap(key, true, key+".\uFFFD", true)</code>, the form used by the model)
+ * is resolved directly to the node for key, so getTree/getSubMap cost O(depth + subtree).
+ * A String prefix range (<code>subMap(prefix, true, prefix+"\uFFFF", false)</code>) is resolved to the
+ * matching children of the parent node in the same way.
+ * Other ranges, head, tail and descending maps are live views too, every navigation seeks down
+ * the trie from the root in O(depth) and walks from there.
+ * </p><p>
+ * A node keeps its children in a small sorted array, copied on write, and only switches to a
+ * ConcurrentSkipListMap while it has more than {@link #MAX_ARRAY_CHILDREN}, so most nodes cost one array.
+ * </p><p>
+ * Double values are held in a primitive slot on the node rather than boxed, see {@link #putDouble(Node, double)} and {@link #getDouble(Node)}.
+ * Values are written without locking, only adding or pruning nodes synchronizes on the parent node,
+ * and numeric writes on the node itself.
+ * Iterators are weakly consistent, like ConcurrentSkipListMap.
+ * </p>
+ */
+public class PathTrie extends AbstractMap<String, Object> implements NavigableMap<String, Object> {
+
+	/**
+	 * Orders paths segment by segment, eg "a.b.c" before "a.bc". This is the iteration order of the trie.
+	 */
+	public static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int len = Math.min(a.length(), b.length());
+			for (int i = 0; i < len; i++) {
+				char ca = a.charAt(i);
+				char cb = b.charAt(i);
+				if (ca == cb) continue;
+				if (ca == SEPARATOR) return -1;
+				if (cb == SEPARATOR) return 1;
+				return ca - cb;
+			}
+			return a.length() - b.length();
+		}
+	};
+
+	/**
+	 * The most children a node keeps in a sorted array before switching to a skip list
+	 */
+	public static final int MAX_ARRAY_CHILDREN = 32;
+
+	private static final char SEPARATOR = '.';
+	private static final String SUBTREE_END = ".\uFFFD";
+	private static final char PREFIX_END = '\uFFFF';
+
+	// marks a node holding its value in the primitive number slot
+	private static final Object NUMBER = new Object();
+
+	private static final Interner<String> segments = Interners.newWeakInterner();
+
+	private static final AtomicReferenceFieldUpdater<Node, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+
+	/**
+	 * A node in the trie. Nodes can be resolved once and kept, the value is live.
+	 * A node that has been pruned from the trie is detached, and the trie must be asked again.
+	 */
+	public static final class Node {
+		private final Node parent;
+		private final String segment;
+		// null, a Node[] sorted by segment and replaced on write, or a ConcurrentSkipListMap<String, Node>
+		private volatile Object children;
+		// package visible for the field updater
+		volatile Object value;
+		private volatile double number;
+		private volatile boolean detached;
+
+		private Node(Node parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+
+		public Object getValue() {
+			Object v = value;
+			return v == NUMBER ? Double.valueOf(number) : v;
+		}
+
+		public String getSegment() {
+			return segment;
+		}
+
+		public Node getParent() {
+			return parent;
+		}
+
+		public boolean isDetached() {
+			return detached;
+		}
+
+		public boolean hasChildren() {
+			Object c = children;
+			if (c == null) return false;
+			return c instanceof Node[] ? ((Node[]) c).length > 0 : !map(c).isEmpty();
+		}
+
+		/**
+		 * Rebuilds the full dotted path of this node.
+		 */
+		public String path() {
+			if (parent == null) return "";
+			if (parent.parent == null) return segment;
+			StringBuilder sb = new StringBuilder();
+			appendPath(sb);
+			return sb.toString();
+		}
+
+		private void appendPath(StringBuilder sb) {
+			if (parent.parent != null) {
+				parent.appendPath(sb);
+				sb.append(SEPARATOR);
+			}
+			sb.append(segment);
+		}
+
+		@Override
+		public String toString() {
+			return path() + "=" + getValue();
+		}
+	}
+
+	private final Node root;
+	private final AtomicInteger count;
+	// the view prefix, null for the whole trie
+	private final String prefix;
+	// true if the view holds all keys starting with prefix, false for the subtree of the prefix node
+	private final boolean partial;
+	// the view bounds, null if unbounded
+	private final String lo;
+	private final boolean loInclusive;
+	private final String hi;
+	private final boolean hiInclusive;
+	private final boolean descending;
+
+	/**
+	 * Create a new empty trie
+	 */
+	public PathTrie() {
+		this.root = new Node(null, null);
+		this.count = new AtomicInteger();
+		this.prefix = null;
+		this.partial = false;
+		this.lo = null;
+		this.loInclusive = false;
+		this.hi = null;
+		this.hiInclusive = false;
+		this.descending = false;
+	}
+
+	/**
+	 * Create a new trie holding the provided entries
+	 * @param map
+	 */
+	public PathTrie(Map<String, ?> map) {
+		this();
+		putAll(map);
+	}
+
+	private PathTrie(PathTrie trie, String prefix, boolean partial, String lo, boolean loInclusive, String hi, boolean hiInclusive,
+			boolean descending) {
+		this.root = trie.root;
+		this.count = trie.count;
+		this.prefix = prefix;
+		this.partial = partial;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+
+	/**
+	 * Returns the node for key, or null if it does not exist and create is false.
+	 * The returned node can be kept and reused to read or write the value via {@link #put(Node, Object)}.
+	 * @param key
+	 * @param create
+	 * @return
+	 */
+	public Node getNode(String key, boolean create) {
+		if (key.length() == 0) return root;
+		while (true) {
+			Node node = root;
+			int start = 0;
+			boolean restart = false;
+			while (node != null && start <= key.length()) {
+				int end = key.indexOf(SEPARATOR, start);
+				if (end < 0) end = key.length();
+				Node next = child(node, key.substring(start, end), create);
+				if (next == null && create) {
+					// parent was pruned under us
+					restart = true;
+					break;
+				}
+				node = next;
+				start = end + 1;
+			}
+			if (!restart) return node;
+		}
+	}
+
+	/**
+	 * Returns the child of parent for one path segment, or null if it does not exist and create is false,
+	 * or parent was pruned. Lets bulk loaders walk sorted keys without splitting every key.
+	 * @param parent
+	 * @param segment
+	 * @param create
+	 * @return
+	 */
+	public Node getChild(Node parent, String segment, boolean create) {
+		return child(parent, segment, create);
+	}
+
+	private Node child(Node parent, String segment, boolean create) {
+		Node node = findChild(parent.children, segment);
+		if (node != null || !create) return node;
+		synchronized (parent) {
+			if (parent.detached) return null;
+			Object c = parent.children;
+			node = findChild(c, segment);
+			if (node == null) {
+				node = new Node(parent, segments.intern(segment));
+				parent.children = addChild(c, node);
+			}
+			return node;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ConcurrentSkipListMap<String, Node> map(Object children) {
+		return (ConcurrentSkipListMap<String, Node>) children;
+	}
+
+	private static Node findChild(Object children, String segment) {
+		if (children == null) return null;
+		if (children instanceof Node[]) {
+			Node[] a = (Node[]) children;
+			int i = search(a, segment);
+			return i < 0 ? null : a[i];
+		}
+		return map(children).get(segment);
+	}
+
+	/**
+	 * Binary search of sorted children by segment
+	 * @return the index, or -(insertion point) - 1
+	 */
+	private static int search(Node[] a, String segment) {
+		int low = 0;
+		int high = a.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = a[mid].segment.compareTo(segment);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * @return the new children, called holding the parent lock
+	 */
+	private static Object addChild(Object children, Node node) {
+		if (children == null) return new Node[] { node };
+		if (children instanceof Node[]) {
+			Node[] a = (Node[]) children;
+			if (a.length < MAX_ARRAY_CHILDREN) {
+				int i = -search(a, node.segment) - 1;
+				Node[] b = new Node[a.length + 1];
+				System.arraycopy(a, 0, b, 0, i);
+				b[i] = node;
+				System.arraycopy(a, i, b, i + 1, a.length - i);
+				return b;
+			}
+			ConcurrentSkipListMap<String, Node> m = new ConcurrentSkipListMap<String, Node>();
+			for (Node n : a) {
+				m.put(n.segment, n);
+			}
+			m.put(node.segment, node);
+			return m;
+		}
+		map(children).put(node.segment, node);
+		return children;
+	}
+
+	/**
+	 * @return the new children, called holding the parent lock
+	 */
+	private static Object removeChild(Object children, Node node) {
+		if (children instanceof Node[]) {
+			Node[] a = (Node[]) children;
+			int i = search(a, node.segment);
+			if (i < 0 || a[i] != node) return children;
+			if (a.length == 1) return null;
+			Node[] b = new Node[a.length - 1];
+			System.arraycopy(a, 0, b, 0, i);
+			System.arraycopy(a, i + 1, b, i, b.length - i);
+			return b;
+		}
+		if (children == null) return null;
+		ConcurrentSkipListMap<String, Node> m = map(children);
+		m.remove(node.segment, node);
+		if (m.size() > MAX_ARRAY_CHILDREN / 2) return children;
+		// back to an array once it has shrunk well below the limit
+		Node[] a = m.values().toArray(new Node[0]);
+		return a.length == 0 ? null : a;
+	}
+
+	/**
+	 * The children of parent with segments in the given range, either bound may be null.
+	 */
+	private static Iterator<Node> children(Node parent, String from, boolean fromInclusive, String to, boolean toInclusive,
+			boolean reverse) {
+		Object c = parent.children;
+		if (c == null) return Collections.<Node>emptyIterator();
+		if (c instanceof Node[]) {
+			Node[] a = (Node[]) c;
+			int start = 0;
+			int end = a.length;
+			if (from != null) {
+				int i = search(a, from);
+				start = i < 0 ? -i - 1 : (fromInclusive ? i : i + 1);
+			}
+			if (to != null) {
+				int i = search(a, to);
+				end = i < 0 ? -i - 1 : (toInclusive ? i + 1 : i);
+			}
+			return new ArrayIterator(a, start, end, reverse);
+		}
+		NavigableMap<String, Node> m = map(c);
+		if (from != null && to != null) {
+			m = m.subMap(from, fromInclusive, to, toInclusive);
+		} else if (from != null) {
+			m = m.tailMap(from, fromInclusive);
+		} else if (to != null) {
+			m = m.headMap(to, toInclusive);
+		}
+		return (reverse ? m.descendingMap() : m).values().iterator();
+	}
+
+	private static Iterator<Node> children(Node parent, boolean reverse) {
+		return children(parent, null, false, null, false, reverse);
+	}
+
+	private static class ArrayIterator implements Iterator<Node> {
+		private final Node[] a;
+		private final int end;
+		private final boolean reverse;
+		private int i;
+
+		ArrayIterator(Node[] a, int start, int end, boolean reverse) {
+			this.a = a;
+			this.reverse = reverse;
+			// reverse walks down from end - 1 to start
+			this.i = reverse ? end - 1 : start;
+			this.end = reverse ? start : end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return reverse ? i >= end : i < end;
+		}
+
+		@Override
+		public Node next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return reverse ? a[i--] : a[i++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Set the value of a node. If the node was pruned concurrently the value is written to the live node for the same path.
+	 * @param node
+	 * @param value not null
+	 * @return the previous value
+	 */
+	public Object put(Node node, Object value) {
+		if (value == null) throw new NullPointerException();
+		if (value instanceof Double) {
+			return setNumber(node, ((Double) value).doubleValue(), true);
+		}
+		while (true) {
+			double prev = node.number;
+			Object old = VALUE.getAndSet(node, value);
+			if (old == null) count.incrementAndGet();
+			if (!node.detached) return old == NUMBER ? Double.valueOf(prev) : old;
+			// lost a race with prune, take it back and retry on the live node
+			if (VALUE.compareAndSet(node, value, null)) {
+				count.decrementAndGet();
+			}
+			node = getNode(node.path(), true);
+		}
+	}
+
+	/**
+	 * Set a numeric value of a node without boxing it.
+	 * @param node
+	 * @param d
+	 * @return true if the value changed
+	 */
+	public boolean putDouble(Node node, double d) {
+		return setNumber(node, d, false) == Boolean.TRUE;
+	}
+
+	/**
+	 * Writes d to the number slot. Returns the previous value if boxOld, otherwise Boolean.TRUE if the value changed.
+	 */
+	private Object setNumber(Node node, double d, boolean boxOld) {
+		while (true) {
+			synchronized (node) {
+				if (!node.detached) {
+					double prev = node.number;
+					node.number = d;
+					Object old = node.value;
+					while (old != NUMBER && !VALUE.compareAndSet(node, old, NUMBER)) {
+						old = node.value;
+					}
+					if (old == null) count.incrementAndGet();
+					if (boxOld) {
+						return old == NUMBER ? Double.valueOf(prev) : old;
+					}
+					if (old == NUMBER) {
+						return Double.doubleToLongBits(prev) != Double.doubleToLongBits(d) ? Boolean.TRUE : Boolean.FALSE;
+					}
+					return (old instanceof Double && Double.doubleToLongBits((Double) old) == Double.doubleToLongBits(d)) ? Boolean.FALSE : Boolean.TRUE;
+				}
+			}
+			node = getNode(node.path(), true);
+		}
+	}
+
+	/**
+	 * Get the value of a node as a primitive double, or NaN if it has no value or it is not a number.
+	 * @param node
+	 * @return
+	 */
+	public double getDouble(Node node) {
+		Object v = node.value;
+		if (v == NUMBER) return node.number;
+		if (v instanceof Number) return ((Number) v).doubleValue();
+		return Double.NaN;
+	}
+
+	/**
+	 * Get the value of a key as a primitive double, or NaN if it has no value or it is not a number.
+	 * @param key
+	 * @return
+	 */
+	public double getDouble(String key) {
+		if (!inRange(key)) return Double.NaN;
+		Node node = getNode(key, false);
+		return node == null ? Double.NaN : getDouble(node);
+	}
+
+	/**
+	 * Clear the value of a node, and prune it if it is now empty
+	 * @param node
+	 * @return the previous value
+	 */
+	public Object clear(Node node) {
+		double prev = node.number;
+		Object old = VALUE.getAndSet(node, null);
+		if (old == NUMBER) old = Double.valueOf(prev);
+		if (old != null) {
+			count.decrementAndGet();
+			prune(node);
+		}
+		return old;
+	}
+
+	private void prune(Node node) {
+		while (node != root) {
+			Node parent = node.parent;
+			synchronized (parent) {
+				synchronized (node) {
+					if (node.detached || node.value != null || node.hasChildren()) return;
+					node.detached = true;
+					parent.children = removeChild(parent.children, node);
+				}
+			}
+			node = parent;
+		}
+	}
+
+	/**
+	 * Checks if key can be a leaf, returning the existing key it conflicts with, or null.
+	 * A key conflicts with any parent that holds a value or any child below it.
+	 * @param key
+	 * @return
+	 */
+	public String findConflict(String key) {
+		Node node = root;
+		int start = 0;
+		while (start <= key.length()) {
+			int end = key.indexOf(SEPARATOR, start);
+			if (end < 0) end = key.length();
+			node = child(node, key.substring(start, end), false);
+			if (node == null) return null;
+			if (end < key.length() && node.value != null) return key.substring(0, end);
+			start = end + 1;
+		}
+		if (node.hasChildren()) {
+			Iterator<Entry<String, Object>> it = new EntryIterator(node, key + SEPARATOR);
+			if (it.hasNext()) return it.next().getKey();
+		}
+		return null;
+	}
+
+	private boolean inPrefix(String key) {
+		if (prefix == null) return true;
+		if (partial) return key.startsWith(prefix);
+		return key.equals(prefix) || (key.startsWith(prefix) && key.length() > prefix.length() && key.charAt(prefix.length()) == SEPARATOR);
+	}
+
+	private boolean tooLow(String key) {
+		if (lo == null) return false;
+		int c = PATH_ORDER.compare(key, lo);
+		return c < 0 || (c == 0 && !loInclusive);
+	}
+
+	private boolean tooHigh(String key) {
+		if (hi == null) return false;
+		int c = PATH_ORDER.compare(key, hi);
+		return c > 0 || (c == 0 && !hiInclusive);
+	}
+
+	private boolean inRange(String key) {
+		return inPrefix(key) && !tooLow(key) && !tooHigh(key);
+	}
+
+	private boolean isBounded() {
+		return prefix != null || lo != null || hi != null;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String)) return null;
+		String k = (String) key;
+		if (!inRange(k)) return null;
+		Node node = getNode(k, false);
+		return node == null ? null : node.getValue();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (value == null) throw new NullPointerException();
+		if (!inRange(key)) throw new IllegalArgumentException("key out of range: " + key);
+		return put(getNode(key, true), value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!(key instanceof String)) return null;
+		String k = (String) key;
+		if (!inRange(k)) return null;
+		Node node = getNode(k, false);
+		return node == null ? null : clear(node);
+	}
+
+	@Override
+	public int size() {
+		if (!isBounded()) return count.get();
+		int size = 0;
+		for (Iterator<Entry<String, Object>> it = entryIterator(); it.hasNext(); it.next()) {
+			size++;
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		if (!isBounded()) return count.get() == 0;
+		return !entryIterator().hasNext();
+	}
+
+	@Override
+	public void clear() {
+		for (Iterator<Entry<String, Object>> it = entryIterator(); it.hasNext();) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private Iterator<Entry<String, Object>> entryIterator() {
+		return descending ? backward(null, false) : forward(null, false);
+	}
+
+	/**
+	 * The view's entries in path order from key, or from the start of the view if key is null
+	 */
+	private Iterator<Entry<String, Object>> forward(String key, boolean inclusive) {
+		// start from the highest of the prefix, the lower bound and key
+		String from = prefix;
+		boolean fromInclusive = true;
+		if (lo != null && (from == null || PATH_ORDER.compare(lo, from) > 0 || (!loInclusive && lo.equals(from)))) {
+			from = lo;
+			fromInclusive = loInclusive;
+		}
+		if (key != null) {
+			int c = from == null ? 1 : PATH_ORDER.compare(key, from);
+			if (c > 0 || (c == 0 && !inclusive)) {
+				from = key;
+				fromInclusive = inclusive;
+			}
+		}
+		return new EntryIterator(from, fromInclusive);
+	}
+
+	/**
+	 * The view's entries in reverse path order from key, or from the end of the view if key is null
+	 */
+	private Iterator<Entry<String, Object>> backward(String key, boolean inclusive) {
+		// start from the lowest of the upper bound and key, or the end of the prefix
+		String from = hi;
+		boolean fromInclusive = hiInclusive;
+		if (key != null) {
+			int c = from == null ? -1 : PATH_ORDER.compare(key, from);
+			if (c < 0 || (c == 0 && !inclusive)) {
+				from = key;
+				fromInclusive = inclusive;
+			}
+		}
+		if (prefix != null && (from == null || (!inPrefix(from) && PATH_ORDER.compare(from, prefix) > 0))) {
+			if (partial) {
+				int end = prefix.lastIndexOf(SEPARATOR);
+				Node parent = end < 0 ? root : getNode(prefix.substring(0, end), false);
+				String segment = prefix.substring(end + 1);
+				return new DescendingEntryIterator(parent, segment, segment + PREFIX_END);
+			}
+			return new DescendingEntryIterator(getNode(prefix, false), null, null);
+		}
+		return new DescendingEntryIterator(from, fromInclusive);
+	}
+
+	/**
+	 * Depth first iterator, a node's own value is returned before its children.
+	 * Stops at the first key past the end of the view.
+	 */
+	private class EntryIterator implements Iterator<Entry<String, Object>> {
+		private final Deque<Iterator<Node>> stack = new ArrayDeque<Iterator<Node>>();
+		private final Deque<String> paths = new ArrayDeque<String>();
+		private final boolean bounded;
+		private Entry<String, Object> next;
+		private String lastKey;
+
+		/**
+		 * Iterates the subtrees of the children of start, ignoring the view
+		 * @param start
+		 * @param childPrefix the path of start with the trailing separator
+		 */
+		EntryIterator(Node start, String childPrefix) {
+			bounded = false;
+			push(children(start, false), childPrefix);
+			advance();
+		}
+
+		/**
+		 * Seeks down the trie to the first key at or after from
+		 * @param from the key to start from, or null for the first key
+		 * @param inclusive whether from itself is returned
+		 */
+		EntryIterator(String from, boolean inclusive) {
+			bounded = true;
+			if (from == null) {
+				push(children(root, false), "");
+				advance();
+				return;
+			}
+			Node node = root;
+			String childPrefix = "";
+			int start = 0;
+			while (true) {
+				int end = from.indexOf(SEPARATOR, start);
+				if (end < 0) end = from.length();
+				String segment = from.substring(start, end);
+				// the later siblings follow everything below this segment
+				push(children(node, segment, false, null, false, false), childPrefix);
+				node = findChild(node.children, segment);
+				if (node == null) break;
+				String path = childPrefix + segment;
+				if (end == from.length()) {
+					push(children(node, false), path + SEPARATOR);
+					Object v = node.getValue();
+					if (inclusive && v != null) {
+						accept(path, v);
+						return;
+					}
+					break;
+				}
+				childPrefix = path + SEPARATOR;
+				start = end + 1;
+			}
+			advance();
+		}
+
+		private void push(Iterator<Node> children, String childPrefix) {
+			if (children.hasNext()) {
+				stack.push(children);
+				paths.push(childPrefix);
+			}
+		}
+
+		private void accept(String path, Object v) {
+			if (bounded && !(inPrefix(path) && !tooHigh(path))) {
+				// past the end of the view
+				stack.clear();
+				paths.clear();
+				return;
+			}
+			next = new SimpleImmutableEntry<String, Object>(path, v);
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && !stack.isEmpty()) {
+				Iterator<Node> it = stack.peek();
+				if (!it.hasNext()) {
+					stack.pop();
+					paths.pop();
+					continue;
+				}
+				Node node = it.next();
+				String path = paths.peek() + node.segment;
+				push(children(node, false), path + SEPARATOR);
+				Object v = node.getValue();
+				if (v != null) {
+					accept(path, v);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (next == null) throw new NoSuchElementException();
+			Entry<String, Object> e = next;
+			lastKey = e.getKey();
+			advance();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) throw new IllegalStateException();
+			PathTrie.this.remove(lastKey);
+			lastKey = null;
+		}
+	}
+
+	/**
+	 * A node being walked in reverse, its children last to first and then its own value
+	 */
+	private static final class Frame {
+		final Node node;
+		final String path;
+		final Iterator<Node> children;
+		final boolean self;
+
+		Frame(Node node, String path, Iterator<Node> children, boolean self) {
+			this.node = node;
+			this.path = path;
+			this.children = children;
+			this.self = self;
+		}
+
+		String childPrefix() {
+			return node.parent == null ? "" : path + SEPARATOR;
+		}
+	}
+
+	/**
+	 * Reverse depth first iterator, a node's own value is returned after its children.
+	 * Stops at the first key before the start of the view.
+	 */
+	private class DescendingEntryIterator implements Iterator<Entry<String, Object>> {
+		private final Deque<Frame> stack = new ArrayDeque<Frame>();
+		private Entry<String, Object> next;
+		private String lastKey;
+
+		/**
+		 * Walks the subtree of node, or if from is set only the children of node from (inclusive) to (exclusive)
+		 */
+		DescendingEntryIterator(Node node, String from, String to) {
+			if (node != null) {
+				if (from == null) {
+					stack.push(new Frame(node, node.path(), children(node, true), node != root));
+				} else {
+					stack.push(new Frame(node, node.path(), children(node, from, true, to, false, true), false));
+				}
+			}
+			advance();
+		}
+
+		/**
+		 * Seeks down the trie to the last key at or before from
+		 * @param from the key to start from, or null for the last key
+		 * @param inclusive whether from itself is returned
+		 */
+		DescendingEntryIterator(String from, boolean inclusive) {
+			if (from == null) {
+				stack.push(new Frame(root, "", children(root, true), false));
+				advance();
+				return;
+			}
+			Node node = root;
+			String path = "";
+			int start = 0;
+			while (true) {
+				int end = from.indexOf(SEPARATOR, start);
+				if (end < 0) end = from.length();
+				String segment = from.substring(start, end);
+				// the earlier siblings, then the node itself, precede this segment
+				stack.push(new Frame(node, path, children(node, null, false, segment, false, true), node != root));
+				Node child = findChild(node.children, segment);
+				if (child == null) break;
+				path = (node == root ? "" : path + SEPARATOR) + segment;
+				node = child;
+				if (end == from.length()) {
+					// everything below from is after it
+					stack.push(new Frame(node, path, Collections.<Node>emptyIterator(), inclusive));
+					break;
+				}
+				start = end + 1;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (!stack.isEmpty()) {
+				Frame f = stack.peek();
+				if (f.children.hasNext()) {
+					Node child = f.children.next();
+					stack.push(new Frame(child, f.childPrefix() + child.segment, children(child, true), true));
+					continue;
+				}
+				stack.pop();
+				Object v = f.self ? f.node.getValue() : null;
+				if (v != null) {
+					if (!inPrefix(f.path) || tooLow(f.path)) {
+						// before the start of the view
+						stack.clear();
+						return;
+					}
+					next = new SimpleImmutableEntry<String, Object>(f.path, v);
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (next == null) throw new NoSuchElementException();
+			Entry<String, Object> e = next;
+			lastKey = e.getKey();
+			advance();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) throw new IllegalStateException();
+			PathTrie.this.remove(lastKey);
+			lastKey = null;
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<String, Object>> {
+		@Override
+		public Iterator<Entry<String, Object>> iterator() {
+			return entryIterator();
+		}
+
+		@Override
+		public int size() {
+			return PathTrie.this.size();
+		}
+
+		@Override
+		public void clear() {
+			PathTrie.this.clear();
+		}
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	public NavigableSet<String> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<String> navigableKeySet() {
+		return new KeySet(this);
+	}
+
+	private boolean isSubtree(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		return fromInclusive && toInclusive && toKey.length() == fromKey.length() + SUBTREE_END.length() && toKey.startsWith(fromKey)
+				&& toKey.endsWith(SUBTREE_END) && inRange(fromKey);
+	}
+
+	private boolean isPrefixRange(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		return fromInclusive && !toInclusive && toKey.length() == fromKey.length() + 1 && toKey.charAt(fromKey.length()) == PREFIX_END
+				&& toKey.startsWith(fromKey) && (prefix == null || fromKey.startsWith(prefix) && (partial || fromKey.length() > prefix.length() && inRange(fromKey)));
+	}
+
+	/**
+	 * A view of this view narrowed to the given bounds, in path order. Null bounds leave the current bound.
+	 */
+	private PathTrie bounded(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		String l = lo;
+		boolean li = loInclusive;
+		String h = hi;
+		boolean hiInc = hiInclusive;
+		if (fromKey != null) {
+			int c = l == null ? 1 : PATH_ORDER.compare(fromKey, l);
+			if (c > 0 || (c == 0 && !fromInclusive)) {
+				l = fromKey;
+				li = fromInclusive;
+			}
+		}
+		if (toKey != null) {
+			int c = h == null ? -1 : PATH_ORDER.compare(toKey, h);
+			if (c < 0 || (c == 0 && !toInclusive)) {
+				h = toKey;
+				hiInc = toInclusive;
+			}
+		}
+		return new PathTrie(this, prefix, partial, l, li, h, hiInc, descending);
+	}
+
+	@Override
+	public NavigableMap<String, Object> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		if (descending) {
+			return bounded(toKey, toInclusive, fromKey, fromInclusive);
+		}
+		if (isSubtree(fromKey, fromInclusive, toKey, toInclusive)) {
+			return new PathTrie(this, fromKey, false, lo, loInclusive, hi, hiInclusive, false);
+		}
+		if (isPrefixRange(fromKey, fromInclusive, toKey, toInclusive)) {
+			return new PathTrie(this, fromKey, true, lo, loInclusive, hi, hiInclusive, false);
+		}
+		return bounded(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<String, Object> headMap(String toKey, boolean inclusive) {
+		return descending ? bounded(toKey, inclusive, null, false) : bounded(null, false, toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<String, Object> tailMap(String fromKey, boolean inclusive) {
+		return descending ? bounded(null, false, fromKey, inclusive) : bounded(fromKey, inclusive, null, false);
+	}
+
+	@Override
+	public NavigableMap<String, Object> descendingMap() {
+		return new PathTrie(this, prefix, partial, lo, loInclusive, hi, hiInclusive, !descending);
+	}
+
+	@Override
+	public NavigableSet<String> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public Comparator<? super String> comparator() {
+		return descending ? Collections.reverseOrder(PATH_ORDER) : PATH_ORDER;
+	}
+
+	private static Entry<String, Object> first(Iterator<Entry<String, Object>> it) {
+		return it.hasNext() ? it.next() : null;
+	}
+
+	private static String key(Entry<String, Object> e) {
+		return e == null ? null : e.getKey();
+	}
+
+	private static String keyOrThrow(Entry<String, Object> e) {
+		if (e == null) throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	@Override
+	public Entry<String, Object> firstEntry() {
+		return first(entryIterator());
+	}
+
+	@Override
+	public String firstKey() {
+		return keyOrThrow(firstEntry());
+	}
+
+	@Override
+	public Entry<String, Object> lastEntry() {
+		return first(descending ? forward(null, false) : backward(null, false));
+	}
+
+	@Override
+	public String lastKey() {
+		return keyOrThrow(lastEntry());
+	}
+
+	@Override
+	public Entry<String, Object> pollFirstEntry() {
+		Entry<String, Object> e = firstEntry();
+		if (e != null) remove(e.getKey());
+		return e;
+	}
+
+	@Override
+	public Entry<String, Object> pollLastEntry() {
+		Entry<String, Object> e = lastEntry();
+		if (e != null) remove(e.getKey());
+		return e;
+	}
+
+	@Override
+	public Entry<String, Object> lowerEntry(String key) {
+		return first(descending ? forward(key, false) : backward(key, false));
+	}
+
+	@Override
+	public String lowerKey(String key) {
+		return key(lowerEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> floorEntry(String key) {
+		return first(descending ? forward(key, true) : backward(key, true));
+	}
+
+	@Override
+	public String floorKey(String key) {
+		return key(floorEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> ceilingEntry(String key) {
+		return first(descending ? backward(key, true) : forward(key, true));
+	}
+
+	@Override
+	public String ceilingKey(String key) {
+		return key(ceilingEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> higherEntry(String key) {
+		return first(descending ? backward(key, false) : forward(key, false));
+	}
+
+	@Override
+	public String higherKey(String key) {
+		return key(higherEntry(key));
+	}
+
+	@Override
+	public SortedMap<String, Object> subMap(String fromKey, String toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> headMap(String toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> tailMap(String fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * Live key set over a trie or trie view.
+	 */
+	private static class KeySet extends AbstractSet<String> implements NavigableSet<String> {
+		private final PathTrie map;
+
+		KeySet(PathTrie map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			final Iterator<Entry<String, Object>> it = map.entryIterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return it.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					it.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return map.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public String first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public String last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public String lower(String e) {
+			return map.lowerKey(e);
+		}
+
+		@Override
+		public String floor(String e) {
+			return map.floorKey(e);
+		}
+
+		@Override
+		public String ceiling(String e) {
+			return map.ceilingKey(e);
+		}
+
+		@Override
+		public String higher(String e) {
+			return map.higherKey(e);
+		}
+
+		@Override
+		public String pollFirst() {
+			return key(map.pollFirstEntry());
+		}
+
+		@Override
+		public String pollLast() {
+			return key(map.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<String> descendingSet() {
+			return map.descendingKeySet();
+		}
+
+		@Override
+		public Iterator<String> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<String> subSet(String fromElement, boolean fromInclusive, String toElement, boolean toInclusive) {
+			return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<String> headSet(String toElement, boolean inclusive) {
+			return map.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<String> tailSet(String fromElement, boolean inclusive) {
+			return map.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<String> subSet(String fromElement, String toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<String> headSet(String toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<String> tailSet(String fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+
+}
@@ -30,6 +30,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.NavigableMap;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -56,10 +57,22 @@ public class SignalKModelFactory {
     private static final String SIGNALK_MODEL_SAVE_FILE = "./conf/self.json";
     private static final String SIGNALK_CFG_SAVE_FILE = "./conf/signalk-config.json";
     private static final String SIGNALK_RESOURCES_SAVE_FILE = "./conf/resources.json";
+    private static final String SIGNALK_SNAPSHOT_FILE = "./conf/model.snapshot";
+    private static final String SIGNALK_JOURNAL_DIR = "./conf/journal";
+
+    /**
+     * System property selecting the model store, {@link #MODEL_STORE_SKIPLIST} (default) or {@link #MODEL_STORE_TRIE}
+     */
+    public static final String MODEL_STORE = "signalk.model.store";
+    public static final String MODEL_STORE_SKIPLIST = "skiplist";
+    public static final String MODEL_STORE_TRIE = "trie";
 
     private static Logger logger = LogManager.getLogger(SignalKModelFactory.class);
     private static SignalKModel signalKModel;
     private static String rootPath = "";
+    private static String modelStore = System.getProperty(MODEL_STORE, MODEL_STORE_SKIPLIST);
+    private static ModelJournal journal;
+    private static HistoryStore history;
 
     static {
         // lgger is not initialized until after these statements are
@@ -67,7 +80,7 @@ public class SignalKModelFactory {
         //System.out.println("Checking maven profiles");
         rootPath = Util.getRootPath();
         if (signalKModel == null) {
-            signalKModel = new SignalKModelImpl();
+            signalKModel = newModel(true);
         }
         System.out.println("SignalKModelFactory static block Util.setDefaults()");
         Util.setDefaults(signalKModel);
@@ -103,7 +116,31 @@ public class SignalKModelFactory {
      * @return
      */
     public static synchronized SignalKModel getCleanInstance() {
-        return new SignalKModelImpl(true);
+        return newModel(true);
+    }
+
+    /**
+     * Select the store used for models created from now on, {@link #MODEL_STORE_SKIPLIST} or {@link #MODEL_STORE_TRIE}.
+     * The singleton is created when this class loads, so set the {@link #MODEL_STORE} system property to change it.
+     *
+     * @param store
+     */
+    public static synchronized void setModelStore(String store) {
+        if (!MODEL_STORE_SKIPLIST.equals(store) && !MODEL_STORE_TRIE.equals(store)) {
+            throw new IllegalArgumentException("Unknown model store: " + store);
+        }
+        modelStore = store;
+    }
+
+    public static synchronized String getModelStore() {
+        return modelStore;
+    }
+
+    private static SignalKModel newModel(boolean handleMultipleValues) {
+        if (MODEL_STORE_TRIE.equals(modelStore)) {
+            return new SignalKTrieModelImpl(handleMultipleValues);
+        }
+        return new SignalKModelImpl(handleMultipleValues);
     }
 
     /**
@@ -134,16 +171,77 @@ public class SignalKModelFactory {
      * @return
      */
     public static synchronized SignalKModel getWrappedInstance(NavigableMap<String, Object> root) {
+        if (MODEL_STORE_TRIE.equals(modelStore)) {
+            return new SignalKTrieModelImpl(root);
+        }
         return new SignalKModelImpl(root);
     }
 
     /**
+     * Returns a read-only model over the subtrees of model at roots. The data is not copied,
+     * so the view follows later changes to model, and any attempt to change it throws UnsupportedOperationException.
+     *
+     * @param model
+     * @param roots
+     * @return
+     */
+    public static SignalKModel getReadOnlyView(SignalKModel model, Collection<String> roots) {
+        if (!(model.getFullData() instanceof NavigableMap)) {
+            throw new IllegalArgumentException("Model does not support views: " + model.getClass().getName());
+        }
+        return new SignalKModelImpl(new SubtreeView((NavigableMap<String, Object>) model.getFullData(), roots), false);
+    }
+
+    /**
+     * Loads the saved model, from the binary snapshot if it is newer than the json files. If
+     * {@link ConfigConstants#JOURNAL_ENABLE} is set the model is rebuilt from the journal, or from the
+     * saved files the first time, and is journaled from then on. If {@link ConfigConstants#HISTORY_ENABLE}
+     * is set the history of the configured paths is recorded.
      *
      * @param model
      */
     public static void load(SignalKModel model) {
+        loadModel(model);
+        if (isEnabled(model, ConfigConstants.HISTORY_ENABLE)) {
+            try {
+                openHistory(model);
+            } catch (Exception ex) {
+                logger.error("Cannot record the history: " + ex.getMessage(), ex);
+                closeHistory();
+            }
+        }
+    }
+
+    private static void loadModel(SignalKModel model) {
+        if (isEnabled(model, ConfigConstants.JOURNAL_ENABLE)) {
+            try {
+                loadJournal(model);
+                return;
+            } catch (IOException ex) {
+                logger.error("Cannot use the journal, loading the saved json: " + ex.getMessage(), ex);
+                closeJournal();
+            }
+        }
+        loadSaved(model);
+    }
+
+    private static void loadSaved(SignalKModel model) {
         File jsonFile = new File(rootPath + SIGNALK_MODEL_SAVE_FILE);
         File resourceFile = new File(rootPath + SIGNALK_RESOURCES_SAVE_FILE);
+        File snapshotFile = new File(rootPath + SIGNALK_SNAPSHOT_FILE);
+        // the binary snapshot, unless the json was edited since
+        if (snapshotFile.exists() && snapshotFile.lastModified() >= jsonFile.lastModified()
+            && snapshotFile.lastModified() >= resourceFile.lastModified()) {
+            try {
+                long count = ModelSnapshot.load(snapshotFile, model);
+                removeOtherVessels(model);
+                logger.info("   Saved state loaded from " + rootPath + SIGNALK_SNAPSHOT_FILE + ", " + count + " keys");
+                insertMetaToModel(model);
+                return;
+            } catch (Exception ex) {
+                logger.error("Cannot load " + snapshotFile.getAbsolutePath() + ", loading the json: " + ex.getMessage(), ex);
+            }
+        }
         logger.info("load(signalkModel) Checking for previous state: " + jsonFile.getAbsolutePath());
         if (jsonFile.exists()) {
             try {
@@ -179,18 +277,117 @@ public class SignalKModelFactory {
         insertMetaToModel(model);
     }
 
+    private static synchronized void loadJournal(SignalKModel model) throws IOException {
+        closeJournal();
+        ModelJournal modelJournal = new ModelJournal(new File(rootPath + SIGNALK_JOURNAL_DIR), model);
+        journal = modelJournal;
+        if (!modelJournal.load()) {
+            // first time, start from the json files
+            loadSaved(model);
+        } else {
+            removeOtherVessels(model);
+            insertMetaToModel(model);
+        }
+        // the loaded state, including changes made outside the model API
+        modelJournal.checkpoint();
+        modelJournal.start(getLong(model, ConfigConstants.JOURNAL_SYNC_INTERVAL, 1000),
+            getLong(model, ConfigConstants.JOURNAL_COMPACT_SIZE, 4 * 1024 * 1024));
+    }
+
+    /**
+     * Syncs and closes the journal, if there is one.
+     */
+    public static synchronized void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * @return the journal persisting the model, or null
+     */
+    public static synchronized ModelJournal getJournal() {
+        return journal;
+    }
+
+    private static synchronized void openHistory(SignalKModel model) throws IOException {
+        closeHistory();
+        Object storage = model.get(ConfigConstants.STORAGE_ROOT);
+        File dir = new File(rootPath + (storage instanceof String ? storage : "./storage/"), "history");
+        Object val = model.get(ConfigConstants.HISTORY_PATHS);
+        Json paths = (val instanceof Json) ? (Json) val : Json.read(String.valueOf(val));
+        String[] keys = new String[paths.asJsonList().size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = paths.at(i).asString();
+        }
+        HistoryStore store = new HistoryStore(dir, keys,
+            (int) getLong(model, ConfigConstants.HISTORY_SEGMENT_ROWS, 86400),
+            (int) getLong(model, ConfigConstants.HISTORY_SEGMENTS, 14));
+        store.open();
+        history = store;
+        store.start(model, getLong(model, ConfigConstants.HISTORY_INTERVAL, 1000),
+            getLong(model, ConfigConstants.HISTORY_FLUSH_INTERVAL, 60000));
+    }
+
+    /**
+     * Stops recording the history, if it is.
+     */
+    public static synchronized void closeHistory() {
+        if (history != null) {
+            history.close();
+            history = null;
+        }
+    }
+
+    /**
+     * @return the history being recorded, or null
+     */
+    public static synchronized HistoryStore getHistory() {
+        return history;
+    }
+
+    private static boolean isEnabled(SignalKModel model, String key) {
+        Object enabled = model.get(key);
+        return Boolean.TRUE.equals(enabled) || "true".equals(enabled);
+    }
+
+    private static long getLong(SignalKModel model, String key, long defaultValue) {
+        Object val = model.get(key);
+        if (val instanceof Number) {
+            return ((Number) val).longValue();
+        }
+        if (val instanceof String) {
+            try {
+                return Long.valueOf(((String) val).trim());
+            } catch (NumberFormatException e) {
+                logger.error("Invalid " + key + ": " + val + ", using " + defaultValue, e);
+            }
+        }
+        return defaultValue;
+    }
+
     public static void removeOtherVessels(SignalKModel model) throws IOException {
         String self = (String) model.get(ConfigConstants.UUID);
         Util.setSelf(self);
+        boolean removed = false;
         for (String key : model.getData().keySet()) {
             if (key.startsWith(vessels)) {
                 if (key.startsWith(vessels + dot + self) || key.startsWith(vessels + dot + "self")) {
                     continue;
                 }
                 model.getFullData().remove(key);
+                removed = true;
             }
         }
-        save(model);
+        // only rewrite the saved state if it changed
+        if (removed) {
+            save(model);
+        }
 
     }
 
@@ -465,12 +662,18 @@ public class SignalKModelFactory {
     }
 
     /**
-     * Save the current state of the signalk model
+     * Save the current state of the signalk model. If the model is journaled this only appends the
+     * changes since the last save to the journal.
      *
      * @param model
      * @throws IOException
      */
     public static void save(SignalKModel model) throws IOException {
+        ModelJournal modelJournal = getJournal();
+        if (modelJournal != null && modelJournal.getModel() == model) {
+            modelJournal.sync();
+            return;
+        }
         if (model != null) {
             File jsonFile = new File(rootPath + SIGNALK_MODEL_SAVE_FILE);
             JsonSerializer ser = new JsonSerializer();
@@ -497,6 +700,10 @@ public class SignalKModelFactory {
             File resourceFile = new File(rootPath + SIGNALK_RESOURCES_SAVE_FILE);
             FileUtils.writeStringToFile(resourceFile, modelJson.toString(), StandardCharsets.UTF_8);
             logger.info("   Saved model resources to " + rootPath + SIGNALK_RESOURCES_SAVE_FILE);
+
+            // and the binary snapshot for a fast start, written last so it is newer than the json
+            ModelSnapshot.save(model, new File(rootPath + SIGNALK_SNAPSHOT_FILE), SignalKConstants.CONFIG + dot);
+            logger.info("   Saved model snapshot to " + rootPath + SIGNALK_SNAPSHOT_FILE);
         }
     }
 
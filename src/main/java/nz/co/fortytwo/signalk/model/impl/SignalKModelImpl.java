@@ -36,17 +36,35 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Objects;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
 import java.math.BigDecimal;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.Attr;
+import nz.co.fortytwo.signalk.model.PathHandle;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeBus;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.OverflowPolicy;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.Subscription;
+import nz.co.fortytwo.signalk.model.event.ChangeListener;
+import nz.co.fortytwo.signalk.model.event.ChangeLog;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
 import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
@@ -73,8 +91,15 @@ import com.google.common.eventbus.EventBus;
 
  * </pre>
  * <p>
- * Changes to the model are notified on the Guava EventBus. To listen for changes 
- * obtain the event bus (getEventBus()) and register for PathEvent
+ * Changes to the model are notified on the ChangeBus (getChangeBus()), which delivers the changes of each write batch
+ * as one ChangeSet on the subscriber's own thread. A write batch is one put, or the puts between
+ * beginBatch() and endBatch().
+ * </p><p>
+ * To also get a PathEvent per changed path on the Guava EventBus (getEventBus()), call setPostPathEvents(true).
+ * The events are reposted from a ChangeBus subscriber, so EventBus subscribers run on its thread, not the writer's.
+ * </p><p>
+ * putAll() applies a whole delta as one transaction: it is checked for conflicts before anything is written,
+ * and get(), getValue(), getDouble(), copySubMap() and readers holding readLock() see either none or all of it.
  * </p>
  */
 public class SignalKModelImpl  implements SignalKModel {
@@ -84,10 +109,28 @@ public class SignalKModelImpl  implements SignalKModel {
     private final NavigableMap<String,Object> root;
     private final NavigableMap<String,Attr> attrMap;
     
-    private int nextrevision;
+    private final ChangeLog changeLog = new ChangeLog();
 
   	private EventBus eventBus = new EventBus();
+  	private final ChangeBus changeBus = new ChangeBus();
+  	// reposts change sets to the EventBus, while setPostPathEvents(true)
+  	private Subscription eventBridge;
+  	private static final int EVENT_BRIDGE_QUEUE = 1024;
+  	private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+  	// held for write while putAll applies a delta
+  	private final StampedLock deltaLock = new StampedLock();
+  	// how far the putAll conflict check scans the model keys before it seeks instead
+  	private static final int MAX_SCAN = 16;
 	private boolean handleMultipleValues=true;
+
+	/**
+	 * The events of the current write batch on a thread, by path
+	 */
+	private static class Batch {
+		int depth;
+		long revision;
+		final Map<String, PathEvent> events = new LinkedHashMap<String, PathEvent>();
+	}
     
   	 /**
      * Create a new Model
@@ -116,6 +159,19 @@ public class SignalKModelImpl  implements SignalKModel {
         this.attrMap = AttrMapFactory.getInstance();
 	}
 
+    /**
+     * Create a new model over the provided backing map, used by subclasses with their own store.
+     * The map is used directly, not copied.
+     * @param root
+     * @param handleMultipleValues
+     */
+    protected SignalKModelImpl(NavigableMap<String,Object> root, boolean handleMultipleValues) {
+    	this.handleMultipleValues=handleMultipleValues;
+    	this.separator = '.';
+    	this.root = root;
+    	this.attrMap = AttrMapFactory.getInstance();
+    }
+
 	/**
      * Return the hierarchy separator
      */
@@ -133,6 +189,26 @@ public class SignalKModelImpl  implements SignalKModel {
      * @return
      */
     private boolean doPut(String key, Object val) {
+        checkLeaf(key);
+        //meta.zones array
+        if (!val.equals(root.put(key, val))) {
+        	if(logger.isDebugEnabled())logger.debug("doPut "+key+"="+val);
+        	//for .source
+        	
+        	fireEvent(key, PathEvent.EventType.ADD);
+        	
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the key is a valid leaf, not conflicting with a branch
+     * @param key
+     * @throws IllegalArgumentException if the key conflicts
+     */
+    protected void checkLeaf(String key) throws IllegalArgumentException {
         // If val = "aa.bb.cc", fail if map contains "aa.bb" or "aa.bb.cc.dd"
         String othkey = root.lowerKey(key);
         if (othkey != null && key.startsWith(othkey) && key.charAt(othkey.length()) == separator) {
@@ -144,17 +220,95 @@ public class SignalKModelImpl  implements SignalKModel {
         	if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
             throw new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
         }
-        //meta.zones array
-        if (!val.equals(root.put(key, val))) {
-        	if(logger.isDebugEnabled())logger.debug("doPut "+key+"="+val);
-        	//for .source
-        	
-        	eventBus.post(new PathEvent(key, nextrevision, PathEvent.EventType.ADD));
-        	
+    }
+
+    /**
+     * Put a numeric value, as doPut
+     * @param key
+     * @param val
+     * @return
+     */
+    private boolean doPutDouble(String key, double val) {
+        checkLeaf(key);
+        if (storeDouble(key, val)) {
+        	if(logger.isDebugEnabled())logger.debug("doPutDouble "+key+"="+val);
+        	fireEvent(key, PathEvent.EventType.ADD);
             return true;
-        } else {
-            return false;
         }
+        return false;
+    }
+
+    /**
+     * Stores a numeric value, the skip list holds it as a Double
+     * @param key
+     * @param val
+     * @return true if the value changed
+     */
+    protected boolean storeDouble(String key, double val) {
+    	Double boxed = val;
+    	return !boxed.equals(root.put(key, boxed));
+    }
+
+    /**
+     * Reads a numeric value
+     * @param key
+     * @return the value or NaN
+     */
+    protected double loadDouble(String key) {
+    	Object object = root.get(key);
+    	if (object instanceof Number) return ((Number) object).doubleValue();
+    	return Double.NaN;
+    }
+
+    /**
+     * Records the change at the next revision and adds it to the current batch for the ChangeBus
+     * @param key
+     * @param type
+     */
+    private void fireEvent(String key, PathEvent.EventType type) {
+    	long revision = changeLog.add(key, type);
+    	if(!changeBus.hasSubscribers())return;
+    	dispatch(new PathEvent(key, revision, type));
+    }
+
+    /**
+     * Adds the event to the current batch for the ChangeBus, or publishes it if there is no batch
+     * @param event
+     */
+    private void dispatch(PathEvent event) {
+    	if(changeBus.hasSubscribers()){
+    		Batch batch = batches.get();
+    		if(batch==null || batch.depth==0){
+    			changeBus.publish(new ChangeSet(new PathEvent[]{event}, event.getModelRevision()));
+    		}else{
+    			batch.revision = event.getModelRevision();
+    			//keep the first position of the path, with the latest event
+    			batch.events.put(event.getPath(), event);
+    		}
+    	}
+    }
+
+    @Override
+    public void beginBatch() {
+    	Batch batch = batches.get();
+    	if(batch==null){
+    		//batches are only needed to coalesce events for the ChangeBus
+    		if(!changeBus.hasSubscribers())return;
+    		batch = new Batch();
+    		batches.set(batch);
+    	}
+    	batch.depth++;
+    }
+
+    @Override
+    public void endBatch() {
+    	Batch batch = batches.get();
+    	//unmatched if the first subscriber arrived during the batch
+    	if(batch==null || batch.depth==0)return;
+    	if(--batch.depth>0 || batch.events.isEmpty())return;
+    	PathEvent[] events = batch.events.values().toArray(new PathEvent[batch.events.size()]);
+    	batch.events.clear();
+    	changeBus.publish(new ChangeSet(events, batch.revision));
     }
 
     private boolean doDelete(String key,NavigableMap<String, Object> map ) {
@@ -166,7 +320,7 @@ public class SignalKModelImpl  implements SignalKModel {
             String mapkey = i.next();
             if (mapkey.startsWith(key) && (mapkey.length() == key.length() || mapkey.charAt(key.length()) == separator)) {
             	if(logger.isDebugEnabled())logger.debug("Delete key "+mapkey);
-            	eventBus.post(new PathEvent(mapkey, nextrevision ,PathEvent.EventType.DEL));
+            	fireEvent(mapkey, PathEvent.EventType.DEL);
                 i.remove();
                 found = true;
             } else {
@@ -218,41 +372,111 @@ public class SignalKModelImpl  implements SignalKModel {
 
 	@Override
 	public boolean put(String key, Object val, String src, String ts) throws IllegalArgumentException {
-		key = fixSelfKey(key);
-		if(val == null){
-    		//TODO: we delete the val, and the values equiv, then promote the next values object
-    		return doDelete(key, root);
+		beginBatch();
+		try{
+			key = fixSelfKey(key);
+			if(val == null){
+	    		//TODO: we delete the val, and the values equiv, then promote the next values object
+	    		return doDelete(key, root);
+			}
+			if(StringUtils.isBlank(src)) src=UNKNOWN;
+		
+			boolean success = putValues(key, val, src, ts);
+			String curSource = (String) root.get(key+dot+sourceRef);
+			if(logger.isDebugEnabled())logger.debug("Put current val "+key+"="+val+", curSource="+curSource+", ts="+ts);
+			if( (StringUtils.isBlank(curSource)||StringUtils.equals(curSource, src))){
+				boolean result=doPut(key+dot+value, val);
+			
+				if(ts!=null){
+					result=result&& doPut(key+dot+timestamp, ts);
+				}
+				return result&&doPut(key+dot+sourceRef, src);
+			}
+			return success;
+		}finally{
+			endBatch();
+		}
+	}
+	
+	@Override
+	public PathHandle getHandle(String key) {
+		return new PathHandle(fixSelfKey(key));
+	}
+
+	@Override
+	public boolean put(PathHandle handle, Object val, String src, String ts) throws IllegalArgumentException {
+		beginBatch();
+		try{
+			if(val == null){
+	    		return doDelete(handle.getPath(), root);
+			}
+			return putWithSource(handle, val, 0, src, ts);
+		}finally{
+			endBatch();
 		}
+	}
+
+	@Override
+	public boolean putDouble(String key, double val, String src, String ts) throws IllegalArgumentException {
+		return putDouble(new PathHandle(fixSelfKey(key)), val, src, ts);
+	}
+
+	@Override
+	public boolean putDouble(PathHandle handle, double val, String src, String ts) throws IllegalArgumentException {
+		beginBatch();
+		try{
+			return putWithSource(handle, null, val, src, ts);
+		}finally{
+			endBatch();
+		}
+	}
+
+	/**
+	 * Puts val, or the number if val is null, with its source and timestamp, and into the values for the source.
+	 */
+	private boolean putWithSource(PathHandle handle, Object val, double number, String src, String ts) {
 		if(StringUtils.isBlank(src)) src=UNKNOWN;
 		
-		boolean success = putValues(key, val, src, ts);
-		String curSource = (String) root.get(key+dot+sourceRef);
-		if(logger.isDebugEnabled())logger.debug("Put current val "+key+"="+val+", curSource="+curSource+", ts="+ts);
+		boolean success = true;
+		if(handleMultipleValues){
+			PathHandle vHandle = handle.getValues(src);
+			success=(val!=null) ? doPut(vHandle.getValueKey(), val) : doPutDouble(vHandle.getValueKey(), number);
+			if(ts!=null){
+				success=success&& doPut(vHandle.getTimestampKey(), ts);
+			}
+			success=success&&doPut(vHandle.getSourceRefKey(), src);
+		}
+		String curSource = (String) root.get(handle.getSourceRefKey());
+		if(logger.isDebugEnabled())logger.debug("Put current val "+handle+"="+(val!=null ? val : number)+", curSource="+curSource+", ts="+ts);
 		if( (StringUtils.isBlank(curSource)||StringUtils.equals(curSource, src))){
-			boolean result=doPut(key+dot+value, val);
-			
+			boolean result=(val!=null) ? doPut(handle.getValueKey(), val) : doPutDouble(handle.getValueKey(), number);
 			if(ts!=null){
-				result=result&& doPut(key+dot+timestamp, ts);
+				result=result&& doPut(handle.getTimestampKey(), ts);
 			}
-			return result&&doPut(key+dot+sourceRef, src);
+			return result&&doPut(handle.getSourceRefKey(), src);
 		}
 		return success;
 	}
-	
+
 	@Override
 	public boolean putSource(String key, Object val, String ts) throws IllegalArgumentException {
-		key = sources+dot+key;
-		key = fixSelfKey(key);
-		if(val == null){
-    		//TODO: we delete the val, and the values equiv, then promote the next values object
-    		return doDelete(key, root);
-		}
-		boolean result=doPut(key+dot+value, val);
-		if(ts!=null){
-			result=result&& doPut(key+dot+timestamp, ts);
-		}
-		return result;
+		beginBatch();
+		try{
+			key = sources+dot+key;
+			key = fixSelfKey(key);
+			if(val == null){
+	    		//TODO: we delete the val, and the values equiv, then promote the next values object
+	    		return doDelete(key, root);
+			}
+			boolean result=doPut(key+dot+value, val);
+			if(ts!=null){
+				result=result&& doPut(key+dot+timestamp, ts);
+			}
+			return result;
 	
+		}finally{
+			endBatch();
+		}
 	}
     
 
@@ -283,9 +507,62 @@ public class SignalKModelImpl  implements SignalKModel {
     @Override
 	public Object get(String key) {
     	key = fixSelfKey(key);
-    	return nullFix(root.get(key));
+    	return nullFix(read(key));
     }
     
+    @Override
+    public double getDouble(String key) {
+    	return readDouble(fixSelfKey(key));
+    }
+
+    @Override
+    public double getDouble(PathHandle handle) {
+    	return readDouble(handle.getPath());
+    }
+
+    @Override
+    public double getValueDouble(String key) {
+    	return readDouble(fixSelfKey(key)+dot+value);
+    }
+
+    @Override
+    public double getValueDouble(PathHandle handle) {
+    	return readDouble(handle.getValueKey());
+    }
+
+    /**
+     * Reads a value, waiting for a putAll in progress so it is never read half applied.
+     * The optimistic read costs no more than a volatile read when no delta is being written.
+     * @param key
+     * @return
+     */
+    private Object read(String key) {
+    	long stamp = deltaLock.tryOptimisticRead();
+    	Object val = root.get(key);
+    	if(deltaLock.validate(stamp))return val;
+    	stamp = deltaLock.readLock();
+    	try{
+    		return root.get(key);
+    	}finally{
+    		deltaLock.unlockRead(stamp);
+    	}
+    }
+
+    /**
+     * As read(key), for a numeric value
+     */
+    private double readDouble(String key) {
+    	long stamp = deltaLock.tryOptimisticRead();
+    	double val = loadDouble(key);
+    	if(deltaLock.validate(stamp))return val;
+    	stamp = deltaLock.readLock();
+    	try{
+    		return loadDouble(key);
+    	}finally{
+    		deltaLock.unlockRead(stamp);
+    	}
+    }
+
     /**
      * ConcurrentSkipList cant store nulls so we store "null". Fix that here
      * @param object
@@ -307,7 +584,7 @@ public class SignalKModelImpl  implements SignalKModel {
        @Override
    	public Object getValue(String key) {
     	   key = fixSelfKey(key);
-           return nullFix(root.get(key+dot+value));
+           return nullFix(read(key+dot+value));
        }
 
     /* (non-Javadoc)
@@ -328,6 +605,27 @@ public class SignalKModelImpl  implements SignalKModel {
         return root.subMap(key, true, key+".\uFFFD", true);
     }
 
+    @Override
+    public long readLock() {
+    	return deltaLock.readLock();
+    }
+
+    @Override
+    public void unlockRead(long stamp) {
+    	deltaLock.unlockRead(stamp);
+    }
+
+    @Override
+    public NavigableMap<String, Object> copySubMap(String key) {
+    	key = fixSelfKey(key);
+    	long stamp = deltaLock.readLock();
+    	try{
+    		return new TreeMap<String, Object>(root.subMap(key, true, key+".\uFFFD", true));
+    	}finally{
+    		deltaLock.unlockRead(stamp);
+    	}
+    }
+
 
     /* (non-Javadoc)
 	 * @see nz.co.fortytwo.signalk.model.impl.SignalKModel#getEventBus()
@@ -336,6 +634,39 @@ public class SignalKModelImpl  implements SignalKModel {
 	public EventBus getEventBus() {
 		return eventBus;
 	}
+
+    @Override
+    public long getRevision() {
+    	return changeLog.getRevision();
+    }
+
+    @Override
+    public ChangeSet getChangesSince(long revision) {
+    	return changeLog.getChangesSince(revision);
+    }
+
+    @Override
+    public ChangeBus getChangeBus() {
+    	return changeBus;
+    }
+
+    @Override
+    public synchronized void setPostPathEvents(boolean postPathEvents) {
+    	if(postPathEvents && eventBridge==null){
+    		//block rather than drop, EventBus subscribers expect every change
+    		eventBridge = changeBus.subscribe(new ChangeListener() {
+				@Override
+				public void onChange(ChangeSet changes) {
+					for(PathEvent event : changes.getEvents()){
+						eventBus.post(event);
+					}
+				}
+			}, EVENT_BRIDGE_QUEUE, OverflowPolicy.BLOCK);
+    	}else if(!postPathEvents && eventBridge!=null){
+    		eventBridge.close();
+    		eventBridge = null;
+    	}
+    }
     /* (non-Javadoc)
 	 * @see nz.co.fortytwo.signalk.model.impl.SignalKModel#getKeys()
 	 */
@@ -365,23 +696,227 @@ public class SignalKModelImpl  implements SignalKModel {
             return root.toString();
     }
 
+	/**
+	 * Applies the map as one delta. Null or ObjectUtils.NULL values delete their subtree, and the deletes are
+	 * applied before the writes, so a delta can replace a branch with a leaf. The whole delta is checked first,
+	 * if any value or key is invalid nothing is written.
+	 * The changes are published as one ChangeSet, after the delta is complete.
+	 * Only the reads that take the delta lock, get, getValue, getDouble, copySubMap and readers holding readLock(),
+	 * never see a delta half applied. The live views are not locked.
+	 */
 	@Override
 	public boolean putAll(SortedMap<String, Object> map) {
 		if(logger.isDebugEnabled())logger.debug("putAll: "+map);
+		NavigableMap<String, Object> delta = toDelta(map);
+		NavigableSet<String> deletes = new TreeSet<String>(root.comparator());
+		for(Entry<String, Object> entry : delta.entrySet()){
+			Object val = entry.getValue();
+			if(isDelete(val)){
+				deletes.add(entry.getKey());
+			}else if(!(val instanceof Boolean || val instanceof Number || val instanceof String
+					|| (val instanceof Json && ((Json)val).isArray()))){
+				if(logger.isDebugEnabled())logger.debug("Must be String, Number,Boolean or null : "+val.getClass()+":"+val);
+				throw new IllegalArgumentException("Must be String, Number,Boolean or null : "+val.getClass()+":"+val);
+			}
+		}
+		List<PathEvent> events = changeBus.hasSubscribers() ? new ArrayList<PathEvent>() : null;
 		boolean success = true;
-		for(String key :map.keySet()){
-			if(logger.isDebugEnabled())logger.debug("Adding "+key+"="+map.get(key));
-			boolean s = put(key,map.get(key));
-			success = success && s;
+		beginBatch();
+		try{
+			long stamp = deltaLock.writeLock();
+			try{
+				checkWrites(delta);
+				checkDelta(delta, deletes);
+				for(String key : deletes){
+					boolean s = deleteTree(key, events);
+					success = success && s;
+				}
+				for(Entry<String, Object> entry : delta.entrySet()){
+					Object val = entry.getValue();
+					if(isDelete(val))continue;
+					if(!val.equals(root.put(entry.getKey(), val))){
+						long revision = changeLog.add(entry.getKey(), PathEvent.EventType.ADD);
+						if(events!=null)events.add(new PathEvent(entry.getKey(), revision, PathEvent.EventType.ADD));
+					}else{
+						success = false;
+					}
+				}
+			}finally{
+				deltaLock.unlockWrite(stamp);
+			}
+			//outside the lock, the batch is published at endBatch
+			if(events!=null){
+				for(PathEvent event : events){
+					dispatch(event);
+				}
+			}
+			if(logger.isTraceEnabled())logger.trace("putAll done: "+this);
+			return success;
+		}finally{
+			endBatch();
 		}
-		if(logger.isTraceEnabled())logger.trace("putAll done: "+this);
-		return success;
+	}
+
+	/**
+	 * The map with its self keys fixed, in the order of the model keys. The map itself if it already is.
+	 */
+	@SuppressWarnings("unchecked")
+	private NavigableMap<String, Object> toDelta(SortedMap<String, Object> map) {
+		TreeMap<String, Object> copy = null;
+		if(!(map instanceof NavigableMap) || !Objects.equals(map.comparator(), root.comparator())){
+			copy = new TreeMap<String, Object>(root.comparator());
+		}
+		for(Entry<String, Object> entry : map.entrySet()){
+			String key = fixSelfKey(entry.getKey());
+			if(copy==null && !key.equals(entry.getKey())){
+				copy = new TreeMap<String, Object>(root.comparator());
+				copy.putAll(map.headMap(entry.getKey()));
+			}
+			if(copy!=null)copy.put(key, entry.getValue());
+		}
+		return copy!=null ? copy : (NavigableMap<String, Object>) map;
+	}
+
+	private static boolean isDelete(Object val) {
+		return val == null || ObjectUtils.NULL.equals(val);
+	}
+
+	/**
+	 * Removes the key and its subtree, logging the changes and adding the events to the list, if not null
+	 */
+	private boolean deleteTree(String key, List<PathEvent> events) {
+		boolean found = false;
+		for (Iterator<String> i = getKeys().subSet(key, true, key+".\uFFFD", true).iterator();i.hasNext();) {
+			String mapkey = i.next();
+			if (!isPath(mapkey, key)) break;
+			long revision = changeLog.add(mapkey, PathEvent.EventType.DEL);
+			if(events!=null)events.add(new PathEvent(mapkey, revision, PathEvent.EventType.DEL));
+			i.remove();
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Checks the writes of a delta do not conflict with each other. Keys sharing a prefix are contiguous
+	 * in sorted order, so a stack of the open prefixes is enough.
+	 * @param delta
+	 * @throws IllegalArgumentException if a write is below another write
+	 */
+	private void checkWrites(NavigableMap<String, Object> delta) throws IllegalArgumentException {
+		Deque<String> open = new ArrayDeque<String>();
+		for(Entry<String, Object> entry : delta.entrySet()){
+			if(isDelete(entry.getValue()))continue;
+			String key = entry.getKey();
+			while(!open.isEmpty() && !key.startsWith(open.peek())){
+				open.pop();
+			}
+			for(String other : open){
+				if(isBelow(key, other)){
+					if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" with \""+other+"\"");
+					throw new IllegalArgumentException("Can't insert key \""+key+"\" with \""+other+"\"");
+				}
+			}
+			open.push(key);
+		}
+	}
+
+	/**
+	 * Checks the writes of a delta against the model less the subtrees the delta deletes,
+	 * as checkLeaf does for one key, in one pass over the sorted model keys. The pass seeks
+	 * rather than scans across long runs of keys the delta does not touch.
+	 * Called with the delta lock held.
+	 * @param delta the delta, in the order of the model keys
+	 * @param deletes the deleted keys
+	 * @throws IllegalArgumentException if a write conflicts
+	 */
+	protected void checkDelta(NavigableMap<String, Object> delta, NavigableSet<String> deletes) throws IllegalArgumentException {
+		Comparator<? super String> order = delta.comparator();
+		Iterator<String> cursor = null;
+		// the last model key before key, and the next one after it
+		String lower = null;
+		String higher = null;
+		for(Entry<String, Object> entry : delta.entrySet()){
+			if(isDelete(entry.getValue()))continue;
+			String key = entry.getKey();
+			int steps = 0;
+			while(cursor!=null && higher!=null && compare(order, higher, key)<0 && steps++<MAX_SCAN){
+				lower = higher;
+				higher = nextLive(cursor, deletes);
+			}
+			if(cursor==null || (higher!=null && compare(order, higher, key)<0)){
+				lower = root.lowerKey(key);
+				while(lower!=null && isDeleted(lower, deletes)){
+					lower = root.lowerKey(lower);
+				}
+				cursor = getKeys().tailSet(key, true).iterator();
+				higher = nextLive(cursor, deletes);
+			}
+			if(lower!=null && isBelow(key, lower)){
+				throw conflict(key, lower);
+			}
+			if(higher!=null && higher.equals(key)){
+				lower = higher;
+				higher = nextLive(cursor, deletes);
+			}
+			if(higher!=null && isBelow(higher, key)){
+				throw conflict(key, higher);
+			}
+		}
+	}
+
+	private static int compare(Comparator<? super String> order, String a, String b) {
+		return order==null ? a.compareTo(b) : order.compare(a, b);
+	}
+
+	private static String nextLive(Iterator<String> cursor, NavigableSet<String> deletes) {
+		while(cursor.hasNext()){
+			String key = cursor.next();
+			if(!isDeleted(key, deletes))return key;
+		}
+		return null;
+	}
+
+	protected IllegalArgumentException conflict(String key, String othkey) {
+		if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+		return new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+	}
+
+	/**
+	 * @return true if key is parent or below it
+	 */
+	protected static boolean isPath(String key, String parent) {
+		return key.startsWith(parent) && (key.length() == parent.length() || key.charAt(parent.length()) == '.');
+	}
+
+	/**
+	 * @return true if key is strictly below parent
+	 */
+	protected static boolean isBelow(String key, String parent) {
+		return key.length() > parent.length() && key.startsWith(parent) && key.charAt(parent.length()) == '.';
+	}
+
+	/**
+	 * @return true if key is one of the deletes or below one
+	 */
+	protected static boolean isDeleted(String key, NavigableSet<String> deletes) {
+		if(deletes.isEmpty())return false;
+		if(deletes.contains(key))return true;
+		for(int i = key.indexOf('.'); i > 0; i = key.indexOf('.', i + 1)){
+			if(deletes.contains(key.substring(0, i)))return true;
+		}
+		return false;
 	}
 
 	@Override
 	public boolean putValue(String key, Object val) {
-		fixSelfKey(key);
-		return put(key+dot+value, val);
+		beginBatch();
+		try{
+			fixSelfKey(key);
+			return put(key+dot+value, val);
+		}finally{
+			endBatch();
+		}
 	}
 
 	@Override
@@ -393,13 +928,33 @@ public class SignalKModelImpl  implements SignalKModel {
 	@Override
 	public void putPosition(String key, double lat, double lon,
 			double altitude, String srcRef, String ts) {
-		fixSelfKey(key);
-		doPut(key + dot+ sourceRef, srcRef);
-		doPut(key+ dot+LATITUDE, lat);
-		doPut(key+ dot + LONGITUDE, lon);
-		doPut(key+ dot+ ALTITUDE, altitude);
-		doPut(key+dot+timestamp,ts);
+		beginBatch();
+		try{
+			fixSelfKey(key);
+			doPut(key + dot+ sourceRef, srcRef);
+			doPut(key+ dot+LATITUDE, lat);
+			doPut(key+ dot + LONGITUDE, lon);
+			doPut(key+ dot+ ALTITUDE, altitude);
+			doPut(key+dot+timestamp,ts);
 		
+		}finally{
+			endBatch();
+		}
+	}
+
+	@Override
+	public void putPosition(PathHandle handle, double lat, double lon,
+			double altitude, String srcRef, String ts) {
+		beginBatch();
+		try{
+			doPut(handle.getSourceRefKey(), srcRef);
+			doPut(handle.getChildKey(LATITUDE), lat);
+			doPut(handle.getChildKey(LONGITUDE), lon);
+			doPut(handle.getChildKey(ALTITUDE), altitude);
+			doPut(handle.getTimestampKey(),ts);
+		}finally{
+			endBatch();
+		}
 	}
 
 	@Override
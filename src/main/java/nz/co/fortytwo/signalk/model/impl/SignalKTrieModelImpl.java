@@ -0,0 +1,147 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * <p>
+ * A SignalKModel stored in a {@link PathTrie} of interned path segments rather than a flat skip list of full keys.
+ * Behaves as {@link SignalKModelImpl}, but shares common path prefixes, checks leaf/branch conflicts
+ * by walking the path, and returns getTree/getSubMap views directly from the subtree node.
+ * Double values are kept unboxed in the trie nodes, so {@link #getDouble(String)} and
+ * {@link #putDouble(String, double, String, String)} do not box.
+ * </p><p>
+ * Paths that are written repeatedly can be resolved once with {@link #getNode(String)} and the node kept.
+ * </p>
+ */
+public class SignalKTrieModelImpl extends SignalKModelImpl {
+
+	private static Logger logger = LogManager.getLogger(SignalKTrieModelImpl.class);
+	private final PathTrie trie;
+
+	/**
+	 * Create a new Model
+	 */
+	public SignalKTrieModelImpl() {
+		this(new PathTrie(), true);
+	}
+
+	public SignalKTrieModelImpl(boolean handleMultipleValues) {
+		this(new PathTrie(), handleMultipleValues);
+	}
+
+	/**
+	 * Create a new model from the provided sublist.
+	 * @param root
+	 */
+	public SignalKTrieModelImpl(NavigableMap<String, Object> root) {
+		this(new PathTrie(root), true);
+	}
+
+	private SignalKTrieModelImpl(PathTrie trie, boolean handleMultipleValues) {
+		super(trie, handleMultipleValues);
+		this.trie = trie;
+	}
+
+	@Override
+	protected void checkLeaf(String key) throws IllegalArgumentException {
+		String othkey = trie.findConflict(key);
+		if (othkey != null) {
+			if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+			throw new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+		}
+	}
+
+	/**
+	 * Checks each write with the trie walk of checkLeaf, the sorted range operations of the trie are snapshots.
+	 * Only a conflict inside a deleted subtree needs a closer look.
+	 */
+	@Override
+	protected void checkDelta(NavigableMap<String, Object> delta, NavigableSet<String> deletes) throws IllegalArgumentException {
+		for (Entry<String, Object> entry : delta.entrySet()) {
+			Object val = entry.getValue();
+			if (val == null || ObjectUtils.NULL.equals(val)) continue;
+			String key = entry.getKey();
+			String othkey = trie.findConflict(key);
+			if (othkey != null && isDeleted(othkey, deletes)) {
+				othkey = findLiveConflict(key, deletes);
+			}
+			if (othkey != null) {
+				throw conflict(key, othkey);
+			}
+		}
+	}
+
+	private String findLiveConflict(String key, NavigableSet<String> deletes) {
+		for (int i = key.indexOf('.'); i > 0; i = key.indexOf('.', i + 1)) {
+			String parent = key.substring(0, i);
+			if (trie.containsKey(parent) && !isDeleted(parent, deletes)) return parent;
+		}
+		for (String othkey : trie.subMap(key, true, key + ".\uFFFD", true).keySet()) {
+			if (isBelow(othkey, key) && !isDeleted(othkey, deletes)) return othkey;
+		}
+		return null;
+	}
+
+	/**
+	 * Numeric values are kept in the primitive slot of the trie node
+	 */
+	@Override
+	protected boolean storeDouble(String key, double val) {
+		return trie.putDouble(trie.getNode(key, true), val);
+	}
+
+	@Override
+	protected double loadDouble(String key) {
+		return trie.getDouble(key);
+	}
+
+	/**
+	 * Resolve the trie node for a key, creating it if needed. The node can be kept and reused,
+	 * see {@link PathTrie#getNode(String, boolean)}.
+	 * Values written directly to a node bypass the model checks and events.
+	 * @param key
+	 * @return
+	 */
+	public PathTrie.Node getNode(String key) {
+		return trie.getNode(Util.fixSelfKey(key), true);
+	}
+
+	/**
+	 * The backing trie
+	 * @return
+	 */
+	public PathTrie getTrie() {
+		return trie;
+	}
+}
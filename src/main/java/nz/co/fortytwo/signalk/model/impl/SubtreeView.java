@@ -0,0 +1,323 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A read-only view of some subtrees of a live model map.
+ * <p>
+ * Lookups and iteration go straight to the backing map, restricted to the keys that are a root
+ * or below one, so nothing is copied. Range and navigation operations are answered from a sorted
+ * copy of the view, which is the size of the result rather than the model.
+ *
+ * @author robert
+ *
+ */
+public class SubtreeView extends AbstractMap<String, Object> implements NavigableMap<String, Object> {
+
+	private static final String SUBTREE_END = ".\uFFFD";
+	private static final char SEPARATOR = '.';
+
+	private final NavigableMap<String, Object> source;
+	private final Set<String> roots;
+	// merged, ascending [from, to] ranges of the backing map that hold the roots
+	private final List<String[]> ranges = new ArrayList<String[]>();
+
+	/**
+	 * @param source the live map
+	 * @param roots the subtree roots, overlapping roots are allowed
+	 */
+	public SubtreeView(NavigableMap<String, Object> source, Collection<String> roots) {
+		this.source = source;
+		this.roots = new HashSet<String>(roots);
+		NavigableSet<String> sorted = new TreeSet<String>(source.comparator());
+		sorted.addAll(roots);
+		String[] last = null;
+		for (String root : sorted) {
+			String to = root + SUBTREE_END;
+			if (last != null && compare(root, last[1]) <= 0) {
+				if (compare(to, last[1]) > 0) last[1] = to;
+				continue;
+			}
+			last = new String[] { root, to };
+			ranges.add(last);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(String a, String b) {
+		Comparator<? super String> c = source.comparator();
+		return c == null ? ((Comparable<String>) a).compareTo(b) : c.compare(a, b);
+	}
+
+	/**
+	 * @param key
+	 * @return true if key is a root or below one
+	 */
+	public boolean isCovered(String key) {
+		if (roots.contains(key)) return true;
+		for (int i = key.lastIndexOf(SEPARATOR); i > 0; i = key.lastIndexOf(SEPARATOR, i - 1)) {
+			if (roots.contains(key.substring(0, i))) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String) || !isCovered((String) key)) return null;
+		return source.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, Object>> {
+		private final Iterator<String[]> range = ranges.iterator();
+		private Iterator<Entry<String, Object>> it = Collections.<Entry<String, Object>> emptyList().iterator();
+		private Entry<String, Object> next;
+
+		EntryIterator() {
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null) {
+				while (!it.hasNext()) {
+					if (!range.hasNext()) return;
+					String[] r = range.next();
+					it = source.subMap(r[0], true, r[1], true).entrySet().iterator();
+				}
+				Entry<String, Object> e = it.next();
+				if (isCovered(e.getKey())) {
+					next = new SimpleImmutableEntry<String, Object>(e);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (next == null) throw new NoSuchElementException();
+			Entry<String, Object> e = next;
+			advance();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Read only view");
+		}
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new AbstractSet<Entry<String, Object>>() {
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				int size = 0;
+				for (Iterator<Entry<String, Object>> it = iterator(); it.hasNext(); it.next()) {
+					size++;
+				}
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !new EntryIterator().hasNext();
+	}
+
+	/**
+	 * Returns a read-only sorted copy, used for the range operations.
+	 */
+	private NavigableMap<String, Object> snapshot() {
+		TreeMap<String, Object> copy = new TreeMap<String, Object>(source.comparator());
+		for (Iterator<Entry<String, Object>> it = new EntryIterator(); it.hasNext();) {
+			Entry<String, Object> e = it.next();
+			copy.put(e.getKey(), e.getValue());
+		}
+		return Collections.unmodifiableNavigableMap(copy);
+	}
+
+	@Override
+	public Comparator<? super String> comparator() {
+		return source.comparator();
+	}
+
+	@Override
+	public Entry<String, Object> firstEntry() {
+		Iterator<Entry<String, Object>> it = new EntryIterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public String firstKey() {
+		Entry<String, Object> e = firstEntry();
+		if (e == null) throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	@Override
+	public Entry<String, Object> lastEntry() {
+		return snapshot().lastEntry();
+	}
+
+	@Override
+	public String lastKey() {
+		return snapshot().lastKey();
+	}
+
+	@Override
+	public Entry<String, Object> pollFirstEntry() {
+		throw new UnsupportedOperationException("Read only view");
+	}
+
+	@Override
+	public Entry<String, Object> pollLastEntry() {
+		throw new UnsupportedOperationException("Read only view");
+	}
+
+	@Override
+	public Entry<String, Object> lowerEntry(String key) {
+		return snapshot().lowerEntry(key);
+	}
+
+	@Override
+	public String lowerKey(String key) {
+		return snapshot().lowerKey(key);
+	}
+
+	@Override
+	public Entry<String, Object> floorEntry(String key) {
+		return snapshot().floorEntry(key);
+	}
+
+	@Override
+	public String floorKey(String key) {
+		return snapshot().floorKey(key);
+	}
+
+	@Override
+	public Entry<String, Object> ceilingEntry(String key) {
+		return snapshot().ceilingEntry(key);
+	}
+
+	@Override
+	public String ceilingKey(String key) {
+		return snapshot().ceilingKey(key);
+	}
+
+	@Override
+	public Entry<String, Object> higherEntry(String key) {
+		return snapshot().higherEntry(key);
+	}
+
+	@Override
+	public String higherKey(String key) {
+		return snapshot().higherKey(key);
+	}
+
+	@Override
+	public NavigableSet<String> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<String> navigableKeySet() {
+		return snapshot().navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<String, Object> descendingMap() {
+		return snapshot().descendingMap();
+	}
+
+	@Override
+	public NavigableSet<String> descendingKeySet() {
+		return snapshot().descendingKeySet();
+	}
+
+	@Override
+	public NavigableMap<String, Object> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		// a subtree inside the view is another view
+		if (fromInclusive && toInclusive && toKey.equals(fromKey + SUBTREE_END) && isCovered(fromKey)) {
+			return new SubtreeView(source, Collections.singleton(fromKey));
+		}
+		return snapshot().subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<String, Object> headMap(String toKey, boolean inclusive) {
+		return snapshot().headMap(toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<String, Object> tailMap(String fromKey, boolean inclusive) {
+		return snapshot().tailMap(fromKey, inclusive);
+	}
+
+	@Override
+	public SortedMap<String, Object> subMap(String fromKey, String toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> headMap(String toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> tailMap(String fromKey) {
+		return tailMap(fromKey, true);
+	}
+}
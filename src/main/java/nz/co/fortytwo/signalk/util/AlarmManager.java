@@ -7,6 +7,10 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.message;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 
@@ -15,58 +19,265 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 public class AlarmManager {
 	private static Logger logger = LogManager.getLogger(AlarmManager.class);
 	private Json zones;
+	// the zones compiled once, in zone order
+	private final double[] lower;
+	private final double[] upper;
+	private final String[] states;
+	private final String[] messages;
+	// sorted distinct zone edges, the zone at each edge, and in each gap below, between and above them
+	private final double[] boundaries;
+	private final int[] pointZones;
+	private final int[] gapZones;
+
+	private final double hysteresis;
+	private final long dwell;
+	// the reported state, and a change waiting out the dwell time
+	private String current;
+	private String currentMessage;
+	private String pending;
+	private String pendingMessage;
+	private long pendingSince;
 
 	public AlarmManager(Json zones){
+		this(zones, 0, 0);
+	}
+
+	/**
+	 * @param zones
+	 * @param hysteresis how far past a zone boundary the value must go, in the value's units, before the state changes
+	 * @param dwell ms a new state must last before it is reported
+	 */
+	public AlarmManager(Json zones, double hysteresis, long dwell){
 		if(!zones.isArray()) throw new IllegalArgumentException("Zones must be a Json array:"+zones);
+		if(!(hysteresis>=0) || dwell<0) throw new IllegalArgumentException("Hysteresis and dwell must be positive: "+hysteresis+", "+dwell);
 		this.zones=zones;
+		this.hysteresis=hysteresis;
+		this.dwell=dwell;
+		List<Json> list = zones.asJsonList();
+		int size = list.size();
+		lower = new double[size];
+		upper = new double[size];
+		states = new String[size];
+		messages = new String[size];
+		for(int i=0;i<size;i++){
+			Json zone = list.get(i);
+			lower[i] = zone.at("lower").asDouble();
+			upper[i] = zone.at("upper").asDouble();
+			states[i] = zone.at("state").asString();
+			messages[i] = zone.has("message") ? zone.at("message").asString() : null;
+		}
+		// the zone edges split the line into points and the gaps between them, each with one state
+		TreeSet<Double> edges = new TreeSet<Double>();
+		for(int i=0;i<size;i++){
+			edges.add(lower[i]);
+			edges.add(upper[i]);
+		}
+		int n = edges.size();
+		boundaries = new double[n];
+		int k=0;
+		for(Double edge : edges){
+			boundaries[k++]=edge;
+		}
+		pointZones = new int[n];
+		gapZones = new int[n+1];
+		for(k=0;k<n;k++){
+			pointZones[k] = zoneFor(boundaries[k]);
+		}
+		for(k=0;k<=n;k++){
+			double below = k==0 ? Double.NEGATIVE_INFINITY : boundaries[k-1];
+			double above = k==n ? Double.POSITIVE_INFINITY : boundaries[k];
+			double mid = k==0 ? above-1 : k==n ? below+1 : below+(above-below)/2;
+			if(Double.isInfinite(mid)) mid = k==0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			gapZones[k] = zoneFor(mid);
+		}
+	}
+
+	/**
+	 * The zone that decides the state by the isNormal/isWarn/isAlarm rules, -1 for none
+	 */
+	private int zoneFor(double val){
+		if(isNormal(val))return first(normal);
+		if(isWarn(val))return first(warn);
+		return alarmZone(val);
+	}
+
+	/**
+	 * Finds the zone for a value in one binary search of the zone edges
+	 * @return the zone index, or -1 if the value is in no zone
+	 */
+	private int lookup(double val){
+		if(Double.isNaN(val) || boundaries.length==0)return -1;
+		int k = Arrays.binarySearch(boundaries, val);
+		return k>=0 ? pointZones[k] : gapZones[-(k+1)];
+	}
+
+	/**
+	 * The zones this was compiled from
+	 */
+	public Json getZones(){
+		return zones;
+	}
+
+	public boolean isEmpty(){
+		return states.length==0;
 	}
 
 	public boolean isNormal(Number value){
-		Double val = value.doubleValue();
-		for(Json zone : zones.asJsonList()){
-			if(normal.equals(zone.at("state").asString())){
-				double low = zone.at("lower").asDouble();
-				double high = zone.at("upper").asDouble();
-				if(Math.min(low, val)==val)return false;
-				if(Math.max(high, val)==val)return false;
-				if(logger.isDebugEnabled())logger.debug("In normal zone:"+value);
-				//its between 
-				return true;
-			}
-		}
-		return false;
+		return isNormal(value.doubleValue());
+	}
+
+	public boolean isNormal(double val){
+		// only the first normal zone counts
+		int i = first(normal);
+		if(i<0)return false;
+		if(Math.min(lower[i], val)==val)return false;
+		if(Math.max(upper[i], val)==val)return false;
+		if(logger.isDebugEnabled())logger.debug("In normal zone:"+val);
+		//its between
+		return true;
 	}
+
 	public boolean isWarn(Number value){
-		Double val = value.doubleValue();
-		for(Json zone : zones.asJsonList()){
-			if(warn.equals(zone.at("state").asString())){
-				double low = zone.at("lower").asDouble();
-				double high = zone.at("upper").asDouble();
-				if(Math.min(low, val)==val)return false;
-				if(Math.max(high, val)==val)return false;
-				//its between 
-				if(logger.isDebugEnabled())logger.debug("In warn zone:"+value);
-				return true;
-			}
-		}
-		return false;
+		return isWarn(value.doubleValue());
+	}
+
+	public boolean isWarn(double val){
+		// only the first warn zone counts
+		int i = first(warn);
+		if(i<0)return false;
+		if(Math.min(lower[i], val)==val)return false;
+		if(Math.max(upper[i], val)==val)return false;
+		//its between
+		if(logger.isDebugEnabled())logger.debug("In warn zone:"+val);
+		return true;
 	}
+
 	public boolean isAlarm(Number value){
-		Double val = value.doubleValue();
-		for(Json zone : zones.asJsonList()){
-			if(alarm.equals(zone.at("state").asString())){
-				if(logger.isDebugEnabled())logger.debug("checking zone:"+zone);
-				double low = zone.at("lower").asDouble();
-				double high = zone.at("upper").asDouble();
-				if(Math.min(low, val)==low && Math.max(high, val)==high){
-					//its between 
-					if(logger.isDebugEnabled())logger.debug("In alarm zone:"+value);
-					return true;
+		return isAlarm(value.doubleValue());
+	}
+
+	public boolean isAlarm(double val){
+		return alarmZone(val)>=0;
+	}
+
+	private int alarmZone(double val){
+		for(int i=0;i<states.length;i++){
+			if(alarm.equals(states[i])){
+				if(Math.min(lower[i], val)==lower[i] && Math.max(upper[i], val)==upper[i]){
+					//its between
+					if(logger.isDebugEnabled())logger.debug("In alarm zone:"+val);
+					return i;
 				}
-				
 			}
 		}
-		return false;
+		return -1;
+	}
+
+	private int first(String state){
+		for(int i=0;i<states.length;i++){
+			if(state.equals(states[i]))return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The state for a value: normal wins over warn, and warn over alarm, where zones overlap.
+	 * @param val
+	 * @return normal, warn or alarm, or null if the value is in no zone
+	 */
+	public String getState(double val){
+		int zone = lookup(val);
+		return zone<0 ? null : states[zone];
+	}
+
+	/**
+	 * The message of the zone that gave the state
+	 * @param val
+	 * @param state from {@link #getState(double)}
+	 * @return the zone message, or the state if the zone has none
+	 */
+	public String getMessage(double val, String state){
+		int i = lookup(val);
+		if(i<0 || !states[i].equals(state)) i = alarm.equals(state) ? alarmZone(val) : first(state);
+		if(i>=0 && messages[i]!=null)return messages[i];
+		return state;
+	}
+
+	/**
+	 * Classifies a new value, applying the hysteresis and dwell time. The first value is reported
+	 * straight away, after that the value must move past a boundary by the hysteresis, and the new
+	 * state must last for the dwell time, before it is reported.
+	 * @param val
+	 * @param now ms
+	 * @return the new state if it changed, else null
+	 */
+	public String update(double val, long now){
+		String state = getState(val);
+		if(state==null || state.equals(current)){
+			// no zone, or back where we were
+			pending=null;
+			return null;
+		}
+		if(current!=null && hysteresis>0
+				&& (current.equals(getState(val-hysteresis)) || current.equals(getState(val+hysteresis)))){
+			// not far enough past the boundary
+			pending=null;
+			return null;
+		}
+		String msg = normal.equals(state) ? null : getMessage(val, state);
+		if(current==null || dwell<=0){
+			return report(state, msg);
+		}
+		if(!state.equals(pending)){
+			pending=state;
+			pendingSince=now;
+		}
+		pendingMessage=msg;
+		return checkPending(now);
+	}
+
+	/**
+	 * Reports a pending change once it has lasted the dwell time, for values that stop changing
+	 * @param now ms
+	 * @return the new state if it changed, else null
+	 */
+	public String checkPending(long now){
+		if(pending==null || now-pendingSince<dwell)return null;
+		return report(pending, pendingMessage);
+	}
+
+	private String report(String state, String msg){
+		if(logger.isDebugEnabled())logger.debug("State change:"+current+" to "+state);
+		current=state;
+		currentMessage=msg;
+		pending=null;
+		return state;
+	}
+
+	public boolean isPending(){
+		return pending!=null;
+	}
+
+	/**
+	 * @return the last reported state, or null
+	 */
+	public String getCurrentState(){
+		return current;
+	}
+
+	/**
+	 * @return the message for the last reported state, null for normal
+	 */
+	public String getCurrentMessage(){
+		return currentMessage;
+	}
+
+	public double getHysteresis(){
+		return hysteresis;
+	}
+
+	public long getDwell(){
+		return dwell;
 	}
 	
 	/**
@@ -80,17 +291,13 @@ public class AlarmManager {
 		int pos = key.indexOf(dot);
 		pos=key.indexOf(dot,pos+1)+1;
 		String alarmKey = key.substring(0,pos)+notifications+dot+key.substring(pos);
-		Object obj = signalkModel.get(alarmKey);
-		if(obj!=null && obj instanceof Json){
-			Json json = ((Json)obj).at(alarmState);
-			if(json!=null && value.equals(json.asString())){
-				//already set return
-				if(logger.isDebugEnabled())logger.debug("Alarm already set for:"+key);
-				return;
-			}
+		if (msg==null)msg="";
+		if(value.equals(signalkModel.get(alarmKey+dot+alarmState)) && msg.equals(signalkModel.get(alarmKey+dot+message))){
+			//already set return
+			if(logger.isDebugEnabled())logger.debug("Alarm already set for:"+key);
+			return;
 		}
 		signalkModel.getFullData().put(alarmKey+dot+alarmState, value);
-		if (msg==null)msg="";
 		signalkModel.getFullData().put(alarmKey+dot+message, msg);
 		if(logger.isDebugEnabled())logger.debug("Alarm set for:"+key+"="+value);
 	}
@@ -67,6 +67,27 @@ public class ConfigConstants {
 	//debug flags
 	public static final String ENABLE_SERIAL = "config.server.serial.enable";
 	
+	//ais targets
+	public static final String AIS_TARGET_TIMEOUT = "config.server.ais.timeout";
+	public static final String AIS_MAX_TARGETS = "config.server.ais.maxTargets";
+	// collision risk, cpa in nm, tcpa in minutes
+	public static final String CPA_ALARM = "config.navigation.collision.cpaAlarm";
+	public static final String CPA_WARN = "config.navigation.collision.cpaWarn";
+	public static final String TCPA_LIMIT = "config.navigation.collision.tcpaLimit";
+	// ms an alarm state must last before it is notified
+	public static final String ALARM_DWELL = "config.server.alarm.dwell";
+	// persist the model as a snapshot and journal, sync interval in ms, compact size in bytes
+	public static final String JOURNAL_ENABLE = "config.server.persist.journal";
+	public static final String JOURNAL_SYNC_INTERVAL = "config.server.persist.syncInterval";
+	public static final String JOURNAL_COMPACT_SIZE = "config.server.persist.compactSize";
+	// record numeric paths to memory-mapped history segments, the paths as a json array, intervals in ms
+	public static final String HISTORY_ENABLE = "config.server.history.enable";
+	public static final String HISTORY_PATHS = "config.server.history.paths";
+	public static final String HISTORY_INTERVAL = "config.server.history.interval";
+	public static final String HISTORY_FLUSH_INTERVAL = "config.server.history.flushInterval";
+	public static final String HISTORY_SEGMENT_ROWS = "config.server.history.segmentRows";
+	public static final String HISTORY_SEGMENTS = "config.server.history.segments";
+	
 	//directories
 	public static final String STATIC_DIR = "config.server.files.static.dir";
 	public static final String MAP_DIR = "config.server.files.maps.dir";
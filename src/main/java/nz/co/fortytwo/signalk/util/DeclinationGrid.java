@@ -0,0 +1,177 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A lazily filled lat/lon grid of declination values from {@link TSAGeoMag}, with bilinear
+ * interpolation inside each cell. The full WMM calculation only runs for grid nodes not yet
+ * known, so a vessel moving inside a cell costs a few multiplications per fix.
+ * <p>
+ * The grid is kept for one decimal year, rounded to yearStep, and is cleared when the year moves on.
+ * Above maxLat the declination changes too fast with longitude to interpolate, so it is calculated directly.
+ *
+ * @author robert
+ *
+ */
+public class DeclinationGrid {
+
+	/** Default cell size in degrees */
+	public static final double DEFAULT_CELL_SIZE = 0.25;
+	/** Default year resolution, the secular change is around 0.1 degree a year */
+	public static final double DEFAULT_YEAR_STEP = 0.1;
+	/** Default latitude limit for the grid */
+	public static final double DEFAULT_MAX_LAT = 80.0;
+
+	// bound the node map for a vessel on a long passage
+	private static final int MAX_NODES = 4096;
+
+	private final TSAGeoMag geoMag;
+	private final double cellSize;
+	private final double yearStep;
+	private final double maxLat;
+	private final int lonCells;
+
+	// node declinations (degrees) by packed lat/lon index
+	private final Map<Long, Double> nodes = new HashMap<Long, Double>();
+	private double year = Double.NaN;
+
+	// the corners of the last cell
+	private long cell = Long.MIN_VALUE;
+	private double d00, d01, d10, d11;
+
+	private long computations;
+
+	public DeclinationGrid() {
+		this(new TSAGeoMag());
+	}
+
+	/**
+	 * @param geoMag the model to fill the grid from, may be shared
+	 */
+	public DeclinationGrid(TSAGeoMag geoMag) {
+		this(geoMag, DEFAULT_CELL_SIZE, DEFAULT_YEAR_STEP, DEFAULT_MAX_LAT);
+	}
+
+	/**
+	 * @param geoMag the model to fill the grid from, may be shared
+	 * @param cellSize in degrees, must divide 360
+	 * @param yearStep the decimal year resolution
+	 * @param maxLat the grid covers -maxLat to maxLat
+	 */
+	public DeclinationGrid(TSAGeoMag geoMag, double cellSize, double yearStep, double maxLat) {
+		if (!(cellSize > 0) || Math.abs(360 / cellSize - Math.rint(360 / cellSize)) > 1e-9) {
+			throw new IllegalArgumentException("Cell size must divide 360 degrees: " + cellSize);
+		}
+		if (!(yearStep > 0)) {
+			throw new IllegalArgumentException("Year step must be positive: " + yearStep);
+		}
+		this.geoMag = geoMag;
+		this.cellSize = cellSize;
+		this.yearStep = yearStep;
+		this.maxLat = Math.min(Math.abs(maxLat), 90);
+		this.lonCells = (int) Math.rint(360 / cellSize);
+	}
+
+	/**
+	 * @param lat degrees
+	 * @param lon degrees
+	 * @param decimalYear
+	 * @return the declination in degrees, at sea level
+	 */
+	public synchronized double getDeclination(double lat, double lon, double decimalYear) {
+		double y = Math.rint(decimalYear / yearStep) * yearStep;
+		if (y != year) {
+			year = y;
+			nodes.clear();
+			cell = Long.MIN_VALUE;
+		}
+		if (Math.abs(lat) > maxLat) {
+			computations++;
+			return geoMag.getDeclination(lat, lon, year, 0.0d);
+		}
+		double fy = (lat + 90) / cellSize;
+		double fx = (normalize(lon) + 180) / cellSize;
+		int i = (int) Math.floor(fy);
+		int j = (int) Math.floor(fx);
+		if (j >= lonCells) j = 0;
+		long key = ((long) i << 32) | j;
+		if (key != cell) {
+			if (nodes.size() > MAX_NODES) nodes.clear();
+			int j1 = (j + 1) % lonCells;
+			d00 = node(i, j);
+			// unwrap the corners against d00, near the magnetic poles they can be either side of 180
+			d01 = unwrap(node(i, j1), d00);
+			d10 = unwrap(node(i + 1, j), d00);
+			d11 = unwrap(node(i + 1, j1), d00);
+			cell = key;
+		}
+		double ty = fy - i;
+		double tx = fx - Math.floor(fx);
+		double d = (1 - ty) * ((1 - tx) * d00 + tx * d01) + ty * ((1 - tx) * d10 + tx * d11);
+		return normalize(d);
+	}
+
+	/**
+	 * @return the number of full WMM calculations so far
+	 */
+	public synchronized long getComputations() {
+		return computations;
+	}
+
+	public synchronized void clear() {
+		nodes.clear();
+		cell = Long.MIN_VALUE;
+		year = Double.NaN;
+	}
+
+	private double node(int i, int j) {
+		long key = ((long) i << 32) | j;
+		Double d = nodes.get(key);
+		if (d == null) {
+			computations++;
+			d = geoMag.getDeclination(Math.min(i * cellSize - 90, 90), j * cellSize - 180, year, 0.0d);
+			nodes.put(key, d);
+		}
+		return d;
+	}
+
+	private static double unwrap(double d, double ref) {
+		if (d - ref > 180) return d - 360;
+		if (ref - d > 180) return d + 360;
+		return d;
+	}
+
+	/**
+	 * @return the angle in [-180, 180)
+	 */
+	private static double normalize(double deg) {
+		if (deg >= -180 && deg < 180) return deg;
+		deg = (deg + 180) % 360;
+		if (deg < 0) deg += 360;
+		return deg - 180;
+	}
+}
@@ -1,8 +1,14 @@
 package nz.co.fortytwo.signalk.util;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -22,6 +28,13 @@ import nz.co.fortytwo.signalk.model.SignalKModel;
 public class JsonSerializer {
 
 	private static Logger logger = LogManager.getLogger(JsonSerializer.class);
+	private static final int BUFFER_SIZE = 8192;
+	private static final String VESSELS_DOT = SignalKConstants.vessels + SignalKConstants.dot;
+	private static final String VALUES_SEG = SignalKConstants.dot + SignalKConstants.values + SignalKConstants.dot;
+	private static final String META_SEG = SignalKConstants.dot + SignalKConstants.meta + SignalKConstants.dot;
+	private static final String ATTR_SEG = SignalKConstants.dot + SignalKConstants.attr;
+	private static final String DOT_SOURCE_REF = SignalKConstants.dot + SignalKConstants.sourceRef;
+	private static final String DOT_TIMESTAMP = SignalKConstants.dot + SignalKConstants.timestamp;
     private String indent=null;
     private StringBuilder curindent = new StringBuilder();
     private DecimalFormat[] df = new DecimalFormat[12]; // Up to 12dp for a number.
@@ -78,14 +91,25 @@ public class JsonSerializer {
      */
     public String write(SignalKModel signalk) throws IOException {
     	StringBuilder buffer = new StringBuilder();
-    	if(signalk!=null && signalk.getFullData()!=null){
-    		write(signalk.getFullData().entrySet().iterator(),'.',buffer);
-    	}else{
+    	if(signalk==null || signalk.getFullData()==null || !writeLocked(signalk, buffer)){
     		buffer.append("{}");
     	}
 		return buffer.toString();
 	}
 
+    /**
+     * Writes the whole model under its read lock, so a putAll is never written half applied
+     * @return true if anything was written
+     */
+    private boolean writeLocked(SignalKModel signalk, Appendable out) throws IOException {
+    	long stamp = signalk.readLock();
+    	try{
+    		return write(signalk.getFullData().entrySet().iterator(),'.',out);
+    	}finally{
+    		signalk.unlockRead(stamp);
+    	}
+    }
+
     /**
      * Export the SortedMap model as a json string
      * @param signalk
@@ -102,6 +126,247 @@ public class JsonSerializer {
 		return buffer.toString();
 	}
 
+    /**
+     * Export the signalk model in the given format straight to the stream as UTF-8, without building the
+     * json in memory. The stream is flushed but not closed.
+     * @param signalk
+     * @param format {@link SignalKConstants#FORMAT_FULL} or {@link SignalKConstants#FORMAT_DELTA}
+     * @param out
+     * @throws IOException
+     */
+    public void write(SignalKModel signalk, String format, OutputStream out) throws IOException {
+    	Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    	write(signalk, format, writer);
+    	writer.flush();
+    }
+
+    /**
+     * Export the signalk model in the given format straight to the channel as UTF-8.
+     * The channel is not closed.
+     * @param signalk
+     * @param format {@link SignalKConstants#FORMAT_FULL} or {@link SignalKConstants#FORMAT_DELTA}
+     * @param channel
+     * @throws IOException
+     */
+    public void write(SignalKModel signalk, String format, WritableByteChannel channel) throws IOException {
+    	Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+    	write(signalk, format, writer);
+    	writer.flush();
+    }
+
+    /**
+     * Export the signalk model in the given format to out. An empty model is written as {} (full) or [] (delta).
+     * The model read lock is held while writing, so a putAll waits for a slow out.
+     * @param signalk
+     * @param format {@link SignalKConstants#FORMAT_FULL} or {@link SignalKConstants#FORMAT_DELTA}
+     * @param out
+     * @throws IOException
+     */
+    public void write(SignalKModel signalk, String format, Appendable out) throws IOException {
+    	if(SignalKConstants.FORMAT_DELTA.equals(format)){
+    		writeDelta(signalk, out);
+    		return;
+    	}
+    	if(!SignalKConstants.FORMAT_FULL.equals(format)){
+    		throw new IllegalArgumentException("Unknown format: "+format);
+    	}
+    	if(signalk==null || signalk.getFullData()==null || !writeLocked(signalk, out)){
+    		out.append("{}");
+    	}
+    }
+
+    /**
+     * Write the vessels in the model to out as an array of delta messages, one per vessel.
+     * Values with the same $source and timestamp are grouped in one update, value objects like position
+     * are written as one value. Multiple values, meta and attributes are not included.
+     * @param signalk
+     * @param out
+     * @return true if a delta was written
+     * @throws IOException
+     */
+    public boolean writeDelta(SignalKModel signalk, Appendable out) throws IOException {
+    	out.append('[');
+    	if(signalk==null || signalk.getFullData()==null){
+    		out.append(']');
+    		return false;
+    	}
+    	DeltaWriter delta = new DeltaWriter(signalk.getFullData(), out);
+    	long stamp = signalk.readLock();
+    	try{
+    		for(Map.Entry<String, Object> e : signalk.getSubMap(SignalKConstants.vessels).entrySet()){
+    			delta.write(e.getKey(), e.getValue());
+    		}
+    	}finally{
+    		signalk.unlockRead(stamp);
+    	}
+    	delta.end();
+    	out.append(']');
+    	return delta.written;
+    }
+
+    /**
+     * Writes delta messages from the sorted model keys, one key at a time.
+     */
+    private class DeltaWriter {
+    	private final SortedMap<String, Object> data;
+    	private final Appendable out;
+    	private String context;
+    	// the value object being written, eg vessels.motu.navigation.position
+    	private String object;
+    	private boolean inUpdate;
+    	private Object updateSource;
+    	private Object updateTimestamp;
+    	private boolean firstUpdate;
+    	private boolean firstValue;
+    	private boolean firstField;
+    	boolean written;
+
+    	DeltaWriter(SortedMap<String, Object> data, Appendable out) {
+    		this.data = data;
+    		this.out = out;
+    	}
+
+    	void write(String key, Object value) throws IOException {
+    		if (!key.startsWith(VESSELS_DOT)) return;
+    		int ctx = key.indexOf('.', VESSELS_DOT.length());
+    		if (ctx < 0) return;
+    		// skip multiple values, meta and attributes
+    		if (key.indexOf(VALUES_SEG, ctx) >= 0 || key.indexOf(META_SEG, ctx) >= 0 || key.indexOf(ATTR_SEG, ctx) >= 0) return;
+    		if (context == null || context.length() != ctx || !key.startsWith(context)) {
+    			endContext();
+    			startContext(key.substring(0, ctx));
+    		}
+    		int dot = key.lastIndexOf('.');
+    		int leaf = dot + 1;
+    		if (isLeaf(key, leaf, SignalKConstants.timestamp) || isLeaf(key, leaf, SignalKConstants.sourceRef) || isLeaf(key, leaf, SignalKConstants.source)) {
+    			return;
+    		}
+    		if (dot > ctx && isLeaf(key, leaf, SignalKConstants.value)) {
+    			endObject();
+    			String parent = key.substring(0, dot);
+    			update(data.get(parent + DOT_SOURCE_REF), data.get(parent + DOT_TIMESTAMP));
+    			entry(key.substring(ctx + 1, dot), key, leaf, value);
+    			return;
+    		}
+    		if (dot > ctx) {
+    			String parent = object != null && object.length() == dot && key.startsWith(object) ? object : key.substring(0, dot);
+    			if (parent != object) {
+    				Object src = data.get(parent + DOT_SOURCE_REF);
+    				Object ts = data.get(parent + DOT_TIMESTAMP);
+    				if (src != null || ts != null) {
+    					endObject();
+    					update(src, ts);
+    					startObject(parent, ctx);
+    				}
+    			}
+    			if (parent == object) {
+    				if (!firstField) out.append(',');
+    				firstField = false;
+    				jsonKey(key, leaf, key.length(), out);
+    				writeValue(key, leaf, value, out);
+    				return;
+    			}
+    		}
+    		endObject();
+    		update(null, null);
+    		entry(key.substring(ctx + 1), key, leaf, value);
+    	}
+
+    	private boolean isLeaf(String key, int leaf, String name) {
+    		return key.length() - leaf == name.length() && key.startsWith(name, leaf);
+    	}
+
+    	private void startContext(String ctx) throws IOException {
+    		if (written) out.append(',');
+    		written = true;
+    		context = ctx;
+    		out.append('{');
+    		jsonKey(SignalKConstants.CONTEXT, out);
+    		jsonWrite(ctx, out);
+    		out.append(',');
+    		jsonKey(SignalKConstants.UPDATES, out);
+    		out.append('[');
+    		firstUpdate = true;
+    	}
+
+    	private void endContext() throws IOException {
+    		if (context == null) return;
+    		endObject();
+    		endUpdate();
+    		out.append("]}");
+    		context = null;
+    	}
+
+    	private void update(Object src, Object ts) throws IOException {
+    		if (inUpdate && equal(src, updateSource) && equal(ts, updateTimestamp)) return;
+    		endUpdate();
+    		if (!firstUpdate) out.append(',');
+    		firstUpdate = false;
+    		out.append('{');
+    		if (src != null) {
+    			jsonKey(SignalKConstants.sourceRef, out);
+    			writeValue(SignalKConstants.sourceRef, 0, src, out);
+    			out.append(',');
+    		}
+    		if (ts != null) {
+    			jsonKey(SignalKConstants.timestamp, out);
+    			writeValue(SignalKConstants.timestamp, 0, ts, out);
+    			out.append(',');
+    		}
+    		jsonKey(SignalKConstants.values, out);
+    		out.append('[');
+    		inUpdate = true;
+    		updateSource = src;
+    		updateTimestamp = ts;
+    		firstValue = true;
+    	}
+
+    	private void endUpdate() throws IOException {
+    		if (!inUpdate) return;
+    		out.append("]}");
+    		inUpdate = false;
+    	}
+
+    	private void entry(String path, String key, int leaf, Object value) throws IOException {
+    		if (!firstValue) out.append(',');
+    		firstValue = false;
+    		out.append('{');
+    		jsonKey(SignalKConstants.PATH, out);
+    		jsonWrite(path, 0, path.length(), out);
+    		out.append(',');
+    		jsonKey(SignalKConstants.value, out);
+    		writeValue(key, leaf, value, out);
+    		out.append('}');
+    	}
+
+    	private void startObject(String parent, int ctx) throws IOException {
+    		if (!firstValue) out.append(',');
+    		firstValue = false;
+    		object = parent;
+    		out.append('{');
+    		jsonKey(SignalKConstants.PATH, out);
+    		jsonWrite(parent, ctx + 1, parent.length(), out);
+    		out.append(',');
+    		jsonKey(SignalKConstants.value, out);
+    		out.append('{');
+    		firstField = true;
+    	}
+
+    	private void endObject() throws IOException {
+    		if (object == null) return;
+    		out.append("}}");
+    		object = null;
+    	}
+
+    	void end() throws IOException {
+    		endContext();
+    	}
+
+    	private boolean equal(Object a, Object b) {
+    		return a == null ? b == null : a.equals(b);
+    	}
+    }
+
     /**
      * Write the values returned from the specified iterator to the specified output. If
      * no values are included then nothing is written, not even "{}"  and this method returns false.
@@ -116,7 +381,7 @@ public class JsonSerializer {
         curindent.setLength(0);
         boolean begun = false;
 
-        List<String> trail = new ArrayList<String>();       // The "breadcrumbs" of where we are in the tree
+        int depth = 0;      // The number of objects open below the root, one per segment of lastkey but the last
         boolean needcomma = false;
         String lastkey = null;
 
@@ -129,66 +394,39 @@ public class JsonSerializer {
                 jsonBegin(out);
                 begun = true;
             }
-            String[] s = key.split("\\.");
-            int l = s.length;
-            if (lastkey != null && (key.compareTo(lastkey) <= 0 || (key.startsWith(lastkey) && key.charAt(lastkey.length()) == separator))) {
-                throw new IllegalStateException("Key \""+key+"\" can't follow key \""+lastkey+"\"");
-            }
-
             int j = 0;      // The number of tree entries in common with the previously output value
-            while (l > j && trail.size() > j && trail.get(j).equals(s[j])) {
-                j++;
+            if (lastkey != null) {
+                j = commonSegments(key, lastkey, separator);
             }
-            while (trail.size() > j) {
+            while (depth > j) {
                 jsonClose(out);
                 needcomma = true;
-                trail.remove(trail.size() - 1);
+                depth--;
             }
             if (needcomma) {
                 needcomma = false;
                 jsonComma(out);
             }
-            while (l - 1 > j) {
-                trail.add(jsonKey(s[j++], out));
-                jsonBegin(out);
-                needcomma = false;
+            // skip the segments already open
+            int pos = 0;
+            for (int i = 0; i < j; i++) {
+                pos = key.indexOf(separator, pos) + 1;
             }
-
-            if (needcomma) {
-                needcomma = false;
-                jsonComma(out);
-            }
-            jsonKey(s[j], out);
-            if (value== null || "null".equals(value)) {
-                jsonNull(key,out);
-            } else if (value instanceof String) {
-            	if(((String)value).startsWith("{")){
-            		 //out.append(Json.read((String)value).toString());
-            		 out.append((String)value);
-            	}else{
-            		jsonWrite((String)value, out);
-            	}
-            } else if (value instanceof Integer) {
-                jsonWrite(((Integer)value).intValue(), out);
-            } else if (value instanceof Number) {
-                jsonWrite(s[j], ((Number)value).doubleValue(), out);
-            } else if (value instanceof Boolean) {
-                jsonWrite(((Boolean)value).booleanValue(), out);
-            } else if (value instanceof List ) {
-                out.append(Json.array(((List)value).toArray()).toString());
-            }else if (value instanceof Json ) {
-                out.append(((Json)value).toString());
-            }else if (value instanceof Map ) {
-                out.append((Json.make((Map)value)).toString());
-            } else  {
-                throw new IllegalStateException("Can't print value of type \""+value.getClass().getName()+"\" for key \""+key+"\"");
+            int next;
+            while ((next = key.indexOf(separator, pos)) >= 0) {
+                jsonKey(key, pos, next, out);
+                jsonBegin(out);
+                depth++;
+                pos = next + 1;
             }
+            jsonKey(key, pos, key.length(), out);
+            writeValue(key, pos, value, out);
             needcomma = true;
             lastkey = key;
         }
-        while (!trail.isEmpty()) {
+        while (depth > 0) {
             jsonClose(out);
-            trail.remove(trail.size() - 1);
+            depth--;
         }
         if (begun) {
             jsonEnd(out);
@@ -196,15 +434,75 @@ public class JsonSerializer {
         return begun;
     }
 
+    /**
+     * Returns the number of whole segments key has in common with the previous key,
+     * and checks that key can follow it. Keys may be in String order, or in segment order where the separator sorts first.
+     */
+    private int commonSegments(String key, String lastkey, char separator) {
+        int len = Math.min(key.length(), lastkey.length());
+        int common = 0;
+        int i = 0;
+        while (i < len && key.charAt(i) == lastkey.charAt(i)) {
+            if (key.charAt(i) == separator) {
+                common++;
+            }
+            i++;
+        }
+        if (i == key.length()
+                || (i == lastkey.length() && key.charAt(i) == separator)
+                || (i < lastkey.length() && key.charAt(i) < lastkey.charAt(i) && lastkey.charAt(i) != separator)) {
+            throw new IllegalStateException("Key \""+key+"\" can't follow key \""+lastkey+"\"");
+        }
+        return common;
+    }
+
+    /**
+     * Writes a single value.
+     * @param key the full key
+     * @param leaf the start of the last segment of the key
+     */
+    private void writeValue(String key, int leaf, Object value, Appendable out) throws IOException {
+        if (value== null || "null".equals(value)) {
+            jsonNull(key,out);
+        } else if (value instanceof String) {
+        	if(((String)value).startsWith("{")){
+        		 //out.append(Json.read((String)value).toString());
+        		 out.append((String)value);
+        	}else{
+        		jsonWrite((String)value, out);
+        	}
+        } else if (value instanceof Integer) {
+            jsonWrite(((Integer)value).intValue(), out);
+        } else if (value instanceof Number) {
+            jsonWrite(key.substring(leaf), ((Number)value).doubleValue(), out);
+        } else if (value instanceof Boolean) {
+            jsonWrite(((Boolean)value).booleanValue(), out);
+        } else if (value instanceof List ) {
+            out.append(Json.array(((List)value).toArray()).toString());
+        }else if (value instanceof Json ) {
+            out.append(((Json)value).toString());
+        }else if (value instanceof Map ) {
+            out.append((Json.make((Map)value)).toString());
+        } else  {
+            throw new IllegalStateException("Can't print value of type \""+value.getClass().getName()+"\" for key \""+key+"\"");
+        }
+    }
+
     private void jsonWrite(String value, Appendable out) throws IOException {
     	if(value.startsWith("[") && value.endsWith("]")){
     		jsonWriteArray(value, out);
     		return;
     	}
+    	jsonWrite(value, 0, value.length(), out);
+    }
+
+    /**
+     * Writes the characters start to end of value as a quoted json string.
+     */
+    private void jsonWrite(String value, int start, int end, Appendable out) throws IOException {
         out.append('"');
-        int len = value.length();
         char c = 0;
-        for (int i=0; i<len; i++) {
+        for (int i=start; i<end; i++) {
             char b = c;
             c = value.charAt(i);
             switch (c) {
@@ -309,7 +607,7 @@ public class JsonSerializer {
         if (v.charAt(j) == '.') {
             j++;
         }
-        out.append(v.substring(0, j + 1));
+        out.append(v, 0, j + 1);
     }
 
     private void jsonWrite(boolean value, Appendable out) throws IOException {
@@ -335,13 +633,16 @@ public class JsonSerializer {
         }
     }
 
-    private String jsonKey(String key, Appendable out) throws IOException {
-        jsonWrite(key, out);
+    private void jsonKey(String key, Appendable out) throws IOException {
+        jsonKey(key, 0, key.length(), out);
+    }
+
+    private void jsonKey(String key, int start, int end, Appendable out) throws IOException {
+        jsonWrite(key, start, end, out);
         out.append(':');
         if (indent != null) {
             out.append(' ');
         }
-        return key;
     }
 
     private void jsonClose(Appendable out) throws IOException {
@@ -0,0 +1,207 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A compiled signalk path wildcard, with the same meaning as {@link Util#regexPath(String)}:
+ * '*' matches any run of characters (including '.') and '?' matches exactly one character.
+ * <p>
+ * Matching a sorted key set only visits the keys that start with the literal prefix of the
+ * pattern, so a GET for vessels.self.navigation* does not look at the AIS targets at all.
+ * Compiled patterns are kept in a small LRU cache, see {@link #compile(String)}.
+ *
+ * @author robert
+ *
+ */
+public final class PathPattern {
+
+	private static Logger logger = LogManager.getLogger(PathPattern.class);
+
+	public static final int CACHE_SIZE = 256;
+
+	private static final char PREFIX_END = '\uFFFF';
+
+	private static final Map<String, PathPattern> cache = new LinkedHashMap<String, PathPattern>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PathPattern> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final String pattern;
+	// the literal characters before the first wildcard
+	private final String prefix;
+	// true if everything after the prefix is '*', so any key with the prefix matches
+	private final boolean prefixOnly;
+
+	private PathPattern(String pattern) {
+		this.pattern = pattern;
+		int i = 0;
+		while (i < pattern.length() && pattern.charAt(i) != '*' && pattern.charAt(i) != '?') {
+			i++;
+		}
+		this.prefix = pattern.substring(0, i);
+		boolean stars = true;
+		for (int j = i; j < pattern.length(); j++) {
+			if (pattern.charAt(j) != '*') {
+				stars = false;
+				break;
+			}
+		}
+		// a pattern without wildcards must match exactly
+		this.prefixOnly = stars && i < pattern.length();
+	}
+
+	/**
+	 * Returns the compiled pattern, from the cache if it was used recently.
+	 *
+	 * @param pattern a wildcard path, eg vessels.*.navigation.position
+	 * @return
+	 */
+	public static PathPattern compile(String pattern) {
+		if (pattern == null) throw new IllegalArgumentException("Pattern cannot be null");
+		synchronized (cache) {
+			PathPattern p = cache.get(pattern);
+			if (p == null) {
+				p = new PathPattern(pattern);
+				cache.put(pattern, p);
+			}
+			return p;
+		}
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return the literal characters before the first wildcard
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @param path
+	 * @return true if the whole path matches this pattern
+	 */
+	public boolean matches(String path) {
+		if (!path.startsWith(prefix)) return false;
+		if (prefixOnly) return true;
+		// glob match with backtracking to the last '*'
+		int p = prefix.length();
+		int s = prefix.length();
+		int star = -1;
+		int mark = 0;
+		int plen = pattern.length();
+		int slen = path.length();
+		while (s < slen) {
+			if (p < plen) {
+				char c = pattern.charAt(p);
+				if (c == '*') {
+					star = p++;
+					mark = s;
+					continue;
+				}
+				if (c == '?' || c == path.charAt(s)) {
+					p++;
+					s++;
+					continue;
+				}
+			}
+			if (star < 0) return false;
+			p = star + 1;
+			s = ++mark;
+		}
+		while (p < plen && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == plen;
+	}
+
+	/**
+	 * Returns the matching keys, in key order. Only the keys starting with the literal prefix are visited.
+	 *
+	 * @param keys a sorted key set, eg {@link nz.co.fortytwo.signalk.model.SignalKModel#getKeys()}
+	 * @return
+	 */
+	public List<String> match(NavigableSet<String> keys) {
+		List<String> paths = new ArrayList<String>();
+		NavigableSet<String> range = prefix.length() == 0 ? keys : keys.subSet(prefix, true, prefix + PREFIX_END, false);
+		if (prefixOnly) {
+			paths.addAll(range);
+			return paths;
+		}
+		for (String p : range) {
+			if (matches(p)) {
+				if (logger.isTraceEnabled())
+					logger.trace("Adding path:" + p);
+				paths.add(p);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns the matching keys from an unsorted collection.
+	 *
+	 * @param keys
+	 * @return
+	 */
+	public List<String> match(Collection<String> keys) {
+		if (keys instanceof NavigableSet) {
+			return match((NavigableSet<String>) keys);
+		}
+		List<String> paths = new ArrayList<String>();
+		for (String p : keys) {
+			if (matches(p)) {
+				paths.add(p);
+			}
+		}
+		return paths;
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
@@ -81,12 +81,16 @@ public class SignalKConstants {
 	public static final String message = "message";
 	public static final String warn = "warn";
 	public static final String normal = "normal";
+	public static final String hysteresis = "hysteresis";
+	public static final String dwell = "dwell";
 
 	public static final String type = "type";
 	public static final String label = "label";
 	public static final String routes = "routes";
 	public static final String key= "key";
 	public static final String currentTrack = "currentTrack";
+	// the simplified track of a vessel, as GeoJSON LineString coordinates
+	public static final String track = "track";
 
 
 	public static final String websocketUrl="signalk-ws";
@@ -93,7 +93,8 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
  *      MSL height means that the altitude could be in error by as much as 200 meters.
  *      This should not be significant for our applications.</p>
  *      
- *      <p><b>NOTE:</b> This class is not thread safe.</p>
+ *      <p><b>NOTE:</b> Since version 5.8 the intermediate values are kept per thread, so one
+ *      instance can be shared between threads.</p>
  *
  *
  * @version 3.0 January 19, 2000
@@ -146,6 +147,10 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
  *     <li>Chulliat, A., S. Macmillan, P. Alken, C. Beggan, M. Nair, B. Hamilton, A. Woods, V. Ridley, S. Maus and A. Thomson,
  *     2015, The US/UK World Magnetic Model for 2015-2020: Technical Report, National Geophysical Data Center, NOAA.
  *     doi: 10.7289/V5TB14V7</li></ul>
+ *  @version 5.8 October 18, 2026
+ *  <p>Moved the intermediate arrays of the calculation into a per thread {@link State}, so an instance is
+ *     thread safe. Added {@link #getField(double, double, double, double, Field)} to return all of the field
+ *     components from one calculation, and batch methods taking arrays of positions.</p>
  *
  *     <ul>References:
  *
@@ -329,46 +334,6 @@ public class TSAGeoMag
 	    " 12 12       0.0       0.7        0.0        0.0",
     };
     
-    /**
-     *	Geodetic altitude in km. An input,
-     *	but set to zero in this class.  Changed 
-     *	back to an input in version 5.  If not specified,
-     *	then is 0.
-     */
-    private double alt = 0;
-    
-    /**
-     *	Geodetic latitude in deg.  An input.
-     */
-    private double glat = 0;
-    
-    /**
-     *	Geodetic longitude in deg.  An input.
-     */
-    private double glon = 0;
-    
-    /**
-     *	Time in decimal years.  An input.
-     */
-    private double time = 0;
-    
-    /**
-     *	Geomagnetic declination in deg.
-     *	East is positive, West is negative.
-     *	(The negative of variation.)
-     */
-    private double dec = 0;
-    
-    /**
-     *	Geomagnetic inclination in deg.
-     *	Down is positive, up is negative.
-     */
-    private double dip = 0;
-    /**
-     *	Geomagnetic total intensity, in nano Teslas.
-     */
-    private double ti = 0;
-    
     /**
      *	Geomagnetic grid variation, referenced to
      *	grid North.  Not calculated or output in version 5.0.
@@ -408,60 +373,29 @@ public class TSAGeoMag
     private double cd[][] = new double[13][13];
     
     /**
-     *	The time adjusted geomagnetic gauss coefficients (nt).
-     */
-    private double tc[][] = new double[13][13];
-    
-    /**
-     *	The theta derivative of p(n,m) (unnormalized).
-     */
-    private double dp[][] = new double[13][13];
-    
-    /**
-     *	The Schmidt normalization factors.
+     *	The Schmidt normalization factors, only used while reading the model.
      */
     private double snorm[] = new double[169];
     
-    /**
-     *	The sine of (m*spherical coord. longitude).
-     */
-    private double sp[] = new double[13];
-    
-    /**
-     *	The cosine of (m*spherical coord. longitude).
-     */
-    private double cp[] = new double[13];
     private double fn[] = new double[13];
     private double fm[] = new double[13];
     
-    /**
-     *	The associated Legendre polynomials for m=1 (unnormalized).
-     */
-    private double pp[] = new double[13];
-    
     private double k[][] = new double[13][13];
     
-    /**
-     * The variables otime (old time), oalt (old altitude),
-     * olat (old latitude), olon (old longitude), are used to
-     * store the values used from the previous calculation to
-     * save on calculation time if some inputs don't change.
-     */
-    private double otime, oalt, olat, olon;
-    
     /** The date in years, for the start of the valid time of the fit coefficients */
     private double epoch;
     
-    /** bx is the north south field intensity
-     *  by is the east west field intensity
-     *  bz is the vertical field intensity positive downward
-     *  bh is the horizontal field intensity
-     */
-    private double bx,by,bz,bh;
     private double re,a2,b2,c2,a4,b4,c4;
-    private double r,d,ca,sa,ct, st;  // even though these only occur in one method, they must be
-                                      // created here, or won't have correct values calculated
-    				      // These values are only recalculated if the altitude changes.
+    
+    /** The intermediate values of the calculation, one set per thread */
+    private final ThreadLocal<State> state = new ThreadLocal<State>()
+    {
+        @Override
+        protected State initialValue()
+        {
+            return new State();
+        }
+    };
                
     //
     ////////////////////////////////////////////////////////////////////////////
@@ -484,8 +418,6 @@ public class TSAGeoMag
      */
     private void initModel()
     {
-        glat = 0;
-        glon = 0;
         //bOutDated = false;
         //String strModel = new String();
         //String strFile = new String("WMM.COF");
@@ -493,9 +425,7 @@ public class TSAGeoMag
         
         // INITIALIZE CONSTANTS
         maxord = maxdeg;
-        sp[0] = 0.0;
-        cp[0] = snorm[0] = pp[0] = 1.0;
-        dp[0][0] = 0.0;
+        snorm[0] = 1.0;
         /**
          *	Semi-major axis of WGS-84 ellipsoid, in km.
          */
@@ -644,8 +574,6 @@ public class TSAGeoMag
         
         k[1][1] = 0.0;
         
-        otime = oalt = olat = olon = -1000.0;
-        
         
     }
     
@@ -735,25 +663,27 @@ public class TSAGeoMag
      * @param	year			The date as a decimal year.
      * @param	altitude		The altitude in kilometers.
      */
-    private void calcGeoMag(double fLat, double fLon, double year, double altitude)
+    private State calcGeoMag(double fLat, double fLon, double year, double altitude)
     {		
-        
-        glat =  fLat;
-        glon =  fLon;
-        alt = altitude;
-        /**
-         *	The date in decimal years for calculating the magnetic field components.
-         */
-        time = year;
+        State s = state.get();
+        calcGeoMag(s, fLat, fLon, year, altitude);
+        return s;
+    }
+    
+    /**
+     *	Does the calculation with the given thread's state, see {@link #calcGeoMag(double, double, double, double)}.
+     *	The results are left in the state.
+     */
+    private void calcGeoMag(State s, double glat, double glon, double time, double alt)
+    {
+        double[] snorm = s.snorm;
+        double[][] dp = s.dp;
+        double[][] tc = s.tc;
+        double[] sp = s.sp;
+        double[] cp = s.cp;
+        double[] pp = s.pp;
         
         double dt = time - epoch;
-        //if (otime < 0.0 && (dt < 0.0 || dt > 5.0))
-        //		if(bCurrent){
-        //			if (dt < 0.0 || dt > 5.0) 
-        //				bOutDated = true;
-        //			else
-        //				bOutDated = false;
-        //		}
         
         double pi = Math.PI;
         double dtr = (pi/180.0);
@@ -768,26 +698,31 @@ public class TSAGeoMag
         sp[1] = srlon;
         cp[1] = crlon;
         
+        boolean newLat = alt != s.oalt || glat != s.olat;
+        boolean newTime = time != s.otime;
+        
         // CONVERT FROM GEODETIC COORDS. TO SPHERICAL COORDS.
-        if (alt != oalt || glat != olat){
+        if (newLat){
             double q = Math.sqrt(a2 - c2 * srlat2);
             double q1 = alt * q;
             double q2 = ((q1 + a2) / (q1 + b2)) * ((q1 + a2) / (q1 + b2));
-            ct = srlat / Math.sqrt(q2 * crlat2 + srlat2);
-            st = Math.sqrt(1.0 - (ct * ct));
+            s.ct = srlat / Math.sqrt(q2 * crlat2 + srlat2);
+            s.st = Math.sqrt(1.0 - (s.ct * s.ct));
             double r2 = ((alt*alt) + 2.0 * q1 + (a4 - c4 * srlat2) / (q * q));
-            r = Math.sqrt(r2);
-            d = Math.sqrt(a2 * crlat2 + b2 * srlat2);
-            ca = (alt + d) / r;
-            sa = c2 * crlat * srlat / (r * d);
+            s.r = Math.sqrt(r2);
+            double d = Math.sqrt(a2 * crlat2 + b2 * srlat2);
+            s.ca = (alt + d) / s.r;
+            s.sa = c2 * crlat * srlat / (s.r * d);
         }
-        if (glon != olon){
+        if (glon != s.olon){
             for (int m = 2; m <= maxord; m++){
                 sp[m] = sp[1] * cp[m-1] + cp[1] * sp[m-1];
                 cp[m] = cp[1] * cp[m-1] - sp[1] * sp[m-1];
             }
         }
-        double aor = re / r;
+        double ct = s.ct;
+        double st = s.st;
+        double aor = re / s.r;
         double ar = aor * aor;
         double br = 0, bt = 0, bp = 0, bpp = 0;
         
@@ -797,7 +732,7 @@ public class TSAGeoMag
                 
                 //COMPUTE UNNORMALIZED ASSOCIATED LEGENDRE POLYNOMIALS
                 //AND DERIVATIVES VIA RECURSION RELATIONS
-                if(alt != oalt || glat != olat){
+                if(newLat){
                     if(n == m){
                         snorm[n + m * 13] = st * snorm[n - 1 + (m - 1) * 13];				  
                         dp[m][n] = st * dp[m-1][n-1]+ ct* snorm[n - 1 + (m - 1) * 13];
@@ -818,7 +753,7 @@ public class TSAGeoMag
                 
                 //TIME ADJUST THE GAUSS COEFFICIENTS
                 
-                if(time != otime){
+                if(newTime){
                     tc[m][n] = c[m][n] + dt * cd[m][n];
                     
                     if(m != 0)
@@ -867,52 +802,108 @@ public class TSAGeoMag
         // bx must be the east-west field component
         // by must be the north-south field component
         // bz must be the vertical field component.
-        bx = -bt * ca - br * sa;
-        by = bp;
-        bz = bt * sa - br * ca;
+        double bx = -bt * s.ca - br * s.sa;
+        double by = bp;
+        double bz = bt * s.sa - br * s.ca;
         
         //COMPUTE DECLINATION (DEC), INCLINATION (DIP) AND
         //TOTAL INTENSITY (TI)
         
-        bh = Math.sqrt((bx * bx)+(by * by));
-        ti = Math.sqrt((bh * bh)+(bz * bz));
+        double bh = Math.sqrt((bx * bx)+(by * by));
+        Field f = s.field;
+        f.bx = bx;
+        f.by = by;
+        f.bz = bz;
+        f.bh = bh;
+        f.ti = Math.sqrt((bh * bh)+(bz * bz));
         //	Calculate the declination.
-        dec = (Math.atan2(by, bx) / dtr);
-        logger.debug( "Dec is: " + dec );
-        dip = (Math.atan2(bz, bh) / dtr);
+        f.dec = (Math.atan2(by, bx) / dtr);
+        if(logger.isDebugEnabled()) logger.debug( "Dec is: " + f.dec );
+        f.dip = (Math.atan2(bz, bh) / dtr);
         
-        //	This is the variation for grid navigation.
-        //	Not used at this time.  See St. Ledger for explanation.
-        //COMPUTE MAGNETIC GRID VARIATION IF THE CURRENT
-        //GEODETIC POSITION IS IN THE ARCTIC OR ANTARCTIC
-        //(I.E. GLAT > +55 DEGREES OR GLAT < -55 DEGREES)
-        // Grid North is referenced to the 0 Meridian of a polar
-        // stereographic projection.
+        //	The grid variation for grid navigation is not calculated,
+        //	see version 5.7 for the commented out calculation.
         
-        //OTHERWISE, SET MAGNETIC GRID VARIATION TO -999.0
-        /*
-         gv = -999.0;
-         if (Math.abs(glat) >= 55.){
-         if (glat > 0.0 && glon >= 0.0) 
-         gv = dec-glon;
-         if (glat > 0.0 && glon < 0.0) 
-         gv = dec + Math.abs(glon);
-         if (glat < 0.0 && glon >= 0.0) 
-         gv = dec+glon;
-         if (glat < 0.0 && glon < 0.0) 
-         gv = dec - Math.abs(glon);
-         if (gv > +180.0) 
-         gv -= 360.0;
-         if (gv < -180.0) 
-         gv += 360.0;
-         }
-         */
-        otime = time;
-        oalt = alt;
-        olat = glat;
-        olon = glon;
+        s.otime = time;
+        s.oalt = alt;
+        s.olat = glat;
+        s.olon = glon;
         
     }
+    
+    /**
+     *	Returns all of the field components from one calculation, in the
+     *	given field, which is also returned.
+     *
+     * @param	dlat		Latitude in decimal degrees.
+     * @param 	dlong		Longitude in decimal degrees.
+     * @param	year		The date as a decimal year.
+     * @param	altitude	The altitude in kilometers.
+     * @param	field		Receives the results, a new field is created if null.
+     * 
+     * @return  The field.
+     */
+    public Field getField( double dlat, double dlong, double year, double altitude, Field field )
+    {
+        if(field == null) field = new Field();
+        field.set(calcGeoMag( dlat, dlong, year, altitude ).field);
+        return field;
+    }
+    
+    /**
+     *	Returns all of the field components for the default date and altitude.
+     *
+     * @param	dlat	Latitude in decimal degrees.
+     * @param 	dlong	Longitude in decimal degrees.
+     * 
+     * @return  A new field.
+     */
+    public Field getField( double dlat, double dlong )
+    {
+        return getField( dlat, dlong, defaultDate, defaultAltitude, null );
+    }
+    
+    /**
+     *	Calculates the field for each position. The outputs may be null if
+     *	they are not wanted, else must be at least as long as the positions.
+     *	Consecutive positions with the same latitude share the Legendre terms.
+     *
+     * @param	dlat		Latitudes in decimal degrees.
+     * @param 	dlong		Longitudes in decimal degrees.
+     * @param	year		The date as a decimal year.
+     * @param	altitude	The altitude in kilometers.
+     * @param	dec			Receives the declinations in degrees, or null.
+     * @param	dip			Receives the dip angles in degrees, or null.
+     * @param	ti			Receives the total intensities in nano Tesla, or null.
+     */
+    public void getField( double[] dlat, double[] dlong, double year, double altitude, double[] dec, double[] dip, double[] ti )
+    {
+        if(dlat.length != dlong.length)
+            throw new IllegalArgumentException("Latitudes and longitudes differ in length: " + dlat.length + ", " + dlong.length);
+        State s = state.get();
+        for(int i = 0; i < dlat.length; i++)
+        {
+            calcGeoMag( s, dlat[i], dlong[i], year, altitude );
+            if(dec != null) dec[i] = s.field.dec;
+            if(dip != null) dip[i] = s.field.dip;
+            if(ti != null) ti[i] = s.field.ti;
+        }
+    }
+    
+    /**
+     *	Calculates the declination for each position.
+     *
+     * @param	dlat		Latitudes in decimal degrees.
+     * @param 	dlong		Longitudes in decimal degrees.
+     * @param	year		The date as a decimal year.
+     * @param	altitude	The altitude in kilometers.
+     * @param	dec			Receives the declinations in degrees.
+     */
+    public void getDeclination( double[] dlat, double[] dlong, double year, double altitude, double[] dec )
+    {
+        getField( dlat, dlong, year, altitude, dec, null, null );
+    }
+    
     /**
      *	Returns the declination from the Department of
      *	Defense geomagnetic model and data, in degrees.  The
@@ -928,8 +919,7 @@ public class TSAGeoMag
      */
     public double getDeclination( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  dec;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.dec;
     }
     /**
      *	Returns the declination from the Department of
@@ -946,8 +936,7 @@ public class TSAGeoMag
      */
     public double getDeclination( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  dec;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.dec;
     }
     /**
      *	Returns the magnetic field intensity from the
@@ -963,8 +952,7 @@ public class TSAGeoMag
      */
     public double getIntensity( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  ti;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.ti;
     }
     
     /**
@@ -981,8 +969,7 @@ public class TSAGeoMag
      */
     public double getIntensity( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  ti;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.ti;
     }
     /**
      *	Returns the horizontal magnetic field intensity from the
@@ -998,8 +985,7 @@ public class TSAGeoMag
      */
     public double getHorizontalIntensity( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  bh;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.bh;
     }
     
     /**
@@ -1016,8 +1002,7 @@ public class TSAGeoMag
      */
     public double getHorizontalIntensity( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  bh;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.bh;
     }
     /**
      *	Returns the vertical magnetic field intensity from the
@@ -1033,8 +1018,7 @@ public class TSAGeoMag
      */
     public double getVerticalIntensity( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  bz;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.bz;
     }
     
     /**
@@ -1051,8 +1035,7 @@ public class TSAGeoMag
      */
     public double getVerticalIntensity( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  bz;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.bz;
     }
     /**
      *	Returns the northerly magnetic field intensity from the
@@ -1068,8 +1051,7 @@ public class TSAGeoMag
      */
     public double getNorthIntensity( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  bx;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.bx;
     }
     
     /**
@@ -1086,8 +1068,7 @@ public class TSAGeoMag
      */
     public double getNorthIntensity( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  bx;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.bx;
     }
     /**
      *	Returns the easterly magnetic field intensity from the
@@ -1103,8 +1084,7 @@ public class TSAGeoMag
      */
     public double getEastIntensity( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  by;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.by;
     }
     
     /**
@@ -1121,8 +1101,7 @@ public class TSAGeoMag
      */
     public double getEastIntensity( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  by;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.by;
     }
     /**
      *	Returns the magnetic field dip angle from the
@@ -1138,8 +1117,7 @@ public class TSAGeoMag
      */
     public double getDipAngle( double dlat, double dlong )
     {
-            calcGeoMag( dlat, dlong, defaultDate, defaultAltitude );
-            return  dip;
+            return  calcGeoMag( dlat, dlong, defaultDate, defaultAltitude ).field.dip;
     }
     
     /**
@@ -1156,8 +1134,7 @@ public class TSAGeoMag
      */
     public double getDipAngle( double dlat, double dlong, double year, double altitude )
     {
-            calcGeoMag( dlat, dlong, year, altitude );
-            return  dip;
+            return  calcGeoMag( dlat, dlong, year, altitude ).field.dip;
     }
     
     /**	This method sets the input data to the internal fit coefficents.
@@ -1232,4 +1209,98 @@ public class TSAGeoMag
 	
 	return year + (cal.get(Calendar.DAY_OF_YEAR))/daysInYear;
     }
+    
+    /**
+     *	The magnetic field components from one calculation.
+     */
+    public static class Field
+    {
+        private double dec, dip, ti, bx, by, bz, bh;
+        
+        private void set(Field f)
+        {
+            dec = f.dec;
+            dip = f.dip;
+            ti = f.ti;
+            bx = f.bx;
+            by = f.by;
+            bz = f.bz;
+            bh = f.bh;
+        }
+        
+        /** @return The declination in degrees, east is positive. */
+        public double getDeclination()
+        {
+            return dec;
+        }
+        
+        /** @return The dip angle in degrees, down is positive. */
+        public double getDipAngle()
+        {
+            return dip;
+        }
+        
+        /** @return The total intensity in nano Tesla. */
+        public double getIntensity()
+        {
+            return ti;
+        }
+        
+        /** @return The horizontal intensity in nano Tesla. */
+        public double getHorizontalIntensity()
+        {
+            return bh;
+        }
+        
+        /** @return The northerly intensity in nano Tesla. */
+        public double getNorthIntensity()
+        {
+            return bx;
+        }
+        
+        /** @return The easterly intensity in nano Tesla. */
+        public double getEastIntensity()
+        {
+            return by;
+        }
+        
+        /** @return The vertical intensity in nano Tesla, positive downward. */
+        public double getVerticalIntensity()
+        {
+            return bz;
+        }
+    }
+    
+    /**
+     *	The intermediate values of the calculation, which are kept to save on
+     *	calculation time if some inputs don't change between calls.
+     */
+    private static class State
+    {
+        /** The time adjusted geomagnetic gauss coefficients (nt). */
+        final double tc[][] = new double[13][13];
+        /** The theta derivative of p(n,m) (unnormalized). */
+        final double dp[][] = new double[13][13];
+        /** The associated Legendre polynomials (unnormalized). */
+        final double snorm[] = new double[169];
+        /** The sine of (m*spherical coord. longitude). */
+        final double sp[] = new double[13];
+        /** The cosine of (m*spherical coord. longitude). */
+        final double cp[] = new double[13];
+        /** The associated Legendre polynomials for m=1 (unnormalized). */
+        final double pp[] = new double[13];
+        /** The results of the last calculation. */
+        final Field field = new Field();
+        
+        double otime = -1000.0, oalt = -1000.0, olat = -1000.0, olon = -1000.0;
+        // only recalculated if the latitude or altitude change
+        double r, ca, sa, ct, st;
+        
+        State()
+        {
+            sp[0] = 0.0;
+            cp[0] = snorm[0] = pp[0] = 1.0;
+            dp[0][0] = 0.0;
+        }
+    }
 }
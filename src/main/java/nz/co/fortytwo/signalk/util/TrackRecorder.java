@@ -0,0 +1,255 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mjson.Json;
+
+/**
+ * Simplifies a track as the fixes arrive, with the tolerance of {@link TrackSimplifier}, so a long passage
+ * is kept as a compact track without ever holding or re-simplifying the raw fixes.
+ * <p>
+ * A fix within tolerance of the last kept fix is dropped, as in the vertex reduction. The kept fixes
+ * since the last vertex form an opening window: while every fix in the window is within tolerance of the
+ * segment from the last vertex to the newest fix they stay in the window, otherwise the end of the
+ * window becomes a vertex. The window is bounded, so each fix costs at most window size distance checks.
+ * </p><p>
+ * Vertices are held in primitive arrays up to maxPoints. When they are full the tolerance is doubled
+ * and the vertices are reduced with Douglas-Peucker, so the track still covers the whole passage at a
+ * coarser resolution. Positions are plain lat/lon degrees, as in TrackSimplifier.
+ * </p>
+ */
+public class TrackRecorder {
+
+    private static final int WINDOW = 256;
+
+    private final int maxPoints;
+    private final double initialTolerance;
+    private double tolerance;
+    private double tol2;
+
+    // the vertices
+    private final double[] lat;
+    private final double[] lon;
+    private final long[] time;
+    private int count;
+
+    // the kept fixes after the last vertex, the last one is the current end of the track
+    private final double[] wLat = new double[WINDOW];
+    private final double[] wLon = new double[WINDOW];
+    private final long[] wTime = new long[WINDOW];
+    private int wCount;
+
+    /**
+     * @param tolerance the tolerance in degrees
+     * @param maxPoints the vertices to hold before the track is reduced, at least 4
+     */
+    public TrackRecorder(double tolerance, int maxPoints) {
+        if (!(tolerance > 0)) throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+        if (maxPoints < 4) throw new IllegalArgumentException("Track needs at least 4 points: " + maxPoints);
+        this.initialTolerance = tolerance;
+        this.tolerance = tolerance;
+        this.tol2 = tolerance * tolerance;
+        this.maxPoints = maxPoints;
+        this.lat = new double[maxPoints];
+        this.lon = new double[maxPoints];
+        this.time = new long[maxPoints];
+    }
+
+    /**
+     * Adds a fix.
+     *
+     * @param latitude
+     * @param longitude
+     * @param millis the time of the fix
+     * @return true if a vertex was added, false if the fix only moved the end of the track or was dropped
+     */
+    public synchronized boolean add(double latitude, double longitude, long millis) {
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) return false;
+        if (count == 0) {
+            addVertex(latitude, longitude, millis);
+            return true;
+        }
+        int last = count - 1;
+        // vertex reduction against the last kept fix
+        double refLat = wCount > 0 ? wLat[wCount - 1] : lat[last];
+        double refLon = wCount > 0 ? wLon[wCount - 1] : lon[last];
+        if (TrackSimplifier.distanceSquared(refLat, refLon, latitude, longitude) <= tol2) return false;
+
+        boolean added = false;
+        if (wCount == WINDOW || (wCount > 0 && !covers(lat[last], lon[last], latitude, longitude))) {
+            // the end of the window is as far as the last vertex reaches
+            addVertex(wLat[wCount - 1], wLon[wCount - 1], wTime[wCount - 1]);
+            wCount = 0;
+            added = true;
+        }
+        wLat[wCount] = latitude;
+        wLon[wCount] = longitude;
+        wTime[wCount] = millis;
+        wCount++;
+        return added;
+    }
+
+    /**
+     * @return true if every fix in the window is within tolerance of the segment
+     */
+    private boolean covers(double lat0, double lon0, double lat1, double lon1) {
+        for (int i = 0; i < wCount; i++) {
+            if (TrackSimplifier.distance2(lat0, lon0, lat1, lon1, wLat[i], wLon[i]) > tol2) return false;
+        }
+        return true;
+    }
+
+    private void addVertex(double latitude, double longitude, long millis) {
+        if (count == maxPoints) {
+            reduce();
+        }
+        lat[count] = latitude;
+        lon[count] = longitude;
+        time[count] = millis;
+        count++;
+    }
+
+    /**
+     * Doubles the tolerance and runs Douglas-Peucker over the vertices until they are at most 3/4 full.
+     * The first and last vertices are kept, so the window still starts at the last vertex.
+     */
+    private void reduce() {
+        boolean[] marks = new boolean[count];
+        int[] stack = new int[2 * count];
+        while (count > maxPoints * 3 / 4) {
+            tolerance *= 2;
+            tol2 = tolerance * tolerance;
+            Arrays.fill(marks, 0, count, false);
+            marks[0] = true;
+            marks[count - 1] = true;
+            int top = 0;
+            stack[top++] = 0;
+            stack[top++] = count - 1;
+            while (top > 0) {
+                int end = stack[--top];
+                int start = stack[--top];
+                int furthest = -1;
+                double max = tol2;
+                for (int i = start + 1; i < end; i++) {
+                    double d2 = TrackSimplifier.distance2(lat[start], lon[start], lat[end], lon[end], lat[i], lon[i]);
+                    if (d2 > max) {
+                        furthest = i;
+                        max = d2;
+                    }
+                }
+                if (furthest > 0) {
+                    marks[furthest] = true;
+                    stack[top++] = start;
+                    stack[top++] = furthest;
+                    stack[top++] = furthest;
+                    stack[top++] = end;
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (marks[i]) {
+                    lat[kept] = lat[i];
+                    lon[kept] = lon[i];
+                    time[kept] = time[i];
+                    kept++;
+                }
+            }
+            count = kept;
+        }
+    }
+
+    /**
+     * @return the number of points in the track, the vertices and the current end
+     */
+    public synchronized int size() {
+        return count + (wCount > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return the current tolerance in degrees, doubled each time the track was reduced
+     */
+    public synchronized double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Copies the track into the arrays, oldest first.
+     *
+     * @param latitudes
+     * @param longitudes
+     * @param times the fix times, or null
+     * @return the number of points copied, as many as fit
+     */
+    public synchronized int getTrack(double[] latitudes, double[] longitudes, long[] times) {
+        int n = Math.min(count, latitudes.length);
+        System.arraycopy(lat, 0, latitudes, 0, n);
+        System.arraycopy(lon, 0, longitudes, 0, n);
+        if (times != null) System.arraycopy(time, 0, times, 0, n);
+        if (wCount > 0 && n < latitudes.length) {
+            latitudes[n] = wLat[wCount - 1];
+            longitudes[n] = wLon[wCount - 1];
+            if (times != null) times[n] = wTime[wCount - 1];
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the track as positions, oldest first
+     */
+    public synchronized List<Position> getPositions() {
+        List<Position> positions = new ArrayList<Position>(size());
+        for (int i = 0; i < count; i++) {
+            positions.add(new Position(lat[i], lon[i]));
+        }
+        if (wCount > 0) positions.add(new Position(wLat[wCount - 1], wLon[wCount - 1]));
+        return positions;
+    }
+
+    /**
+     * @return the track as GeoJSON LineString coordinates, [[lon, lat], ...]
+     */
+    public synchronized Json toCoordinates() {
+        Json coordinates = Json.array();
+        for (int i = 0; i < count; i++) {
+            coordinates.add(Json.array(lon[i], lat[i]));
+        }
+        if (wCount > 0) coordinates.add(Json.array(wLon[wCount - 1], wLat[wCount - 1]));
+        return coordinates;
+    }
+
+    /**
+     * Starts a new track, at the initial tolerance
+     */
+    public synchronized void clear() {
+        count = 0;
+        wCount = 0;
+        tolerance = initialTolerance;
+        tol2 = tolerance * tolerance;
+    }
+}
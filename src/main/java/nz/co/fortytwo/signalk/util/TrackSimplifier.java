@@ -91,13 +91,15 @@ public class TrackSimplifier {
             return -1;
         }
 
-        Segment segment = new Segment(track.get(start), track.get(end));
+        Position p0 = track.get(start);
+        Position p1 = track.get(end);
         int mark = -1;
         double maxDistance2 = -1.0;
 
         for (int i = start + 1; i < end; i++) {
             Position position = track.get(i);
-            double distance2 = segment.distance2(position);
+            double distance2 = distance2(p0.latitude(), p0.longitude(), p1.latitude(), p1.longitude(),
+                    position.latitude(), position.longitude());
             if (distance2 > maxDistance2) {
                 mark = i;
                 maxDistance2 = distance2;
@@ -110,44 +112,31 @@ public class TrackSimplifier {
         return -1;
     }
 
-    private static class Segment {
-        private final Position p0;
-        private final Position p1;
-        private final Position v;
-        private final double c2;
-
-        public Segment(Position p0, Position p1) {
-            this.p0 = p0;
-            this.p1 = p1;
-            v = new Position(p1.latitude() - p0.latitude(), p1.longitude() - p0.longitude());
-            c2 = dot(v, v);
-        }
-
-        public double distance2(Position p) {
-            Position w = new Position(p.latitude() - p0.latitude(), p.longitude() - p0.longitude());
-            double c1 = dot(w, v);
-            if (c1 < 0) {
-                return distanceSquared(p, p0);
-            }
-            if (c1 >= c2) {
-                return distanceSquared(p, p1);
-            }
-            return distanceSquared(p, pb(c1));
-        }
-
-        private Position pb(double c1) {
-            double b = c1 / c2;
-            return new Position(p0.latitude() + b * v.latitude(), p0.longitude() + b * v.longitude());
+    /**
+     * The squared distance of a point from the segment p0-p1, in degrees treated as plane coordinates.
+     */
+    static double distance2(double lat0, double lon0, double lat1, double lon1, double lat, double lon) {
+        double vLat = lat1 - lat0;
+        double vLon = lon1 - lon0;
+        double c1 = (lat - lat0) * vLat + (lon - lon0) * vLon;
+        if (c1 < 0) {
+            return distanceSquared(lat0, lon0, lat, lon);
         }
-
-        private static double dot(Position a, Position b) {
-            return a.latitude() * b.latitude() + a.longitude() * b.longitude();
+        double c2 = vLat * vLat + vLon * vLon;
+        if (c1 >= c2) {
+            return distanceSquared(lat1, lon1, lat, lon);
         }
+        double b = c1 / c2;
+        return distanceSquared(lat0 + b * vLat, lon0 + b * vLon, lat, lon);
     }
 
     private static double distanceSquared(Position a, Position b) {
-        double dx = b.longitude() - a.longitude();
-        double dy = b.latitude() - a.latitude();
+        return distanceSquared(a.latitude(), a.longitude(), b.latitude(), b.longitude());
+    }
+
+    static double distanceSquared(double lat0, double lon0, double lat1, double lon1) {
+        double dx = lon1 - lon0;
+        double dy = lat1 - lat0;
         return dx * dx + dy * dy;
     }
 }
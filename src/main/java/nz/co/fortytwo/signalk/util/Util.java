@@ -28,6 +28,18 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.KNOTS_TO_MS;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.LIST;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.MS_TO_KNOTS;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_outside_pressure;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_water_temperature;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_directionTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_headingMagnetic;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.resources;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.self_str;
@@ -53,6 +65,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
@@ -183,6 +196,28 @@ public class Util {
         }
         model.getFullData().put(ConfigConstants.SERIAL_PORT_BAUD, 38400);
         model.getFullData().put(ConfigConstants.ENABLE_SERIAL, true);
+        // seconds without a report before an AIS target is dropped
+        model.getFullData().put(ConfigConstants.AIS_TARGET_TIMEOUT, 600);
+        model.getFullData().put(ConfigConstants.AIS_MAX_TARGETS, 2000);
+        model.getFullData().put(ConfigConstants.CPA_ALARM, 0.5);
+        model.getFullData().put(ConfigConstants.CPA_WARN, 1.0);
+        model.getFullData().put(ConfigConstants.TCPA_LIMIT, 20.0);
+        model.getFullData().put(ConfigConstants.JOURNAL_ENABLE, false);
+        model.getFullData().put(ConfigConstants.JOURNAL_SYNC_INTERVAL, 1000);
+        model.getFullData().put(ConfigConstants.JOURNAL_COMPACT_SIZE, 4 * 1024 * 1024);
+        model.getFullData().put(ConfigConstants.HISTORY_ENABLE, false);
+        model.getFullData().put(ConfigConstants.HISTORY_PATHS, Json.array(
+            vessels_dot_self_dot + nav_position_latitude, vessels_dot_self_dot + nav_position_longitude,
+            vessels_dot_self_dot + nav_speedOverGround, vessels_dot_self_dot + nav_courseOverGroundTrue,
+            vessels_dot_self_dot + nav_headingMagnetic, vessels_dot_self_dot + env_wind_speedApparent,
+            vessels_dot_self_dot + env_wind_angleApparent, vessels_dot_self_dot + env_wind_speedTrue,
+            vessels_dot_self_dot + env_wind_directionTrue, vessels_dot_self_dot + env_depth_belowTransducer,
+            vessels_dot_self_dot + env_water_temperature, vessels_dot_self_dot + env_outside_pressure).toString());
+        model.getFullData().put(ConfigConstants.HISTORY_INTERVAL, 1000);
+        model.getFullData().put(ConfigConstants.HISTORY_FLUSH_INTERVAL, 60000);
+        // a day at 1Hz per segment, two weeks kept
+        model.getFullData().put(ConfigConstants.HISTORY_SEGMENT_ROWS, 86400);
+        model.getFullData().put(ConfigConstants.HISTORY_SEGMENTS, 14);
         model.getFullData().put(ConfigConstants.TCP_PORT, 55555);
         model.getFullData().put(ConfigConstants.UDP_PORT, 55554);
         model.getFullData().put(ConfigConstants.TCP_NMEA_PORT, 55557);
@@ -506,6 +541,65 @@ public class Util {
 
     }
 
+    /**
+     * Copies the subtrees at roots from signalkModel to temp. Roots that lie
+     * below another root are skipped, so each leaf is copied once.
+     *
+     * @param signalkModel
+     * @param temp
+     * @param roots
+     */
+    public static void populateTree(SignalKModel signalkModel,
+        SignalKModel temp, NavigableSet<String> roots) {
+        // so a putAll is copied whole or not at all
+        long stamp = signalkModel.readLock();
+        try {
+            for (String p : roots) {
+                if (hasAncestor(roots, p)) {
+                    continue;
+                }
+                String branch = p + dot;
+                for (String key : signalkModel.getSubMap(p).keySet()) {
+                    if (key.equals(p) || key.startsWith(branch)) {
+                        // through get, so stored numbers and "null" read as they always have
+                        Object val = signalkModel.get(key);
+                        if (val != null) {
+                            temp.getFullData().put(key, val);
+                        }
+                    }
+                }
+            }
+        } finally {
+            signalkModel.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds key to a set of subtree roots, unless it is already below a root.
+     * Roots below key are removed.
+     *
+     * @param roots
+     * @param key
+     * @return false if key was already covered
+     */
+    public static boolean addRoot(NavigableSet<String> roots, String key) {
+        if (roots.contains(key) || hasAncestor(roots, key)) {
+            return false;
+        }
+        roots.subSet(key + dot, true, key + dot + "\uFFFF", false).clear();
+        roots.add(key);
+        return true;
+    }
+
+    private static boolean hasAncestor(Set<String> roots, String key) {
+        for (int i = key.lastIndexOf('.'); i > 0; i = key.lastIndexOf('.', i - 1)) {
+            if (roots.contains(key.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static SignalKModel populateModel(SignalKModel model, String mapDump)
         throws IOException {
         Properties props = new Properties();
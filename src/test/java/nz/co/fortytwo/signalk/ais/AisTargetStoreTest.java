@@ -0,0 +1,178 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.ais;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.Test;
+
+public class AisTargetStoreTest {
+
+	private static final double NaN = Double.NaN;
+
+	private Set<Integer> mmsis(List<AisTargetStore.Target> targets) {
+		Set<Integer> set = new HashSet<Integer>();
+		for (AisTargetStore.Target t : targets) {
+			set.add(t.getMmsi());
+		}
+		return set;
+	}
+
+	@Test
+	public void shouldFindTargetsInRange() {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		store.update(1, 60.0, 25.0, NaN, NaN, NaN, 1000);
+		// 3nm north
+		store.update(2, 60.05, 25.0, NaN, NaN, NaN, 1000);
+		// 20nm east
+		store.update(3, 60.0, 25.667, NaN, NaN, NaN, 1000);
+		// no position yet
+		store.update(4, NaN, NaN, 1.0, 2.0, NaN, 1000);
+
+		assertEquals(4, store.size());
+		assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), mmsis(store.within(60.0, 25.0, 5)));
+		assertEquals(3, store.within(60.0, 25.0, 25).size());
+		assertEquals(0, store.within(0, 0, 100).size());
+
+		// moves out of range, keeps its motion
+		store.update(2, 61.0, 25.0, 0.5, NaN, NaN, 2000);
+		assertEquals(new HashSet<Integer>(Arrays.asList(1)), mmsis(store.within(60.0, 25.0, 5)));
+		store.update(2, NaN, NaN, NaN, 3.0, NaN, 3000);
+		AisTargetStore.Target t = store.get(2);
+		assertEquals(61.0, t.getLatitude(), 0.0);
+		assertEquals(0.5, t.getCog(), 0.0);
+		assertEquals(3.0, t.getSog(), 0.0);
+		assertEquals(3000, t.getLastSeen());
+	}
+
+	@Test
+	public void shouldSearchAcrossAntimeridian() {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		store.update(1, -17.0, 179.98, NaN, NaN, NaN, 1000);
+		store.update(2, -17.0, -179.98, NaN, NaN, NaN, 1000);
+		assertEquals(2, store.within(-17.0, 180.0, 2).size());
+		assertEquals(2, store.within(-17.0, -179.99, 2).size());
+		// near the pole every longitude is close
+		store.update(3, 89.99, 0, NaN, NaN, NaN, 1000);
+		store.update(4, 89.99, 180, NaN, NaN, NaN, 1000);
+		assertEquals(2, store.within(89.99, 90, 2).size());
+	}
+
+	@Test
+	public void shouldMatchFullScan() {
+		Random random = new Random(42);
+		AisTargetStore store = new AisTargetStore(600000, 5000, 0.05);
+		for (int i = 0; i < 2000; i++) {
+			store.update(i, 59 + random.nextDouble() * 2, 24 + random.nextDouble() * 2, NaN, NaN, NaN, i);
+		}
+		for (int q = 0; q < 20; q++) {
+			double lat = 59 + random.nextDouble() * 2;
+			double lon = 24 + random.nextDouble() * 2;
+			double nm = random.nextDouble() * 20;
+			Set<Integer> expected = new HashSet<Integer>();
+			for (AisTargetStore.Target t : store.getTargets()) {
+				if (Util.haversineMeters(lat, lon, t.getLatitude(), t.getLongitude()) <= nm * 1852) {
+					expected.add(t.getMmsi());
+				}
+			}
+			assertEquals(expected, mmsis(store.within(lat, lon, nm)));
+		}
+	}
+
+	@Test
+	public void shouldEvictStaleTargets() {
+		AisTargetStore store = new AisTargetStore(60000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		String stale = vessels + dot + "111111111" + dot;
+		String fresh = vessels + dot + "222222222" + dot;
+		model.putPosition(stale + "navigation.position", 60.0, 25.0, 0.0, "test", Util.getIsoTimeString());
+		model.putPosition(fresh + "navigation.position", 60.1, 25.0, 0.0, "test", Util.getIsoTimeString());
+		store.update(111111111, 60.0, 25.0, NaN, NaN, NaN, 1000);
+		store.update(222222222, 60.1, 25.0, NaN, NaN, NaN, 1000);
+		// seen again later
+		store.update(222222222, NaN, NaN, 1.0, NaN, NaN, 50000);
+
+		assertEquals(0, store.evict(model, 60999).size());
+		List<AisTargetStore.Target> evicted = store.evict(model, 61000);
+		assertEquals(1, evicted.size());
+		assertEquals(111111111, evicted.get(0).getMmsi());
+		assertNull(store.get(111111111));
+		assertNotNull(store.get(222222222));
+		assertNull(model.get(stale + nav_position_latitude));
+		assertTrue(model.getSubMap(vessels + dot + "111111111").isEmpty());
+		assertEquals(60.1, (double) model.get(fresh + nav_position_latitude), 0.0);
+		assertEquals(0, store.within(60.0, 25.0, 1).size());
+	}
+
+	@Test
+	public void shouldDropLeastRecentlySeenWhenFull() {
+		AisTargetStore store = new AisTargetStore(600000, 2, AisTargetStore.DEFAULT_CELL_SIZE);
+		store.update(1, 60.0, 25.0, NaN, NaN, NaN, 1000);
+		store.update(2, 60.0, 25.0, NaN, NaN, NaN, 2000);
+		store.update(1, NaN, NaN, 1.0, NaN, NaN, 3000);
+		store.update(3, 60.0, 25.0, NaN, NaN, NaN, 4000);
+		assertEquals(2, store.size());
+		assertNull(store.get(2));
+		assertEquals(new HashSet<Integer>(Arrays.asList(1, 3)), mmsis(store.within(60.0, 25.0, 1)));
+	}
+
+	@Test
+	public void shouldRemoveDroppedTargetsFromModel() {
+		AisTargetStore store = new AisTargetStore(600000, 2, AisTargetStore.DEFAULT_CELL_SIZE);
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		for (int mmsi = 1; mmsi <= 4; mmsi++) {
+			model.putPosition(vessels + dot + mmsi + dot + "navigation.position", 60.0, 25.0, 0.0, "test", Util.getIsoTimeString());
+		}
+		store.update(1, 60.0, 25.0, NaN, NaN, NaN, 1000);
+		store.update(2, 60.0, 25.0, NaN, NaN, NaN, 2000);
+		store.update(3, 60.0, 25.0, NaN, NaN, NaN, 3000);
+		store.update(4, 60.0, 25.0, NaN, NaN, NaN, 4000);
+		// dropped, then seen again so it stays in the model
+		store.update(1, 60.0, 25.0, NaN, NaN, NaN, 5000);
+
+		// nothing is stale, but the dropped targets are removed
+		assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), mmsis(store.evict(model, 6000)));
+		assertTrue(model.getSubMap(vessels + dot + 2).isEmpty());
+		assertTrue(model.getSubMap(vessels + dot + 3).isEmpty());
+		assertEquals(60.0, (double) model.get(vessels + dot + 1 + dot + nav_position_latitude), 0.0);
+		assertEquals(60.0, (double) model.get(vessels + dot + 4 + dot + nav_position_latitude), 0.0);
+		assertEquals(0, store.evict(model, 6000).size());
+	}
+}
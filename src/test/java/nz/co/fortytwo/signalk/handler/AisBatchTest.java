@@ -0,0 +1,165 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.communication_callsignVhf;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.mmsi;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.name;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_headingTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_state;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import nz.co.fortytwo.signalk.ais.AisTargetStore;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.Test;
+
+public class AisBatchTest {
+
+	@Test
+	public void shouldMergeUpdatesPerMmsi() {
+		AisBatch batch = new AisBatch();
+		AisBatch.Update u = batch.get(230982000);
+		u.sentence("src.Position", "!AIVDM,1", "t1");
+		u.position("src.Position", 60.1, 25.1);
+		u.motion("src.Position", 0, 1540, 22, 153);
+		// a static message does not clear the motion values
+		u = batch.get(230982000);
+		u.sentence("src.StaticCommon", "!AIVDM,2", "t2");
+		u.statics("src.StaticCommon", "RESCUE@@@@", "OJ7510@");
+		// class B with unavailable cog and heading
+		u.sentence("src.Message18", "!AIVDM,3", "t3");
+		u.position("src.Message18", 60.2, 25.2);
+		u.motion("src.Message18", -1, AisBatch.COG_NA, 23, AisBatch.HEADING_NA);
+
+		assertEquals(1, batch.getUpdates().size());
+		assertEquals("t3", u.ts);
+		assertEquals(60.2, u.lat, 0.0);
+		assertEquals(0, u.navStatus);
+		assertEquals(1540, u.cog);
+		assertEquals(23, u.sog);
+		assertEquals(153, u.heading);
+		assertEquals("RESCUE", u.name);
+		assertEquals("OJ7510", u.callsign);
+		assertEquals(3, u.sentences.size());
+	}
+
+	@Test
+	public void shouldWriteMergedTarget() throws Exception {
+		Util.getConfig();
+		AISHandler handler = new AISHandler();
+		AisBatch.Update u = handler.getBatch().get(230982000);
+		u.sentence("sources.ais.test.230982000.Position", "!AIVDM,1", Util.getIsoTimeString());
+		u.position("sources.ais.test.230982000.Position", 60.1, 25.1);
+		u.motion("sources.ais.test.230982000.Position", 0, 1540, 22, 153);
+		u.statics("sources.ais.test.230982000.StaticCommon", "RESCUE", "OJ7510");
+
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		handler.write(model, "test");
+		assertTrue(handler.getBatch().isEmpty());
+
+		String target = vessels + dot + "230982000" + dot;
+		assertEquals("230982000", model.getValue(target + mmsi));
+		assertEquals("RESCUE", model.get(target + name));
+		assertEquals("OJ7510", model.getValue(target + communication_callsignVhf));
+		assertEquals("Under way using engine", model.getValue(target + nav_state));
+		assertEquals(60.1, (double) model.get(target + nav_position_latitude), 0.0);
+		assertEquals(Math.toRadians(154.0), (double) model.getValue(target + nav_courseOverGroundTrue), 0.000001);
+		assertEquals(Util.kntToMs(2.2), (double) model.getValue(target + nav_speedOverGround), 0.000001);
+		assertEquals(Math.toRadians(153), (double) model.getValue(target + nav_headingTrue), 0.000001);
+		// and recorded in the target store
+		assertEquals(1, handler.getTargetStore().within(60.1, 25.1, 1).size());
+		assertEquals(Math.toRadians(154.0), handler.getTargetStore().get(230982000).getCog(), 0.000001);
+	}
+
+	private void report(AISHandler handler, SignalKModel model, int mmsi) throws Exception {
+		String src = "sources.ais.test." + mmsi + ".Position";
+		AisBatch.Update u = handler.getBatch().get(mmsi);
+		u.sentence(src, "!AIVDM,1", Util.getIsoTimeString());
+		u.position(src, 60.1, 25.1);
+		handler.write(model, "test");
+	}
+
+	@Test
+	public void shouldRemoveDroppedTargetsFromModel() throws Exception {
+		Util.getConfig();
+		AISHandler handler = new AISHandler(new AisTargetStore(600000, 2, AisTargetStore.DEFAULT_CELL_SIZE));
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		report(handler, model, 1);
+		report(handler, model, 2);
+		report(handler, model, 3);
+		String dropped = vessels + dot + "1";
+		assertEquals(60.1, (double) model.get(dropped + dot + nav_position_latitude), 0.0);
+		assertEquals("!AIVDM,1", model.getValue("sources.ais.test.1.Position"));
+
+		assertEquals(1, handler.evict(model).size());
+		assertTrue(model.getSubMap(dropped).isEmpty());
+		assertTrue(model.getSubMap("sources.ais.test.1").isEmpty());
+		assertEquals("!AIVDM,1", model.getValue("sources.ais.test.2.Position"));
+		assertEquals(60.1, (double) model.get(vessels + dot + "3" + dot + nav_position_latitude), 0.0);
+		// comes back with its keys rebuilt
+		report(handler, model, 1);
+		assertEquals("1", model.getValue(dropped + dot + mmsi));
+	}
+
+	@Test
+	public void shouldEvictOnSchedule() throws Exception {
+		Util.getConfig();
+		AISHandler handler = new AISHandler(new AisTargetStore(50, 100, AisTargetStore.DEFAULT_CELL_SIZE));
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		report(handler, model, 1);
+		String stale = vessels + dot + "1";
+		assertTrue(!model.getSubMap(stale).isEmpty());
+		handler.start(model, 10);
+		try {
+			long end = System.currentTimeMillis() + 5000;
+			while ((!model.getSubMap(stale).isEmpty() || !model.getSubMap("sources.ais.test.1").isEmpty())
+					&& System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+		} finally {
+			handler.stop();
+		}
+		assertTrue(model.getSubMap(stale).isEmpty());
+		assertEquals(0, handler.getTargetStore().size());
+		assertTrue(model.getSubMap("sources.ais.test.1").isEmpty());
+	}
+
+	@Test
+	public void shouldSkipEmptyBatch() {
+		AISHandler handler = new AISHandler();
+		assertNull(handler.handleBatch(Collections.singletonList(""), null));
+	}
+}
@@ -4,9 +4,13 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.alarm;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.alarmState;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.notifications;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dwell;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.message;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.meta;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundMagnetic;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.zones;
 import static org.junit.Assert.assertEquals;
@@ -66,4 +70,54 @@ public class AlarmHandlerTest {
 		assertEquals(normal, model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState));
 	}
 
+	@Test
+	public void shouldOnlyCheckChangedPaths() throws IOException {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		String cogAlarm = vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState;
+		String cogTrueAlarm = vessels_dot_self_dot+notifications+dot+nav_courseOverGroundTrue+dot+alarmState;
+		model.getFullData().put(vessels_dot_self_dot+nav_courseOverGroundMagnetic+dot+meta+dot+zones, Json.read("[{\"lower\":0,\"upper\":1,\"state\":\"alarm\",\"message\":\"Off course\"}]"));
+		model.getFullData().put(vessels_dot_self_dot+nav_courseOverGroundTrue+dot+meta+dot+zones, Json.read("[{\"lower\":0,\"upper\":1,\"state\":\"warn\",\"message\":\"Check course\"}]"));
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 0.5);
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundTrue, 0.5);
+		AlarmHandler handler = new AlarmHandler();
+		handler.handle(model);
+		assertEquals(alarm, model.get(cogAlarm));
+		assertEquals("Off course", model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+message));
+		assertEquals(warn, model.get(cogTrueAlarm));
+		assertEquals("Check course", model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundTrue+dot+message));
+
+		//unchanged paths are not checked again
+		model.getFullData().put(cogTrueAlarm, "cleared");
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 2.0);
+		handler.handle(model);
+		assertEquals("cleared", model.get(cogTrueAlarm));
+		//out of every zone, the alarm stays
+		assertEquals(alarm, model.get(cogAlarm));
+
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundTrue, 0.6);
+		handler.handle(model);
+		assertEquals(warn, model.get(cogTrueAlarm));
+	}
+
+	@Test
+	public void shouldWaitForDwellTime() throws IOException {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		String cogAlarm = vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState;
+		model.getFullData().put(vessels_dot_self_dot+nav_courseOverGroundMagnetic+dot+meta+dot+zones, Json.read("[{\"lower\":0,\"upper\":1,\"state\":\"normal\"},{\"lower\":1,\"upper\":7,\"state\":\"alarm\"}]"));
+		model.getFullData().put(vessels_dot_self_dot+nav_courseOverGroundMagnetic+dot+meta+dot+dwell, 2000);
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 0.5);
+		AlarmHandler handler = new AlarmHandler();
+		handler.handle(model, 0);
+		assertEquals(normal, model.get(cogAlarm));
+
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 2.0);
+		handler.handle(model, 1000);
+		assertEquals(normal, model.get(cogAlarm));
+		//no new value, the pending alarm is still raised after the dwell time
+		handler.handle(model, 3000);
+		assertEquals(alarm, model.get(cogAlarm));
+	}
+
 }
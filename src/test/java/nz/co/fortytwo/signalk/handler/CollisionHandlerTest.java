@@ -0,0 +1,199 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.alarm;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.alarmState;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.notifications_collision;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nz.co.fortytwo.signalk.ais.AisTargetStore;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.OverflowPolicy;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.Subscription;
+import nz.co.fortytwo.signalk.model.event.ChangeListener;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.Test;
+
+public class CollisionHandlerTest {
+
+	private static final double NaN = Double.NaN;
+	private static final long NOW = 1000000;
+
+	private SignalKModel ownShip(double lat, double lon, double cogDeg, double sog) {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		String ts = Util.getIsoTimeString();
+		model.putPosition(vessels_dot_self_dot + nav_position, lat, lon, 0.0, "test", ts);
+		model.putDouble(vessels_dot_self_dot + nav_courseOverGroundTrue, Math.toRadians(cogDeg), "test", ts);
+		model.putDouble(vessels_dot_self_dot + nav_speedOverGround, sog, "test", ts);
+		return model;
+	}
+
+	private Object state(SignalKModel model, int mmsi) {
+		return model.get(vessels_dot_self_dot + notifications_collision + dot + mmsi + dot + alarmState);
+	}
+
+	@Test
+	public void shouldRaiseCollisionAlarms() {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		CollisionHandler handler = new CollisionHandler(store, 0.5, 1.0, 20);
+		// heading north at 5m/s
+		SignalKModel model = ownShip(60.0, 25.0, 0, 5);
+		// 2nm ahead heading south at 5m/s
+		store.update(1, 60.0 + 2 / 60.0, 25.0, Math.PI, 5, NaN, NOW);
+		// 0.8nm to the east, reported 10s ago, on a parallel course
+		store.update(2, 60.0, 25.0 + 0.8 / 60 / Math.cos(Math.toRadians(60)), Math.toRadians(180), 5, NaN, NOW - 10000);
+		// 5nm behind going away
+		store.update(3, 60.0 - 5 / 60.0, 25.0, Math.PI, 5, NaN, NOW);
+		handler.handle(model, NOW);
+
+		assertEquals(0, handler.getCpa(1), 20);
+		assertEquals(1852 * 2 / 10.0, handler.getTcpa(1), 1);
+		assertEquals(alarm, state(model, 1));
+		assertEquals(0.8 * 1852, handler.getCpa(2), 10);
+		assertEquals(0, handler.getTcpa(2), 0.0);
+		assertEquals(warn, state(model, 2));
+		assertEquals(5 * 1852, handler.getCpa(3), 20);
+		assertNull(state(model, 3));
+
+		// target 1 alters course to port, we now pass 2nm apart
+		store.update(1, 60.0 + 2 / 60.0, 25.0 - 2 / 60.0 / Math.cos(Math.toRadians(60)), Math.PI, 5, NaN, NOW);
+		handler.handle(model, NOW);
+		assertEquals(normal, state(model, 1));
+
+		// the target is gone, and so is its warning
+		store.evict(NOW + 700000);
+		assertTrue(Double.isNaN(handler.getCpa(2)));
+		handler.handle(model, NOW + 700000);
+		assertNull(state(model, 2));
+	}
+
+	@Test
+	public void shouldDeleteNotificationsOfRemovedTargets() throws Exception {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		CollisionHandler handler = new CollisionHandler(store, 0.5, 1.0, 20);
+		SignalKModel model = ownShip(60.0, 25.0, 0, 5);
+		// 2nm ahead heading south, then alters course so we pass 2nm apart
+		store.update(1, 60.0 + 2 / 60.0, 25.0, Math.PI, 5, NaN, NOW);
+		// 2nm ahead heading south
+		store.update(2, 60.0 + 2 / 60.0, 25.0 + 0.01, Math.PI, 5, NaN, NOW);
+		handler.handle(model, NOW);
+		store.update(1, 60.0 + 2 / 60.0, 25.0 - 2 / 60.0 / Math.cos(Math.toRadians(60)), Math.PI, 5, NaN, NOW);
+		handler.handle(model, NOW);
+		assertEquals(normal, state(model, 1));
+		assertEquals(alarm, state(model, 2));
+
+		final String key = vessels_dot_self_dot + notifications_collision + dot + 2 + dot + alarmState;
+		final List<String> events = new CopyOnWriteArrayList<String>();
+		Subscription sub = model.getChangeBus().subscribe(new ChangeListener() {
+			@Override
+			public void onChange(ChangeSet changes) {
+				for (PathEvent event : changes.getEvents()) {
+					if (event.getPath().equals(key)) events.add(event.getType().name());
+				}
+			}
+		}, 10, OverflowPolicy.BLOCK);
+		try {
+			store.evict(NOW + 700000);
+			handler.handle(model, NOW + 700000);
+			assertTrue(sub.flush(5000));
+		} finally {
+			sub.close();
+		}
+		// one normal notification for the raised target, then its keys are gone
+		assertEquals(Arrays.asList("ADD", "DEL"), events);
+		assertNull(state(model, 1));
+		assertNull(state(model, 2));
+		assertTrue(model.getSubMap(vessels_dot_self_dot + notifications_collision).isEmpty());
+	}
+
+	@Test
+	public void shouldExtrapolateFromLastPositionReport() {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		CollisionHandler handler = new CollisionHandler(store, 0.5, 1.0, 20);
+		SignalKModel model = ownShip(60.0, 25.0, 0, 0);
+		// 1nm north heading south at 5m/s, a minute ago
+		store.update(1, 60.0 + 1 / 60.0, 25.0, Math.PI, 5, NaN, NOW - 60000);
+		// static data now, without a position
+		store.update(1, NaN, NaN, NaN, NaN, NaN, NOW);
+		handler.handle(model, NOW);
+		assertEquals((1852 - 300) / 5.0, handler.getTcpa(1), 1);
+	}
+
+	@Test
+	public void shouldIgnoreApproachBeyondLimit() {
+		AisTargetStore store = new AisTargetStore(600000, 100, AisTargetStore.DEFAULT_CELL_SIZE);
+		CollisionHandler handler = new CollisionHandler(store, 0.5, 1.0, 20);
+		SignalKModel model = ownShip(60.0, 25.0, 0, 0);
+		// 10nm ahead at 5m/s, an hour away
+		store.update(1, 60.0 + 10 / 60.0, 25.0, Math.PI, 5, NaN, NOW);
+		handler.handle(model, NOW);
+		assertEquals(0, handler.getCpa(1), 20);
+		assertEquals(3704, handler.getTcpa(1), 5);
+		assertNull(state(model, 1));
+	}
+
+	@Test
+	public void shouldSplitLargeFleets() {
+		AisTargetStore store = new AisTargetStore(600000, 5000, AisTargetStore.DEFAULT_CELL_SIZE);
+		Random random = new Random(7);
+		int count = CollisionHandler.THRESHOLD * 6;
+		for (int i = 0; i < count; i++) {
+			store.update(i, 59.5 + random.nextDouble(), 24.5 + random.nextDouble(), random.nextDouble() * 2 * Math.PI,
+					random.nextDouble() * 10, NaN, NOW);
+		}
+		CollisionHandler handler = new CollisionHandler(store, 0.5, 1.0, 20);
+		SignalKModel model = ownShip(60.0, 25.0, 45, 3);
+		handler.handle(model, NOW);
+
+		// each result matches a handler with only that target
+		for (int i = 0; i < count; i += 97) {
+			AisTargetStore single = new AisTargetStore(600000, 5, AisTargetStore.DEFAULT_CELL_SIZE);
+			AisTargetStore.Target t = store.get(i);
+			single.update(i, t.getLatitude(), t.getLongitude(), t.getCog(), t.getSog(), NaN, NOW);
+			CollisionHandler one = new CollisionHandler(single, 0.5, 1.0, 20);
+			one.handle(ownShip(60.0, 25.0, 45, 3), NOW);
+			assertEquals(one.getCpa(i), handler.getCpa(i), 0.001);
+			assertEquals(one.getTcpa(i), handler.getTcpa(i), 0.001);
+		}
+	}
+}
@@ -36,6 +36,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.io.StringReader;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
@@ -193,4 +194,25 @@ public class DeltaToMapConverterTest {
 		assertEquals("2014-08-15T16:00:00.081+00:00", output.get(vessels_dot_self_dot + nav_speedThroughWater + ".timestamp"));
 		assertEquals("/dev/ttyUSB0", output.get(vessels_dot_self_dot + nav_speedThroughWater + "." + source + ".device"));
 	}
+	@Test
+	public void shouldStreamLikeTree() throws Exception {
+		DeltaToMapConverter processor = new DeltaToMapConverter();
+		String[] messages = { jsonDiff, jsonDiff1, jsonDiff2, jsonDiff3,
+				FileUtils.readFileToString(new File("src/test/resources/samples/anchorWatchSet.json")),
+				FileUtils.readFileToString(new File("src/test/resources/samples/rmcDeltaFormat.json")) };
+		for (String msg : messages) {
+			SignalKModel tree = processor.handle(Json.read(msg));
+			byte[] bytes = msg.getBytes("UTF-8");
+			SignalKModel streamed = processor.handle(bytes, 0, bytes.length);
+			assertEquals(msg, tree.getFullData(), streamed.getFullData());
+			assertEquals(msg, tree.getFullData(), processor.handle(new StringReader(msg)).getFullData());
+		}
+	}
+
+	@Test
+	public void shouldStreamIgnoreNonDelta() throws Exception {
+		DeltaToMapConverter processor = new DeltaToMapConverter();
+		assertNull(processor.handle(new StringReader("{\"vessels\":{\"" + self + "\":{\"navigation\":{\"courseOverGroundTrue\": {\"value\":11.96}}}}}")));
+		assertNull(processor.handle(new StringReader("{\"headingTrue\": {\"value\": 23,\"source\": \"" + self + "\",\"timestamp\": \"2014-03-24T00: 15: 41+00:00\" }}")));
+	}
 }
@@ -0,0 +1,222 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowKeel;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowSurface;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_surfaceToTransducer;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_transducerToKeel;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.Test;
+
+public class DerivedDataEngineTest {
+
+	/**
+	 * Counts the calls to a calculator
+	 */
+	private static class Counting implements DerivedCalculator {
+		final DerivedCalculator calc;
+		final AtomicInteger count = new AtomicInteger();
+
+		Counting(DerivedCalculator calc) {
+			this.calc = calc;
+		}
+
+		@Override
+		public Collection<String> getInputs() {
+			return calc.getInputs();
+		}
+
+		@Override
+		public Collection<String> getOutputs() {
+			return calc.getOutputs();
+		}
+
+		@Override
+		public void calculate(SignalKModel signalkModel) {
+			count.incrementAndGet();
+			calc.calculate(signalkModel);
+		}
+	}
+
+	/**
+	 * Depth below keel in feet, chained after the depth handler
+	 */
+	private static class KeelFeet implements DerivedCalculator {
+		static final String output = "environment.depth.belowKeelFeet";
+
+		@Override
+		public Collection<String> getInputs() {
+			return Arrays.asList(env_depth_belowKeel);
+		}
+
+		@Override
+		public Collection<String> getOutputs() {
+			return Arrays.asList(output);
+		}
+
+		@Override
+		public void calculate(SignalKModel signalkModel) {
+			double keel = signalkModel.getValueDouble(vessels_dot_self_dot + env_depth_belowKeel);
+			signalkModel.putDouble(vessels_dot_self_dot + output, keel * 3.28084, "self", Util.getIsoTimeString());
+		}
+	}
+
+	private static class Fixed implements DerivedCalculator {
+		final List<String> inputs;
+		final List<String> outputs;
+
+		Fixed(List<String> inputs, List<String> outputs) {
+			this.inputs = inputs;
+			this.outputs = outputs;
+		}
+
+		@Override
+		public Collection<String> getInputs() {
+			return inputs;
+		}
+
+		@Override
+		public Collection<String> getOutputs() {
+			return outputs;
+		}
+
+		@Override
+		public void calculate(SignalKModel signalkModel) {
+		}
+	}
+
+	private void put(SignalKModel model, String path, double val) {
+		model.putDouble(vessels_dot_self_dot + path, val, "test", Util.getIsoTimeString());
+	}
+
+	@Test
+	public void shouldRunOnlyChangedCalculators() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		put(model, env_depth_surfaceToTransducer, 0.5);
+		put(model, env_depth_transducerToKeel, 1.5);
+		put(model, env_depth_belowTransducer, 10.0);
+		put(model, nav_speedOverGround, 3.0);
+		put(model, env_wind_angleApparent, 1.0);
+		put(model, env_wind_speedApparent, 8.0);
+
+		Counting depth = new Counting(new DepthHandler());
+		Counting wind = new Counting(new TrueWindHandler());
+		Counting declination = new Counting(new DeclinationHandler());
+		Counting feet = new Counting(new KeelFeet());
+		DerivedDataEngine engine = new DerivedDataEngine();
+		// added out of order
+		engine.add(feet);
+		engine.add(depth);
+		engine.add(wind);
+		engine.add(declination);
+		assertEquals(2, engine.getLevels().size());
+		assertEquals(Arrays.asList(feet), engine.getLevels().get(1));
+
+		engine.handle(model);
+		assertEquals(1, depth.count.get());
+		assertEquals(1, wind.count.get());
+		assertEquals(1, declination.count.get());
+		assertEquals(1, feet.count.get());
+		// computed from the model given, not the global one
+		assertEquals(10.5, model.getValueDouble(vessels_dot_self_dot + env_depth_belowSurface), 0.0001);
+		assertEquals(8.5 * 3.28084, model.getValueDouble(vessels_dot_self_dot + KeelFeet.output), 0.0001);
+
+		// our own writes do not trigger anything
+		engine.handle(model);
+		assertEquals(1, depth.count.get());
+		assertEquals(1, feet.count.get());
+
+		put(model, env_depth_belowTransducer, 12.0);
+		engine.handle(model);
+		assertEquals(2, depth.count.get());
+		assertEquals(2, feet.count.get());
+		assertEquals(1, wind.count.get());
+		assertEquals(1, declination.count.get());
+		assertEquals(10.5 * 3.28084, model.getValueDouble(vessels_dot_self_dot + KeelFeet.output), 0.0001);
+
+		model.putPosition(vessels_dot_self_dot + nav_position, -41.0, 174.0, 0.0, "test", Util.getIsoTimeString());
+		engine.handle(model);
+		assertEquals(2, declination.count.get());
+		assertEquals(2, depth.count.get());
+	}
+
+	@Test
+	public void shouldRejectCycles() {
+		DerivedDataEngine engine = new DerivedDataEngine();
+		engine.add(new Fixed(Arrays.asList("a"), Arrays.asList("b")));
+		try {
+			engine.add(new Fixed(Arrays.asList("b"), Arrays.asList("a")));
+			fail("Cycle not found");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("cycle"));
+		}
+		try {
+			engine.add(new Fixed(Arrays.asList("c"), Arrays.asList("b")));
+			fail("Duplicate output not found");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("written by"));
+		}
+		// the engine still works
+		engine.add(new Fixed(Arrays.asList("b"), Arrays.asList("c")));
+		assertEquals(2, engine.getLevels().size());
+	}
+
+	@Test
+	public void shouldOrderByPrefixPaths() {
+		DerivedDataEngine engine = new DerivedDataEngine();
+		// reads below what the other writes, and above
+		Fixed latitude = new Fixed(Arrays.asList("navigation.position.latitude"), Arrays.asList("x"));
+		Fixed position = new Fixed(Arrays.asList("navigation.position"), Arrays.asList("y"));
+		Fixed writer = new Fixed(Arrays.asList("a"), Arrays.asList("navigation.position"));
+		Fixed below = new Fixed(Arrays.asList("b"), Arrays.asList("environment.depth.belowKeel"));
+		Fixed depth = new Fixed(Arrays.asList("environment.depth"), Arrays.asList("z"));
+		engine.add(latitude);
+		engine.add(position);
+		engine.add(depth);
+		engine.add(writer);
+		engine.add(below);
+		assertEquals(2, engine.getLevels().size());
+		assertEquals(Arrays.asList(writer, below), engine.getLevels().get(0));
+		assertEquals(Arrays.asList(latitude, position, depth), engine.getLevels().get(1));
+	}
+}
@@ -31,8 +31,12 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertNull;
+import java.math.BigDecimal;
+
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
@@ -88,6 +92,45 @@ public class JsonGetHandlerTest {
 		assertEquals(173.2470855712,reply.get(vessels+".other."+nav_position_longitude));
 		assertEquals(84, reply.getData().size()); 
 	}
+	@Test
+	public void shouldGetReadOnlyView() throws Exception {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.putAll(TestHelper.getOtherModel().getFullData());
+		String request = "{\"context\":\"vessels.*\",\"get\":[{\"path\":\"navigation.*\"},{\"path\":\"navigation.position.*\"}]}";
+		Json json = Json.read(request);
+		JsonGetHandler processor = new JsonGetHandler();
+		SignalKModel reply = processor.handle(model,json);
+		SignalKModel view = processor.handleView(model,json);
+		assertEquals(84, reply.getData().size());
+		assertEquals(reply.getFullData(), view.getFullData());
+		//the view is live
+		model.getFullData().put(vessels_dot_self_dot+nav_position_latitude, -40.0);
+		assertEquals(-40.0,view.get(vessels_dot_self_dot+nav_position_latitude));
+		assertEquals(-41.2936935424,reply.get(vessels_dot_self_dot+nav_position_latitude));
+		try{
+			view.getFullData().put(vessels_dot_self_dot+nav_position_latitude, -39.0);
+			fail("View should be read only");
+		}catch(UnsupportedOperationException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void shouldNormalizeStoredValues() throws Exception {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		String base = vessels_dot_self_dot+"environment.test.";
+		model.getFullData().put(base+"long", 5L);
+		model.getFullData().put(base+"decimal", new BigDecimal("2.5"));
+		model.getFullData().put(base+"none", "null");
+		Json json = Json.read("{\"context\":\"vessels."+self+"\",\"get\":[{\"path\":\"environment.test.*\"}]}");
+		SignalKModel reply = new JsonGetHandler().handle(model,json);
+		assertEquals(5.0, reply.getFullData().get(base+"long"));
+		assertEquals(2.5, reply.getFullData().get(base+"decimal"));
+		assertFalse(reply.getFullData().containsKey(base+"none"));
+	}
+
 	@Test
 	public void shouldIgnoreListRequest() throws Exception {
 		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
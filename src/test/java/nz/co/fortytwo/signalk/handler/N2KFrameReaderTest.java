@@ -0,0 +1,193 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.mmsi;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_headingTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_rateOfTurn;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_state;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class N2KFrameReaderTest {
+
+	/**
+	 * Replays a candump log as SocketCAN frames
+	 */
+	private List<SignalKModel> replay(N2KFrameReader reader, File capture) throws Exception {
+		List<SignalKModel> models = new ArrayList<SignalKModel>();
+		ByteBuffer buf = ByteBuffer.allocate(N2KFrameReader.CAN_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (String line : FileUtils.readLines(capture)) {
+			if (line.trim().length() == 0) continue;
+			// (1439660410.005000) can0 09F80102#A454D923C4FAC60E
+			String[] frame = line.substring(line.lastIndexOf(' ') + 1).split("#");
+			byte[] data = Hex.decodeHex(frame[1].toCharArray());
+			buf.clear();
+			buf.putInt((int) Long.parseLong(frame[0], 16) | 0x80000000);
+			buf.put((byte) data.length);
+			buf.put(new byte[3]);
+			buf.put(data);
+			buf.position(0);
+			SignalKModel model = reader.readCanFrame(buf);
+			assertEquals(N2KFrameReader.CAN_FRAME_SIZE, buf.position());
+			if (model != null) models.add(model);
+		}
+		return models;
+	}
+
+	@Test
+	public void shouldDecodeCapture() throws Exception {
+		N2KFrameReader reader = new N2KFrameReader(new N2KHandler(), "can0");
+		List<SignalKModel> models = replay(reader, new File("src/test/resources/samples/n2kCapture.log"));
+		// position, cog/sog, wind, the ais fast packet after its last frame, depth
+		assertEquals(5, models.size());
+
+		SignalKModel model = models.get(0);
+		assertEquals(60.144554, (double) model.get(vessels_dot_self_dot + nav_position_latitude), 0.0000001);
+		assertEquals(24.7921348, (double) model.get(vessels_dot_self_dot + nav_position_longitude), 0.0000001);
+
+		model = models.get(1);
+		assertEquals(206.1, (double) model.getValue(vessels_dot_self_dot + nav_courseOverGroundTrue), 0.01);
+		assertEquals(3.65, (double) model.getValue(vessels_dot_self_dot + nav_speedOverGround), 0.0001);
+
+		model = models.get(2);
+		assertEquals(50.0, (double) model.getValue(vessels_dot_self_dot + env_wind_angleApparent), 0.01);
+		assertEquals(6.22, (double) model.getValue(vessels_dot_self_dot + env_wind_speedApparent), 0.0001);
+
+		model = models.get(3);
+		String target = vessels + dot + "230982000" + dot;
+		assertEquals("230982000", model.get(target + mmsi));
+		assertEquals(25.2026083, (double) model.get(target + nav_position_longitude), 0.0000001);
+		assertEquals(60.2176150, (double) model.get(target + nav_position_latitude), 0.0000001);
+		assertEquals(154.0, (double) model.getValue(target + nav_courseOverGroundTrue), 0.01);
+		assertEquals(2.26, (double) model.getValue(target + nav_speedOverGround), 0.0001);
+		assertEquals(153.0, (double) model.getValue(target + nav_headingTrue), 0.01);
+		assertEquals(0.047, (double) model.getValue(target + nav_rateOfTurn), 0.001);
+		assertEquals("Under way using engine", model.getValue(target + nav_state));
+
+		model = models.get(4);
+		assertEquals(8.20, (double) model.getValue(vessels_dot_self_dot + env_depth_belowTransducer), 0.0001);
+	}
+
+	@Test
+	public void shouldDropBrokenFastPacket() throws Exception {
+		N2KFrameReader reader = new N2KFrameReader(new N2KHandler(), null);
+		int id = 0x11F80E2B;
+		byte[] frame = new byte[8];
+		frame[0] = 0x40;
+		frame[1] = 28;
+		assertNull(reader.readCanFrame(id, frame, 8));
+		// frame 2 without frame 1
+		frame[0] = 0x42;
+		for (int x = 0; x < 6; x++) {
+			assertNull(reader.readCanFrame(id, frame, 8));
+		}
+	}
+
+	@Test
+	public void shouldReadActisense() throws Exception {
+		// depth 41.12m, 0x1010 needs DLE stuffing
+		byte[] depth = { 91, 0x10, 0x10, 0, 0, 0, 0, (byte) 0xff };
+		byte[] frame = actisense(128267, 1, depth);
+		N2KFrameReader reader = new N2KFrameReader(new N2KHandler(), "ngt1");
+
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		// noise, a whole frame, then half a frame
+		buf.put(new byte[] { 0x55, 0x10 });
+		buf.put(frame);
+		buf.put(frame, 0, 9);
+		buf.flip();
+		List<SignalKModel> models = reader.readActisense(buf);
+		assertEquals(1, models.size());
+		assertEquals(41.12, (double) models.get(0).getValue(vessels_dot_self_dot + env_depth_belowTransducer), 0.0001);
+		assertEquals(2 + frame.length, buf.position());
+
+		buf.compact();
+		buf.put(frame, 9, frame.length - 9);
+		buf.flip();
+		models = reader.readActisense(buf);
+		assertEquals(1, models.size());
+		assertTrue(!buf.hasRemaining());
+
+		// a bad checksum is dropped
+		frame[frame.length - 3]++;
+		assertEquals(0, reader.readActisense(ByteBuffer.wrap(frame)).size());
+	}
+
+	private byte[] actisense(int pgn, int src, byte[] data) throws IOException {
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		msg.write(0x93);
+		msg.write(11 + data.length);
+		msg.write(2);
+		msg.write(pgn & 0xff);
+		msg.write((pgn >> 8) & 0xff);
+		msg.write((pgn >> 16) & 0xff);
+		msg.write(255);
+		msg.write(src);
+		msg.write(new byte[4]);
+		msg.write(data.length);
+		msg.write(data);
+		int sum = 0;
+		for (byte b : msg.toByteArray()) {
+			sum += b;
+		}
+		msg.write(-sum & 0xff);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x10);
+		out.write(0x02);
+		for (byte b : msg.toByteArray()) {
+			out.write(b);
+			if (b == 0x10) out.write(b);
+		}
+		out.write(0x10);
+		out.write(0x03);
+		return out.toByteArray();
+	}
+}
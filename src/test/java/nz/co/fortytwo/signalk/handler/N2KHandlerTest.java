@@ -27,17 +27,20 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_headingTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_log;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_logTrip;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_magneticVariation;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_rateOfTurn;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedThroughWater;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_state;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.steering_rudderAngle;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 
@@ -171,6 +174,7 @@ public class N2KHandlerTest {
 		assertEquals(0.047, model.getValue(target+nav_rateOfTurn));
 		assertEquals("Under way using engine", model.getValue(target+nav_state));
 		assertEquals(153.0, model.getValue(target+nav_headingTrue));
+		assertEquals(target+"sources.n2k.43.129038", model.get(target+nav_position+dot+sourceRef));
 	}
 	@Test
 	public void shouldConvertN2K_129039() throws IOException{
@@ -267,4 +271,37 @@ public class N2KHandlerTest {
 		assertNull( model.get(vessels_dot_self_dot+env_current_drift));
 	}
 	
+	@Test
+	public void shouldConvertWithPgnAfterFields() throws IOException{
+		String json = "{\"fields\":{\"SID\":\"67\",\"Wind_Speed\":\"6.22\",\"Wind Angle\":50.0,\"Reference\":\"Apparent\"},\"src\":\"1\",\"pgn\":\"130306\"}";
+		N2KHandler handler = new N2KHandler();
+		SignalKModel model = handler.handle(json);
+		assertEquals(50.0, model.getValue(vessels_dot_self_dot+env_wind_angleApparent));
+		assertEquals(6.22, model.getValue(vessels_dot_self_dot+env_wind_speedApparent));
+		assertNull(model.getValue(vessels_dot_self_dot+env_wind_speedTrue));
+	}
+
+	@Test
+	public void shouldIgnoreUnmappedPgn() throws IOException{
+		N2KHandler handler = new N2KHandler();
+		assertNull(handler.handle("{\"pgn\":\"59904\",\"src\":\"1\",\"fields\":{\"PGN\":\"126996\"}}"));
+		assertNull(handler.handle("not json"));
+	}
+
+	@Test
+	public void shouldCompileFilters() {
+		N2KHandler.Condition[] conditions = N2KHandler.compileFilter("$.fields[?(@.COG Reference=='True' && @.Set)]");
+		assertEquals(2, conditions.length);
+		assertEquals("COG Reference", conditions[0].field);
+		assertEquals("True", conditions[0].value);
+		assertEquals("Set", conditions[1].field);
+		assertNull(conditions[1].value);
+		try {
+			N2KHandler.compileFilter("$.fields[?(@.Speed > 2)]");
+			fail("Should not compile");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
 }
@@ -27,6 +27,7 @@ package nz.co.fortytwo.signalk.handler;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_longitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
@@ -37,11 +38,16 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
@@ -119,6 +125,65 @@ public class NMEAHandlerTest {
 		 assertEquals(23.5391d,(double)model.get(vessels_dot_self_dot +nav_position_longitude),0.0001);
 
 	}
+	private static final String[] FAST_SENTENCES = { "$GPRMC,144629.20,A,5156.91111,N,00434.80385,E,0.295,,011113,,,A*78",
+			"$GPRMC,144629.20,A,5156.91111,S,00434.80385,W,6.5,54.7,011113,,,A*62", "$GPGLL,6005.071,N,02332.346,E,095559,A,D*43",
+			"$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47", "$IIHDG,101.1,,,7.1,W*37", "$IIHDT,274.07,T*14",
+			"$IIHDM,274.07,M*14", "$IIVHW,245.1,T,245.1,M,5.25,N,9.72,K*5B", "$IIVHW,,T,,M,5.25,N,,K*49", "$IIMWV,338,R,13.41,N,A*2C",
+			"$IIDBT,034.25,f,010.44,M,005.64,F*27" };
+
+	@Test
+	public void shouldDecodeFastLikeMarineapi() {
+		NMEAHandler fast = new NMEAHandler();
+		NMEAHandler slow = new NMEAHandler();
+		slow.setFastPath(false);
+		for (String nmea : FAST_SENTENCES) {
+			// twice, so the smoothing state is compared too
+			for (int x = 0; x < 2; x++) {
+				assertSameValues(nmea, slow.handle(nmea, "gps"), fast.handle(nmea, "gps"));
+			}
+		}
+	}
+
+	@Test
+	public void shouldDecodeFromByteBuffer() {
+		String nmea = "$IIMWV,338,R,13.41,N,A*2C\r\n";
+		ByteBuffer buf = ByteBuffer.wrap(("junk" + nmea).getBytes(StandardCharsets.US_ASCII));
+		buf.position(4);
+		SignalKModel model = new NMEAHandler().handle(buf, null);
+		assertEquals(4, buf.position());
+		assertEquals(6.898640400000001, model.getValue(vessels_dot_self_dot + env_wind_speedApparent));
+		assertSameValues(nmea, new NMEAHandler().handle(nmea), model);
+	}
+
+	@Test
+	public void shouldDecodeVTG() {
+		SignalKModel model = new NMEAHandler().handle("$GPVTG,054.7,T,034.4,M,005.5,N,010.2,K,A*25");
+		assertEquals(Math.toRadians(54.7), (double) model.getValue(vessels_dot_self_dot + nav_courseOverGroundTrue), 0.0000001);
+		assertEquals(Util.kntToMs(5.5) / 6, (double) model.getValue(vessels_dot_self_dot + nav_speedOverGround), 0.0000001);
+	}
+
+	@Test
+	public void shouldRejectBadChecksum() {
+		NMEAHandler processor = new NMEAHandler();
+		// falls back to marineapi, which rejects it
+		SignalKModel model = processor.handle("$IIMWV,338,R,13.41,N,A*2D");
+		assertTrue(model == null || model.getValue(vessels_dot_self_dot + env_wind_speedApparent) == null);
+	}
+
+	private void assertSameValues(String nmea, SignalKModel expected, SignalKModel actual) {
+		assertEquals(nmea, withoutTimestamps(expected), withoutTimestamps(actual));
+	}
+
+	private Map<String, Object> withoutTimestamps(SignalKModel model) {
+		Map<String, Object> values = new TreeMap<String, Object>();
+		for (String key : model.getKeys()) {
+			if (!key.endsWith(".timestamp")) {
+				values.put(key, model.get(key));
+			}
+		}
+		return values;
+	}
+
 	@Test
 	@Ignore
 	public void shouldHandleCruzproXDR() throws FileNotFoundException, IOException {
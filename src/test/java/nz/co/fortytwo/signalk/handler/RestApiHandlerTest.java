@@ -5,9 +5,15 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -64,6 +70,41 @@ public class RestApiHandlerTest {
 		//assertEquals(200, mockedResponse.getStatus());
 	}
 	
+	@Test
+	public void shouldStreamSelfPosition() throws Exception {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		RestApiHandler api = new RestApiHandler();
+		
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.putAll(TestHelper.getOtherModel().getFullData());
+		
+		HttpServletRequest  mockedRequest = Mockito.mock(HttpServletRequest.class);
+		when(mockedRequest.getPathInfo()).thenReturn(SignalKConstants.SIGNALK_API+vessels+"/"+self+"/"+nav+"/position");
+
+		HttpServletResponse  mockedResponse = Mockito.mock(HttpServletResponse.class);
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		when(mockedResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		});
+		assertTrue(api.processGetStream(mockedRequest, mockedResponse, model));
+		Json reply = Json.read(body.toString("UTF-8"));
+		Json copy = (Json)api.processGet(mockedRequest, Mockito.mock(HttpServletResponse.class), model);
+		assertEquals(copy, reply);
+		assertEquals(-41.2936935424d,reply.at(vessels).at(self).at(nav).at("position").at("latitude").asDouble(),0.0001);
+		verify(mockedResponse).setStatus(HttpServletResponse.SC_OK);
+		verify(mockedResponse).setContentType("application/json");
+	}
+
 	@Test
 	public void shouldGetOtherPosition() throws Exception {
 		RestApiHandler api = new RestApiHandler();
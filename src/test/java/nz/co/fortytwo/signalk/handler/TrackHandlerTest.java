@@ -0,0 +1,83 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.track;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class TrackHandlerTest {
+
+	@Test
+	public void shouldPublishTrack() {
+		TrackHandler handler = new TrackHandler(0.001, 1000);
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		handler.handle(model);
+		assertNull(model.getValue(vessels_dot_self_dot + track));
+
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.0, 24.0, 0.0, "test", Util.getIsoTimeString());
+		handler.handle(model);
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.01, 24.0, 0.0, "test", Util.getIsoTimeString());
+		handler.handle(model);
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.01, 24.01, 0.0, "test", Util.getIsoTimeString());
+		handler.handle(model);
+		Json coordinates = (Json) model.getValue(vessels_dot_self_dot + track);
+		// the turn made 60.01, 24.0 a vertex, the track ends at the last fix
+		assertEquals(3, coordinates.asJsonList().size());
+		assertEquals(24.0, coordinates.at(1).at(0).asDouble(), 0.0);
+		assertEquals(60.01, coordinates.at(1).at(1).asDouble(), 0.0);
+		assertEquals(24.01, coordinates.at(2).at(0).asDouble(), 0.0);
+	}
+
+	@Test
+	public void shouldStampVerticesWithFixTime() {
+		TrackHandler handler = new TrackHandler(0.001, 1000);
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		// replayed fixes from an hour apart
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.0, 24.0, 0.0, "test", "2015-06-01T10:00:00.000Z");
+		handler.handle(model);
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.01, 24.0, 0.0, "test", "2015-06-01T11:00:00.000Z");
+		handler.handle(model);
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.01, 24.01, 0.0, "test", "2015-06-01T12:00:00.000Z");
+		handler.handle(model);
+		double[] lat = new double[3];
+		double[] lon = new double[3];
+		long[] times = new long[3];
+		assertEquals(3, handler.getRecorder().getTrack(lat, lon, times));
+		long start = new DateTime(2015, 6, 1, 10, 0, DateTimeZone.UTC).getMillis();
+		assertEquals(start, times[0]);
+		assertEquals(start + 3600000, times[1]);
+		assertEquals(start + 7200000, times[2]);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.OverflowPolicy;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.Subscription;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+public class ChangeBusTest {
+
+	private static Logger logger = LogManager.getLogger(ChangeBusTest.class);
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldCoalescePutIntoOneChangeSet() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final BlockingQueue<ChangeSet> received = new ArrayBlockingQueue<ChangeSet>(10);
+		Subscription sub = model.getChangeBus().subscribe(new ChangeListener() {
+			@Override
+			public void onChange(ChangeSet changes) {
+				received.add(changes);
+			}
+		}, 10, OverflowPolicy.DROP_OLDEST);
+		try {
+			model.put(vessels_dot_self_dot + env_wind_speedTrue, 7.0d, "gps", Util.getIsoTimeString());
+			ChangeSet changes = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(changes);
+			logger.debug(changes);
+			//values.gps.value, .timestamp, .$source and value, timestamp, $source
+			assertEquals(6, changes.size());
+
+			model.beginBatch();
+			model.put(vessels_dot_self_dot + env_wind_speedTrue, 8.0d, "gps", "2016-01-01T00:00:01.000Z");
+			model.put(vessels_dot_self_dot + env_wind_speedTrue, 9.0d, "gps", "2016-01-01T00:00:02.000Z");
+			model.put(vessels_dot_self_dot + nav_speedOverGround, 3.0d, "gps", "2016-01-01T00:00:02.000Z");
+			assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+			model.endBatch();
+			changes = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(changes);
+			assertEquals(vessels_dot_self_dot + env_wind_speedTrue + ".values.gps.value", changes.getEvent(0).getPath());
+			//the $source keys of speedTrue did not change
+			assertEquals(10, changes.size());
+		} finally {
+			sub.close();
+		}
+	}
+
+	@Test
+	public void shouldDropForSlowSubscriber() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final CountDownLatch release = new CountDownLatch(1);
+		Subscription sub = model.getChangeBus().subscribe(new ChangeListener() {
+			@Override
+			public void onChange(ChangeSet changes) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 2, OverflowPolicy.DROP_NEWEST);
+		try {
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 100; i++) {
+				model.put(vessels_dot_self_dot + env_wind_speedTrue, (double) i, "gps", Util.getIsoTimeString());
+			}
+			//the writer never waited for the subscriber
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertTrue(sub.getDropped() >= 97);
+			assertTrue(sub.getQueued() <= 2);
+		} finally {
+			release.countDown();
+			sub.close();
+		}
+		assertTrue(!model.getChangeBus().hasSubscribers());
+	}
+
+	@Test
+	public void shouldFlushQueuedChangeSets() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final AtomicInteger delivered = new AtomicInteger();
+		Subscription sub = model.getChangeBus().subscribe(new ChangeListener() {
+			@Override
+			public void onChange(ChangeSet changes) {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				delivered.incrementAndGet();
+			}
+		}, 10, OverflowPolicy.BLOCK);
+		try {
+			for (int i = 0; i < 5; i++) {
+				model.put(vessels_dot_self_dot + env_wind_speedTrue, (double) i, "gps", Util.getIsoTimeString());
+			}
+			assertTrue(sub.flush(5000));
+			assertEquals(5, delivered.get());
+			assertEquals(0, sub.getQueued());
+		} finally {
+			sub.close();
+		}
+	}
+
+	@Test
+	public void shouldPostPathEventsOnlyWhenAsked() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final BlockingQueue<PathEvent> received = new ArrayBlockingQueue<PathEvent>(100);
+		final Thread writer = Thread.currentThread();
+		model.getEventBus().register(new Object() {
+			@Subscribe
+			public void onPathEvent(PathEvent event) {
+				// never on the writer's thread
+				if (Thread.currentThread() != writer) received.add(event);
+			}
+		});
+		model.put(vessels_dot_self_dot + env_wind_speedTrue, 7.0d, "gps", Util.getIsoTimeString());
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+		model.setPostPathEvents(true);
+		try {
+			model.put(vessels_dot_self_dot + env_wind_speedTrue, 8.0d, "gps", Util.getIsoTimeString());
+			PathEvent event = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(event);
+			assertEquals(vessels_dot_self_dot + env_wind_speedTrue + ".values.gps.value", event.getPath());
+		} finally {
+			model.setPostPathEvents(false);
+		}
+		assertTrue(!model.getChangeBus().hasSubscribers());
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.PathEvent.EventType;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ChangeLogTest {
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldReturnChangesSince() {
+		ChangeLog log = new ChangeLog(100);
+		assertEquals(0, log.getRevision());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i + 1, log.add("a." + (i % 5), EventType.ADD));
+		}
+		log.add("a.1", EventType.DEL);
+		ChangeSet changes = log.getChangesSince(0);
+		assertEquals(51, changes.getRevision());
+		assertEquals(5, changes.size());
+		assertEquals("a.0", changes.getEvent(0).getPath());
+		assertEquals(EventType.DEL, changes.getEvent(1).getType());
+		assertEquals(51, changes.getEvent(1).getModelRevision());
+
+		changes = log.getChangesSince(48);
+		assertEquals(3, changes.size());
+		assertEquals("a.3", changes.getEvent(0).getPath());
+		assertEquals(0, log.getChangesSince(51).size());
+	}
+
+	@Test
+	public void shouldReportLostChanges() {
+		ChangeLog log = new ChangeLog(20);
+		for (int i = 0; i < 50; i++) {
+			log.add("a." + i, EventType.ADD);
+		}
+		assertEquals(20, log.size());
+		assertEquals(31, log.getOldestRevision());
+		assertNull(log.getChangesSince(10));
+		assertNotNull(log.getChangesSince(30));
+		assertEquals(20, log.getChangesSince(30).size());
+		assertEquals("a.49", log.getChangesSince(49).getEvent(0).getPath());
+	}
+
+	@Test
+	public void shouldKeepEveryRevisionFromConcurrentWriters() throws Exception {
+		final ChangeLog log = new ChangeLog(1000);
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						log.add("w" + id + "." + i, EventType.ADD);
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertEquals(800, log.getRevision());
+		ChangeSet changes = log.getChangesSince(0);
+		assertEquals(800, changes.size());
+		for (int i = 0; i < changes.size(); i++) {
+			assertEquals(i + 1, changes.getEvent(i).getModelRevision());
+		}
+	}
+
+	@Test
+	public void shouldStampModelRevisions() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		long start = model.getRevision();
+		model.put(vessels_dot_self_dot + env_wind_speedTrue, 7.0d, "gps", "2016-01-01T00:00:01.000Z");
+		assertEquals(start + 6, model.getRevision());
+		long seen = model.getRevision();
+		model.put(vessels_dot_self_dot + env_wind_speedTrue, 8.0d, "gps", "2016-01-01T00:00:01.000Z");
+		ChangeSet changes = model.getChangesSince(seen);
+		assertEquals(model.getRevision(), changes.getRevision());
+		assertEquals(2, changes.size());
+		assertTrue(changes.getEvent(0).getModelRevision() > seen);
+		assertEquals(0, model.getChangesSince(changes.getRevision()).size());
+	}
+}
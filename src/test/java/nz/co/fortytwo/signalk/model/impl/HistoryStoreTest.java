@@ -0,0 +1,217 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryStoreTest {
+
+	private static Logger logger = LogManager.getLogger(HistoryStoreTest.class);
+
+	private static final String SOG = vessels_dot_self_dot + nav_speedOverGround;
+	private static final String LAT = vessels_dot_self_dot + nav_position_latitude;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private void record(HistoryStore history, int from, int to) throws Exception {
+		for (int i = from; i < to; i++) {
+			// sog is missing every 10th row
+			history.record(1000 + i * 100L, new double[] { i % 10 == 0 ? Double.NaN : i, -i });
+		}
+	}
+
+	@Test
+	public void shouldQueryRange() throws Exception {
+		HistoryStore history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100, 3);
+		history.open();
+		record(history, 0, 250);
+		assertEquals(3, history.getSegmentCount());
+		assertEquals(1000, history.getFirstTime());
+		assertEquals(1000 + 249 * 100, history.getLastTime());
+
+		// across the first two segments
+		long[] times = new long[100];
+		double[] values = new double[100];
+		int n = history.read(LAT, 1000 + 95 * 100, 1000 + 104 * 100, times, values);
+		assertEquals(10, n);
+		assertEquals(1000 + 95 * 100, times[0]);
+		assertEquals(-104.0, values[9], 0.0);
+		// bounded by the array
+		assertEquals(100, history.read(LAT, 0, Long.MAX_VALUE, null, values));
+		assertEquals(0, history.read("vessels.self.other", 0, Long.MAX_VALUE, null, values));
+
+		double[] mean = new double[5];
+		double[] min = new double[5];
+		double[] max = new double[5];
+		// rows 0 to 49, 10 a bucket, the NaN rows skipped
+		n = history.downsample(SOG, 1000, 1000 + 50 * 100 - 1, mean, min, max);
+		assertEquals(45, n);
+		assertEquals(5.0, mean[0], 0.0);
+		assertEquals(1.0, min[0], 0.0);
+		assertEquals(49.0, max[4], 0.0);
+		// nothing recorded before the first row
+		history.downsample(SOG, 0, 999, mean, null, null);
+		assertTrue(Double.isNaN(mean[0]));
+
+		// the oldest segment is dropped
+		record(history, 250, 350);
+		assertEquals(3, history.getSegmentCount());
+		assertEquals(1000 + 100 * 100, history.getFirstTime());
+		assertEquals(3, folder.getRoot().list().length);
+		history.close();
+	}
+
+	@Test
+	public void shouldReopen() throws Exception {
+		HistoryStore history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100, 3);
+		history.open();
+		record(history, 0, 150);
+		history.close();
+
+		history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100, 3);
+		history.open();
+		assertEquals(2, history.getSegmentCount());
+		record(history, 150, 160);
+		// continued the last segment
+		assertEquals(2, history.getSegmentCount());
+		double[] values = new double[200];
+		assertEquals(160, history.read(LAT, 0, Long.MAX_VALUE, null, values));
+		// the clock went back
+		history.record(500, new double[] { 1, 2 });
+		assertEquals(3, history.getSegmentCount());
+		history.close();
+
+		// new paths start a new segment, the old columns can still be read
+		history = new HistoryStore(folder.getRoot(), new String[] { LAT }, 100, 5);
+		history.open();
+		history.record(100000, new double[] { 3 });
+		assertEquals(4, history.getSegmentCount());
+		assertEquals(161, history.read(SOG, 0, Long.MAX_VALUE, null, values));
+		assertEquals(162, history.read(LAT, 0, Long.MAX_VALUE, null, values));
+		history.close();
+	}
+
+	@Test
+	public void shouldTrimUnwrittenRows() throws Exception {
+		HistoryStore history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100, 3);
+		history.open();
+		record(history, 0, 20);
+		history.close();
+		// the row count reached the disk, the last rows did not
+		File segment = folder.getRoot().listFiles()[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(12);
+			file.writeInt(25);
+			file.seek(4096 + 15 * 8);
+			file.writeLong(0);
+		}
+		history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100, 3);
+		history.open();
+		assertEquals(1000 + 14 * 100, history.getLastTime());
+		double[] values = new double[100];
+		assertEquals(15, history.read(LAT, 0, Long.MAX_VALUE, null, values));
+		// continues after the last good row
+		history.record(5000, new double[] { 1, 2 });
+		assertEquals(1, history.getSegmentCount());
+		assertEquals(16, history.read(LAT, 0, Long.MAX_VALUE, null, values));
+		history.close();
+	}
+
+	@Test
+	public void shouldDropSegmentsPastMaximumOnOpen() throws Exception {
+		HistoryStore history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 10, 5);
+		history.open();
+		record(history, 0, 50);
+		history.close();
+		assertEquals(5, folder.getRoot().list().length);
+
+		history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 10, 2);
+		history.open();
+		assertEquals(2, history.getSegmentCount());
+		assertEquals(2, folder.getRoot().list().length);
+		assertEquals(1000 + 30 * 100, history.getFirstTime());
+		history.close();
+	}
+
+	@Test
+	public void shouldSampleWithoutAllocating() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putPosition(vessels_dot_self_dot + nav_position, 60.1, 24.9, 0.0, "gps", Util.getIsoTimeString());
+		model.putDouble(SOG, 3.5, "gps", Util.getIsoTimeString());
+		HistoryStore history = new HistoryStore(folder.getRoot(), new String[] { SOG, LAT }, 100000, 2);
+		history.open();
+		assertFalse(history.sample(SignalKModelFactory.getCleanInstance(), 1));
+		for (int i = 0; i < 10000; i++) {
+			history.sample(model, i);
+		}
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long id = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		for (int i = 10000; i < 60000; i++) {
+			history.sample(model, i);
+		}
+		long time = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(id) - allocated;
+		logger.info("50000 samples in " + time / 1000000 + "ms, " + allocated + " bytes allocated");
+		assertTrue("Allocated " + allocated, allocated < 10000);
+
+		double[] values = new double[10];
+		assertEquals(10, history.read(LAT, 100, 109, null, values));
+		assertEquals(60.1, values[0], 0.0);
+		history.read(SOG, 100, 109, null, values);
+		assertEquals(3.5, values[0], 0.0);
+		history.close();
+	}
+}
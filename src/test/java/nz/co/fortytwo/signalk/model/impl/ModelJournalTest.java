@@ -0,0 +1,196 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONFIG;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_depth_belowTransducer;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeLog;
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModelJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private NavigableMap<String, Object> data(SignalKModel model) {
+		NavigableMap<String, Object> data = new TreeMap<String, Object>(model.getFullData());
+		data.subMap(CONFIG + dot, CONFIG + dot + Character.MAX_VALUE).clear();
+		return data;
+	}
+
+	private SignalKModel reload(File dir) throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		assertTrue(journal.load());
+		journal.close();
+		return model;
+	}
+
+	@Test
+	public void shouldReplayChanges() throws Exception {
+		File dir = folder.newFolder("journal");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		assertFalse(journal.load());
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.put(vessels_dot_self_dot + "config.flag", true, "test");
+		model.put(vessels_dot_self_dot + "count", 42L, "test");
+		model.put(ConfigConstants.DEMO, true, "test");
+		assertTrue(journal.sync() > 0);
+		assertEquals(0, journal.sync());
+
+		model.putPosition(vessels_dot_self_dot + nav_position, -41.5, 172.5, 0.0, "test", Util.getIsoTimeString());
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 3.5, "test");
+		// deleted subtree
+		model.put(vessels_dot_self_dot + env_depth_belowTransducer, null, "test");
+		journal.close();
+
+		SignalKModel loaded = reload(dir);
+		assertEquals(data(model), data(loaded));
+		assertNull(loaded.get(vessels_dot_self_dot + env_depth_belowTransducer + dot + "value"));
+		assertEquals(model.get(vessels_dot_self_dot + "count.value"), loaded.get(vessels_dot_self_dot + "count.value"));
+		// config is saved separately
+		assertNull(loaded.get(ConfigConstants.DEMO));
+	}
+
+	@Test
+	public void shouldReplayBigNumbers() throws Exception {
+		File dir = folder.newFolder("journal");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		journal.load();
+		BigDecimal decimal = new BigDecimal("12345678901234567890.123456789");
+		BigInteger integer = new BigInteger("-98765432109876543210");
+		model.put(vessels_dot_self_dot + "decimal", decimal, "test");
+		model.put(vessels_dot_self_dot + "integer", integer, "test");
+		journal.close();
+
+		SignalKModel loaded = reload(dir);
+		assertEquals(decimal, loaded.getFullData().get(vessels_dot_self_dot + "decimal.value"));
+		assertEquals(integer, loaded.getFullData().get(vessels_dot_self_dot + "integer.value"));
+		assertEquals(data(model), data(loaded));
+	}
+
+	@Test
+	public void shouldCheckpoint() throws Exception {
+		File dir = folder.newFolder("journal");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		journal.load();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		journal.sync();
+		assertTrue(journal.getJournalSize() > 0);
+
+		// not on the ChangeBus, only saved by a checkpoint
+		model.getFullData().put(vessels_dot_self_dot + "zones", Json.read("[{\"lower\":1.0,\"state\":\"alarm\"}]"));
+		journal.checkpoint();
+		assertEquals(1, journal.getGeneration());
+		assertEquals(0, journal.getJournalSize());
+		assertFalse(new File(dir, ModelJournal.JOURNAL_FILE + 0).exists());
+
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 4.5, "test");
+		journal.close();
+
+		SignalKModel loaded = reload(dir);
+		assertEquals(data(model), data(loaded));
+		assertEquals(model.getValue(vessels_dot_self_dot + nav_speedOverGround), loaded.getValue(vessels_dot_self_dot + nav_speedOverGround));
+	}
+
+	@Test
+	public void shouldJournalMoreChangesThanTheChangeLogHolds() throws Exception {
+		File dir = folder.newFolder("journal");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		journal.load();
+		long start = model.getRevision();
+		for (int i = 0; i < 2500; i++) {
+			model.put(vessels_dot_self_dot + "test.item" + i, (double) i, "test");
+		}
+		assertTrue(model.getRevision() - start > ChangeLog.DEFAULT_CAPACITY);
+		assertTrue(journal.sync() > 2500);
+		// journaled, not checkpointed
+		assertEquals(0, journal.getGeneration());
+		journal.close();
+
+		SignalKModel loaded = reload(dir);
+		assertEquals(data(model), data(loaded));
+		assertEquals(0.0, loaded.getValue(vessels_dot_self_dot + "test.item0"));
+	}
+
+	@Test
+	public void shouldIgnoreTornRecord() throws Exception {
+		File dir = folder.newFolder("journal");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelJournal journal = new ModelJournal(dir, model);
+		journal.load();
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 3.5, "test");
+		journal.close();
+		File file = new File(dir, ModelJournal.JOURNAL_FILE + 0);
+		long length = file.length();
+		// half a record
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+		}
+
+		model = SignalKModelFactory.getCleanInstance();
+		journal = new ModelJournal(dir, model);
+		journal.load();
+		assertEquals(3.5, model.getValue(vessels_dot_self_dot + nav_speedOverGround));
+		assertEquals(length, file.length());
+		// new records follow the valid ones
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 5.5, "test");
+		journal.close();
+		assertEquals(5.5, reload(dir).getValue(vessels_dot_self_dot + nav_speedOverGround));
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONFIG;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModelSnapshotTest {
+
+	private static Logger logger = LogManager.getLogger(ModelSnapshotTest.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private SignalKModel getModel(SignalKModel model) {
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.getFullData().put(vessels_dot_self_dot + "count", 42L);
+		model.getFullData().put(vessels_dot_self_dot + "small", -7);
+		model.getFullData().put(vessels_dot_self_dot + "flag", true);
+		model.getFullData().put(vessels_dot_self_dot + "zones", Json.read("[{\"lower\":1.0,\"state\":\"alarm\"}]"));
+		model.getFullData().put(vessels_dot_self_dot + "long", StringUtils.repeat("x", 500));
+		model.getFullData().put(CONFIG + dot + "server.demo.start", false);
+		return model;
+	}
+
+	private NavigableMap<String, Object> data(SignalKModel model) {
+		NavigableMap<String, Object> data = new TreeMap<String, Object>(model.getFullData());
+		data.subMap(CONFIG + dot, CONFIG + dot + Character.MAX_VALUE).clear();
+		return data;
+	}
+
+	private SignalKModel roundTrip(SignalKModel from, SignalKModel to) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		long count = ModelSnapshot.write(from.getFullData(), CONFIG + dot, out);
+		out.flush();
+		assertEquals(data(from).size(), count);
+		assertEquals(count, ModelSnapshot.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), to));
+		return to;
+	}
+
+	@Test
+	public void shouldRoundTrip() throws Exception {
+		SignalKModel model = getModel(new SignalKModelImpl());
+		SignalKModel loaded = roundTrip(model, new SignalKModelImpl());
+		assertEquals(data(model), data(loaded));
+		assertEquals(model.get(vessels_dot_self_dot + "count"), loaded.get(vessels_dot_self_dot + "count"));
+		assertEquals(model.get(vessels_dot_self_dot + "small"), loaded.get(vessels_dot_self_dot + "small"));
+		assertNull(loaded.get(CONFIG + dot + "server.demo.start"));
+	}
+
+	@Test
+	public void shouldRoundTripBigNumbers() throws Exception {
+		SignalKModel model = new SignalKModelImpl();
+		BigDecimal decimal = new BigDecimal("12345678901234567890.123456789");
+		BigInteger integer = new BigInteger("-98765432109876543210");
+		model.getFullData().put(vessels_dot_self_dot + "decimal", decimal);
+		model.getFullData().put(vessels_dot_self_dot + "negative", new BigDecimal("-0.001"));
+		model.getFullData().put(vessels_dot_self_dot + "integer", integer);
+		SignalKModel loaded = roundTrip(model, new SignalKModelImpl());
+		assertEquals(decimal, loaded.getFullData().get(vessels_dot_self_dot + "decimal"));
+		assertEquals(new BigDecimal("-0.001"), loaded.getFullData().get(vessels_dot_self_dot + "negative"));
+		assertEquals(integer, loaded.getFullData().get(vessels_dot_self_dot + "integer"));
+		// and read as numbers
+		assertEquals(-0.001, loaded.get(vessels_dot_self_dot + "negative"));
+	}
+
+	@Test
+	public void shouldRoundTripTrie() throws Exception {
+		SignalKModel model = getModel(new SignalKTrieModelImpl());
+		SignalKTrieModelImpl loaded = (SignalKTrieModelImpl) roundTrip(model, new SignalKTrieModelImpl());
+		assertEquals(data(model), data(loaded));
+		assertEquals(data(model).size(), loaded.getFullData().size());
+		// and between stores
+		assertEquals(data(model), data(roundTrip(model, new SignalKModelImpl())));
+		assertEquals(data(model), data(roundTrip(getModel(new SignalKModelImpl()), new SignalKTrieModelImpl())));
+	}
+
+	@Test
+	public void shouldLoadFasterThanJson() throws Exception {
+		SignalKModel model = getModel(new SignalKModelImpl());
+		// a large resource set
+		for (int i = 0; i < 5000; i++) {
+			String key = "resources.waypoints.wp" + i + dot;
+			model.getFullData().put(key + "position.latitude", -41.0 + i * 0.001);
+			model.getFullData().put(key + "position.longitude", 173.0 + i * 0.001);
+			model.getFullData().put(key + "name", "Waypoint " + i);
+			model.getFullData().put(key + "timestamp", "2016-01-01T00:00:00.000Z");
+			model.getFullData().put(key + "$source", "resources");
+		}
+		File file = folder.newFile("model.snapshot");
+		ModelSnapshot.save(model, file, CONFIG + dot);
+		JsonSerializer ser = new JsonSerializer();
+		String json = ser.writeJson(model).toString();
+
+		long start = System.nanoTime();
+		SignalKModel loaded = new SignalKModelImpl();
+		ModelSnapshot.load(file, loaded);
+		long binary = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		new SignalKModelImpl().putAll(ser.read(Json.read(json)));
+		long text = System.nanoTime() - start;
+
+		logger.info("Snapshot " + file.length() + " bytes loaded in " + (binary / 1000000) + "ms, json " + json.length() + " chars in "
+				+ (text / 1000000) + "ms");
+		assertEquals(data(model), data(loaded));
+		assertTrue(file.length() < json.length());
+	}
+}
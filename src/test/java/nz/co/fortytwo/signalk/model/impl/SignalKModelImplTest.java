@@ -45,21 +45,34 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.NavigableMap;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import nz.co.fortytwo.signalk.model.Attr;
+import nz.co.fortytwo.signalk.model.PathHandle;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.OverflowPolicy;
+import nz.co.fortytwo.signalk.model.event.ChangeBus.Subscription;
+import nz.co.fortytwo.signalk.model.event.ChangeListener;
+import nz.co.fortytwo.signalk.model.event.ChangeSet;
 import nz.co.fortytwo.signalk.util.JsonSerializer;
 import nz.co.fortytwo.signalk.util.TestHelper;
 import nz.co.fortytwo.signalk.util.Util;
 
+import org.apache.commons.lang3.ObjectUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 import org.junit.After;
 import org.junit.BeforeClass;
@@ -363,4 +376,152 @@ public class SignalKModelImplTest {
 		assertEquals(755, attr.getMode());
 	}
 	
+	@Test
+	public void shouldPutWithHandle() {
+		SignalKModel byKey = SignalKModelFactory.getCleanInstance();
+		SignalKModel byHandle = SignalKModelFactory.getCleanInstance();
+		String ts = Util.getIsoTimeString();
+		PathHandle handle = byHandle.getHandle("vessels.self."+env_wind_speedTrue);
+		assertEquals(vessels_dot_self_dot+env_wind_speedTrue, handle.getPath());
+		
+		byKey.put(vessels_dot_self_dot+env_wind_speedTrue, 7.0d, "gps1", ts);
+		byKey.put(vessels_dot_self_dot+env_wind_speedTrue, 8.0d, "gps2", ts);
+		byHandle.put(handle, 7.0d, "gps1", ts);
+		byHandle.put(handle, 8.0d, "gps2", ts);
+		assertEquals(byKey.getFullData(), byHandle.getFullData());
+		assertSame(handle.getValues("gps2"), handle.getValues("gps2"));
+		
+		byKey.putPosition(vessels_dot_self_dot+nav_position, 1.0, 2.0, 0.0, "gps1", ts);
+		byHandle.putPosition(byHandle.getHandle(vessels_dot_self_dot+nav_position), 1.0, 2.0, 0.0, "gps1", ts);
+		assertEquals(byKey.getFullData(), byHandle.getFullData());
+		
+		byHandle.put(handle, null, "gps1", ts);
+		assertEquals(0, byHandle.getSubMap(vessels_dot_self_dot+env_wind_speedTrue).size());
+	}
+	
+	@Test
+	public void shouldGetDoubles() {
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		PathHandle handle = signalk.getHandle(vessels_dot_self_dot+env_wind_speedTrue);
+		assertTrue(signalk.putDouble(handle, 7.68d, "dummy", Util.getIsoTimeString()));
+		assertFalse(signalk.putDouble(handle, 7.68d, "dummy", Util.getIsoTimeString()));
+		assertEquals(7.68d, signalk.getValueDouble(handle), 0.0);
+		assertEquals(7.68d, signalk.getValue(vessels_dot_self_dot+env_wind_speedTrue));
+		signalk.getFullData().put(handle.getValueKey(), new java.math.BigDecimal("1.5"));
+		assertEquals(1.5d, signalk.getValueDouble(vessels_dot_self_dot+env_wind_speedTrue), 0.0);
+		assertTrue(Double.isNaN(signalk.getDouble(handle.getSourceRefKey())));
+		assertTrue(Double.isNaN(signalk.getDouble(handle)));
+	}
+	
+	@Test
+	public void shouldApplyDeltaOrNothing() {
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		int size = signalk.getFullData().size();
+		long revision = signalk.getRevision();
+		String wind = vessels_dot_self_dot+env_wind_speedTrue;
+
+		SortedMap<String, Object> delta = new TreeMap<String, Object>();
+		delta.put(vessels_dot_self_dot+env_wind_angleApparent+dot+value, 1.0d);
+		//speedTrue is a branch
+		delta.put(wind, 2.0d);
+		try {
+			signalk.putAll(delta);
+			fail("Should conflict with "+wind+dot+value);
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		//a write below another write
+		delta.remove(wind);
+		delta.put(wind+dot+value+dot+"x", 3.0d);
+		delta.put(wind+dot+value, null);
+		delta.put(wind+dot+value+"-x", 3.0d);
+		delta.put(wind+dot+timestamp, 3.0d);
+		delta.put(wind+dot+timestamp+dot+"x", 3.0d);
+		try {
+			signalk.putAll(delta);
+			fail("Should conflict with "+wind+dot+timestamp);
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		assertEquals(size, signalk.getFullData().size());
+		assertEquals(revision, signalk.getRevision());
+		assertEquals(TestHelper.getBasicModel().getFullData(), signalk.getFullData());
+	}
+
+	@Test
+	public void shouldReplaceBranchInDelta() {
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		String wind = vessels_dot_self_dot+env_wind_speedTrue;
+
+		SortedMap<String, Object> delta = new TreeMap<String, Object>();
+		delta.put(wind, ObjectUtils.NULL);
+		delta.put(wind+dot+"x", 5.0d);
+		delta.put("vessels.self."+env_wind_angleApparent+dot+value, 6.0d);
+		assertTrue(signalk.putAll(delta));
+		assertEquals(1, signalk.getSubMap(wind).size());
+		assertEquals(5.0d, signalk.get(wind+dot+"x"));
+		assertEquals(6.0d, signalk.getValue(vessels_dot_self_dot+env_wind_angleApparent));
+
+		//and back to a leaf
+		delta.clear();
+		delta.put(wind+dot+"x", null);
+		delta.put(wind, 7.0d);
+		signalk.putAll(delta);
+		assertEquals(7.0d, signalk.get(wind));
+		assertEquals(1, signalk.getSubMap(wind).size());
+	}
+
+	@Test
+	public void shouldPublishDeltaAsOneChangeSet() throws Exception {
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final BlockingQueue<ChangeSet> received = new ArrayBlockingQueue<ChangeSet>(10);
+		Subscription sub = signalk.getChangeBus().subscribe(new ChangeListener() {
+			@Override
+			public void onChange(ChangeSet changes) {
+				received.add(changes);
+			}
+		}, 10, OverflowPolicy.DROP_OLDEST);
+		try {
+			SortedMap<String, Object> basic = TestHelper.getBasicModel().getFullData();
+			signalk.putAll(basic);
+			ChangeSet changes = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(changes);
+			assertEquals(basic.size(), changes.size());
+			assertEquals(signalk.getRevision(), changes.getRevision());
+			assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		} finally {
+			sub.close();
+		}
+	}
+
+	@Test
+	public void shouldNotReadHalfDelta() throws Exception {
+		final SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final String key = vessels_dot_self_dot+nav_position;
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread() {
+			public void run() {
+				SortedMap<String, Object> delta = new TreeMap<String, Object>();
+				for (int x = 0; x < 20000; x++) {
+					delta.put(key+".latitude", (double) x);
+					delta.put(key+".longitude", (double) x);
+					signalk.putAll(delta);
+				}
+				done.set(true);
+			}
+		};
+		writer.start();
+		int reads = 0;
+		while (!done.get()) {
+			NavigableMap<String, Object> position = signalk.copySubMap(key);
+			assertEquals(position.get(key+".latitude"), position.get(key+".longitude"));
+			reads++;
+		}
+		writer.join();
+		logger.debug("Consistent reads: "+reads);
+		assertEquals(19999.0d, signalk.getDouble(key+".longitude"), 0.0);
+	}
+
 }
@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_altitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SignalKTrieModelImplTest {
+
+	private static Logger logger = LogManager.getLogger(SignalKTrieModelImplTest.class);
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private SignalKModel getBasicTrieModel() {
+		SignalKModel signalk = new SignalKTrieModelImpl();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		return signalk;
+	}
+
+	@Test
+	public void shouldMatchSkipListModel() {
+		SignalKModel skiplist = TestHelper.getBasicModel();
+		SignalKModel trie = getBasicTrieModel();
+		logger.debug(trie);
+		assertEquals(skiplist.getFullData().size(), trie.getFullData().size());
+		assertEquals(skiplist.getFullData(), trie.getFullData());
+		assertEquals(skiplist.getSubMap(vessels_dot_self_dot + env_wind), trie.getSubMap(vessels_dot_self_dot + env_wind));
+		assertEquals(skiplist.getTree(vessels_dot_self_dot + env_wind), trie.getTree(vessels_dot_self_dot + env_wind));
+		assertEquals(7.68d, trie.getValue(vessels_dot_self_dot + env_wind_speedTrue));
+	}
+
+	@Test
+	public void shouldFailAltitudeValue() {
+		SignalKModel signalk = getBasicTrieModel();
+		try {
+			signalk.put(vessels_dot_self_dot + nav_position_altitude, 90, "dummy", Util.getIsoTimeString());
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void shouldFailBranchUnderLeaf() {
+		SignalKModel signalk = new SignalKTrieModelImpl();
+		signalk.put("vessels.self.a", 1, "dummy");
+		try {
+			signalk.put("vessels.self.a.value.b", 2, "dummy");
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		fail();
+	}
+
+	@Test
+	public void shouldDeleteBranch() {
+		SignalKModel signalk = getBasicTrieModel();
+		int size = signalk.getFullData().size();
+		int windSize = signalk.getSubMap(vessels_dot_self_dot + env_wind).size();
+		assertTrue(windSize > 0);
+		signalk.put(vessels_dot_self_dot + env_wind, null, "dummy");
+		assertEquals(0, signalk.getSubMap(vessels_dot_self_dot + env_wind).size());
+		assertEquals(size - windSize, signalk.getFullData().size());
+		assertNull(((SignalKTrieModelImpl) signalk).getTrie().getNode(vessels_dot_self_dot + env_wind, false));
+	}
+
+	@Test
+	public void shouldHandleMultipleValues() {
+		SignalKModel signalk = new SignalKTrieModelImpl();
+		signalk.put(vessels_dot_self_dot + env_wind_speedTrue, 7.0d, "gps1", Util.getIsoTimeString());
+		signalk.put(vessels_dot_self_dot + env_wind_speedTrue, 8.0d, "gps2", Util.getIsoTimeString());
+		assertEquals(7.0d, signalk.get(vessels_dot_self_dot + env_wind_speedTrue + dot + value));
+		assertEquals("gps1", signalk.get(vessels_dot_self_dot + env_wind_speedTrue + dot + sourceRef));
+		assertEquals(8.0d, signalk.get(vessels_dot_self_dot + env_wind_speedTrue + dot + values + dot + "gps2" + dot + value));
+	}
+
+	@Test
+	public void shouldIterateInPathOrder() {
+		PathTrie trie = new PathTrie();
+		trie.put("a.bc", 3);
+		trie.put("a.b.c", 1);
+		trie.put("a.b-d", 2);
+		trie.put("b", 4);
+		List<String> keys = new ArrayList<String>(trie.keySet());
+		assertEquals("[a.b.c, a.b-d, a.bc, b]", keys.toString());
+		assertEquals(4, trie.size());
+		for (Iterator<String> i = trie.subMap("a", true, "a.\uFFFD", true).keySet().iterator(); i.hasNext();) {
+			i.next();
+			i.remove();
+		}
+		assertEquals(1, trie.size());
+		assertEquals("{b=4}", trie.toString());
+	}
+
+	private void checkNavigation(NavigableMap<String, Object> expected, NavigableMap<String, Object> actual, List<String> probes) {
+		assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+		assertEquals(new ArrayList<String>(expected.descendingKeySet()), new ArrayList<String>(actual.descendingKeySet()));
+		assertEquals(expected.size(), actual.size());
+		if (!expected.isEmpty()) {
+			assertEquals(expected.firstKey(), actual.firstKey());
+			assertEquals(expected.lastKey(), actual.lastKey());
+		}
+		for (String probe : probes) {
+			assertEquals(probe, expected.lowerKey(probe), actual.lowerKey(probe));
+			assertEquals(probe, expected.floorKey(probe), actual.floorKey(probe));
+			assertEquals(probe, expected.ceilingKey(probe), actual.ceilingKey(probe));
+			assertEquals(probe, expected.higherKey(probe), actual.higherKey(probe));
+		}
+	}
+
+	@Test
+	public void shouldNavigateWithoutCopying() {
+		PathTrie trie = new PathTrie();
+		NavigableMap<String, Object> expected = new TreeMap<String, Object>(PathTrie.PATH_ORDER);
+		List<String> probes = new ArrayList<String>();
+		// enough targets to move the vessels children from an array to a skip list
+		for (int i = 0; i < PathTrie.MAX_ARRAY_CHILDREN * 4; i += 3) {
+			for (String key : new String[] { "vessels.t" + i + ".name", "vessels.t" + i + ".nav.sog", "vessels.t" + i + ".nav-x", "vessels.t" + i }) {
+				if (key.endsWith("t" + i) && i % 2 == 0) continue;
+				trie.put(key, i);
+				expected.put(key, i);
+			}
+			probes.add("vessels.t" + i);
+			probes.add("vessels.t" + i + ".nav");
+			probes.add("vessels.t" + (i + 1));
+		}
+		trie.put("a.bc", 1);
+		trie.put("a.b.c", 2);
+		trie.put("a.b-d", 3);
+		trie.put("zzz", 4);
+		expected.put("a.bc", 1);
+		expected.put("a.b.c", 2);
+		expected.put("a.b-d", 3);
+		expected.put("zzz", 4);
+		probes.add("");
+		probes.add("a");
+		probes.add("a.b");
+		probes.add("a.b.");
+		probes.add("vessels");
+		probes.add("z");
+		probes.add("zzzz");
+
+		checkNavigation(expected, trie, probes);
+		checkNavigation(expected.descendingMap(), trie.descendingMap(), probes);
+		checkNavigation(expected.headMap("vessels.t30", true), trie.headMap("vessels.t30", true), probes);
+		checkNavigation(expected.tailMap("vessels.t30.nav", false), trie.tailMap("vessels.t30.nav", false), probes);
+		checkNavigation(expected.subMap("a.b", true, "vessels.t6", false), trie.subMap("a.b", true, "vessels.t6", false), probes);
+		checkNavigation(expected.subMap("vessels.t3", true, "vessels.t3.\uFFFD", true), trie.subMap("vessels.t3", true, "vessels.t3.\uFFFD", true), probes);
+		checkNavigation(expected.subMap("vessels.t3", true, "vessels.t3\uFFFF", false), trie.subMap("vessels.t3", true, "vessels.t3\uFFFF", false), probes);
+		checkNavigation(expected.subMap("vessels.t3", true, "vessels.t3.\uFFFD", true).descendingMap().headMap("vessels.t3.name", true),
+				trie.subMap("vessels.t3", true, "vessels.t3.\uFFFD", true).descendingMap().headMap("vessels.t3.name", true), probes);
+		checkNavigation(expected.subMap("vessels.t3", true, "vessels.t3\uFFFF", false).tailMap("vessels.t33", true),
+				trie.subMap("vessels.t3", true, "vessels.t3\uFFFF", false).tailMap("vessels.t33", true), probes);
+
+		// views are live
+		List<String> added = new ArrayList<String>(expected.descendingKeySet());
+		NavigableMap<String, Object> head = trie.headMap("b", false);
+		trie.put("a.a", 5);
+		trie.put("c", 6);
+		expected.put("a.a", 5);
+		expected.put("c", 6);
+		assertEquals("a.a", head.firstKey());
+		assertEquals("a.bc", head.lastKey());
+		assertEquals("zzz", trie.lastKey());
+		assertEquals("zzz", trie.navigableKeySet().descendingIterator().next());
+		// and prune, back through an array
+		for (String key : added) {
+			trie.remove(key);
+			expected.remove(key);
+			assertEquals(expected.lowerKey("vessels.t3"), trie.tailMap("a.b", true).lowerKey("vessels.t3"));
+		}
+		assertEquals("[a.a, c]", new ArrayList<String>(trie.keySet()).toString());
+		assertNull(trie.getNode("vessels", false));
+	}
+
+	@Test
+	public void shouldReuseNode() {
+		SignalKTrieModelImpl signalk = new SignalKTrieModelImpl();
+		PathTrie.Node node = signalk.getNode("vessels.self.navigation.speedOverGround.value");
+		signalk.getTrie().put(node, 3.5d);
+		assertEquals(3.5d, signalk.getValue("vessels.self.navigation.speedOverGround"));
+		assertSame(node, signalk.getNode("vessels.self.navigation.speedOverGround.value"));
+		signalk.putValue("vessels.self.navigation.speedOverGround", 4.5d);
+		assertEquals(4.5d, node.getValue());
+		assertEquals(vessels_dot_self_dot + "navigation.speedOverGround.value", node.path());
+	}
+
+	@Test
+	public void shouldShareSegments() {
+		PathTrie trie = new PathTrie();
+		trie.put(new String("a.value"), 1);
+		trie.put(new String("b.value"), 2);
+		assertSame(trie.getNode("a.value", false).getSegment(), trie.getNode("b.value", false).getSegment());
+		trie.remove("a.value");
+		assertFalse(trie.containsKey("a.value"));
+		assertNull(trie.getNode("a", false));
+	}
+
+	@Test
+	public void shouldCopyFromMap() {
+		NavigableMap<String, Object> map = new ConcurrentSkipListMap<String, Object>();
+		map.put("a.b", 1);
+		map.put("a.c", "x");
+		SignalKModel signalk = new SignalKTrieModelImpl(map);
+		assertEquals(map, signalk.getFullData());
+		assertEquals(2, signalk.getKeys().size());
+	}
+
+	@Test
+	public void shouldStoreDoubles() {
+		SignalKTrieModelImpl signalk = new SignalKTrieModelImpl();
+		String ts = Util.getIsoTimeString();
+		assertTrue(signalk.putDouble(vessels_dot_self_dot + env_wind_speedTrue, 7.5d, "dummy", ts));
+		assertFalse(signalk.putDouble(vessels_dot_self_dot + env_wind_speedTrue, 7.5d, "dummy", ts));
+		assertEquals(7.5d, signalk.getValueDouble(vessels_dot_self_dot + env_wind_speedTrue), 0.0);
+		assertEquals(7.5d, signalk.getValue(vessels_dot_self_dot + env_wind_speedTrue));
+		assertEquals(7.5d, signalk.getDouble(vessels_dot_self_dot + env_wind_speedTrue + dot + values + dot + "dummy" + dot + value), 0.0);
+		//boxed puts land in the same slot
+		signalk.put(vessels_dot_self_dot + env_wind_speedTrue, 8.5d, "dummy", ts);
+		assertEquals(8.5d, signalk.getValueDouble(vessels_dot_self_dot + env_wind_speedTrue), 0.0);
+		assertTrue(Double.isNaN(signalk.getDouble(vessels_dot_self_dot + env_wind_speedTrue + dot + sourceRef)));
+		assertTrue(Double.isNaN(signalk.getValueDouble(vessels_dot_self_dot + "missing")));
+		int size = signalk.getFullData().size();
+		signalk.put(vessels_dot_self_dot + env_wind_speedTrue, null, "dummy", ts);
+		assertEquals(size - 6, signalk.getFullData().size());
+	}
+}
@@ -9,7 +9,10 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundM
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.normal;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.warn;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
@@ -112,4 +115,57 @@ public class AlarmManagerTest {
 		assertEquals("", model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundTrue+dot+message));
 	}
 
+	@Test
+	public void shouldClassifyLikeZoneChecks() {
+		Json zones = Json.read("[{\"lower\":0,\"upper\":45,\"state\":\"normal\"},{\"lower\":45,\"upper\":50,\"state\":\"warn\"},{\"lower\":50,\"upper\":99,\"state\":\"alarm\"},{\"lower\":-20,\"upper\":-10,\"state\":\"alarm\",\"message\":\"Too low\"}]");
+		AlarmManager mgr = new AlarmManager(zones);
+		for (double v = -30; v <= 110; v += 0.25) {
+			String expected = mgr.isNormal(v) ? normal : mgr.isWarn(v) ? warn : mgr.isAlarm(v) ? alarm : null;
+			assertEquals("value " + v, expected, mgr.getState(v));
+		}
+		assertEquals(alarm, mgr.getState(50));
+		assertNull(mgr.getState(-5));
+		assertNull(mgr.getState(Double.NaN));
+		assertEquals("Too low", mgr.getMessage(-15, alarm));
+		assertEquals(alarm, mgr.getMessage(60, alarm));
+	}
+
+	@Test
+	public void shouldNotFlapWithinHysteresis() {
+		Json zones = Json.read("[{\"lower\":0,\"upper\":45,\"state\":\"normal\"},{\"lower\":45,\"upper\":50,\"state\":\"warn\"},{\"lower\":50,\"upper\":99,\"state\":\"alarm\"}]");
+		AlarmManager mgr = new AlarmManager(zones, 1.0, 0);
+		assertEquals(normal, mgr.update(44, 0));
+		// noise around the boundary
+		assertNull(mgr.update(45.5, 1));
+		assertNull(mgr.update(44.9, 2));
+		assertNull(mgr.update(45.9, 3));
+		assertEquals(normal, mgr.getCurrentState());
+		assertEquals(warn, mgr.update(46.1, 4));
+		assertNull(mgr.update(44.5, 5));
+		assertEquals(normal, mgr.update(43.9, 6));
+		assertNull(mgr.getCurrentMessage());
+		// a big jump changes straight away
+		assertEquals(alarm, mgr.update(70, 7));
+		assertEquals(alarm, mgr.getCurrentMessage());
+	}
+
+	@Test
+	public void shouldWaitForDwellTime() {
+		Json zones = Json.read("[{\"lower\":0,\"upper\":45,\"state\":\"normal\"},{\"lower\":45,\"upper\":50,\"state\":\"warn\"},{\"lower\":50,\"upper\":99,\"state\":\"alarm\"}]");
+		AlarmManager mgr = new AlarmManager(zones, 0, 1000);
+		// the first state is reported at once
+		assertEquals(normal, mgr.update(10, 0));
+		assertNull(mgr.update(60, 100));
+		assertTrue(mgr.isPending());
+		// a short spike is ignored
+		assertNull(mgr.update(10, 500));
+		assertFalse(mgr.isPending());
+		assertNull(mgr.update(60, 1000));
+		assertNull(mgr.update(61, 1500));
+		assertNull(mgr.checkPending(1999));
+		assertEquals(alarm, mgr.checkPending(2000));
+		assertEquals(alarm, mgr.getCurrentState());
+		assertFalse(mgr.isPending());
+	}
+
 }
@@ -0,0 +1,107 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class DeclinationGridTest {
+
+	private static Logger logger = LogManager.getLogger(DeclinationGridTest.class);
+
+	@Test
+	public void shouldOnlyComputeOnNewCell() {
+		DeclinationGrid grid = new DeclinationGrid();
+		grid.getDeclination(-41.51, 172.51, 2016.5);
+		assertEquals(4, grid.getComputations());
+		// a few metres between fixes
+		for (int x = 0; x < 100; x++) {
+			grid.getDeclination(-41.51 + x * 0.0001, 172.51 + x * 0.0001, 2016.5);
+		}
+		assertEquals(4, grid.getComputations());
+		// the next cell east shares two nodes
+		grid.getDeclination(-41.51, 172.76, 2016.5);
+		assertEquals(6, grid.getComputations());
+		// a new year step starts again
+		grid.getDeclination(-41.51, 172.76, 2016.7);
+		assertEquals(10, grid.getComputations());
+	}
+
+	@Test
+	public void shouldWrapLongitude() {
+		TSAGeoMag geoMag = new TSAGeoMag();
+		DeclinationGrid grid = new DeclinationGrid();
+		assertEquals(geoMag.getDeclination(-17.9, 179.9, 2016.0, 0), grid.getDeclination(-17.9, 179.9, 2016.0), 0.05);
+		assertEquals(geoMag.getDeclination(-17.9, -179.9, 2016.0, 0), grid.getDeclination(-17.9, 180.1, 2016.0), 0.05);
+		// directly calculated near the poles
+		assertEquals(geoMag.getDeclination(85, 10, 2016.0, 0), grid.getDeclination(85, 10, 2016.0), 0.000001);
+	}
+
+	/**
+	 * Measures the grid against the full WMM calculation over random positions
+	 */
+	@Test
+	public void shouldMatchGeoMag() {
+		TSAGeoMag geoMag = new TSAGeoMag();
+		DeclinationGrid grid = new DeclinationGrid();
+		Random random = new Random(42);
+		int n = 20000;
+		double[] lat = new double[n];
+		double[] lon = new double[n];
+		for (int x = 0; x < n; x++) {
+			lat[x] = random.nextDouble() * 140 - 70;
+			lon[x] = random.nextDouble() * 360 - 180;
+		}
+		double max = 0;
+		double sum = 0;
+		long start = System.nanoTime();
+		double[] exact = new double[n];
+		for (int x = 0; x < n; x++) {
+			exact[x] = geoMag.getDeclination(lat[x], lon[x], 2016.5, 0);
+		}
+		long direct = System.nanoTime() - start;
+		for (int x = 0; x < n; x++) {
+			double err = Math.abs(grid.getDeclination(lat[x], lon[x], 2016.5) - exact[x]);
+			max = Math.max(max, err);
+			sum += err;
+		}
+		// a track: many fixes per cell
+		start = System.nanoTime();
+		for (int x = 0; x < n; x++) {
+			grid.getDeclination(-41.5 + x * 0.00001, 172.5 + x * 0.00001, 2016.5);
+		}
+		long track = System.nanoTime() - start;
+		logger.info("Declination grid error mean " + (sum / n) + " max " + max + " deg, " + n + " direct " + (direct / 1000000) + "ms, "
+				+ n + " track fixes " + (track / 1000000) + "ms, " + grid.getComputations() + " WMM calculations");
+		assertTrue("Mean error " + (sum / n), sum / n < 0.01);
+		// the worst cells are around the south magnetic pole, near 64S 136E
+		assertTrue("Max error " + max, max < 1.0);
+	}
+}
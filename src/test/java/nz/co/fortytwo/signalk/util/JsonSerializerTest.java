@@ -2,20 +2,27 @@ package nz.co.fortytwo.signalk.util;
 
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundMagnetic;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelImpl;
+import nz.co.fortytwo.signalk.model.impl.SignalKTrieModelImpl;
 
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 import org.junit.After;
@@ -121,4 +128,86 @@ public class JsonSerializerTest {
 		logger.debug(jsonOut);
 		assertEquals(jsonStr, jsonOut);
 	}
+	@Test
+	public void shouldStreamFullFormat() throws IOException {
+		SignalKModel signalk = TestHelper.getBasicModel();
+		JsonSerializer ser = new JsonSerializer();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ser.write(signalk, SignalKConstants.FORMAT_FULL, out);
+		assertEquals(ser.write(signalk), out.toString("UTF-8"));
+		
+		//trie order puts the separator first
+		SignalKModel trie = new SignalKTrieModelImpl();
+		trie.putAll(signalk.getFullData());
+		trie.getFullData().put("vessels.motu.navigation.position-source", "gps");
+		StringBuilder buffer = new StringBuilder();
+		ser.write(trie, SignalKConstants.FORMAT_FULL, buffer);
+		Json json = Json.read(buffer.toString());
+		assertEquals(-41.29369354, json.at("vessels").at("motu").at("navigation").at("position").at("latitude").asDouble(), 0.00001);
+		assertEquals("gps", json.at("vessels").at("motu").at("navigation").at("position-source").asString());
+	}
+
+	@Test
+	public void shouldStreamDeltaFormat() throws IOException {
+		SignalKModel signalk = TestHelper.getBasicModel();
+		signalk.putPosition(vessels_dot_self_dot+nav_position, -41.5, 173.5, 0.0, "gps", "2015-03-16T03:31:22.110Z");
+		JsonSerializer ser = new JsonSerializer();
+		StringBuilder buffer = new StringBuilder();
+		assertTrue(ser.writeDelta(signalk, buffer));
+		logger.debug(buffer);
+		Json deltas = Json.read(buffer.toString());
+		assertEquals(1, deltas.asJsonList().size());
+		Json delta = deltas.at(0);
+		assertEquals("vessels.motu", delta.at(SignalKConstants.CONTEXT).asString());
+		int found = 0;
+		for (Json update : delta.at(SignalKConstants.UPDATES).asJsonList()) {
+			for (Json value : update.at(SignalKConstants.values).asJsonList()) {
+				String path = value.at(SignalKConstants.PATH).asString();
+				if (path.equals(nav_courseOverGroundTrue)) {
+					assertEquals(0.20874138, value.at(SignalKConstants.value).asDouble(), 0.0000001);
+					assertEquals("2015-03-16T03:31:22.332Z", update.at(SignalKConstants.timestamp).asString());
+					found++;
+				}
+				if (path.equals(nav_position)) {
+					assertEquals(-41.5, value.at(SignalKConstants.value).at("latitude").asDouble(), 0.0000001);
+					assertEquals("gps", update.at(SignalKConstants.sourceRef).asString());
+					found++;
+				}
+			}
+		}
+		assertEquals(2, found);
+		
+		buffer = new StringBuilder();
+		assertFalse(ser.writeDelta(new SignalKModelImpl(), buffer));
+		assertEquals("[]", buffer.toString());
+	}
+
+	@Test
+	public void shouldNotWriteHalfAppliedDelta() throws Exception {
+		final SignalKModel signalk = new SignalKModelImpl();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; !done.get(); i++) {
+					TreeMap<String, Object> delta = new TreeMap<String, Object>();
+					delta.put("vessels.motu.a.value", (double) i);
+					delta.put("vessels.motu.b.value", (double) i);
+					signalk.putAll(delta);
+				}
+			}
+		});
+		writer.start();
+		try {
+			JsonSerializer ser = new JsonSerializer();
+			for (int i = 0; i < 2000; i++) {
+				Json motu = Json.read(ser.write(signalk)).at("vessels", Json.object()).at("motu", Json.object());
+				if (!motu.has("a")) continue;
+				assertEquals(motu.at("a").at("value"), motu.at("b").at("value"));
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+	}
 }
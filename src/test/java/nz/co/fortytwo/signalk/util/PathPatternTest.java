@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import nz.co.fortytwo.signalk.model.impl.PathTrie;
+
+import org.junit.Test;
+
+public class PathPatternTest {
+
+	private static final String[] PATTERNS = { "vessels.*", "vessels.self.navigation*", "vessels.*.navigation.position*",
+			"vessels.?23*", "vessels.self.navigation.courseOverGroundTrue", "*speed*", "vessels.self.nav*.lat*", "*", "vessels.self.*.value",
+			"vessels.self.navigation.position.l?????de*" };
+
+	private static final String[] KEYS = { "vessels.self.navigation.courseOverGroundTrue", "vessels.self.navigation.courseOverGroundTrue.value",
+			"vessels.self.navigation.position.latitude", "vessels.self.navigation.position.longitude", "vessels.self.navigationX",
+			"vessels.self.environment.wind.speedApparent.value", "vessels.123456789.navigation.position.latitude",
+			"vessels.123456789.navigation.speedOverGround", "vessels.223.name", "sources.nmea.0183.GPS" };
+
+	@Test
+	public void shouldMatchLikeRegexPath() {
+		for (String p : PATTERNS) {
+			Pattern regex = Util.regexPath(p);
+			PathPattern pattern = PathPattern.compile(p);
+			for (String k : KEYS) {
+				assertEquals(p + " vs " + k, regex.matcher(k).matches(), pattern.matches(k));
+			}
+		}
+	}
+
+	@Test
+	public void shouldSeekSortedKeys() {
+		checkSeek(new ConcurrentSkipListMap<String, Object>());
+		checkSeek(new PathTrie());
+	}
+
+	private void checkSeek(NavigableMap<String, Object> map) {
+		for (String k : KEYS) {
+			map.put(k, k);
+		}
+		NavigableSet<String> keys = map.navigableKeySet();
+		for (String p : PATTERNS) {
+			Pattern regex = Util.regexPath(p);
+			List<String> expected = new ArrayList<String>();
+			for (String k : keys) {
+				if (regex.matcher(k).matches()) expected.add(k);
+			}
+			assertEquals(p, expected, PathPattern.compile(p).match(keys));
+		}
+	}
+
+	@Test
+	public void shouldMatchExactWithoutWildcards() {
+		PathPattern pattern = PathPattern.compile("vessels.self");
+		assertTrue(pattern.matches("vessels.self"));
+		assertFalse(pattern.matches("vessels.self.name"));
+		assertEquals("vessels.self", pattern.getPrefix());
+	}
+
+	@Test
+	public void shouldCacheCompiledPatterns() {
+		PathPattern pattern = PathPattern.compile("vessels.self.*");
+		assertSame(pattern, PathPattern.compile("vessels.self.*"));
+		for (int x = 0; x < PathPattern.CACHE_SIZE; x++) {
+			PathPattern.compile("vessels." + x + "*");
+		}
+		assertFalse(pattern == PathPattern.compile("vessels.self.*"));
+	}
+}
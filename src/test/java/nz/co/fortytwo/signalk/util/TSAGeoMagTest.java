@@ -17,7 +17,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -233,4 +239,86 @@ public class TSAGeoMagTest
 	assertFalse(cal2.isLeapYear(2013));
 	assertEquals(2013.282, mag.decimalYear(cal2), 0.0005);
     }
+    
+    /**
+     *  test method for {@link TSAGeoMag#getField(double, double, double, double, TSAGeoMag.Field)}
+     */
+    @Test
+    public final void getField()
+    {
+        TSAGeoMag.Field field = magModel.getField(-80, 240, 2017.5, 100, null);
+        assertEquals(69.00, field.getDeclination(), 5.0E-03);
+        assertEquals(magModel.getDipAngle(-80, 240, 2017.5, 100), field.getDipAngle(), 0.0);
+        assertEquals(magModel.getIntensity(-80, 240, 2017.5, 100), field.getIntensity(), 0.0);
+        assertEquals(magModel.getHorizontalIntensity(-80, 240, 2017.5, 100), field.getHorizontalIntensity(), 0.0);
+        assertEquals(magModel.getNorthIntensity(-80, 240, 2017.5, 100), field.getNorthIntensity(), 0.0);
+        assertEquals(magModel.getEastIntensity(-80, 240, 2017.5, 100), field.getEastIntensity(), 0.0);
+        assertEquals(magModel.getVerticalIntensity(-80, 240, 2017.5, 100), field.getVerticalIntensity(), 0.0);
+        
+        // the field is reused
+        assertTrue(field == magModel.getField(80, 0, 2015, 0, field));
+        assertEquals(-3.85, field.getDeclination(), 5.0E-03);
+        assertEquals(54836.0, field.getIntensity(), 5.0E-02);
+        
+        double[] lat = { 80, 0, -80, -80 };
+        double[] lon = { 0, 120, 240, 240 };
+        double[] dec = new double[4];
+        double[] ti = new double[4];
+        magModel.getField(lat, lon, 2015, 0, dec, null, ti);
+        assertEquals(-3.85, dec[0], 5.0E-03);
+        assertEquals(0.57, dec[1], 5.0E-03);
+        assertEquals(69.81, dec[2], 5.0E-03);
+        assertEquals(dec[2], dec[3], 0.0);
+        assertEquals(41090.9, ti[1], 5.0E-02);
+    }
+    
+    /**
+     *  One shared instance gives the same results from many threads.
+     */
+    @Test
+    public final void getDeclinationConcurrently() throws Exception
+    {
+        final double[] lat = new double[2000];
+        final double[] lon = new double[lat.length];
+        final double[] expected = new double[lat.length];
+        for(int i = 0; i < lat.length; i++)
+        {
+            lat[i] = (i % 160) - 80;
+            lon[i] = (i * 7) % 360;
+            expected[i] = magModel.getDeclination(lat[i], lon[i], 2016, 0);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+            for(int t = 0; t < 8; t++)
+            {
+                results.add(executor.submit(new Callable<double[]>()
+                {
+                    @Override
+                    public double[] call()
+                    {
+                        double[] dec = new double[lat.length];
+                        for(int i = 0; i < lat.length; i++)
+                        {
+                            dec[i] = magModel.getDeclination(lat[i], lon[i], 2016, 0);
+                        }
+                        return dec;
+                    }
+                }));
+            }
+            for(Future<double[]> result : results)
+            {
+                double[] dec = result.get();
+                for(int i = 0; i < lat.length; i++)
+                {
+                    assertEquals(expected[i], dec[i], 0.0);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
 }
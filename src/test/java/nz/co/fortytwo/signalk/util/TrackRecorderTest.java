@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TrackRecorderTest {
+
+    @Test
+    public void shouldKeepStraightLine() {
+        TrackRecorder recorder = new TrackRecorder(0.01, 100);
+        assertTrue(recorder.add(0.0, 0.0, 0));
+        assertFalse(recorder.add(0.001, 0.0, 1));
+        int vertices = 1;
+        for (int i = 1; i <= 1000; i++) {
+            if (recorder.add(i * 0.1, i * 0.05, i)) vertices++;
+        }
+        // the window is bounded, so a vertex every 256 kept fixes
+        assertEquals(4, vertices);
+        assertEquals(5, recorder.size());
+        assertEquals(new Position(0.0, 0.0), recorder.getPositions().get(0));
+        assertEquals(new Position(100.0, 50.0), recorder.getPositions().get(4));
+    }
+
+    @Test
+    public void shouldSimplifyLikeTrackSimplifier() {
+        TrackRecorder recorder = new TrackRecorder(0.25, 100);
+        recorder.add(0.0, 0.0, 0);
+        recorder.add(0.05, 0.05, 1); // eliminated by vertex reduction
+        recorder.add(0.5, 0.6, 2);
+        recorder.add(1.0, 1.0, 3);
+        recorder.add(2.0, 0.95, 4);
+        recorder.add(2.9, 1.0, 5);
+        recorder.add(3.0, 1.0, 6); // eliminated by vertex reduction
+        List<Position> expected = ImmutableList.of(new Position(0.0, 0.0), new Position(1.0, 1.0), new Position(2.9, 1.0));
+        assertEquals(expected, recorder.getPositions());
+    }
+
+    @Test
+    public void shouldStayWithinTolerance() {
+        double tolerance = 0.001;
+        TrackRecorder recorder = new TrackRecorder(tolerance, 100000);
+        Random random = new Random(42);
+        List<Position> fixes = new ArrayList<Position>();
+        double lat = 60.0;
+        double lon = 24.0;
+        double heading = 0;
+        for (int i = 0; i < 100000; i++) {
+            heading += random.nextGaussian() * 0.05;
+            lat += Math.cos(heading) * 0.0001;
+            lon += Math.sin(heading) * 0.0001;
+            fixes.add(new Position(lat, lon));
+            recorder.add(lat, lon, i);
+        }
+        int n = recorder.size();
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        long[] times = new long[n];
+        assertEquals(n, recorder.getTrack(lats, lons, times));
+
+        // each fix is within tolerance of its segment, or of a kept fix that is, as with vertex reduction
+        int segment = 0;
+        for (int i = 0; i < fixes.size(); i++) {
+            while (segment < n - 2 && times[segment + 1] < i) {
+                segment++;
+            }
+            Position p = fixes.get(i);
+            double d2 = TrackSimplifier.distance2(lats[segment], lons[segment], lats[segment + 1], lons[segment + 1], p.latitude(), p.longitude());
+            assertTrue("Fix " + i + " is " + Math.sqrt(d2) + " from the track", d2 <= 4 * tolerance * tolerance);
+        }
+        int batch = TrackSimplifier.simplify(fixes, tolerance).size();
+        assertTrue("Recorded " + n + " points, batch " + batch, n < batch * 2);
+    }
+
+    @Test
+    public void shouldReduceWhenFull() {
+        TrackRecorder recorder = new TrackRecorder(0.001, 100);
+        // a zigzag that never simplifies at the initial tolerance
+        for (int i = 0; i < 10000; i++) {
+            recorder.add(i * 0.01, (i % 2) * 0.01, i);
+        }
+        assertTrue(recorder.size() <= 101);
+        assertTrue(recorder.getTolerance() > 0.001);
+        assertEquals(new Position(0.0, 0.0), recorder.getPositions().get(0));
+        assertEquals(recorder.size(), recorder.toCoordinates().asJsonList().size());
+
+        recorder.clear();
+        assertEquals(0, recorder.size());
+        assertEquals(0.001, recorder.getTolerance(), 0.0);
+    }
+}